@@ -10,31 +10,69 @@ public class Constants {
 	public static final String[] FILE_NAMES_GPX = { "fuad", "neil" };
 
 	// Hazelcast
+	public static final double POSITION_CELL_METRES = 1000d;
+	public static final String COMMAND_NOUN_BACKFILL = "backfill";
+	public static final String COMMAND_NOUN_HEATMAP = "heatmap";
 	public static final String COMMAND_NOUN_KAFKA = "kafka";
+	public static final String COMMAND_NOUN_PROXIMITY = "proximity";
 	public static final String COMMAND_NOUN_SPEEDO = "speedo";
 	public static final String COMMAND_NOUN_WORDCOUNT = "wordcount";
 	public static final String COMMAND_VERB_START = "start";
 	public static final String COMMAND_VERB_STOP = "stop";
+	public static final String SPEEDO_MODE_INCREMENTAL = "incremental";
+	public static final String SPEEDO_MODE_WINDOW = "window";
+	public static final String IMAP_NAME_ARCHIVE = "archive";
+	public static final String IMAP_NAME_BACKFILL = "backfill";
 	public static final String IMAP_NAME_COMMAND = "command";
 	public static final String IMAP_NAME_HAMLET = "hamlet";
+	public static final String IMAP_NAME_HEATMAP = "heatmap";
+	public static final String IMAP_NAME_HISTORY = "history";
+	public static final String IMAP_NAME_LEADERBOARD = "leaderboard";
+	public static final String IMAP_NAME_METRICS = "metrics";
+	public static final String IMAP_NAME_MONITOR = "monitor";
 	public static final String IMAP_NAME_POSITION = "position";
+	public static final String IMAP_NAME_PROXIMITY = "proximity";
+	public static final String IMAP_NAME_RIDE = "ride";
 	public static final String IMAP_NAME_SPEED = "speed";
+	public static final String IMAP_NAME_STATS = "stats";
+	public static final String IMAP_NAME_TRAIL = "trail";
 	public static final String IMAP_NAME_WORDS = "words";
 	
 	public static final String[] IMAP_NAMES = {
-		IMAP_NAME_COMMAND, IMAP_NAME_HAMLET, IMAP_NAME_POSITION, IMAP_NAME_SPEED, IMAP_NAME_WORDS
+		IMAP_NAME_ARCHIVE, IMAP_NAME_BACKFILL, IMAP_NAME_COMMAND, IMAP_NAME_HAMLET, IMAP_NAME_HEATMAP,
+		IMAP_NAME_HISTORY, IMAP_NAME_LEADERBOARD, IMAP_NAME_METRICS, IMAP_NAME_MONITOR,
+		IMAP_NAME_POSITION, IMAP_NAME_PROXIMITY, IMAP_NAME_RIDE, IMAP_NAME_SPEED,
+		IMAP_NAME_STATS, IMAP_NAME_TRAIL, IMAP_NAME_WORDS
 	};
 	
 
+	// Backfill, keys in the "backfill" map are version, separator, person
+	public static final String BACKFILL_VERSION_SEPARATOR = "@";
+
+	// Change capture, maps whose changes are recorded to disk and where
+	public static final String CHANGE_CAPTURE_DIRECTORY_PROPERTY_NAME = "change-capture-directory";
+	public static final String CHANGE_CAPTURE_MAPS_PROPERTY_NAME = "change-capture-maps";
+
 	// JFreechart
 	public static final String SPEEDO_PANEL_TITLE = "Speedometer";
 	public static final String SPEEDO_PANEL_X_AXIS = "Time";
 	public static final String SPEEDO_PANEL_Y_AXIS = "Speed (m/s)";
 
+	// Speed, two points closer in time than this are too close to divide by, GPX times are whole seconds
+	public static final long MIN_SPEED_STEP_MILLIS = 1000L;
+
+	// Journal on "position", sized for this many riders sending this often, for a reader this far behind
+	public static final String JOURNAL_POINTS_PER_SECOND_PROPERTY_NAME = "journal-points-per-second";
+	public static final String JOURNAL_RETENTION_SECONDS_PROPERTY_NAME = "journal-retention-seconds";
+	public static final String JOURNAL_RIDERS_PROPERTY_NAME = "journal-riders";
+
 	// Kafka, partition count must match "print-topic.sh" script. Would be better to derive
 	public static final int TOPIC_NAME_GPX_PARTITION_COUNT = 3;
 	public static final String TOPIC_NAME_GPX = "gpx";
 
+	// Map store, where maps kept on disk go
+	public static final String MAP_STORE_DIRECTORY_PROPERTY_NAME = "map-store-directory";
+
 	// Zookeeper, if used for Hazelcast discovery from Docker
 	public static final String ZOOKEEPER_HAZELCAST_PATH = "/discovery/hazelcast";
 	public static final String ZOOKEEPER_IP_PROPERTY_NAME = "zkip";
@@ -9,6 +9,7 @@ import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 
 import lombok.Data;
 
@@ -56,6 +57,10 @@ public class Gpx {
          * <p>One tracking point, "{@code <trkpt>}" has latitude,
          * longitude, elevation and a timestamp.
          * </p>
+         * <p>The grid cell isn't in the GPX, it is added before the point is
+         * stored, so the "{@code position}" map can be indexed on it. See
+         * {@link Grid} and {@link Constants#POSITION_CELL_METRES}.
+         * </p>
          */
         @Data
         @XmlAccessorType(XmlAccessType.FIELD)
@@ -70,6 +75,24 @@ public class Gpx {
                 private double elevation;
                 @XmlElement(name = "time", namespace = NAMESPACE)
                 protected Date date;
+                @XmlTransient
+                private String cell;
+
+                /**
+                 * <p>The grid cell, worked out from the co-ordinates if it wasn't
+                 * filled in before the point was stored. The map's index reads it
+                 * through here, so points stored before the cell was added, or by
+                 * a path that doesn't set it, are still indexed.
+                 * </p>
+                 *
+                 * @return Cell name, never null
+                 */
+                public String getCell() {
+                        if (this.cell == null) {
+                                return Grid.cell(this.latitude, this.longitude, Constants.POSITION_CELL_METRES);
+                        }
+                        return this.cell;
+                }
         }
 
 }
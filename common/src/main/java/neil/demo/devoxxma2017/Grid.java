@@ -0,0 +1,86 @@
+package neil.demo.devoxxma2017;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Divides the surface of the Earth into cells at least "{@code cellMetres}"
+ * across, so nearby points can be found by looking in a few cells rather
+ * than at every point.
+ * </p>
+ * <p>Rows are bands of latitude, all the same height. A degree of longitude
+ * shrinks towards the poles, so each row has its own column width in
+ * degrees, wide enough at the row's poleward edge. Columns in adjacent rows
+ * don't line up, so neighbours are found by range rather than by adding
+ * one to the row and column.
+ * </p>
+ * <p>A cell is named "{@code row:column}", which is what is used as a key.
+ * </p>
+ * <p>The grid doesn't wrap at 180&deg; longitude, points either side of it
+ * are never neighbours. Within a degree of either pole columns stop shrinking,
+ * so cells there hold more.
+ * </p>
+ */
+public class Grid {
+
+	public static final double METRES_PER_DEGREE = 2 * Math.PI * Haversine.RADIUS_OF_THE_EARTH_M / 360d;
+	private static final double MAX_LATITUDE = 89d;
+
+	/**
+	 * <p>The cell a point is in.
+	 * </p>
+	 *
+	 * @param latitude Degrees
+	 * @param longitude Degrees
+	 * @param cellMetres Smallest width and height of a cell
+	 * @return Cell name
+	 */
+	public static String cell(double latitude, double longitude, double cellMetres) {
+		double rowDegrees = cellMetres / METRES_PER_DEGREE;
+		long row = (long) Math.floor(latitude / rowDegrees);
+		return row + ":" + (long) Math.floor(longitude / columnDegrees(row, rowDegrees));
+	}
+
+	/**
+	 * <p>Every cell that has any part within "{@code metres}" of a point,
+	 * including the point's own cell. For a radius no bigger than the cell
+	 * size this is usually 9 cells, or fewer.
+	 * </p>
+	 *
+	 * @param latitude Degrees
+	 * @param longitude Degrees
+	 * @param metres Radius to cover
+	 * @param cellMetres Smallest width and height of a cell
+	 * @return Cell names
+	 */
+	public static List<String> cellsWithin(double latitude, double longitude, double metres, double cellMetres) {
+		double rowDegrees = cellMetres / METRES_PER_DEGREE;
+		double latitudeDegrees = metres / METRES_PER_DEGREE;
+		// Widest the radius can be in longitude, at its poleward edge
+		double poleward = Math.min(Math.abs(latitude) + latitudeDegrees, MAX_LATITUDE);
+		double longitudeDegrees = latitudeDegrees / Math.cos(Math.toRadians(poleward));
+
+		List<String> result = new ArrayList<>();
+		long firstRow = (long) Math.floor((latitude - latitudeDegrees) / rowDegrees);
+		long lastRow = (long) Math.floor((latitude + latitudeDegrees) / rowDegrees);
+		for (long row = firstRow; row <= lastRow; row++) {
+			double columnDegrees = columnDegrees(row, rowDegrees);
+			long firstColumn = (long) Math.floor((longitude - longitudeDegrees) / columnDegrees);
+			long lastColumn = (long) Math.floor((longitude + longitudeDegrees) / columnDegrees);
+			for (long column = firstColumn; column <= lastColumn; column++) {
+				result.add(row + ":" + column);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * <p>Column width for a row, from the length of a degree of
+	 * longitude at the row's poleward edge.
+	 * </p>
+	 */
+	private static double columnDegrees(long row, double rowDegrees) {
+		double poleward = Math.min(Math.max(Math.abs(row * rowDegrees), Math.abs((row + 1) * rowDegrees)), MAX_LATITUDE);
+		return rowDegrees / Math.cos(Math.toRadians(poleward));
+	}
+}
@@ -0,0 +1,42 @@
+package neil.demo.devoxxma2017;
+
+/**
+ * <p>Distance between two points on the surface of the Earth, using
+ * <a href="https://en.wikipedia.org/wiki/Haversine_formula">The Haversine Formula</a>.
+ * </p>
+ * <p>The Earth is treated as a sphere, and changes in height are ignored,
+ * so this is an approximation. Good enough for speeds, not for navigation.
+ * </p>
+ */
+public class Haversine {
+
+	public static final int RADIUS_OF_THE_EARTH_M = 6_371_000;
+
+	/**
+	 * <p>Distance in metres from one latitude/longitude pair to another.
+	 * </p>
+	 *
+	 * @param latitude1 Degrees
+	 * @param longitude1 Degrees
+	 * @param latitude2 Degrees
+	 * @param longitude2 Degrees
+	 * @return Metres, never negative
+	 */
+	public static double metres(double latitude1, double longitude1, double latitude2, double longitude2) {
+		double lat1 = Math.toRadians(latitude1);
+		double lat2 = Math.toRadians(latitude2);
+		double long1 = Math.toRadians(longitude1);
+		double long2 = Math.toRadians(longitude2);
+
+		double latDiff = lat1 - lat2;
+		double longDiff = long1 - long2;
+
+		double distance = Math.pow(Math.sin(latDiff / 2), 2)
+				+ Math.pow(Math.sin(longDiff / 2), 2)
+				* Math.cos(lat1)
+				* Math.cos(lat2);
+
+		return 2 * RADIUS_OF_THE_EARTH_M * Math.asin(Math.sqrt(distance));
+	}
+
+}
@@ -0,0 +1,21 @@
+package neil.demo.devoxxma2017;
+
+import java.io.Serializable;
+
+import lombok.Data;
+
+/**
+ * <p>How busy one map tile has been recently, the number of
+ * points in it and their average speed.
+ * </p>
+ */
+@Data
+@SuppressWarnings("serial")
+public class HeatTile implements Serializable {
+
+	private long points;
+	private double metresPerSecond;
+	// End of the window
+	private long time;
+
+}
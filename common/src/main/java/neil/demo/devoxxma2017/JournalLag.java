@@ -0,0 +1,40 @@
+package neil.demo.devoxxma2017;
+
+import java.io.Serializable;
+
+import lombok.Data;
+
+/**
+ * <p>How far one reader of an event journal is behind the newest event
+ * in one partition, and how long until it is overrun at current rates.
+ * </p>
+ * <p>The journal is a ring per partition. Once the writer gets a whole
+ * ring ahead of a reader, the events in between are overwritten before
+ * they are read, and are lost. Published to the "{@code monitor}" map
+ * so this can be seen coming.
+ * </p>
+ */
+@Data
+@SuppressWarnings("serial")
+public class JournalLag implements Serializable {
+
+	private String reader;
+	private int partition;
+	// Oldest still held, newest written, and the next the reader will read
+	private long oldestSequence;
+	private long newestSequence;
+	private long readSequence;
+	// Events written but not read, out of the ring size for the partition
+	private long lag;
+	private long capacity;
+	private long appendsPerSecond;
+	private long readsPerSecond;
+	// At current rates, -1 if the reader is keeping up
+	private long secondsToOverrun;
+	// Lag is most of the ring, the reader needs to catch up or the journal to be bigger
+	private boolean nearOverrun;
+	// The reader is already behind the oldest held, events have been lost
+	private boolean overrun;
+	private long time;
+
+}
@@ -0,0 +1,24 @@
+package neil.demo.devoxxma2017;
+
+import java.io.Serializable;
+
+import lombok.Data;
+
+/**
+ * <p>The fastest people in one window, fastest first.
+ * </p>
+ * <p>Held as a pair of arrays, the person and their speed at the
+ * same index. At most a fixed number, however many people there are,
+ * so reading it is cheap.
+ * </p>
+ */
+@Data
+@SuppressWarnings("serial")
+public class Leaderboard implements Serializable {
+
+	private String[] riders;
+	private double[] metresPerSecond;
+	// End of the window
+	private long time;
+
+}
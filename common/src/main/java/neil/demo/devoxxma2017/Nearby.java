@@ -0,0 +1,24 @@
+package neil.demo.devoxxma2017;
+
+import java.io.Serializable;
+
+import lombok.Data;
+
+/**
+ * <p>Two people close to each other, at the time of the later
+ * of the two points compared.
+ * </p>
+ * <p>The two are in name order, so the same pair is always
+ * the same way round.
+ * </p>
+ */
+@Data
+@SuppressWarnings("serial")
+public class Nearby implements Serializable {
+
+	private String rider;
+	private String otherRider;
+	private double metres;
+	private long time;
+
+}
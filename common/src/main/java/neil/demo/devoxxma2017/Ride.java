@@ -0,0 +1,26 @@
+package neil.demo.devoxxma2017;
+
+import java.io.Serializable;
+
+import lombok.Data;
+
+/**
+ * <p>A summary of one ride, from the first point moving to the last
+ * point before a long enough stop.
+ * </p>
+ * <p>The average speed is along the path, not in a straight line.
+ * </p>
+ */
+@Data
+@SuppressWarnings("serial")
+public class Ride implements Serializable {
+
+	private String rider;
+	private long start;
+	private long end;
+	private double distanceMetres;
+	private double averageMetresPerSecond;
+	private double maxMetresPerSecond;
+	private int points;
+
+}
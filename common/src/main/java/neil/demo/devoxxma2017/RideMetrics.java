@@ -0,0 +1,33 @@
+package neil.demo.devoxxma2017;
+
+import java.io.Serializable;
+
+import lombok.Data;
+
+/**
+ * <p>Everything measured about one person over one window,
+ * from a single pass over their points.
+ * </p>
+ * <p>"{@code metresPerSecond}" is first point to last point in a
+ * straight line, the same as {@link Speed}. "{@code distanceMetres}"
+ * follows the path point to point, so is longer if the route bends.
+ * Pace is from the path distance, as runners quote it.
+ * </p>
+ */
+@Data
+@SuppressWarnings("serial")
+public class RideMetrics implements Serializable {
+
+	private double metresPerSecond;
+	private double distanceMetres;
+	// Fastest from one point to the next
+	private double maxMetresPerSecond;
+	// Total of the climbs, descents are ignored
+	private double elevationGainMetres;
+	// Zero if no distance
+	private double secondsPerKilometre;
+	private int points;
+	private long start;
+	private long time;
+
+}
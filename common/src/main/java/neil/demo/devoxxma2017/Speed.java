@@ -8,6 +8,10 @@ import lombok.Data;
  * <p>An object representing a speed at a particular
  * point in time.
  * </p>
+ * <p>If "{@code offline}" is set, there have been no points
+ * for this person for a while, and the time is that of the
+ * last speed.
+ * </p>
  */
 @Data
 @SuppressWarnings("serial")
@@ -15,5 +19,6 @@ public class Speed implements Serializable {
 
     private double metresPerSecond;
     private long time;
+    private boolean offline;
 
 }
@@ -0,0 +1,243 @@
+package neil.demo.devoxxma2017;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>A person's speeds over time, held at three resolutions, per second,
+ * per minute and per hour.
+ * </p>
+ * <p>Each speed added goes into the current bucket of all three, so the
+ * minute and hour "<i>rollups</i>" are always up to date and there is no
+ * separate job to build them. A bucket holds the count and the sum of the
+ * speeds in it, so gives the mean.
+ * </p>
+ * <p>Each resolution is a ring of buckets, slot chosen by bucket number,
+ * so a new bucket overwrites the one a whole ring older. With the default
+ * sizes this keeps 15 minutes of seconds, a day of minutes and a month
+ * of hours.
+ * </p>
+ * <p>The rings start small and double when a new bucket would otherwise
+ * overwrite one that is still wanted, so memory follows the buckets actually
+ * used. Speedo's main window gives one speed a minute, so the ring of seconds
+ * never holds more than 15. Full size, for someone with a speed in every
+ * bucket, is about 60KB.
+ * </p>
+ * <pre>
+ *   time ---------------------------------------------------------->
+ *   hours   |          |          |          |          |       |
+ *   minutes                                   | | | | | | | | | | |
+ *   seconds                                              |||||||||||
+ * </pre>
+ * <p>A range query uses the finest resolution that still goes back far
+ * enough, so a chart of the last few minutes gets seconds and a chart
+ * of the last week gets hours.
+ * </p>
+ * <p>A speed may arrive a little out of order, it is added to whichever
+ * bucket it belongs in if that is still held. Offline markers are not
+ * speeds, and are ignored.
+ * </p>
+ */
+@SuppressWarnings("serial")
+public class SpeedHistory implements Serializable {
+
+	public static final long SECOND_MILLIS = 1000L;
+	public static final long MINUTE_MILLIS = 60 * SECOND_MILLIS;
+	public static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+
+	private static final int SECONDS = 900;
+	private static final int MINUTES = 1440;
+	private static final int HOURS = 720;
+	private static final int INITIAL_SLOTS = 8;
+
+	private final Resolution[] resolutions = {
+		new Resolution(SECOND_MILLIS, SECONDS),
+		new Resolution(MINUTE_MILLIS, MINUTES),
+		new Resolution(HOUR_MILLIS, HOURS),
+	};
+
+	/**
+	 * <p>Add a speed to all resolutions.
+	 * </p>
+	 *
+	 * @param speed Ignored if offline
+	 * @return True if added to at least one resolution
+	 */
+	public boolean add(Speed speed) {
+		if (speed.isOffline()) {
+			return false;
+		}
+		boolean added = false;
+		for (Resolution resolution : this.resolutions) {
+			added |= resolution.add(speed.getTime(), speed.getMetresPerSecond());
+		}
+		return added;
+	}
+
+	/**
+	 * @return Time of the newest speed, or 0 if none
+	 */
+	public long lastTime() {
+		return this.resolutions[0].lastTime;
+	}
+
+	/**
+	 * <p>The speeds in a time range, at the finest resolution still
+	 * holding the start of the range, or the coarsest if none do.
+	 * </p>
+	 *
+	 * @param from Earliest, milliseconds since 1970
+	 * @param to Latest, milliseconds since 1970
+	 * @return Mean speed per bucket, timed at the bucket start, oldest first
+	 */
+	public List<Speed> range(long from, long to) {
+		for (Resolution resolution : this.resolutions) {
+			if (resolution.holds(from)) {
+				return resolution.range(from, to);
+			}
+		}
+		return this.resolutions[this.resolutions.length - 1].range(from, to);
+	}
+
+	/**
+	 * @param from Earliest, milliseconds since 1970
+	 * @param to Latest, milliseconds since 1970
+	 * @param resolutionMillis One of {@link #SECOND_MILLIS}, {@link #MINUTE_MILLIS} or {@link #HOUR_MILLIS}
+	 * @return Mean speed per bucket, timed at the bucket start, oldest first
+	 */
+	public List<Speed> range(long from, long to, long resolutionMillis) {
+		for (Resolution resolution : this.resolutions) {
+			if (resolution.millis == resolutionMillis) {
+				return resolution.range(from, to);
+			}
+		}
+		throw new IllegalArgumentException("resolutionMillis " + resolutionMillis);
+	}
+
+	/**
+	 * <p>One ring of buckets, as primitives in parallel arrays. A slot
+	 * records which bucket number it currently holds, so a stale slot
+	 * is never mistaken for a current one.
+	 * </p>
+	 * <p>The ring keeps the last "{@code capacity}" buckets, but starts with
+	 * fewer slots. Slots only double, up to the capacity, when a bucket would
+	 * land on one holding a bucket still within the capacity.
+	 * </p>
+	 */
+	private static class Resolution implements Serializable {
+		private final long millis;
+		private final int capacity;
+		private long[] buckets;
+		private int[] counts;
+		private double[] sums;
+		private long newest = Long.MIN_VALUE;
+		private long lastTime;
+
+		Resolution(long millis, int capacity) {
+			this.millis = millis;
+			this.capacity = capacity;
+			this.allocate(Math.min(INITIAL_SLOTS, capacity));
+		}
+
+		boolean add(long time, double metresPerSecond) {
+			long bucket = Math.floorDiv(time, this.millis);
+			if (this.newest != Long.MIN_VALUE && bucket <= this.newest - this.capacity) {
+				return false;
+			}
+
+			int slot = this.slot(bucket);
+			while (this.buckets[slot] != bucket && this.buckets[slot] != Long.MIN_VALUE
+					&& Math.max(bucket, this.newest) - this.buckets[slot] < this.capacity
+					&& this.buckets.length < this.capacity) {
+				this.grow(Math.max(bucket, this.newest));
+				slot = this.slot(bucket);
+			}
+			if (this.buckets[slot] != bucket) {
+				this.buckets[slot] = bucket;
+				this.counts[slot] = 0;
+				this.sums[slot] = 0;
+			}
+			this.counts[slot]++;
+			this.sums[slot] += metresPerSecond;
+
+			this.newest = Math.max(this.newest, bucket);
+			this.lastTime = Math.max(this.lastTime, time);
+			return true;
+		}
+
+		/**
+		 * @return True if the bucket for the time hasn't yet been overwritten
+		 */
+		boolean holds(long time) {
+			return this.newest != Long.MIN_VALUE
+					&& Math.floorDiv(time, this.millis) > this.newest - this.capacity;
+		}
+
+		/**
+		 * <p>Walk the bucket numbers in the range, clipped to what the ring
+		 * can hold, so the cost is the buckets wanted not the ring size.
+		 * </p>
+		 */
+		List<Speed> range(long from, long to) {
+			List<Speed> result = new ArrayList<>();
+			if (this.newest == Long.MIN_VALUE || to < from) {
+				return result;
+			}
+
+			long first = Math.max(Math.floorDiv(from, this.millis), this.newest - this.capacity + 1);
+			long last = Math.min(Math.floorDiv(to, this.millis), this.newest);
+			for (long bucket = first; bucket <= last; bucket++) {
+				int slot = this.slot(bucket);
+				if (this.buckets[slot] == bucket && this.counts[slot] > 0) {
+					Speed speed = new Speed();
+					speed.setMetresPerSecond(this.sums[slot] / this.counts[slot]);
+					speed.setTime(bucket * this.millis);
+					result.add(speed);
+				}
+			}
+			return result;
+		}
+
+		private int slot(long bucket) {
+			return (int) Math.floorMod(bucket, (long) this.buckets.length);
+		}
+
+		private void allocate(int slots) {
+			this.buckets = new long[slots];
+			this.counts = new int[slots];
+			this.sums = new double[slots];
+			Arrays.fill(this.buckets, Long.MIN_VALUE);
+		}
+
+		/**
+		 * <p>Double the slots, and move each bucket still wanted to its slot in
+		 * the bigger ring. If two land on the same slot, double again. At full
+		 * capacity they can't, as they are all within the capacity of the newest.
+		 * </p>
+		 *
+		 * @param newest Newest bucket, including the one being added
+		 */
+		private void grow(long newest) {
+			long[] oldBuckets = this.buckets;
+			int[] oldCounts = this.counts;
+			double[] oldSums = this.sums;
+
+			boolean placed = false;
+			while (!placed) {
+				this.allocate(Math.min(this.buckets.length * 2, this.capacity));
+				placed = true;
+				for (int i = 0; i < oldBuckets.length && placed; i++) {
+					if (oldBuckets[i] != Long.MIN_VALUE && oldBuckets[i] > newest - this.capacity) {
+						int slot = this.slot(oldBuckets[i]);
+						placed = (this.buckets[slot] == Long.MIN_VALUE);
+						this.buckets[slot] = oldBuckets[i];
+						this.counts[slot] = oldCounts[i];
+						this.sums[slot] = oldSums[i];
+					}
+				}
+			}
+		}
+	}
+}
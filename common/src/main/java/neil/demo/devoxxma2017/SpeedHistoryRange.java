@@ -0,0 +1,51 @@
+package neil.demo.devoxxma2017;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import com.hazelcast.core.ReadOnly;
+import com.hazelcast.map.AbstractEntryProcessor;
+
+/**
+ * <p>Pick a range of speeds out of a person's {@link SpeedHistory}, where
+ * the history is stored.
+ * </p>
+ * <p>A get would send the whole history to the caller, up to a month of
+ * hours, a day of minutes and 15 minutes of seconds, to show a few minutes
+ * of it. This runs on the member that owns the key and sends back only
+ * the speeds in the range.
+ * </p>
+ * <p>The range ends at the person's latest speed rather than now, as the
+ * test data may be replayed from long ago. Nothing is changed, so this is
+ * not run on the backup copy.
+ * </p>
+ * <p>It is here rather than with the server's entry processors, as the
+ * client sends it.
+ * </p>
+ */
+@SuppressWarnings("serial")
+public class SpeedHistoryRange extends AbstractEntryProcessor<String, SpeedHistory> implements ReadOnly {
+
+	private final long millis;
+
+	/**
+	 * @param millis How far back from the latest speed
+	 */
+	public SpeedHistoryRange(long millis) {
+		super(false);
+		this.millis = millis;
+	}
+
+	/**
+	 * @return Mean speed per bucket, oldest first, empty if no history
+	 */
+	@Override
+	public Object process(Map.Entry<String, SpeedHistory> entry) {
+		SpeedHistory speedHistory = entry.getValue();
+		if (speedHistory == null) {
+			return new ArrayList<Speed>();
+		}
+		long to = speedHistory.lastTime();
+		return new ArrayList<>(speedHistory.range(to - this.millis, to));
+	}
+}
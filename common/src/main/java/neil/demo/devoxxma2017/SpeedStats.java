@@ -0,0 +1,27 @@
+package neil.demo.devoxxma2017;
+
+import java.io.Serializable;
+
+import lombok.Data;
+
+/**
+ * <p>Speed statistics for everyone in one window, from sketches
+ * rather than from every speed, so approximate.
+ * </p>
+ * <p>The percentiles are over people moving. The count of riders
+ * is everyone with points in the window, moving or not.
+ * </p>
+ */
+@Data
+@SuppressWarnings("serial")
+public class SpeedStats implements Serializable {
+
+	private double p50MetresPerSecond;
+	private double p95MetresPerSecond;
+	private double p99MetresPerSecond;
+	private long moving;
+	private long riders;
+	// End of the window
+	private long time;
+
+}
@@ -0,0 +1,75 @@
+package neil.demo.devoxxma2017;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Map tiles, as used by web maps such as
+ * <a href="https://wiki.openstreetmap.org/wiki/Slippy_map_tilenames">OpenStreetMap</a>.
+ * </p>
+ * <p>At zoom level 0 the whole world is one tile, and each zoom level
+ * splits each tile into four. A tile is named "{@code zoom/x/y}", with
+ * x increasing eastwards from 180&deg; west and y increasing southwards
+ * from about 85&deg; north. Beyond that latitude the projection doesn't
+ * reach, so points there go in the top or bottom row.
+ * </p>
+ */
+public class Tile {
+
+	private static final double MAX_LATITUDE = 85.0511;
+
+	/**
+	 * <p>The tile a point is in at a zoom level.
+	 * </p>
+	 *
+	 * @param latitude Degrees
+	 * @param longitude Degrees
+	 * @param zoom 0 upwards
+	 * @return Tile name
+	 */
+	public static String key(double latitude, double longitude, int zoom) {
+		return key(zoom, x(longitude, zoom), y(latitude, zoom));
+	}
+
+	/**
+	 * <p>The tile a point is in and those around it, a square
+	 * "{@code 2 * radius + 1}" tiles across, such as for a screen's worth.
+	 * </p>
+	 *
+	 * @param latitude Degrees
+	 * @param longitude Degrees
+	 * @param zoom 0 upwards
+	 * @param radius How many tiles each way, 0 for just the one
+	 * @return Tile names, without duplicates
+	 */
+	public static List<String> keysAround(double latitude, double longitude, int zoom, int radius) {
+		long tiles = 1L << zoom;
+		long x = x(longitude, zoom);
+		long y = y(latitude, zoom);
+
+		List<String> result = new ArrayList<>();
+		for (long dy = Math.max(0, y - radius); dy <= Math.min(tiles - 1, y + radius); dy++) {
+			for (long dx = x - Math.min(radius, (tiles - 1) / 2); dx <= x + Math.min(radius, tiles / 2); dx++) {
+				// Wrap east-west, the world is round that way
+				result.add(key(zoom, Math.floorMod(dx, tiles), dy));
+			}
+		}
+		return result;
+	}
+
+	private static String key(int zoom, long x, long y) {
+		return zoom + "/" + x + "/" + y;
+	}
+
+	private static long x(double longitude, int zoom) {
+		long tiles = 1L << zoom;
+		return Math.min(tiles - 1, Math.max(0, (long) Math.floor((longitude + 180d) / 360d * tiles)));
+	}
+
+	private static long y(double latitude, int zoom) {
+		long tiles = 1L << zoom;
+		double radians = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude)));
+		double mercator = Math.log(Math.tan(radians) + 1 / Math.cos(radians));
+		return Math.min(tiles - 1, Math.max(0, (long) Math.floor((1 - mercator / Math.PI) / 2 * tiles)));
+	}
+}
@@ -0,0 +1,378 @@
+package neil.demo.devoxxma2017;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import neil.demo.devoxxma2017.Gpx.TrkPt;
+
+/**
+ * <p>A run of points for one person, compressed for long term keeping.
+ * </p>
+ * <p>The points are stored a column at a time, all the times then all the
+ * latitudes, longitudes and elevations, each column compressed the way
+ * <a href="http://www.vldb.org/pvldb/vol8/p1816-teller.pdf">Facebook's Gorilla</a>
+ * compresses time series:
+ * </p>
+ * <ul>
+ * <li><p><b>Times</b> are stored as the change in the gap between points,
+ * the "<i>delta of delta</i>". Points that come at a steady rate have
+ * the same gap each time, and the change of zero takes one bit.
+ * </p>
+ * </li>
+ * <li><p><b>Values</b> are stored as the bits that differ from the previous
+ * value, the "<i>XOR</i>". Nearby positions share the sign, exponent and
+ * the top of the mantissa, so only the middle bits are stored. An
+ * unchanged value, such as the elevation on the flat, takes one bit.
+ * </p>
+ * </li>
+ * </ul>
+ * <p>A point as a {@link TrkPt} in the "{@code position}" map is over 200
+ * bytes serialized. Here it is typically 10 to 15 bytes.
+ * </p>
+ * <p>To read a range, the times are decoded until past the end of the range,
+ * then each other column only as far as that. The start and end time are
+ * held uncompressed, so a block entirely outside a range isn't decoded at all.
+ * </p>
+ * <p>The person is held uncompressed too, for the index on the "{@code archive}"
+ * map, so finding a person's blocks doesn't look at everyone's.
+ * </p>
+ * <p>There is nothing here specific to Hazelcast or Jet, so a block can be
+ * written by a streaming job and read by a batch job or a client alike.
+ * </p>
+ */
+@SuppressWarnings("serial")
+public class TrackBlock implements Serializable {
+
+	private static final int COLUMNS = 4;
+
+	private final String rider;
+	private final int count;
+	private final long firstTime;
+	private final long lastTime;
+	// Bit position where each column starts
+	private final int[] columnStarts;
+	private final long[] bits;
+
+	private TrackBlock(String rider, int count, long firstTime, long lastTime, int[] columnStarts, long[] bits) {
+		this.rider = rider;
+		this.count = count;
+		this.firstTime = firstTime;
+		this.lastTime = lastTime;
+		this.columnStarts = columnStarts;
+		this.bits = bits;
+	}
+
+	/**
+	 * <p>Compress points, which must be in time order.
+	 * </p>
+	 *
+	 * @param rider Whose points, kept uncompressed so blocks can be found by it
+	 * @param times Milliseconds
+	 * @param latitudes Degrees
+	 * @param longitudes Degrees
+	 * @param elevations Metres
+	 * @param count How many of each array to use, at least 1
+	 * @return The compressed block
+	 */
+	public static TrackBlock encode(String rider, long[] times, double[] latitudes, double[] longitudes, double[] elevations, int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("count " + count);
+		}
+		BitWriter writer = new BitWriter();
+		int[] columnStarts = new int[COLUMNS];
+
+		columnStarts[0] = writer.size();
+		writeTimes(writer, times, count);
+		columnStarts[1] = writer.size();
+		writeValues(writer, latitudes, count);
+		columnStarts[2] = writer.size();
+		writeValues(writer, longitudes, count);
+		columnStarts[3] = writer.size();
+		writeValues(writer, elevations, count);
+
+		return new TrackBlock(rider, count, times[0], times[count - 1], columnStarts, writer.toArray());
+	}
+
+	public String getRider() {
+		return this.rider;
+	}
+
+	public int getCount() {
+		return this.count;
+	}
+
+	public long getFirstTime() {
+		return this.firstTime;
+	}
+
+	public long getLastTime() {
+		return this.lastTime;
+	}
+
+	/**
+	 * @return Bytes of compressed data, not counting headers
+	 */
+	public int getCompressedBytes() {
+		return this.bits.length * Long.BYTES;
+	}
+
+	/**
+	 * @return All points, oldest first
+	 */
+	public List<TrkPt> points() {
+		return this.range(Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * <p>Decompress the points within a time range, decoding
+	 * no further than needed.
+	 * </p>
+	 *
+	 * @param from Earliest wanted, inclusive
+	 * @param to Latest wanted, inclusive
+	 * @return Points in the range, oldest first
+	 */
+	public List<TrkPt> range(long from, long to) {
+		List<TrkPt> result = new ArrayList<>();
+		if (to < this.firstTime || from > this.lastTime) {
+			return result;
+		}
+
+		long[] times = new long[this.count];
+		int end = readTimes(new BitReader(this.bits, this.columnStarts[0]), times, this.count, to);
+		int start = 0;
+		while (start < end && times[start] < from) {
+			start++;
+		}
+		if (start == end) {
+			return result;
+		}
+
+		double[] latitudes = readValues(new BitReader(this.bits, this.columnStarts[1]), end);
+		double[] longitudes = readValues(new BitReader(this.bits, this.columnStarts[2]), end);
+		double[] elevations = readValues(new BitReader(this.bits, this.columnStarts[3]), end);
+
+		for (int i = start; i < end; i++) {
+			TrkPt trkPt = new TrkPt();
+			trkPt.setDate(new Date(times[i]));
+			trkPt.setLatitude(latitudes[i]);
+			trkPt.setLongitude(longitudes[i]);
+			trkPt.setElevation(elevations[i]);
+			result.add(trkPt);
+		}
+		return result;
+	}
+
+	/**
+	 * <p>The first time raw, the first gap raw, then each change in the gap
+	 * with a prefix saying how many bits it needs.
+	 * </p>
+	 */
+	private static void writeTimes(BitWriter writer, long[] times, int count) {
+		writer.write(times[0], 64);
+		long previousDelta = 0;
+		for (int i = 1; i < count; i++) {
+			long delta = times[i] - times[i - 1];
+			if (i == 1) {
+				writer.write(delta, 64);
+			} else {
+				long deltaOfDelta = delta - previousDelta;
+				if (deltaOfDelta == 0) {
+					writer.write(0b0, 1);
+				} else if (fits(deltaOfDelta, 7)) {
+					writer.write(0b10, 2);
+					writer.write(deltaOfDelta, 7);
+				} else if (fits(deltaOfDelta, 9)) {
+					writer.write(0b110, 3);
+					writer.write(deltaOfDelta, 9);
+				} else if (fits(deltaOfDelta, 12)) {
+					writer.write(0b1110, 4);
+					writer.write(deltaOfDelta, 12);
+				} else {
+					writer.write(0b1111, 4);
+					writer.write(deltaOfDelta, 64);
+				}
+			}
+			previousDelta = delta;
+		}
+	}
+
+	/**
+	 * @return How many were read, stopping after the first beyond "{@code to}"
+	 */
+	private static int readTimes(BitReader reader, long[] times, int count, long to) {
+		times[0] = reader.read(64);
+		if (times[0] > to) {
+			return 0;
+		}
+		long delta = 0;
+		for (int i = 1; i < count; i++) {
+			if (i == 1) {
+				delta = reader.read(64);
+			} else {
+				if (reader.read(1) == 0) {
+					// Same gap
+				} else if (reader.read(1) == 0) {
+					delta += reader.readSigned(7);
+				} else if (reader.read(1) == 0) {
+					delta += reader.readSigned(9);
+				} else if (reader.read(1) == 0) {
+					delta += reader.readSigned(12);
+				} else {
+					delta += reader.read(64);
+				}
+			}
+			times[i] = times[i - 1] + delta;
+			if (times[i] > to) {
+				return i;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * <p>The first value raw, then a zero bit if unchanged, or the bits that
+	 * changed. If they fit in the same span of bits as last time only the
+	 * span is written, otherwise the new span's position and length first.
+	 * </p>
+	 */
+	private static void writeValues(BitWriter writer, double[] values, int count) {
+		long previous = Double.doubleToRawLongBits(values[0]);
+		writer.write(previous, 64);
+		int previousLeading = -1;
+		int previousTrailing = 0;
+
+		for (int i = 1; i < count; i++) {
+			long current = Double.doubleToRawLongBits(values[i]);
+			long xor = current ^ previous;
+			if (xor == 0) {
+				writer.write(0b0, 1);
+			} else {
+				int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+				int trailing = Long.numberOfTrailingZeros(xor);
+				if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+					writer.write(0b10, 2);
+					writer.write(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+				} else {
+					int length = 64 - leading - trailing;
+					writer.write(0b11, 2);
+					writer.write(leading, 5);
+					// 1 to 64, stored as 0 to 63
+					writer.write(length - 1, 6);
+					writer.write(xor >>> trailing, length);
+					previousLeading = leading;
+					previousTrailing = trailing;
+				}
+			}
+			previous = current;
+		}
+	}
+
+	private static double[] readValues(BitReader reader, int count) {
+		double[] values = new double[count];
+		if (count == 0) {
+			return values;
+		}
+		long previous = reader.read(64);
+		values[0] = Double.longBitsToDouble(previous);
+		int leading = 0;
+		int trailing = 0;
+
+		for (int i = 1; i < count; i++) {
+			if (reader.read(1) != 0) {
+				if (reader.read(1) != 0) {
+					leading = (int) reader.read(5);
+					int length = (int) reader.read(6) + 1;
+					trailing = 64 - leading - length;
+				}
+				previous ^= reader.read(64 - leading - trailing) << trailing;
+			}
+			values[i] = Double.longBitsToDouble(previous);
+		}
+		return values;
+	}
+
+	private static boolean fits(long value, int bits) {
+		long limit = 1L << (bits - 1);
+		return value >= -limit && value < limit;
+	}
+
+	/**
+	 * <p>Appends bits, most significant first, to a growing array of longs.
+	 * A value lands in one word, or is split across two.
+	 * </p>
+	 */
+	private static class BitWriter {
+		private long[] words = new long[16];
+		private int size;
+
+		void write(long value, int bits) {
+			if (bits == 0) {
+				return;
+			}
+			if (this.size + bits > this.words.length * 64) {
+				this.words = Arrays.copyOf(this.words, this.words.length * 2);
+			}
+			value &= mask(bits);
+			int word = this.size >>> 6;
+			int free = 64 - (this.size & 63);
+			if (bits <= free) {
+				this.words[word] |= value << (free - bits);
+			} else {
+				this.words[word] |= value >>> (bits - free);
+				this.words[word + 1] |= value << (64 - (bits - free));
+			}
+			this.size += bits;
+		}
+
+		int size() {
+			return this.size;
+		}
+
+		long[] toArray() {
+			return Arrays.copyOf(this.words, (this.size + 63) >>> 6);
+		}
+	}
+
+	/**
+	 * <p>Reads bits back in the order written, from a starting bit.
+	 * </p>
+	 */
+	private static class BitReader {
+		private final long[] words;
+		private int position;
+
+		BitReader(long[] words, int position) {
+			this.words = words;
+			this.position = position;
+		}
+
+		long read(int bits) {
+			if (bits == 0) {
+				return 0;
+			}
+			int word = this.position >>> 6;
+			int free = 64 - (this.position & 63);
+			long value;
+			if (bits <= free) {
+				value = (this.words[word] >>> (free - bits)) & mask(bits);
+			} else {
+				value = ((this.words[word] & mask(free)) << (bits - free))
+						| (this.words[word + 1] >>> (64 - (bits - free)));
+			}
+			this.position += bits;
+			return value;
+		}
+
+		long readSigned(int bits) {
+			return (this.read(bits) << (64 - bits)) >> (64 - bits);
+		}
+	}
+
+	private static long mask(int bits) {
+		return (bits == 64 ? -1L : (1L << bits) - 1);
+	}
+}
@@ -0,0 +1,111 @@
+package neil.demo.devoxxma2017;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import neil.demo.devoxxma2017.Gpx.TrkPt;
+
+/**
+ * <p>The last few points for one person, oldest first, as a ring buffer.
+ * </p>
+ * <p>Points are held as primitives in parallel arrays rather than as
+ * {@link TrkPt} objects. Once full, each new point overwrites the oldest,
+ * so nothing is allocated per point and the size never changes.
+ * </p>
+ * <p>The cost per person is 32 bytes a point, four arrays of 8 byte
+ * values, plus about 100 bytes for the arrays' and this object's headers.
+ * So 100 points is a little over 3KB.
+ * </p>
+ * <p>Points are expected in time order. A point no newer than the newest
+ * held is a repeat or too late, and is ignored.
+ * </p>
+ */
+@SuppressWarnings("serial")
+public class Trail implements Serializable {
+
+	private final long[] times;
+	private final double[] latitudes;
+	private final double[] longitudes;
+	private final double[] elevations;
+	// Where the next point goes, and how many are held
+	private int next;
+	private int count;
+
+	public Trail(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity " + capacity);
+		}
+		this.times = new long[capacity];
+		this.latitudes = new double[capacity];
+		this.longitudes = new double[capacity];
+		this.elevations = new double[capacity];
+	}
+
+	/**
+	 * <p>Add a point as the newest, overwriting the oldest if full.
+	 * </p>
+	 *
+	 * @return True if added, false if not newer than the newest
+	 */
+	public boolean add(long time, double latitude, double longitude, double elevation) {
+		if (this.count > 0 && time <= this.times[this.index(this.count - 1)]) {
+			return false;
+		}
+
+		this.times[this.next] = time;
+		this.latitudes[this.next] = latitude;
+		this.longitudes[this.next] = longitude;
+		this.elevations[this.next] = elevation;
+
+		this.next = (this.next + 1) % this.times.length;
+		if (this.count < this.times.length) {
+			this.count++;
+		}
+		return true;
+	}
+
+	public int size() {
+		return this.count;
+	}
+
+	public int capacity() {
+		return this.times.length;
+	}
+
+	/**
+	 * @return All points held, oldest first
+	 */
+	public List<TrkPt> points() {
+		return this.since(Long.MIN_VALUE);
+	}
+
+	/**
+	 * @param time Earliest wanted
+	 * @return Points at or after the time, oldest first
+	 */
+	public List<TrkPt> since(long time) {
+		List<TrkPt> result = new ArrayList<>();
+		for (int i = 0; i < this.count; i++) {
+			int index = this.index(i);
+			if (this.times[index] >= time) {
+				TrkPt trkPt = new TrkPt();
+				trkPt.setDate(new Date(this.times[index]));
+				trkPt.setLatitude(this.latitudes[index]);
+				trkPt.setLongitude(this.longitudes[index]);
+				trkPt.setElevation(this.elevations[index]);
+				result.add(trkPt);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return Array position of the i-th oldest point
+	 */
+	private int index(int i) {
+		int oldest = (this.count < this.times.length ? 0 : this.next);
+		return (oldest + i) % this.times.length;
+	}
+}
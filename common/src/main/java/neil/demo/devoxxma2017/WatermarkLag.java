@@ -0,0 +1,31 @@
+package neil.demo.devoxxma2017;
+
+import java.io.Serializable;
+
+import lombok.Data;
+
+/**
+ * <p>How far one Speedo punctuation processor is holding back the
+ * watermark, and what that is costing in late points dropped.
+ * </p>
+ * <p>A bigger lag drops fewer late points, but every window closes that
+ * much later. Published to the "{@code monitor}" map so the trade-off
+ * can be seen while the job runs.
+ * </p>
+ */
+@Data
+@SuppressWarnings("serial")
+public class WatermarkLag implements Serializable {
+
+	// Current lag, the delay added before a window can close
+	private long lagMillis;
+	// Average lag over all points seen so far
+	private long averageLagMillis;
+	// Worst out-of-order seen, how far behind the newest point
+	private long maxDisorderMillis;
+	private long watermark;
+	private long accepted;
+	private long dropped;
+	private long time;
+
+}
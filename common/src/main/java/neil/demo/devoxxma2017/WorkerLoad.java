@@ -0,0 +1,26 @@
+package neil.demo.devoxxma2017;
+
+import java.io.Serializable;
+
+import lombok.Data;
+
+/**
+ * <p>How much work one processor instance of a Jet job has done,
+ * so instances of the same vertex can be compared.
+ * </p>
+ * <p>If one instance is doing far more than the others, a few keys
+ * are taking most of the traffic. Published to the "{@code monitor}" map.
+ * </p>
+ */
+@Data
+@SuppressWarnings("serial")
+public class WorkerLoad implements Serializable {
+
+	private String vertex;
+	private int processor;
+	// Items taken from the inbox, since the job started and since the last publish
+	private long items;
+	private long itemsPerSecond;
+	private long time;
+
+}
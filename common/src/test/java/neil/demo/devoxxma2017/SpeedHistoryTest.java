@@ -0,0 +1,127 @@
+package neil.demo.devoxxma2017;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * <p>Check the rollups in {@link SpeedHistory}, that each resolution
+ * gives the mean of the speeds in each bucket, keeps as far back as it
+ * should, and that a range picks the right resolution.
+ * </p>
+ */
+public class SpeedHistoryTest {
+
+	// On an hour boundary, so buckets line up
+	private static final long START = 1_509_000_000_000L / SpeedHistory.HOUR_MILLIS * SpeedHistory.HOUR_MILLIS;
+
+	@Test
+	public void meanPerBucket() {
+		SpeedHistory speedHistory = new SpeedHistory();
+		// Two minutes, a speed every second, the second minute twice as fast
+		for (int i = 0; i < 120; i++) {
+			assertTrue(speedHistory.add(speed(START + i * SpeedHistory.SECOND_MILLIS, (i < 60 ? 5d : 10d))));
+		}
+
+		List<Speed> seconds = speedHistory.range(START, START + 120 * SpeedHistory.SECOND_MILLIS, SpeedHistory.SECOND_MILLIS);
+		assertEquals(120, seconds.size());
+		assertEquals(START + 59 * SpeedHistory.SECOND_MILLIS, seconds.get(59).getTime());
+		assertEquals(5d, seconds.get(59).getMetresPerSecond(), 0d);
+		assertEquals(10d, seconds.get(60).getMetresPerSecond(), 0d);
+
+		List<Speed> minutes = speedHistory.range(START, START + SpeedHistory.HOUR_MILLIS, SpeedHistory.MINUTE_MILLIS);
+		assertEquals(2, minutes.size());
+		assertEquals(START, minutes.get(0).getTime());
+		assertEquals(5d, minutes.get(0).getMetresPerSecond(), 1e-9);
+		assertEquals(START + SpeedHistory.MINUTE_MILLIS, minutes.get(1).getTime());
+		assertEquals(10d, minutes.get(1).getMetresPerSecond(), 1e-9);
+
+		List<Speed> hours = speedHistory.range(START, START + SpeedHistory.HOUR_MILLIS, SpeedHistory.HOUR_MILLIS);
+		assertEquals(1, hours.size());
+		assertEquals(7.5d, hours.get(0).getMetresPerSecond(), 1e-9);
+
+		assertEquals(START + 119 * SpeedHistory.SECOND_MILLIS, speedHistory.lastTime());
+	}
+
+	@Test
+	public void keepsEachResolution() {
+		SpeedHistory speedHistory = new SpeedHistory();
+		// A speed a second for two hours, the ring of seconds grows to full size
+		long end = START + 2 * SpeedHistory.HOUR_MILLIS;
+		for (long time = START; time < end; time += SpeedHistory.SECOND_MILLIS) {
+			speedHistory.add(speed(time, (time - START) / SpeedHistory.SECOND_MILLIS));
+		}
+
+		// Fifteen minutes of seconds, the oldest overwritten
+		List<Speed> seconds = speedHistory.range(START, end, SpeedHistory.SECOND_MILLIS);
+		assertEquals(900, seconds.size());
+		assertEquals(end - 900 * SpeedHistory.SECOND_MILLIS, seconds.get(0).getTime());
+		for (Speed speed : seconds) {
+			assertEquals((speed.getTime() - START) / SpeedHistory.SECOND_MILLIS, speed.getMetresPerSecond(), 0d);
+		}
+
+		// Every minute, each the mean of its sixty seconds
+		List<Speed> minutes = speedHistory.range(START, end, SpeedHistory.MINUTE_MILLIS);
+		assertEquals(120, minutes.size());
+		for (int i = 0; i < minutes.size(); i++) {
+			assertEquals(i * 60 + 29.5d, minutes.get(i).getMetresPerSecond(), 1e-9);
+		}
+	}
+
+	@Test
+	public void rangePicksFinestHolding() {
+		SpeedHistory speedHistory = new SpeedHistory();
+		long end = START + 3 * SpeedHistory.HOUR_MILLIS;
+		for (long time = START; time < end; time += 10 * SpeedHistory.SECOND_MILLIS) {
+			speedHistory.add(speed(time, 1d));
+		}
+		long last = speedHistory.lastTime();
+
+		// Last five minutes, seconds
+		assertEquals(30, speedHistory.range(end - 5 * SpeedHistory.MINUTE_MILLIS, last).size());
+		// Last two hours, minutes
+		assertEquals(120, speedHistory.range(end - 2 * SpeedHistory.HOUR_MILLIS, last).size());
+		// Before anything held at a finer resolution, hours
+		assertEquals(3, speedHistory.range(START - SpeedHistory.HOUR_MILLIS * 24 * 365, last).size());
+	}
+
+	@Test
+	public void outOfOrder() {
+		SpeedHistory speedHistory = new SpeedHistory();
+		speedHistory.add(speed(START + 10 * SpeedHistory.SECOND_MILLIS, 4d));
+		speedHistory.add(speed(START, 2d));
+		speedHistory.add(speed(START + 5 * SpeedHistory.SECOND_MILLIS, 6d));
+
+		List<Speed> seconds = speedHistory.range(START, START + SpeedHistory.MINUTE_MILLIS, SpeedHistory.SECOND_MILLIS);
+		assertEquals(3, seconds.size());
+		assertEquals(2d, seconds.get(0).getMetresPerSecond(), 0d);
+		assertEquals(6d, seconds.get(1).getMetresPerSecond(), 0d);
+		assertEquals(4d, seconds.get(2).getMetresPerSecond(), 0d);
+		assertEquals(START + 10 * SpeedHistory.SECOND_MILLIS, speedHistory.lastTime());
+
+		// Too old for any resolution
+		assertFalse(speedHistory.add(speed(START - 800 * SpeedHistory.HOUR_MILLIS, 1d)));
+	}
+
+	@Test
+	public void offlineIgnored() {
+		SpeedHistory speedHistory = new SpeedHistory();
+		Speed offline = speed(START, 3d);
+		offline.setOffline(true);
+
+		assertFalse(speedHistory.add(offline));
+		assertEquals(0, speedHistory.lastTime());
+		assertEquals(0, speedHistory.range(START, START + SpeedHistory.HOUR_MILLIS).size());
+	}
+
+	private static Speed speed(long time, double metresPerSecond) {
+		Speed speed = new Speed();
+		speed.setTime(time);
+		speed.setMetresPerSecond(metresPerSecond);
+		return speed;
+	}
+}
@@ -0,0 +1,129 @@
+package neil.demo.devoxxma2017;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import neil.demo.devoxxma2017.Gpx.TrkPt;
+
+/**
+ * <p>Check {@link TrackBlock} gives back exactly the points it was given,
+ * all of them or a range, for steady and irregular tracks.
+ * </p>
+ */
+public class TrackBlockTest {
+
+	private static final String RIDER = "rider";
+	private static final int COUNT = 1_000;
+
+	private final long[] times = new long[COUNT];
+	private final double[] latitudes = new double[COUNT];
+	private final double[] longitudes = new double[COUNT];
+	private final double[] elevations = new double[COUNT];
+
+	@Test
+	public void steadyRoundTrip() {
+		this.track(new Random(42L), 0L);
+		TrackBlock trackBlock = this.encode(COUNT);
+
+		this.assertPoints(trackBlock.points(), 0, COUNT);
+		assertEquals(RIDER, trackBlock.getRider());
+		assertEquals(COUNT, trackBlock.getCount());
+		assertEquals(this.times[0], trackBlock.getFirstTime());
+		assertEquals(this.times[COUNT - 1], trackBlock.getLastTime());
+		// Well under the 32 bytes of four raw columns
+		assertTrue(trackBlock.getCompressedBytes() + " bytes", trackBlock.getCompressedBytes() < 16 * COUNT);
+	}
+
+	@Test
+	public void irregularRoundTrip() {
+		// Gaps from a millisecond to over an hour, every branch of the time encoding
+		this.track(new Random(7L), 5_000_000L);
+		this.elevations[COUNT / 2] = Double.NaN;
+		this.latitudes[COUNT / 3] = -this.latitudes[COUNT / 3];
+
+		this.assertPoints(this.encode(COUNT).points(), 0, COUNT);
+	}
+
+	@Test
+	public void fewerThanArrays() {
+		this.track(new Random(1L), 0L);
+
+		this.assertPoints(this.encode(1).points(), 0, 1);
+		this.assertPoints(this.encode(2).points(), 0, 2);
+		this.assertPoints(this.encode(3).points(), 0, 3);
+	}
+
+	@Test
+	public void rangeInclusive() {
+		this.track(new Random(42L), 0L);
+		TrackBlock trackBlock = this.encode(COUNT);
+
+		this.assertPoints(trackBlock.range(this.times[100], this.times[199]), 100, 200);
+		this.assertPoints(trackBlock.range(this.times[0] - 1, this.times[0]), 0, 1);
+		this.assertPoints(trackBlock.range(this.times[COUNT - 1], Long.MAX_VALUE), COUNT - 1, COUNT);
+		// Between two points
+		assertEquals(0, trackBlock.range(this.times[10] + 1, this.times[11] - 1).size());
+	}
+
+	@Test
+	public void rangeOutside() {
+		this.track(new Random(42L), 0L);
+		TrackBlock trackBlock = this.encode(COUNT);
+
+		assertEquals(0, trackBlock.range(Long.MIN_VALUE, this.times[0] - 1).size());
+		assertEquals(0, trackBlock.range(this.times[COUNT - 1] + 1, Long.MAX_VALUE).size());
+		assertEquals(0, trackBlock.range(this.times[COUNT - 1], this.times[0]).size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void empty() {
+		this.encode(0);
+	}
+
+	/**
+	 * <p>A ride around Casablanca. Mostly a point a second, with a little
+	 * jitter, and if "{@code maxGapMillis}" is set, some gaps up to that.
+	 * </p>
+	 */
+	private void track(Random random, long maxGapMillis) {
+		this.times[0] = 1_509_000_000_000L;
+		this.latitudes[0] = 33.57;
+		this.longitudes[0] = -7.59;
+		this.elevations[0] = 50d;
+		for (int i = 1; i < COUNT; i++) {
+			long gap = 1_000L;
+			if (maxGapMillis > 0 && random.nextInt(10) == 0) {
+				gap = 1 + (long) (random.nextDouble() * maxGapMillis);
+			} else if (random.nextInt(5) == 0) {
+				gap += random.nextInt(200) - 100;
+			}
+			this.times[i] = this.times[i - 1] + gap;
+			this.latitudes[i] = this.latitudes[i - 1] + (random.nextDouble() - 0.5) / 10_000;
+			this.longitudes[i] = this.longitudes[i - 1] + (random.nextDouble() - 0.5) / 10_000;
+			this.elevations[i] = (random.nextInt(4) == 0 ? this.elevations[i - 1] + random.nextInt(3) - 1 : this.elevations[i - 1]);
+		}
+	}
+
+	private TrackBlock encode(int count) {
+		return TrackBlock.encode(RIDER, this.times, this.latitudes, this.longitudes, this.elevations, count);
+	}
+
+	private void assertPoints(List<TrkPt> points, int from, int to) {
+		assertEquals(to - from, points.size());
+		for (int i = from; i < to; i++) {
+			TrkPt trkPt = points.get(i - from);
+			assertEquals("Time " + i, this.times[i], trkPt.getDate().getTime());
+			assertEquals("Latitude " + i, Double.doubleToRawLongBits(this.latitudes[i]),
+					Double.doubleToRawLongBits(trkPt.getLatitude()));
+			assertEquals("Longitude " + i, Double.doubleToRawLongBits(this.longitudes[i]),
+					Double.doubleToRawLongBits(trkPt.getLongitude()));
+			assertEquals("Elevation " + i, Double.doubleToRawLongBits(this.elevations[i]),
+					Double.doubleToRawLongBits(trkPt.getElevation()));
+		}
+	}
+}
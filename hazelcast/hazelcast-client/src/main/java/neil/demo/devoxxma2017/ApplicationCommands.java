@@ -1,6 +1,12 @@
 package neil.demo.devoxxma2017;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -14,6 +20,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hazelcast.core.DistributedObject;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.IMap;
+import com.hazelcast.query.Predicates;
+
+import neil.demo.devoxxma2017.Gpx.TrkPt;
 
 /**
  * <p>Additional commands that the Hazelcast client provides
@@ -36,10 +45,22 @@ public class ApplicationCommands implements CommandMarker {
 
 	private static final String DISTRIBUTED_OBJECT_INTERNAL_PREFIX = "__";
 	
+	private static final String BACKFILL_START
+		= Constants.COMMAND_NOUN_BACKFILL + "-" + Constants.COMMAND_VERB_START;
+	private static final String BACKFILL_STOP
+		= Constants.COMMAND_NOUN_BACKFILL + "-" + Constants.COMMAND_VERB_STOP;
+	private static final String HEATMAP_START
+		= Constants.COMMAND_NOUN_HEATMAP + "-" + Constants.COMMAND_VERB_START;
+	private static final String HEATMAP_STOP
+		= Constants.COMMAND_NOUN_HEATMAP + "-" + Constants.COMMAND_VERB_STOP;
 	private static final String KAFKA_START
 		= Constants.COMMAND_NOUN_KAFKA + "-" + Constants.COMMAND_VERB_START;
 	private static final String KAFKA_STOP
 		= Constants.COMMAND_NOUN_KAFKA + "-" + Constants.COMMAND_VERB_STOP;
+	private static final String PROXIMITY_START
+		= Constants.COMMAND_NOUN_PROXIMITY + "-" + Constants.COMMAND_VERB_START;
+	private static final String PROXIMITY_STOP
+		= Constants.COMMAND_NOUN_PROXIMITY + "-" + Constants.COMMAND_VERB_STOP;
 	private static final String SPEEDO_START
 		= Constants.COMMAND_NOUN_SPEEDO + "-" + Constants.COMMAND_VERB_START;
 	private static final String SPEEDO_STOP
@@ -59,7 +80,7 @@ public class ApplicationCommands implements CommandMarker {
 	 * <p>Request the Kafka stream reader be started.
 	 * </p>
 	 * 
-	 * @param kafka (Optional) Kafka servers to use instead of {@code "${bootstrap-servers}"
+	 * @param kafka (Optional) Kafka servers to use instead of "{@code ${bootstrap-servers}}"
 	 */
 	@CliCommand(value = KAFKA_START,
 				help = "Request initiation of the Kafka Reader")
@@ -111,19 +132,40 @@ public class ApplicationCommands implements CommandMarker {
 	/**
 	 * <p>Request the speed stream reader be started.
 	 * </p>
+	 * 
+	 * @param mode (Optional) "{@code window}" for a speed per window, the default,
+	 * or "{@code incremental}" for a speed per point
 	 */
 	@CliCommand(value = SPEEDO_START,
 				help = "Request initiation of the Speedometer")
-	public String startSpeedo() {
+	public String startSpeedo(
+
+            @CliOption(key = {"mode"}
+            , mandatory = false
+            , help = "Optionally '--mode incremental' for a speed per point rather than per window"
+            		)
+            final String mode
+
+			) {
 		
 		IMap<String, String[]> commandMap = this.hazelcastInstance.getMap(Constants.IMAP_NAME_COMMAND);
 
-		String[] params = new String[1];
+		String[] params = new String[2];
 		params[0] = Constants.COMMAND_VERB_START;
+		if (mode==null || mode.length()==0) {
+			params[1] = Constants.SPEEDO_MODE_WINDOW;
+		} else {
+			if (!Constants.SPEEDO_MODE_WINDOW.equalsIgnoreCase(mode)
+					&& !Constants.SPEEDO_MODE_INCREMENTAL.equalsIgnoreCase(mode)) {
+				return String.format("Unknown mode '%s', expected '%s' or '%s'",
+						mode, Constants.SPEEDO_MODE_WINDOW, Constants.SPEEDO_MODE_INCREMENTAL);
+			}
+			params[1] = mode;
+		}
 		
 		commandMap.put(Constants.COMMAND_NOUN_SPEEDO, params);
 		
-		return String.format("Requested %s job '%s'", Constants.COMMAND_VERB_START, Constants.COMMAND_NOUN_SPEEDO);
+		return String.format("Requested %s job '%s' with %s", Constants.COMMAND_VERB_START, Constants.COMMAND_NOUN_SPEEDO, params[1]);
 	}
 
 	
@@ -146,6 +188,147 @@ public class ApplicationCommands implements CommandMarker {
 	}
 	
 
+	/**
+	 * <p>Request the proximity detector be started.
+	 * </p>
+	 */
+	@CliCommand(value = PROXIMITY_START,
+				help = "Request initiation of the Proximity detector")
+	public String startProximity() {
+		
+		IMap<String, String[]> commandMap = this.hazelcastInstance.getMap(Constants.IMAP_NAME_COMMAND);
+
+		String[] params = new String[1];
+		params[0] = Constants.COMMAND_VERB_START;
+		
+		commandMap.put(Constants.COMMAND_NOUN_PROXIMITY, params);
+		
+		return String.format("Requested %s job '%s'", Constants.COMMAND_VERB_START, Constants.COMMAND_NOUN_PROXIMITY);
+	}
+
+	
+	/**
+	 * <p>Request the proximity detector be stopped.
+	 * </p>
+	 */
+	@CliCommand(value = PROXIMITY_STOP,
+				help = "Request halt for the Proximity detector")
+	public String stopProximity() {
+		
+		IMap<String, String[]> commandMap = this.hazelcastInstance.getMap(Constants.IMAP_NAME_COMMAND);
+
+		String[] params = new String[1];
+		params[0] = Constants.COMMAND_VERB_STOP;
+		
+		commandMap.put(Constants.COMMAND_NOUN_PROXIMITY, params);
+		
+		return String.format("Requested %s job '%s'", Constants.COMMAND_VERB_STOP, Constants.COMMAND_NOUN_PROXIMITY);
+	}
+	
+
+	/**
+	 * <p>Request the heatmap be started.
+	 * </p>
+	 */
+	@CliCommand(value = HEATMAP_START,
+				help = "Request initiation of the Heatmap")
+	public String startHeatmap() {
+		
+		IMap<String, String[]> commandMap = this.hazelcastInstance.getMap(Constants.IMAP_NAME_COMMAND);
+
+		String[] params = new String[1];
+		params[0] = Constants.COMMAND_VERB_START;
+		
+		commandMap.put(Constants.COMMAND_NOUN_HEATMAP, params);
+		
+		return String.format("Requested %s job '%s'", Constants.COMMAND_VERB_START, Constants.COMMAND_NOUN_HEATMAP);
+	}
+
+	
+	/**
+	 * <p>Request the heatmap be stopped.
+	 * </p>
+	 */
+	@CliCommand(value = HEATMAP_STOP,
+				help = "Request halt for the Heatmap")
+	public String stopHeatmap() {
+		
+		IMap<String, String[]> commandMap = this.hazelcastInstance.getMap(Constants.IMAP_NAME_COMMAND);
+
+		String[] params = new String[1];
+		params[0] = Constants.COMMAND_VERB_STOP;
+		
+		commandMap.put(Constants.COMMAND_NOUN_HEATMAP, params);
+		
+		return String.format("Requested %s job '%s'", Constants.COMMAND_VERB_STOP, Constants.COMMAND_NOUN_HEATMAP);
+	}
+	
+
+	/**
+	 * <p>Request speeds be recomputed from Kafka for a past time range,
+	 * into the "{@code backfill}" map under a version of their own. See
+	 * "{@code history --version}" for the results.
+	 * </p>
+	 * 
+	 * @param from Earliest Kafka timestamp, epoch millis
+	 * @param to Latest Kafka timestamp, epoch millis, exclusive
+	 * @param version (Optional) Name for this run, the start time if not given
+	 * @param kafka (Optional) Kafka servers to use instead of "{@code ${bootstrap-servers}}"
+	 */
+	@CliCommand(value = BACKFILL_START,
+				help = "Request speeds be recomputed from Kafka for a time range")
+	public String startBackfill(
+            @CliOption(key = {"from"}, mandatory = true, help = "Earliest, epoch millis")
+            final long from,
+            @CliOption(key = {"to"}, mandatory = false, unspecifiedDefaultValue = "9223372036854775807", help = "Latest, epoch millis")
+            final long to,
+            @CliOption(key = {"version"}, mandatory = false, help = "Name for this run, the start time if not given")
+            final String version,
+            @CliOption(key = {"kafka"}, mandatory = false, help = "Optionally '--kafka 127.0.0.1:9092' to specify Kafka")
+            final String kafka
+			) {
+		
+		if (from >= to) {
+			return String.format("Nothing to do, '--from' %d is not before '--to' %d", from, to);
+		}
+		if (version != null && (version.contains(",") || version.contains(Constants.BACKFILL_VERSION_SEPARATOR))) {
+			return String.format("Version '%s' can't contain ',' or '%s'", version, Constants.BACKFILL_VERSION_SEPARATOR);
+		}
+
+		IMap<String, String[]> commandMap = this.hazelcastInstance.getMap(Constants.IMAP_NAME_COMMAND);
+
+		String runVersion = (version==null || version.length()==0 ? String.valueOf(System.currentTimeMillis()) : version);
+		String servers = (kafka==null || kafka.length()==0 ? this.bootstrapServers : kafka);
+
+		String[] params = new String[2];
+		params[0] = Constants.COMMAND_VERB_START;
+		params[1] = from + "," + to + "," + runVersion + "," + servers;
+		
+		commandMap.put(Constants.COMMAND_NOUN_BACKFILL, params);
+		
+		return String.format("Requested %s job '%s' version '%s'", Constants.COMMAND_VERB_START, Constants.COMMAND_NOUN_BACKFILL, runVersion);
+	}
+
+	
+	/**
+	 * <p>Request a backfill be cancelled, if it hasn't finished.
+	 * </p>
+	 */
+	@CliCommand(value = BACKFILL_STOP,
+				help = "Request a running backfill be cancelled")
+	public String stopBackfill() {
+		
+		IMap<String, String[]> commandMap = this.hazelcastInstance.getMap(Constants.IMAP_NAME_COMMAND);
+
+		String[] params = new String[1];
+		params[0] = Constants.COMMAND_VERB_STOP;
+		
+		commandMap.put(Constants.COMMAND_NOUN_BACKFILL, params);
+		
+		return String.format("Requested %s job '%s'", Constants.COMMAND_VERB_STOP, Constants.COMMAND_NOUN_BACKFILL);
+	}
+
+	
 	/**
 	 * <p>Request the word count job be run. There is no STOP
 	 * needed as this is not a continuous job.
@@ -168,6 +351,261 @@ public class ApplicationCommands implements CommandMarker {
 	
 	// -- Helpful commands below
 	
+	/**
+	 * <p>Diagnostic command: Metrics that running jobs publish
+	 * about themselves, such as Speedo's watermark lag.
+	 * </p>
+	 * 
+	 * @throws JsonProcessingException If {@code ObjectMapper} fails on pretty print
+	 */
+	@CliCommand(value = "monitor",
+			help = "List the metrics published by running jobs")
+	public String monitor() throws JsonProcessingException {
+		
+		IMap<String, Object> monitorMap = this.hazelcastInstance.getMap(Constants.IMAP_NAME_MONITOR);
+
+		StringBuilder result = new StringBuilder(String.format("=============================================%n"));
+		
+		// Keys are strings, so can sort
+		for (String key : new TreeSet<>(monitorMap.keySet())) {
+			result.append(String.format("  -> '%s', '%s'%n", 
+					key,
+					this.objectMapper.writeValueAsString(monitorMap.get(key))
+					));
+		}
+
+		result.append(String.format("[%d metric%s]%n", monitorMap.size(), (monitorMap.size()==1 ? "" : "s")));
+		result.append(String.format("=============================================%n"));
+	
+		return result.toString();
+	}
+	
+	/**
+	 * <p>Who is near a point, nearest first. This is an indexed query,
+	 * see {@link GeoQuery}, not a scan of every position.
+	 * </p>
+	 * 
+	 * @param latitude Centre, degrees
+	 * @param longitude Centre, degrees
+	 * @param metres Radius
+	 */
+	@CliCommand(value = "near",
+			help = "List the people near a point")
+	public String near(
+            @CliOption(key = {"latitude"}, mandatory = true, help = "Centre latitude, degrees")
+            final double latitude,
+            @CliOption(key = {"longitude"}, mandatory = true, help = "Centre longitude, degrees")
+            final double longitude,
+            @CliOption(key = {"metres"}, mandatory = false, unspecifiedDefaultValue = "1000", help = "Radius in metres")
+            final double metres
+			) {
+		
+		IMap<String, TrkPt> positionMap = this.hazelcastInstance.getMap(Constants.IMAP_NAME_POSITION);
+
+		long before = System.currentTimeMillis();
+		Map<String, TrkPt> near = GeoQuery.near(positionMap, latitude, longitude, metres);
+		long elapsed = System.currentTimeMillis() - before;
+
+		StringBuilder result = new StringBuilder(String.format("=============================================%n"));
+		
+		for (Map.Entry<String, TrkPt> entry : near.entrySet()) {
+			result.append(String.format("  -> '%s', %.1fm, '%s'%n", 
+					entry.getKey(),
+					GeoQuery.metres(entry.getValue(), latitude, longitude),
+					entry.getValue().getDate()
+					));
+		}
+
+		result.append(String.format("[%d %s in %dms]%n", near.size(), (near.size()==1 ? "person" : "people"), elapsed));
+		result.append(String.format("=============================================%n"));
+	
+		return result.toString();
+	}
+	
+	/**
+	 * <p>A person's recent points, oldest first, from their
+	 * {@link Trail}. One get, however long the history.
+	 * </p>
+	 * 
+	 * @param rider Who
+	 * @param last How many of the latest points, all held if not given
+	 */
+	@CliCommand(value = "trail",
+			help = "List a person's recent points")
+	public String trail(
+            @CliOption(key = {"rider"}, mandatory = true, help = "Who")
+            final String rider,
+            @CliOption(key = {"last"}, mandatory = false, unspecifiedDefaultValue = "0", help = "Only the latest this many")
+            final int last
+			) {
+		
+		IMap<String, Trail> trailMap = this.hazelcastInstance.getMap(Constants.IMAP_NAME_TRAIL);
+
+		Trail trail = trailMap.get(rider);
+		List<TrkPt> points = (trail == null ? new ArrayList<>() : trail.points());
+		if (last > 0 && points.size() > last) {
+			points = points.subList(points.size() - last, points.size());
+		}
+
+		StringBuilder result = new StringBuilder(String.format("=============================================%n"));
+		
+		for (TrkPt trkPt : points) {
+			result.append(String.format("  -> '%s', %f, %f, %.1f%n", 
+					trkPt.getDate(), trkPt.getLatitude(), trkPt.getLongitude(), trkPt.getElevation()
+					));
+		}
+
+		result.append(String.format("[%d point%s of %d held]%n", points.size(), (points.size()==1 ? "" : "s"),
+				(trail == null ? 0 : trail.size())));
+		result.append(String.format("=============================================%n"));
+	
+		return result.toString();
+	}
+	
+	/**
+	 * <p>A person's speeds, from their {@link SpeedHistory}. The range is
+	 * picked out where the history is stored, at the finest resolution that
+	 * goes back far enough, and only that comes back. See {@link SpeedHistoryRange}.
+	 * </p>
+	 * 
+	 * <p>With a version, the history recomputed by that backfill
+	 * is listed instead.
+	 * </p>
+	 * 
+	 * @param rider Who
+	 * @param minutes How far back from the latest speed
+	 * @param version (Optional) A backfill run
+	 */
+	@CliCommand(value = "history",
+			help = "List a person's speeds over time")
+	public String history(
+            @CliOption(key = {"rider"}, mandatory = true, help = "Who")
+            final String rider,
+            @CliOption(key = {"minutes"}, mandatory = false, unspecifiedDefaultValue = "10", help = "How far back")
+            final long minutes,
+            @CliOption(key = {"version"}, mandatory = false, help = "Optionally a backfill version, rather than live")
+            final String version
+			) {
+		
+		IMap<String, SpeedHistory> map;
+		String key;
+		if (version==null || version.length()==0) {
+			map = this.hazelcastInstance.getMap(Constants.IMAP_NAME_HISTORY);
+			key = rider;
+		} else {
+			map = this.hazelcastInstance.getMap(Constants.IMAP_NAME_BACKFILL);
+			key = version + Constants.BACKFILL_VERSION_SEPARATOR + rider;
+		}
+		@SuppressWarnings("unchecked")
+		List<Speed> speeds = (List<Speed>) map.executeOnKey(key, new SpeedHistoryRange(minutes * SpeedHistory.MINUTE_MILLIS));
+
+		StringBuilder result = new StringBuilder(String.format("=============================================%n"));
+		
+		for (Speed speed : speeds) {
+			result.append(String.format("  -> '%s', %.3f m/s%n", new Date(speed.getTime()), speed.getMetresPerSecond()));
+		}
+
+		result.append(String.format("[%d speed%s]%n", speeds.size(), (speeds.size()==1 ? "" : "s")));
+		result.append(String.format("=============================================%n"));
+	
+		return result.toString();
+	}
+	
+	/**
+	 * <p>A person's archived points in a time range, decompressed here
+	 * from the {@link TrackBlock TrackBlocks} that overlap it. The blocks
+	 * are found by the index on the person, not by scanning the keys.
+	 * </p>
+	 * 
+	 * @param rider Who
+	 * @param from Earliest, milliseconds since 1970
+	 * @param to Latest, milliseconds since 1970
+	 */
+	@CliCommand(value = "archive",
+			help = "List a person's archived points in a time range")
+	public String archive(
+            @CliOption(key = {"rider"}, mandatory = true, help = "Who")
+            final String rider,
+            @CliOption(key = {"from"}, mandatory = false, unspecifiedDefaultValue = "0", help = "Earliest, epoch millis")
+            final long from,
+            @CliOption(key = {"to"}, mandatory = false, unspecifiedDefaultValue = "9223372036854775807", help = "Latest, epoch millis")
+            final long to
+			) {
+		
+		IMap<String, TrackBlock> archiveMap = this.hazelcastInstance.getMap(Constants.IMAP_NAME_ARCHIVE);
+
+		// Keys are "rider@firstTime", so sort into time order
+		Map<String, TrackBlock> blocks = new TreeMap<>();
+		for (Map.Entry<String, TrackBlock> entry : archiveMap.entrySet(Predicates.equal("rider", rider))) {
+			if (entry.getValue().getFirstTime() <= to && entry.getValue().getLastTime() >= from) {
+				blocks.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		StringBuilder result = new StringBuilder(String.format("=============================================%n"));
+		
+		int count = 0;
+		int compressedBytes = 0;
+		for (TrackBlock trackBlock : blocks.values()) {
+			compressedBytes += trackBlock.getCompressedBytes();
+			for (TrkPt trkPt : trackBlock.range(from, to)) {
+				count++;
+				result.append(String.format("  -> '%s', %f, %f, %.1f%n", 
+						trkPt.getDate(), trkPt.getLatitude(), trkPt.getLongitude(), trkPt.getElevation()
+						));
+			}
+		}
+
+		result.append(String.format("[%d point%s from %d block%s, %d bytes compressed]%n", count, (count==1 ? "" : "s"),
+				blocks.size(), (blocks.size()==1 ? "" : "s"), compressedBytes));
+		result.append(String.format("=============================================%n"));
+	
+		return result.toString();
+	}
+	
+	/**
+	 * <p>The heatmap tiles around a point, as a map display would
+	 * fetch them. Only these tiles are read, in one call.
+	 * </p>
+	 * 
+	 * @param latitude Centre, degrees
+	 * @param longitude Centre, degrees
+	 * @param zoom Zoom level, one the heatmap job counts at
+	 * @param radius How many tiles each way from the centre
+	 * @throws JsonProcessingException If {@code ObjectMapper} fails on pretty print
+	 */
+	@CliCommand(value = "tiles",
+			help = "List the heatmap tiles around a point")
+	public String tiles(
+            @CliOption(key = {"latitude"}, mandatory = true, help = "Centre latitude, degrees")
+            final double latitude,
+            @CliOption(key = {"longitude"}, mandatory = true, help = "Centre longitude, degrees")
+            final double longitude,
+            @CliOption(key = {"zoom"}, mandatory = false, unspecifiedDefaultValue = "13", help = "Zoom level")
+            final int zoom,
+            @CliOption(key = {"radius"}, mandatory = false, unspecifiedDefaultValue = "1", help = "Tiles each way")
+            final int radius
+			) throws JsonProcessingException {
+		
+		IMap<String, Object> heatmapMap = this.hazelcastInstance.getMap(Constants.IMAP_NAME_HEATMAP);
+
+		Map<String, Object> tiles = new TreeMap<>(heatmapMap.getAll(new TreeSet<>(Tile.keysAround(latitude, longitude, zoom, radius))));
+
+		StringBuilder result = new StringBuilder(String.format("=============================================%n"));
+		
+		for (Map.Entry<String, Object> entry : tiles.entrySet()) {
+			result.append(String.format("  -> '%s', '%s'%n", 
+					entry.getKey(),
+					this.objectMapper.writeValueAsString(entry.getValue())
+					));
+		}
+
+		result.append(String.format("[%d tile%s]%n", tiles.size(), (tiles.size()==1 ? "" : "s")));
+		result.append(String.format("=============================================%n"));
+	
+		return result.toString();
+	}
+	
 	/**
 	 * <p>Diagnostic command: Map, etc content.
 	 * </p>
@@ -0,0 +1,115 @@
+package neil.demo.devoxxma2017;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.hazelcast.core.IMap;
+import com.hazelcast.query.Predicate;
+import com.hazelcast.query.Predicates;
+
+import neil.demo.devoxxma2017.Gpx.TrkPt;
+
+/**
+ * <p>Area queries on the "{@code position}" map, that use the map's
+ * indexes rather than scanning every entry.
+ * </p>
+ * <p>The map is indexed on the grid cell, latitude and longitude, see
+ * "{@code hazelcast.xml}". A query is sent to every server, each looks
+ * up its own part of the indexes and returns only the matching entries.
+ * </p>
+ * <p>The cell index is a hash lookup, so a query for a few cells finds
+ * a few cells' worth of entries directly. The latitude and longitude
+ * indexes are ordered, for ranges, but a latitude range alone matches
+ * a band round the whole world. So where the area covers few enough cells,
+ * the cells are asked for too.
+ * </p>
+ * <p>Every point has a cell for the index, even one stored without it, as
+ * {@link TrkPt#getCell()} works it out from the co-ordinates when missing.
+ * </p>
+ * <p>Boxes don't wrap at 180&deg; longitude.
+ * </p>
+ */
+public class GeoQuery {
+
+	private static final int MAX_CELLS = 100;
+
+	/**
+	 * <p>Everyone inside a box.
+	 * </p>
+	 *
+	 * @param south Lowest latitude, degrees
+	 * @param west Lowest longitude, degrees
+	 * @param north Highest latitude, degrees
+	 * @param east Highest longitude, degrees
+	 * @return A predicate for the "{@code position}" map
+	 */
+	@SuppressWarnings("unchecked")
+	public static Predicate<String, TrkPt> boundingBox(double south, double west, double north, double east) {
+		return Predicates.and(
+				Predicates.between("latitude", south, north),
+				Predicates.between("longitude", west, east));
+	}
+
+	/**
+	 * <p>Everyone inside the box around a circle, and in the cells the
+	 * circle touches if there aren't too many. Some in the corners of
+	 * the box will be further away than the radius.
+	 * </p>
+	 *
+	 * @param latitude Centre, degrees
+	 * @param longitude Centre, degrees
+	 * @param metres Radius
+	 * @return A predicate for the "{@code position}" map
+	 */
+	@SuppressWarnings("unchecked")
+	public static Predicate<String, TrkPt> radius(double latitude, double longitude, double metres) {
+		double latitudeDegrees = metres / Grid.METRES_PER_DEGREE;
+		double longitudeDegrees = latitudeDegrees / Math.cos(Math.toRadians(Math.min(Math.abs(latitude) + latitudeDegrees, 89d)));
+		Predicate<String, TrkPt> box = boundingBox(latitude - latitudeDegrees, longitude - longitudeDegrees,
+				latitude + latitudeDegrees, longitude + longitudeDegrees);
+
+		List<String> cells = Grid.cellsWithin(latitude, longitude, metres, Constants.POSITION_CELL_METRES);
+		if (cells.size() > MAX_CELLS) {
+			return box;
+		}
+		return Predicates.and(Predicates.in("cell", cells.toArray(new String[cells.size()])), box);
+	}
+
+	/**
+	 * <p>Everyone within a distance, nearest first. The index finds those
+	 * roughly in the area, the exact distance is checked on what comes back.
+	 * </p>
+	 *
+	 * @param positionMap The "{@code position}" map
+	 * @param latitude Centre, degrees
+	 * @param longitude Centre, degrees
+	 * @param metres Radius
+	 * @return People and their points, in order of distance
+	 */
+	public static Map<String, TrkPt> near(IMap<String, TrkPt> positionMap, double latitude, double longitude, double metres) {
+		List<Map.Entry<String, TrkPt>> found = new ArrayList<>();
+		for (Map.Entry<String, TrkPt> entry : positionMap.entrySet(radius(latitude, longitude, metres))) {
+			if (metres(entry.getValue(), latitude, longitude) <= metres) {
+				found.add(entry);
+			}
+		}
+
+		found.sort((e1, e2) -> Double.compare(metres(e1.getValue(), latitude, longitude),
+				metres(e2.getValue(), latitude, longitude)));
+
+		Map<String, TrkPt> result = new LinkedHashMap<>();
+		for (Map.Entry<String, TrkPt> entry : found) {
+			result.put(entry.getKey(), entry.getValue());
+		}
+		return result;
+	}
+
+	/**
+	 * @return Distance from a point to a stored point
+	 */
+	public static double metres(TrkPt trkPt, double latitude, double longitude) {
+		return Haversine.metres(latitude, longitude, trkPt.getLatitude(), trkPt.getLongitude());
+	}
+}
@@ -0,0 +1,136 @@
+package neil.demo.devoxxma2017;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.MapIndexConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+import neil.demo.devoxxma2017.Gpx.TrkPt;
+
+/**
+ * <p>Check the indexed queries in {@link GeoQuery} find the same people
+ * as looking at every point, on a single embedded member with the same
+ * indexes as "{@code hazelcast.xml}".
+ * </p>
+ * <p>A third of the points are stored without a cell, as written before
+ * the cell was added.
+ * </p>
+ */
+public class GeoQueryTest {
+
+	private static final int POINTS = 20_000;
+	private static final double LATITUDE = 33.57;
+	private static final double LONGITUDE = -7.59;
+
+	private static HazelcastInstance hazelcastInstance;
+	private static IMap<String, TrkPt> positionMap;
+	private static Map<String, TrkPt> everyone = new HashMap<>();
+
+	@BeforeClass
+	public static void beforeClass() {
+		Config config = new Config();
+		config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+		config.getNetworkConfig().getJoin().getTcpIpConfig().setEnabled(false);
+		MapConfig mapConfig = new MapConfig(Constants.IMAP_NAME_POSITION);
+		mapConfig.addMapIndexConfig(new MapIndexConfig("cell", false));
+		mapConfig.addMapIndexConfig(new MapIndexConfig("latitude", true));
+		mapConfig.addMapIndexConfig(new MapIndexConfig("longitude", true));
+		config.addMapConfig(mapConfig);
+
+		hazelcastInstance = Hazelcast.newHazelcastInstance(config);
+		positionMap = hazelcastInstance.getMap(Constants.IMAP_NAME_POSITION);
+
+		// Spread over about 50km by 50km
+		Random random = new Random(42L);
+		for (int i = 0; i < POINTS; i++) {
+			TrkPt trkPt = new TrkPt();
+			trkPt.setLatitude(LATITUDE + (random.nextDouble() - 0.5) / 2);
+			trkPt.setLongitude(LONGITUDE + (random.nextDouble() - 0.5) / 2);
+			trkPt.setDate(new Date(i));
+			if (i % 3 != 0) {
+				trkPt.setCell(Grid.cell(trkPt.getLatitude(), trkPt.getLongitude(), Constants.POSITION_CELL_METRES));
+			}
+			everyone.put("rider" + i, trkPt);
+		}
+		positionMap.putAll(everyone);
+	}
+
+	@AfterClass
+	public static void afterClass() {
+		hazelcastInstance.shutdown();
+	}
+
+	@Test
+	public void nearSameAsScan() {
+		for (double metres : new double[] { 100d, 1_000d, 5_000d, 20_000d }) {
+			List<String> expected = scan(LATITUDE, LONGITUDE, metres);
+			List<String> actual = new ArrayList<>(GeoQuery.near(positionMap, LATITUDE, LONGITUDE, metres).keySet());
+
+			assertEquals("Radius " + metres, expected, actual);
+		}
+		assertFalse(scan(LATITUDE, LONGITUDE, 1_000d).isEmpty());
+	}
+
+	@Test
+	public void boundingBoxSameAsScan() {
+		double south = LATITUDE - 0.05;
+		double west = LONGITUDE - 0.1;
+		double north = LATITUDE + 0.02;
+		double east = LONGITUDE;
+
+		int expected = 0;
+		for (TrkPt trkPt : everyone.values()) {
+			if (trkPt.getLatitude() >= south && trkPt.getLatitude() <= north
+					&& trkPt.getLongitude() >= west && trkPt.getLongitude() <= east) {
+				expected++;
+			}
+		}
+
+		assertEquals(expected, positionMap.keySet(GeoQuery.boundingBox(south, west, north, east)).size());
+	}
+
+	@Test
+	public void cellWorkedOutIfMissing() {
+		TrkPt trkPt = new TrkPt();
+		trkPt.setLatitude(LATITUDE);
+		trkPt.setLongitude(LONGITUDE);
+
+		assertEquals(Grid.cell(LATITUDE, LONGITUDE, Constants.POSITION_CELL_METRES), trkPt.getCell());
+	}
+
+	/**
+	 * @return Everyone within the distance, nearest first, by looking at all
+	 */
+	private static List<String> scan(double latitude, double longitude, double metres) {
+		List<Map.Entry<String, TrkPt>> found = new ArrayList<>();
+		for (Map.Entry<String, TrkPt> entry : everyone.entrySet()) {
+			if (GeoQuery.metres(entry.getValue(), latitude, longitude) <= metres) {
+				found.add(entry);
+			}
+		}
+		found.sort((e1, e2) -> Double.compare(GeoQuery.metres(e1.getValue(), latitude, longitude),
+				GeoQuery.metres(e2.getValue(), latitude, longitude)));
+
+		List<String> result = new ArrayList<>();
+		for (Map.Entry<String, TrkPt> entry : found) {
+			result.add(entry.getKey());
+		}
+		return result;
+	}
+}
@@ -0,0 +1,328 @@
+package neil.demo.devoxxma2017;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * <p>A file of key/value records that is only ever appended to, read and
+ * written through a memory mapping.
+ * </p>
+ * <p>Each write appends a record, a delete appends a record with no value.
+ * The latest record for a key wins. An in-memory index holds where the
+ * latest record for each key is, so a read is one lookup and a copy from
+ * the mapping, with no system call.
+ * </p>
+ * <pre>
+ * +--------+--------+--------+--------+-----
+ * | header | record | record | record | ...   free space, zeroes
+ * | (end)  |        |        |        |
+ * +--------+--------+--------+--------+-----
+ *              |
+ *              +-- length, CRC, flag, key length, key, value
+ * </pre>
+ * <p>The header holds where the records end. It is written after the
+ * records, so a crash part way through a batch loses that batch but
+ * nothing before it. Each record has a CRC, and reading stops at the
+ * first one that doesn't match.
+ * </p>
+ * <p>The file grows by doubling, and is compacted when less than half of it
+ * is the latest records. Compaction writes the latest records to a new file
+ * and renames it over the old. A mapping that is replaced is unmapped
+ * straight away, rather than holding the old file's memory and, after a
+ * compaction, its disk space until garbage collection.
+ * </p>
+ * <p>A file belongs to one process, on a local disk. Memory mapping over
+ * a shared file system isn't safe, one process doesn't reliably see
+ * another's writes through its mapping, so nothing here allows for it.
+ * Within the process there is one instance per file, see {@link #open(Path)},
+ * and every method is synchronized.
+ * </p>
+ */
+@Slf4j
+public class AppendOnlyLog {
+
+	private static final Map<Path, AppendOnlyLog> OPEN = new ConcurrentHashMap<>();
+
+	private static final int HEADER = Long.BYTES;
+	// Length and CRC, then flag and key length
+	private static final int RECORD_PREFIX = Integer.BYTES + Integer.BYTES;
+	private static final int RECORD_FIXED = Byte.BYTES + Short.BYTES;
+	private static final int INITIAL_CAPACITY = 64 * 1024;
+	private static final int COMPACT_MIN = 1024 * 1024;
+	private static final byte PUT = 1;
+	private static final byte DELETE = 0;
+
+	private final Path path;
+	private final Map<String, Integer> index = new HashMap<>();
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	// How far the index has been built, and how much of that is the latest record for a key
+	private int scanned;
+	private long liveBytes;
+
+	private AppendOnlyLog(Path path) throws IOException {
+		this.path = path;
+		Files.createDirectories(path.getParent());
+		this.reopen();
+		this.catchUp();
+	}
+
+	/**
+	 * @param path File, created if need be
+	 * @return The one instance in this JVM for this file
+	 */
+	public static AppendOnlyLog open(Path path) {
+		return OPEN.computeIfAbsent(path.toAbsolutePath().normalize(), key -> {
+			try {
+				return new AppendOnlyLog(key);
+			} catch (IOException e) {
+				throw new IllegalStateException(key.toString(), e);
+			}
+		});
+	}
+
+	/**
+	 * <p>Append a batch of records, one header update and one flush
+	 * for all of them.
+	 * </p>
+	 *
+	 * @param records Key and value, a null value is a delete
+	 */
+	public synchronized void append(Map<String, byte[]> records) throws IOException {
+		if (records.isEmpty()) {
+			return;
+		}
+		// Anything past what could be read is a torn write, overwrite it
+		int end = this.scanned;
+		int length = 0;
+		for (Map.Entry<String, byte[]> record : records.entrySet()) {
+			length += recordLength(record.getKey(), record.getValue());
+		}
+		this.ensureCapacity((long) end + length);
+
+		int position = end;
+		for (Map.Entry<String, byte[]> record : records.entrySet()) {
+			position = write(this.buffer, position, record.getKey(), record.getValue());
+		}
+		this.buffer.putLong(0, position);
+		this.buffer.force();
+		this.catchUp();
+
+		if (this.scanned > COMPACT_MIN && this.liveBytes * 2 < this.scanned - HEADER) {
+			this.compact();
+		}
+	}
+
+	/**
+	 * @param key Key
+	 * @return Latest value, null if none or deleted
+	 */
+	public synchronized byte[] get(String key) {
+		return this.read(key);
+	}
+
+	/**
+	 * @param keys Keys
+	 * @return Latest value for each key that has one
+	 */
+	public synchronized Map<String, byte[]> getAll(Collection<String> keys) {
+		Map<String, byte[]> result = new HashMap<>();
+		for (String key : keys) {
+			byte[] value = this.read(key);
+			if (value != null) {
+				result.put(key, value);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return Every key with a value
+	 */
+	public synchronized Set<String> keys() {
+		return new HashSet<>(this.index.keySet());
+	}
+
+	private void reopen() throws IOException {
+		if (this.channel != null) {
+			this.channel.close();
+		}
+		this.channel = FileChannel.open(this.path,
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.remap(Math.max(this.channel.size(), INITIAL_CAPACITY));
+		this.index.clear();
+		this.scanned = HEADER;
+		this.liveBytes = 0;
+	}
+
+	private void remap(long capacity) throws IOException {
+		if (capacity > Integer.MAX_VALUE) {
+			throw new IOException(this.path + " would exceed 2GB");
+		}
+		MappedByteBuffer previous = this.buffer;
+		this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		if (previous != null) {
+			unmap(previous);
+		}
+	}
+
+	/**
+	 * <p>Release a mapping now. There is no public API for this in Java 8,
+	 * so the buffer's cleaner is called by reflection. If that isn't
+	 * allowed the mapping is left for garbage collection, as before.
+	 * Only safe as nothing else holds the buffer, every use is inside
+	 * a synchronized method.
+	 * </p>
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch (Exception e) {
+			log.debug("Can't unmap, left for garbage collection", e);
+		}
+	}
+
+	private void ensureCapacity(long needed) throws IOException {
+		if (needed > this.buffer.capacity()) {
+			this.remap(Math.max(needed, 2L * this.buffer.capacity()));
+		}
+	}
+
+	/**
+	 * <p>Index records from where the last scan stopped up to the end
+	 * in the header, stopping early at a record that fails its CRC.
+	 * </p>
+	 */
+	private void catchUp() {
+		long end = Math.min(this.buffer.getLong(0), this.buffer.capacity());
+		CRC32 crc32 = new CRC32();
+		while (this.scanned + RECORD_PREFIX + RECORD_FIXED <= end) {
+			int offset = this.scanned;
+			int length = this.buffer.getInt(offset);
+			if (length < RECORD_FIXED || offset + RECORD_PREFIX + length > end) {
+				break;
+			}
+			byte[] body = new byte[length];
+			this.read(offset + RECORD_PREFIX, body);
+			crc32.reset();
+			crc32.update(body);
+			if ((int) crc32.getValue() != this.buffer.getInt(offset + Integer.BYTES)) {
+				log.warn("{} bad record at {}, ignoring the rest", this.path, offset);
+				break;
+			}
+
+			String key = new String(body, RECORD_FIXED, (body[1] & 0xFF) << 8 | (body[2] & 0xFF), StandardCharsets.UTF_8);
+			Integer previous = (body[0] == PUT ? this.index.put(key, offset) : this.index.remove(key));
+			if (previous != null) {
+				this.liveBytes -= RECORD_PREFIX + this.buffer.getInt(previous);
+			}
+			if (body[0] == PUT) {
+				this.liveBytes += RECORD_PREFIX + length;
+			}
+			this.scanned = offset + RECORD_PREFIX + length;
+		}
+	}
+
+	private byte[] read(String key) {
+		Integer offset = this.index.get(key);
+		if (offset == null) {
+			return null;
+		}
+		int length = this.buffer.getInt(offset);
+		int keyLength = this.buffer.getShort(offset + RECORD_PREFIX + Byte.BYTES) & 0xFFFF;
+		byte[] value = new byte[length - RECORD_FIXED - keyLength];
+		this.read(offset + RECORD_PREFIX + RECORD_FIXED + keyLength, value);
+		return value;
+	}
+
+	/**
+	 * @return Where the next record goes
+	 */
+	private static int write(MappedByteBuffer buffer, int position, String key, byte[] value) {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int length = RECORD_FIXED + keyBytes.length + (value == null ? 0 : value.length);
+		byte[] body = new byte[length];
+		body[0] = (value == null ? DELETE : PUT);
+		body[1] = (byte) (keyBytes.length >>> 8);
+		body[2] = (byte) keyBytes.length;
+		System.arraycopy(keyBytes, 0, body, RECORD_FIXED, keyBytes.length);
+		if (value != null) {
+			System.arraycopy(value, 0, body, RECORD_FIXED + keyBytes.length, value.length);
+		}
+
+		CRC32 crc32 = new CRC32();
+		crc32.update(body);
+		ByteBuffer target = buffer.duplicate();
+		target.position(position);
+		target.putInt(length).putInt((int) crc32.getValue()).put(body);
+		return target.position();
+	}
+
+	/**
+	 * <p>Copy the latest record for each key to a new file, and rename it over
+	 * this one.
+	 * </p>
+	 */
+	private void compact() throws IOException {
+		Path compacted = this.path.resolveSibling(this.path.getFileName() + ".compact");
+		Files.deleteIfExists(compacted);
+
+		Map<String, byte[]> latest = new LinkedHashMap<>();
+		for (String key : this.index.keySet()) {
+			latest.put(key, this.read(key));
+		}
+		int before = this.scanned;
+
+		try (FileChannel target = FileChannel.open(compacted,
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long capacity = Math.max(INITIAL_CAPACITY, 2 * this.liveBytes + HEADER);
+			MappedByteBuffer mapped = target.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			int position = HEADER;
+			for (Map.Entry<String, byte[]> record : latest.entrySet()) {
+				position = write(mapped, position, record.getKey(), record.getValue());
+			}
+			mapped.putLong(0, position);
+			mapped.force();
+			unmap(mapped);
+		}
+
+		Files.move(compacted, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.reopen();
+		this.catchUp();
+		log.info("{} compacted from {} to {} bytes, {} keys", this.path, before, this.scanned, this.index.size());
+	}
+
+	private void read(int offset, byte[] target) {
+		ByteBuffer source = this.buffer.duplicate();
+		source.position(offset);
+		source.get(target);
+	}
+
+	private static int recordLength(String key, byte[] value) {
+		return RECORD_PREFIX + RECORD_FIXED + key.getBytes(StandardCharsets.UTF_8).length
+				+ (value == null ? 0 : value.length);
+	}
+}
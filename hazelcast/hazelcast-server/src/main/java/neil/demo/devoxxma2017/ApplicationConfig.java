@@ -1,5 +1,7 @@
 package neil.demo.devoxxma2017;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Map.Entry;
 
 import org.springframework.context.annotation.Bean;
@@ -9,12 +11,17 @@ import org.springframework.core.env.Environment;
 import com.hazelcast.config.ClasspathXmlConfig;
 import com.hazelcast.config.Config;
 import com.hazelcast.config.DiscoveryStrategyConfig;
+import com.hazelcast.config.EventJournalConfig;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.MapStoreConfig;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.IMap;
 import com.hazelcast.jet.Jet;
 import com.hazelcast.jet.JetInstance;
 import com.hazelcast.jet.config.JetConfig;
+import com.hazelcast.nio.Address;
 import com.hazelcast.spi.properties.GroupProperty;
+import com.hazelcast.spi.properties.HazelcastProperties;
 import com.hazelcast.zookeeper.ZookeeperDiscoveryProperties;
 import com.hazelcast.zookeeper.ZookeeperDiscoveryStrategyFactory;
 
@@ -26,6 +33,9 @@ import com.hazelcast.zookeeper.ZookeeperDiscoveryStrategyFactory;
 @Configuration
 public class ApplicationConfig {
 
+	private static final int CHANGE_CAPTURE_SEGMENT_BYTES = 64 * 1024 * 1024;
+	private static final int CHANGE_CAPTURE_MAX_QUEUED = 100_000;
+
 	/**
 	 * <p>
 	 * Create IMDG server configuration from a file.
@@ -38,6 +48,25 @@ public class ApplicationConfig {
 	public Config config(Environment environment) {
 		Config config = new ClasspathXmlConfig("hazelcast.xml");
 
+		/*
+		 * Maps kept on disk are told where, see FileMapStore
+		 */
+		String directory = environment.getProperty(Constants.MAP_STORE_DIRECTORY_PROPERTY_NAME);
+		for (MapConfig mapConfig : config.getMapConfigs().values()) {
+			MapStoreConfig mapStoreConfig = mapConfig.getMapStoreConfig();
+			if (directory != null && mapStoreConfig != null && mapStoreConfig.isEnabled()) {
+				mapStoreConfig.setProperty(FileMapStore.DIRECTORY_PROPERTY, directory);
+			}
+		}
+
+		/*
+		 * Size the "position" journal for the expected load, see journalCapacity()
+		 */
+		EventJournalConfig eventJournalConfig = config.getMapEventJournalConfig(Constants.IMAP_NAME_POSITION);
+		eventJournalConfig.setCapacity(journalCapacity(environment,
+				new HazelcastProperties(config).getInteger(GroupProperty.PARTITION_COUNT),
+				eventJournalConfig.getCapacity()));
+
 		/*
 		 * If in Docker, turn off TCP in favour of on Zookeeper discovery.
 		 * Mostly preset except Zookeeper IP. System.out is better for Docker explorer
@@ -73,6 +102,41 @@ public class ApplicationConfig {
 		return config;
 	}
 
+	/**
+	 * <p>
+	 * The journal is a ring per partition, its capacity is shared between
+	 * them. A reader that falls more than a ring behind loses events. So it
+	 * needs to hold as many points as arrive in the time a reader might fall
+	 * behind, "{@code journal-retention-seconds}", from all riders at their
+	 * point rate. Doubled, as riders don't hash evenly over a few partitions.
+	 * </p>
+	 * <p>
+	 * Rounded up to a multiple of the partition count, and never below what
+	 * "{@code hazelcast.xml}" has.
+	 * </p>
+	 * 
+	 * @param environment
+	 *            From Spring
+	 * @param partitionCount
+	 *            Partitions the capacity is shared between
+	 * @param configured
+	 *            Capacity from the XML
+	 * @return Capacity for the whole journal
+	 */
+	static int journalCapacity(Environment environment, int partitionCount, int configured) {
+		int riders = environment.getProperty(Constants.JOURNAL_RIDERS_PROPERTY_NAME, Integer.class, 0);
+		double pointsPerSecond = environment.getProperty(Constants.JOURNAL_POINTS_PER_SECOND_PROPERTY_NAME, Double.class, 1d);
+		int retentionSeconds = environment.getProperty(Constants.JOURNAL_RETENTION_SECONDS_PROPERTY_NAME, Integer.class, 60);
+
+		long wanted = (long) Math.ceil(2 * riders * pointsPerSecond * retentionSeconds);
+		long perPartition = (Math.max(wanted, configured) + partitionCount - 1) / partitionCount;
+		long capacity = Math.min(perPartition * partitionCount, Integer.MAX_VALUE / partitionCount * partitionCount);
+
+		System.out.printf("Journal '%s' capacity %d, %d per partition, for %d riders at %.2f/s over %ds%n",
+				Constants.IMAP_NAME_POSITION, capacity, capacity / partitionCount, riders, pointsPerSecond, retentionSeconds);
+		return (int) capacity;
+	}
+
 	/**
 	 * <p>
 	 * A Jet engine instance embeds an IMDG instance to provide it's infrastructure
@@ -123,4 +187,42 @@ public class ApplicationConfig {
 
 		return hazelcastInstance;
 	}
+
+	/**
+	 * <p>
+	 * Record changes to the maps named in "{@code change-capture-maps}", if
+	 * any, see {@link ChangeCaptureListener}. Each member writes to a
+	 * directory named by its address, so several members on one host don't
+	 * collide. Spring calls {@link ChangeCaptureListener#close()} on shutdown.
+	 * </p>
+	 * 
+	 * @param environment
+	 *            From Spring
+	 * @param hazelcastInstance
+	 *            IMDG server created above
+	 */
+	@Bean
+	public ChangeCaptureListener changeCaptureListener(Environment environment, HazelcastInstance hazelcastInstance)
+			throws IOException {
+		Address address = hazelcastInstance.getCluster().getLocalMember().getAddress();
+		ChangeCaptureListener changeCaptureListener = new ChangeCaptureListener(
+				Paths.get(environment.getProperty(Constants.CHANGE_CAPTURE_DIRECTORY_PROPERTY_NAME,
+						System.getProperty("java.io.tmpdir") + "/devoxxma2017-changes"),
+						address.getHost() + "-" + address.getPort()),
+				CHANGE_CAPTURE_SEGMENT_BYTES, CHANGE_CAPTURE_MAX_QUEUED);
+
+		String maps = environment.getProperty(Constants.CHANGE_CAPTURE_MAPS_PROPERTY_NAME, "");
+		boolean captured = false;
+		for (String mapName : maps.split(",")) {
+			if (!mapName.trim().isEmpty()) {
+				hazelcastInstance.getMap(mapName.trim()).addLocalEntryListener(changeCaptureListener);
+				captured = true;
+			}
+		}
+		if (captured) {
+			changeCaptureListener.start();
+		}
+
+		return changeCaptureListener;
+	}
 }
@@ -0,0 +1,172 @@
+package neil.demo.devoxxma2017;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.EntryEventType;
+import com.hazelcast.map.listener.EntryAddedListener;
+import com.hazelcast.map.listener.EntryEvictedListener;
+import com.hazelcast.map.listener.EntryExpiredListener;
+import com.hazelcast.map.listener.EntryRemovedListener;
+import com.hazelcast.map.listener.EntryUpdatedListener;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * <p>A map listener that records every change to a {@link ChangeLog},
+ * so there is an audit trail that can be replayed, see
+ * {@link ChangeLogReplay}.
+ * </p>
+ * <p>Unlike {@link LoggingListener} there is no text formatting and no
+ * logging framework. The event thread encodes the event to bytes and
+ * puts it on a queue, that is all. One writer thread takes whatever has
+ * built up, and appends it as one batch with one flush.
+ * </p>
+ * <pre>
+ *   event threads           writer thread
+ *   encode, offer  -->  queue  -->  drain, append, force  -->  segments
+ * </pre>
+ * <p>The queue is a lock-free {@link ConcurrentLinkedQueue}, with a count
+ * alongside to bound it. If the writer can't keep up and the queue is full,
+ * events are dropped and counted rather than slowing the map down.
+ * </p>
+ * <p>Added as a local listener, so each member records the changes to
+ * the entries it owns, into its own directory.
+ * </p>
+ */
+@SuppressWarnings("rawtypes")
+@Slf4j
+public class ChangeCaptureListener implements EntryAddedListener, EntryUpdatedListener,
+	EntryRemovedListener, EntryEvictedListener, EntryExpiredListener, Closeable {
+
+	private static final int BATCH_SIZE = 10_000;
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final Path directory;
+	private final int segmentBytes;
+	private final int maxQueued;
+	private final Queue<byte[]> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicLong dropped = new AtomicLong();
+	private Thread writer;
+	private volatile boolean running;
+
+	public ChangeCaptureListener(Path directory, int segmentBytes, int maxQueued) {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.maxQueued = maxQueued;
+	}
+
+	/**
+	 * <p>Start the writer thread, only needed if the listener is added
+	 * to any maps.
+	 * </p>
+	 */
+	public synchronized void start() throws IOException {
+		if (this.writer != null) {
+			return;
+		}
+		ChangeLog changeLog = new ChangeLog(this.directory, this.segmentBytes);
+		this.running = true;
+		this.writer = new Thread(() -> this.write(changeLog), "change-capture");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * <p>Stop the writer, once it has written what is queued.
+	 * </p>
+	 */
+	@Override
+	public synchronized void close() {
+		if (this.writer == null) {
+			return;
+		}
+		this.running = false;
+		try {
+			this.writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.writer = null;
+	}
+
+	@Override
+	public void entryAdded(EntryEvent event) {
+		this.capture(event, event.getValue());
+	}
+	@Override
+	public void entryUpdated(EntryEvent event) {
+		this.capture(event, event.getValue());
+	}
+	@Override
+	public void entryRemoved(EntryEvent event) {
+		this.capture(event, null);
+	}
+	@Override
+	public void entryEvicted(EntryEvent event) {
+		this.capture(event, null);
+	}
+	@Override
+	public void entryExpired(EntryEvent event) {
+		this.capture(event, null);
+	}
+
+	/**
+	 * <p>Encode on the event thread, so the writer only copies bytes.
+	 * </p>
+	 *
+	 * @param event Any of the captured types
+	 * @param value The new value, or null for those that have none
+	 */
+	private void capture(EntryEvent event, Object value) {
+		if (this.queued.incrementAndGet() > this.maxQueued) {
+			this.queued.decrementAndGet();
+			if (this.dropped.incrementAndGet() % BATCH_SIZE == 1) {
+				log.warn("Change capture queue full, {} dropped", this.dropped.get());
+			}
+			return;
+		}
+		EntryEventType type = event.getEventType();
+		this.queue.offer(ChangeLog.encode(System.currentTimeMillis(), type, event.getName(), event.getKey(), value));
+	}
+
+	/**
+	 * <p>Drain in batches, pausing briefly when there is nothing to do.
+	 * Carries on after {@link #close()} until the queue is empty.
+	 * </p>
+	 */
+	private void write(ChangeLog changeLog) {
+		List<byte[]> batch = new ArrayList<>(BATCH_SIZE);
+		long written = 0;
+		try (ChangeLog closeable = changeLog) {
+			while (this.running || !this.queue.isEmpty()) {
+				byte[] record;
+				while (batch.size() < BATCH_SIZE && (record = this.queue.poll()) != null) {
+					batch.add(record);
+				}
+				if (batch.isEmpty()) {
+					LockSupport.parkNanos(IDLE_NANOS);
+					continue;
+				}
+				changeLog.append(batch);
+				this.queued.addAndGet(-batch.size());
+				written += batch.size();
+				batch.clear();
+			}
+		} catch (IOException e) {
+			log.error("Change capture stopped", e);
+		}
+		log.info("Change capture wrote {}, dropped {}", written, this.dropped.get());
+	}
+}
@@ -0,0 +1,244 @@
+package neil.demo.devoxxma2017;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import com.hazelcast.core.EntryEventType;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * <p>Map change events as binary records in a directory of segment files,
+ * each written through a memory mapping.
+ * </p>
+ * <p>Segments are a fixed size when mapped, and named by a sequence number,
+ * "{@code changes-00000000000000000042.seg}". When a record doesn't fit,
+ * the segment is trimmed to what was written and the next one started.
+ * A writer never reopens an old segment, it always starts a new one after
+ * the highest number found, so a crash leaves at worst a torn record at
+ * the end of one segment.
+ * </p>
+ * <pre>
+ * +--------+--------+--------+--------+--------+--------+---------+------
+ * | length |  CRC   |  time  |  type  |  map   |  key   |  value  | ...
+ * |   4    |   4    |   8    |   4    | 2 + n  | 4 + n  |  rest   |
+ * +--------+--------+--------+--------+--------+--------+---------+------
+ * </pre>
+ * <p>The type is the {@link EntryEventType} number, which goes past a
+ * byte, {@code EXPIRED} is 128. Key and value are Java
+ * serialized, an empty value means none, as for a remove. Reading a segment
+ * stops at a zero length, which is where writing stopped, or at a record
+ * whose CRC doesn't match.
+ * </p>
+ */
+@Slf4j
+public class ChangeLog implements Closeable {
+
+	private static final String PREFIX = "changes-";
+	private static final String SUFFIX = ".seg";
+	private static final int RECORD_PREFIX = Integer.BYTES + Integer.BYTES;
+
+	private final Path directory;
+	private final int segmentBytes;
+	private long sequence;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+
+	public ChangeLog(Path directory, int segmentBytes) throws IOException {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		Files.createDirectories(directory);
+		List<Path> segments = segments(directory);
+		this.sequence = (segments.isEmpty() ? 0 : sequence(segments.get(segments.size() - 1)) + 1);
+		this.roll();
+	}
+
+	/**
+	 * <p>Encode one event, on the caller's thread, ready for
+	 * {@link #append(List)}.
+	 * </p>
+	 *
+	 * @param value Null if none
+	 */
+	public static byte[] encode(long time, EntryEventType type, String mapName, Object key, Object value) {
+		byte[] mapBytes = mapName.getBytes(StandardCharsets.UTF_8);
+		byte[] keyBytes = serialize(key);
+		byte[] valueBytes = (value == null ? new byte[0] : serialize(value));
+
+		ByteBuffer body = ByteBuffer.allocate(Long.BYTES + Integer.BYTES + Short.BYTES + mapBytes.length
+				+ Integer.BYTES + keyBytes.length + valueBytes.length);
+		body.putLong(time).putInt(type.getType())
+			.putShort((short) mapBytes.length).put(mapBytes)
+			.putInt(keyBytes.length).put(keyBytes)
+			.put(valueBytes);
+
+		CRC32 crc32 = new CRC32();
+		crc32.update(body.array());
+		ByteBuffer record = ByteBuffer.allocate(RECORD_PREFIX + body.capacity());
+		record.putInt(body.capacity()).putInt((int) crc32.getValue()).put(body.array());
+		return record.array();
+	}
+
+	/**
+	 * <p>Write a batch of encoded records, rolling to a new segment as
+	 * needed, then flush.
+	 * </p>
+	 */
+	public void append(List<byte[]> records) throws IOException {
+		for (byte[] record : records) {
+			if (record.length > this.segmentBytes) {
+				log.warn("Record of {} bytes is larger than a segment, skipped", record.length);
+				continue;
+			}
+			if (record.length > this.buffer.remaining()) {
+				this.roll();
+			}
+			this.buffer.put(record);
+		}
+		this.buffer.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.channel != null) {
+			this.buffer.force();
+			this.channel.truncate(this.buffer.position());
+			this.channel.close();
+			this.channel = null;
+		}
+	}
+
+	private void roll() throws IOException {
+		this.close();
+		Path segment = this.directory.resolve(String.format("%s%020d%s", PREFIX, this.sequence++, SUFFIX));
+		this.channel = FileChannel.open(segment,
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentBytes);
+		log.info("Change log segment '{}'", segment);
+	}
+
+	/**
+	 * <p>Read every record in every segment, oldest first.
+	 * </p>
+	 *
+	 * @param directory Where the segments are
+	 * @param consumer Given each record in turn
+	 * @return How many records
+	 */
+	public static long read(Path directory, Consumer<Record> consumer) throws IOException {
+		long count = 0;
+		CRC32 crc32 = new CRC32();
+		for (Path segment : segments(directory)) {
+			try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				while (buffer.remaining() >= RECORD_PREFIX) {
+					int length = buffer.getInt();
+					int crc = buffer.getInt();
+					if (length <= 0 || length > buffer.remaining()) {
+						break;
+					}
+					byte[] body = new byte[length];
+					buffer.get(body);
+					crc32.reset();
+					crc32.update(body);
+					if ((int) crc32.getValue() != crc) {
+						log.warn("'{}' bad record at {}, skipping rest of segment", segment,
+								buffer.position() - length - RECORD_PREFIX);
+						break;
+					}
+					consumer.accept(decode(body));
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	private static Record decode(byte[] body) {
+		ByteBuffer buffer = ByteBuffer.wrap(body);
+		Record record = new Record();
+		record.setTime(buffer.getLong());
+		record.setType(EntryEventType.getByType(buffer.getInt()));
+		byte[] mapBytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(mapBytes);
+		record.setMapName(new String(mapBytes, StandardCharsets.UTF_8));
+		byte[] keyBytes = new byte[buffer.getInt()];
+		buffer.get(keyBytes);
+		record.setKey(deserialize(keyBytes));
+		if (buffer.hasRemaining()) {
+			byte[] valueBytes = new byte[buffer.remaining()];
+			buffer.get(valueBytes);
+			record.setValue(deserialize(valueBytes));
+		}
+		return record;
+	}
+
+	private static List<Path> segments(Path directory) throws IOException {
+		List<Path> segments = new ArrayList<>();
+		if (Files.isDirectory(directory)) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+				stream.forEach(segments::add);
+			}
+		}
+		// Fixed width numbers, so name order is sequence order
+		Collections.sort(segments);
+		return segments;
+	}
+
+	private static long sequence(Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+
+	private static byte[] serialize(Object value) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(value);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] value) {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(value))) {
+			return in.readObject();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * <p>One change, as read back.
+	 * </p>
+	 */
+	@Data
+	public static class Record {
+		private long time;
+		private EntryEventType type;
+		private String mapName;
+		private Object key;
+		private Object value;
+	}
+}
@@ -0,0 +1,121 @@
+package neil.demo.devoxxma2017;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.hazelcast.client.HazelcastClient;
+import com.hazelcast.client.config.ClientConfig;
+import com.hazelcast.core.EntryEventType;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+/**
+ * <p>Read back what {@link ChangeCaptureListener} wrote, and either replay
+ * it into a cluster or just time reading it.
+ * </p>
+ * <pre>
+ * ChangeLogReplay directory             read, count by map and type, report rate
+ * ChangeLogReplay directory host:port   also apply to that cluster, as a client
+ * </pre>
+ * <p>Adds and updates become puts, removes become removes. Evictions and
+ * expiries are counted but not replayed, the target cluster has its own
+ * settings for those.
+ * </p>
+ * <p>Puts are grouped into a "{@code putAll}" per map for speed. Anything
+ * pending for a map is sent before a remove on it, so the order for a key
+ * is the order in the log. Each member writes its own directory, replay
+ * each in turn. That gives the same final state unless a key has moved
+ * between members and back, the records carry the time if that matters.
+ * </p>
+ * <p>The cluster members aren't running in this JVM, so values need their
+ * classes on the members' classpath, as they would for any client.
+ * </p>
+ */
+public class ChangeLogReplay {
+
+	private static final int BATCH_SIZE = 1000;
+
+	private final HazelcastInstance hazelcastInstance;
+	private final Map<String, Map<Object, Object>> pending = new HashMap<>();
+	private final Map<String, Long> counts = new TreeMap<>();
+
+	public ChangeLogReplay(HazelcastInstance hazelcastInstance) {
+		this.hazelcastInstance = hazelcastInstance;
+	}
+
+	/**
+	 * @param args Directory, then optionally the address of a cluster member
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: " + ChangeLogReplay.class.getSimpleName() + " directory [host:port]");
+			System.exit(1);
+		}
+		Path directory = Paths.get(args[0]);
+
+		HazelcastInstance hazelcastInstance = null;
+		if (args.length == 2) {
+			ClientConfig clientConfig = new ClientConfig();
+			clientConfig.getNetworkConfig().addAddress(args[1]);
+			hazelcastInstance = HazelcastClient.newHazelcastClient(clientConfig);
+		}
+
+		try {
+			ChangeLogReplay changeLogReplay = new ChangeLogReplay(hazelcastInstance);
+
+			long start = System.nanoTime();
+			long records = ChangeLog.read(directory, changeLogReplay::apply);
+			changeLogReplay.flushAll();
+			double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+
+			changeLogReplay.counts.forEach((name, count) -> System.out.printf("%-30s %12d%n", name, count));
+			System.out.printf("%d records in %.3fs, %.0f/s%s%n", records, seconds, records / seconds,
+					(hazelcastInstance == null ? ", not replayed" : ""));
+		} finally {
+			if (hazelcastInstance != null) {
+				hazelcastInstance.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * <p>Count one record, and queue or apply it if replaying.
+	 * </p>
+	 */
+	public void apply(ChangeLog.Record record) {
+		this.counts.merge(record.getMapName() + " " + record.getType(), 1L, Long::sum);
+		if (this.hazelcastInstance == null) {
+			return;
+		}
+
+		EntryEventType type = record.getType();
+		if (type == EntryEventType.ADDED || type == EntryEventType.UPDATED) {
+			Map<Object, Object> batch = this.pending.computeIfAbsent(record.getMapName(), k -> new LinkedHashMap<>());
+			batch.put(record.getKey(), record.getValue());
+			if (batch.size() >= BATCH_SIZE) {
+				this.flush(record.getMapName());
+			}
+		} else if (type == EntryEventType.REMOVED) {
+			this.flush(record.getMapName());
+			this.hazelcastInstance.getMap(record.getMapName()).delete(record.getKey());
+		}
+	}
+
+	private void flush(String mapName) {
+		Map<Object, Object> batch = this.pending.remove(mapName);
+		if (batch != null && !batch.isEmpty()) {
+			IMap<Object, Object> map = this.hazelcastInstance.getMap(mapName);
+			map.putAll(batch);
+		}
+	}
+
+	private void flushAll() {
+		for (String mapName : this.pending.keySet().toArray(new String[0])) {
+			this.flush(mapName);
+		}
+	}
+}
@@ -1,17 +1,26 @@
 package neil.demo.devoxxma2017;
 
+import javax.annotation.PostConstruct;
+
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.IMap;
 import com.hazelcast.jet.JetInstance;
 import com.hazelcast.jet.Job;
 import com.hazelcast.jet.Pipeline;
 import com.hazelcast.jet.core.DAG;
 import com.hazelcast.map.listener.EntryAddedListener;
 import com.hazelcast.map.listener.EntryUpdatedListener;
+import com.hazelcast.query.Predicates;
 
 import lombok.extern.slf4j.Slf4j;
+import neil.demo.devoxxma2017.jet.Backfill;
+import neil.demo.devoxxma2017.jet.Heatmap;
+import neil.demo.devoxxma2017.jet.IncrementalSpeedo;
+import neil.demo.devoxxma2017.jet.Proximity;
 import neil.demo.devoxxma2017.jet.ReadKafka;
 import neil.demo.devoxxma2017.jet.Speedo;
 import neil.demo.devoxxma2017.jet.WordCount;
@@ -42,9 +51,68 @@ public class CommandListener implements EntryAddedListener<String, String[]>, En
 
 	@Autowired
 	private JetInstance jetInstance;
+	@Value("${position-filter-epsilon-metres}")
+	private double positionFilterEpsilonMetres;
+	@Value("${position-filter-heartbeat-millis}")
+	private long positionFilterHeartbeatMillis;
+	@Value("${trail-points}")
+	private int trailPoints;
+	@Value("${archive-block-points}")
+	private int archiveBlockPoints;
+	@Value("${kafka-speed-in-grid}")
+	private boolean kafkaSpeedInGrid;
+	@Value("${key-idle-millis}")
+	private long keyIdleMillis;
+	@Value("${key-max-count}")
+	private int keyMaxCount;
+	@Value("${speedo-windows}")
+	private String speedoWindows;
+	@Value("${speedo-lag-min-millis}")
+	private long speedoLagMinMillis;
+	@Value("${speedo-lag-max-millis}")
+	private long speedoLagMaxMillis;
+	@Value("${speedo-salt-buckets}")
+	private int speedoSaltBuckets;
+	@Value("${ride-gap-millis}")
+	private long rideGapMillis;
+	@Value("${leaderboard-size}")
+	private int leaderboardSize;
+	@Value("${speedo-incremental-reorder-millis}")
+	private long speedoIncrementalReorderMillis;
+	@Value("${speedo-incremental-smoothing-points}")
+	private int speedoIncrementalSmoothingPoints;
+	@Value("${speed-change-min-metres-per-second}")
+	private double speedChangeMinMetresPerSecond;
+	@Value("${speed-change-min-ratio}")
+	private double speedChangeMinRatio;
+	@Value("${speed-change-heartbeat-millis}")
+	private long speedChangeHeartbeatMillis;
+	@Value("${proximity-metres}")
+	private double proximityMetres;
+	@Value("${proximity-max-age-millis}")
+	private long proximityMaxAgeMillis;
+	@Value("${heatmap-zooms}")
+	private String heatmapZooms;
+	@Value("${heatmap-window}")
+	private String heatmapWindow;
 
+	private Job backfill = null;
+	private Job heatmap = null;
 	private Job kafka = null;
+	private Job proximity = null;
 	private Job speedo = null;
+
+	/**
+	 * <p>Fail at start-up on a setting that would only break a job later,
+	 * when it is started.
+	 * </p>
+	 */
+	@PostConstruct
+	public void checkSettings() {
+		if (this.leaderboardSize < 1) {
+			throw new IllegalArgumentException("leaderboard-size must be at least 1, not " + this.leaderboardSize);
+		}
+	}
 	
 	@Override
 	public void entryUpdated(EntryEvent<String, String[]> arg0) {
@@ -99,7 +167,9 @@ public class CommandListener implements EntryAddedListener<String, String[]>, En
 	private void handleStart(String noun, String params) {
 		if (noun.equalsIgnoreCase(Constants.COMMAND_NOUN_KAFKA)) {
 			if (this.kafka == null) {
-				DAG dag = ReadKafka.build(params);
+				DAG dag = ReadKafka.build(params, this.positionFilterEpsilonMetres, this.positionFilterHeartbeatMillis,
+						this.keyIdleMillis, this.keyMaxCount, this.trailPoints, this.archiveBlockPoints,
+						this.kafkaSpeedInGrid);
 				this.kafka = this.jetInstance.newJob(dag);
 				log.info("Started Kafka Reader, job id {}", this.kafka.getJobId());
 			} else {
@@ -108,9 +178,24 @@ public class CommandListener implements EntryAddedListener<String, String[]>, En
 		} else {
 			if (noun.equalsIgnoreCase(Constants.COMMAND_NOUN_SPEEDO)) {
 				if (this.speedo == null) {
-					DAG dag = Speedo.build();
+					boolean incremental = Constants.SPEEDO_MODE_INCREMENTAL.equalsIgnoreCase(params);
+					if (!incremental && params != null && !Constants.SPEEDO_MODE_WINDOW.equalsIgnoreCase(params)) {
+						log.error("Ignoring start request, unknown Speedo mode '{}', expected '{}' or '{}'",
+								params, Constants.SPEEDO_MODE_WINDOW, Constants.SPEEDO_MODE_INCREMENTAL);
+						return;
+					}
+					DAG dag = (incremental ?
+							IncrementalSpeedo.build(this.speedoIncrementalReorderMillis, this.speedoIncrementalSmoothingPoints,
+									this.keyIdleMillis, this.keyMaxCount, this.speedChangeMinMetresPerSecond,
+									this.speedChangeMinRatio, this.speedChangeHeartbeatMillis)
+							: Speedo.build(this.speedoWindows, this.speedoLagMinMillis, this.speedoLagMaxMillis,
+									this.keyIdleMillis, this.keyMaxCount, this.speedoSaltBuckets,
+									this.rideGapMillis, this.positionFilterEpsilonMetres, this.leaderboardSize,
+									this.speedChangeMinMetresPerSecond, this.speedChangeMinRatio,
+									this.speedChangeHeartbeatMillis));
 					this.speedo = this.jetInstance.newJob(dag);
-					log.info("Started Speedo, job id {}", this.speedo.getJobId());
+					log.info("Started Speedo, {} mode, job id {}",
+							(incremental ? Constants.SPEEDO_MODE_INCREMENTAL : Constants.SPEEDO_MODE_WINDOW), this.speedo.getJobId());
 				} else {
 					log.info("Ignoring start request, Speedo job id {} already running", this.speedo.getJobId());
 				}
@@ -125,13 +210,94 @@ public class CommandListener implements EntryAddedListener<String, String[]>, En
 						log.error("Wordcount", e);
 					}
 				} else {
-					log.error("Unknown command noun '{}'", noun);
+					if (noun.equalsIgnoreCase(Constants.COMMAND_NOUN_PROXIMITY)) {
+						if (this.proximity == null) {
+							DAG dag = Proximity.build(this.proximityMetres, this.proximityMaxAgeMillis,
+									this.keyIdleMillis, this.keyMaxCount);
+							this.proximity = this.jetInstance.newJob(dag);
+							log.info("Started Proximity, job id {}", this.proximity.getJobId());
+						} else {
+							log.info("Ignoring start request, Proximity job id {} already running", this.proximity.getJobId());
+						}
+					} else {
+						if (noun.equalsIgnoreCase(Constants.COMMAND_NOUN_HEATMAP)) {
+							if (this.heatmap == null) {
+								DAG dag = Heatmap.build(this.heatmapZooms, this.heatmapWindow,
+										this.speedoLagMinMillis, this.speedoLagMaxMillis, this.keyIdleMillis, this.keyMaxCount);
+								this.heatmap = this.jetInstance.newJob(dag);
+								log.info("Started Heatmap, job id {}", this.heatmap.getJobId());
+							} else {
+								log.info("Ignoring start request, Heatmap job id {} already running", this.heatmap.getJobId());
+							}
+						} else {
+							if (noun.equalsIgnoreCase(Constants.COMMAND_NOUN_BACKFILL)) {
+								this.startBackfill(params);
+							} else {
+								log.error("Unknown command noun '{}'", noun);
+							}
+						}
+					}
 				}
 			}
 		}
 	}
 	
 	
+	/**
+	 * <p>Start a backfill, if one isn't running. Unlike the streaming
+	 * jobs, a backfill ends by itself, so another can be started once
+	 * it has.
+	 * </p>
+	 * <p>Anything from an earlier run with the same version is removed
+	 * first, as the histories are added to rather than replaced.
+	 * </p>
+	 * <p>The params come from whoever wrote to the map, so are checked,
+	 * and a request that doesn't make sense is logged and ignored.
+	 * </p>
+	 *
+	 * @param params "{@code from,to,version,bootstrap-servers}", times in milliseconds since 1970
+	 */
+	private void startBackfill(String params) {
+		if (this.backfill != null && !this.backfill.getFuture().isDone()) {
+			log.info("Ignoring start request, Backfill job id {} still running", this.backfill.getJobId());
+			return;
+		}
+
+		// Servers last, as they are comma separated too
+		String[] tokens = (params == null ? new String[0] : params.split(",", 4));
+		if (tokens.length != 4 || tokens[2].isEmpty() || tokens[2].contains(Constants.BACKFILL_VERSION_SEPARATOR)
+				|| tokens[3].isEmpty()) {
+			log.error("Ignoring start request, Backfill params '{}' not 'from,to,version,bootstrap-servers'", params);
+			return;
+		}
+		long from;
+		long to;
+		try {
+			from = Long.parseLong(tokens[0].trim());
+			to = Long.parseLong(tokens[1].trim());
+		} catch (NumberFormatException e) {
+			log.error("Ignoring start request, Backfill times '{}' and '{}' not numbers", tokens[0], tokens[1]);
+			return;
+		}
+		if (from >= to) {
+			log.error("Ignoring start request, Backfill from {} not before to {}", from, to);
+			return;
+		}
+		String version = tokens[2];
+
+		IMap<String, SpeedHistory> backfillMap = this.jetInstance.getHazelcastInstance().getMap(Constants.IMAP_NAME_BACKFILL);
+		for (String key : backfillMap.keySet(Predicates.like("__key", version + Constants.BACKFILL_VERSION_SEPARATOR + "%"))) {
+			backfillMap.delete(key);
+		}
+
+		DAG dag = Backfill.build(tokens[3], from, to, version,
+				this.positionFilterEpsilonMetres, this.positionFilterHeartbeatMillis,
+				this.speedoIncrementalReorderMillis, this.speedoIncrementalSmoothingPoints,
+				this.keyIdleMillis, this.keyMaxCount);
+		this.backfill = this.jetInstance.newJob(dag);
+		log.info("Started Backfill '{}' from {} to {}, job id {}", version, from, to, this.backfill.getJobId());
+	}
+	
 	/**
 	 * <p>Stop a job, if running.
 	 * </p>
@@ -158,7 +324,35 @@ public class CommandListener implements EntryAddedListener<String, String[]>, En
 					log.info("Ignoring stop request, Speedo job is not running");
 				}
 			} else {
-				log.error("Unknown command noun '{}'", noun);
+				if (noun.equalsIgnoreCase(Constants.COMMAND_NOUN_PROXIMITY)) {
+					if (this.proximity != null) {
+						log.info("Stopping Proximity, job id {}", this.proximity.getJobId());
+						this.proximity = null;
+					} else {
+						log.info("Ignoring stop request, Proximity job is not running");
+					}
+				} else {
+					if (noun.equalsIgnoreCase(Constants.COMMAND_NOUN_HEATMAP)) {
+						if (this.heatmap != null) {
+							log.info("Stopping Heatmap, job id {}", this.heatmap.getJobId());
+							this.heatmap = null;
+						} else {
+							log.info("Ignoring stop request, Heatmap job is not running");
+						}
+					} else {
+						if (noun.equalsIgnoreCase(Constants.COMMAND_NOUN_BACKFILL)) {
+							if (this.backfill != null) {
+								log.info("Cancelling Backfill, job id {}", this.backfill.getJobId());
+								this.backfill.cancel();
+								this.backfill = null;
+							} else {
+								log.info("Ignoring stop request, Backfill job is not running");
+							}
+						} else {
+							log.error("Unknown command noun '{}'", noun);
+						}
+					}
+				}
 			}
 		}
 	}
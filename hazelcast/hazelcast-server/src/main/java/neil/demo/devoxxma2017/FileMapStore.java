@@ -0,0 +1,425 @@
+package neil.demo.devoxxma2017;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+import com.hazelcast.core.IExecutorService;
+import com.hazelcast.core.MapLoaderLifecycleSupport;
+import com.hazelcast.core.MapStore;
+import com.hazelcast.core.Member;
+import com.hazelcast.core.PartitionService;
+import com.hazelcast.nio.Address;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * <p>Keep a map's entries in local files, so they survive the cluster
+ * being restarted without replaying Kafka from the start.
+ * </p>
+ * <p>There is one {@link AppendOnlyLog} per partition, in a directory per
+ * member and map, "{@code <directory>/<host>-<port>/<map>/<partition>.log}".
+ * The "{@code directory}" property is set from "{@code map-store-directory}"
+ * in {@link ApplicationConfig}, or is the temporary directory if not set.
+ * It should be on a local disk, the files are memory mapped, and each
+ * member only ever uses its own. A member restarted on the same host and
+ * port finds its files again.
+ * </p>
+ * <p>The maps using this are configured in "{@code hazelcast.xml}" to write
+ * behind, so a put returns without waiting for the file. The write is done
+ * on the member that owns the partition. Writes to the same key before the
+ * delay is up are coalesced, only the latest is written, and the batch for
+ * a partition is one append and one flush.
+ * </p>
+ * <p>A partition can move, so after a while a key may have been written
+ * on more than one member. Each value is stored with the time it was
+ * written, and a delete is stored as a time with no value, so the newest
+ * copy wins wherever it is.
+ * </p>
+ * <p>On start-up the maps load eagerly. Hazelcast calls {@link #loadAllKeys()}
+ * on one member, which collects the keys from every member, each indexing
+ * its partition files in parallel. Hazelcast then has each member
+ * {@link #loadAll(Collection) load} the values for the partitions it now
+ * owns. The owner asks every member for its copies of those keys, keeps
+ * the newest, and appends any it didn't have to its own files. So from
+ * then on the owner has everything it owns, and {@link #load(Object)} for a
+ * single key only reads the local file. It is called on the partition
+ * thread, which mustn't wait on other members.
+ * </p>
+ * <p>Hazelcast doesn't delete from the store when an entry expires or is
+ * evicted, only when it's removed. So a value older than the map's
+ * time-to-live or max-idle is not loaded, and is deleted from the file
+ * instead. Otherwise a restart would bring back everyone who had gone idle.
+ * Max-idle is measured from the last write, as reads aren't seen here.
+ * </p>
+ * <p>Values are stored with Java serialization, all the values in these
+ * maps are {@link java.io.Serializable Serializable}.
+ * </p>
+ */
+@Slf4j
+public class FileMapStore implements MapStore<String, Object>, MapLoaderLifecycleSupport {
+
+	public static final String DIRECTORY_PROPERTY = "directory";
+	private static final String DEFAULT_DIRECTORY = System.getProperty("java.io.tmpdir") + "/devoxxma2017";
+
+	private HazelcastInstance hazelcastInstance;
+	private String mapName;
+	private Path directory;
+	private PartitionService partitionService;
+	private AppendOnlyLog[] logs;
+	// Values written longer ago than this are gone from the map, 0 for never
+	private long maxAgeMillis;
+
+	@Override
+	public void init(HazelcastInstance hazelcastInstance, Properties properties, String mapName) {
+		this.setUp(hazelcastInstance, mapName);
+		log.info("Map '{}' stored in '{}'", mapName, this.directory);
+	}
+
+	/**
+	 * <p>Also used by {@link LocalKeys} and {@link LocalValues} to reach the
+	 * same files on the member they run on, without touching the map, as
+	 * that would wait for the load they are part of.
+	 * </p>
+	 */
+	private FileMapStore setUp(HazelcastInstance hazelcastInstance, String mapName) {
+		MapConfig mapConfig = hazelcastInstance.getConfig().findMapConfig(mapName);
+		String directory = mapConfig.getMapStoreConfig().getProperty(DIRECTORY_PROPERTY);
+		if (directory == null || directory.isEmpty()) {
+			directory = DEFAULT_DIRECTORY;
+		}
+		Address address = hazelcastInstance.getCluster().getLocalMember().getAddress();
+
+		this.hazelcastInstance = hazelcastInstance;
+		this.mapName = mapName;
+		this.directory = Paths.get(directory, address.getHost() + "-" + address.getPort(), mapName);
+		this.partitionService = hazelcastInstance.getPartitionService();
+		this.logs = new AppendOnlyLog[this.partitionService.getPartitions().size()];
+		this.maxAgeMillis = 1000L * Math.max(mapConfig.getTimeToLiveSeconds(), mapConfig.getMaxIdleSeconds());
+		return this;
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	@Override
+	public void store(String key, Object value) {
+		this.storeAll(Collections.singletonMap(key, value));
+	}
+
+	/**
+	 * <p>Serialize with the time, split by partition, and append each
+	 * partition's share as one batch.
+	 * </p>
+	 */
+	@Override
+	public void storeAll(Map<String, Object> map) {
+		long now = System.currentTimeMillis();
+		Map<Integer, Map<String, byte[]>> byPartition = new HashMap<>();
+		for (Map.Entry<String, Object> entry : map.entrySet()) {
+			byPartition.computeIfAbsent(this.partitionId(entry.getKey()), k -> new LinkedHashMap<>())
+				.put(entry.getKey(), serialize(entry.getValue(), now));
+		}
+		this.append(byPartition);
+	}
+
+	@Override
+	public void delete(String key) {
+		this.deleteAll(Collections.singletonList(key));
+	}
+
+	/**
+	 * <p>Stored as the time with no value, so it outranks an older copy
+	 * on another member.
+	 * </p>
+	 */
+	@Override
+	public void deleteAll(Collection<String> keys) {
+		byte[] deleted = ByteBuffer.allocate(Long.BYTES).putLong(System.currentTimeMillis()).array();
+		Map<Integer, Map<String, byte[]>> byPartition = new HashMap<>();
+		for (String key : keys) {
+			byPartition.computeIfAbsent(this.partitionId(key), k -> new LinkedHashMap<>()).put(key, deleted);
+		}
+		this.append(byPartition);
+	}
+
+	/**
+	 * <p>From this member's files only, see the class comment.
+	 * </p>
+	 */
+	@Override
+	public Object load(String key) {
+		byte[] value = this.localValues(Collections.singletonList(key)).get(key);
+		return (value == null || isDeleted(value) ? null : deserialize(value));
+	}
+
+	/**
+	 * <p>The newest copy of each key from any member, kept locally
+	 * if it came from elsewhere.
+	 * </p>
+	 */
+	@Override
+	public Map<String, Object> loadAll(Collection<String> keys) {
+		List<String> wanted = new ArrayList<>(keys);
+		Map<String, byte[]> local = this.localValues(wanted);
+
+		Map<String, byte[]> newest = new HashMap<>(local);
+		for (Map<String, byte[]> remote : this.fromOtherMembers(new LocalValues(this.mapName, wanted))) {
+			for (Map.Entry<String, byte[]> entry : remote.entrySet()) {
+				newest.merge(entry.getKey(), entry.getValue(), (a, b) -> (time(a) >= time(b) ? a : b));
+			}
+		}
+
+		Map<Integer, Map<String, byte[]>> copies = new HashMap<>();
+		Map<String, Object> result = new HashMap<>();
+		for (Map.Entry<String, byte[]> entry : newest.entrySet()) {
+			// The same array if this member's copy won
+			if (entry.getValue() != local.get(entry.getKey())) {
+				copies.computeIfAbsent(this.partitionId(entry.getKey()), k -> new LinkedHashMap<>())
+					.put(entry.getKey(), entry.getValue());
+			}
+			if (!isDeleted(entry.getValue())) {
+				result.put(entry.getKey(), deserialize(entry.getValue()));
+			}
+		}
+		this.append(copies);
+		return result;
+	}
+
+	/**
+	 * <p>Every key in every member's files. Some may turn out to be deleted
+	 * or expired, {@link #loadAll(Collection)} leaves those out.
+	 * </p>
+	 */
+	@Override
+	public Iterable<String> loadAllKeys() {
+		long start = System.currentTimeMillis();
+		Set<String> keys = this.localKeys();
+		for (Set<String> remote : this.fromOtherMembers(new LocalKeys(this.mapName))) {
+			keys.addAll(remote);
+		}
+		log.info("'{}' has {} keys on {} members, indexed in {}ms", this.mapName, keys.size(),
+				this.hazelcastInstance.getCluster().getMembers().size(), System.currentTimeMillis() - start);
+		return keys;
+	}
+
+	/**
+	 * <p>Index every partition's file, in parallel. A partition with
+	 * nothing stored has no file.
+	 * </p>
+	 */
+	private Set<String> localKeys() {
+		return IntStream.range(0, this.logs.length).parallel()
+				.filter(this::exists)
+				.mapToObj(partitionId -> this.log(partitionId).keys())
+				.flatMap(Set::stream)
+				.collect(Collectors.toCollection(HashSet::new));
+	}
+
+	/**
+	 * <p>Values, with their times, held in this member's files. Deletes are
+	 * included, to outrank older copies elsewhere. Expired ones are not, and
+	 * are removed from the file, as any copy elsewhere is older still.
+	 * </p>
+	 */
+	private Map<String, byte[]> localValues(Collection<String> keys) {
+		Map<Integer, List<String>> byPartition = keys.stream()
+				.collect(Collectors.groupingBy(this::partitionId));
+
+		long now = System.currentTimeMillis();
+		Map<String, byte[]> result = new HashMap<>();
+		Map<Integer, Map<String, byte[]>> expired = new HashMap<>();
+		for (Map.Entry<Integer, List<String>> entry : byPartition.entrySet()) {
+			if (!this.exists(entry.getKey())) {
+				continue;
+			}
+			for (Map.Entry<String, byte[]> loaded : this.log(entry.getKey()).getAll(entry.getValue()).entrySet()) {
+				if (this.isExpired(loaded.getValue(), now)) {
+					expired.computeIfAbsent(entry.getKey(), k -> new LinkedHashMap<>()).put(loaded.getKey(), null);
+				} else {
+					result.put(loaded.getKey(), loaded.getValue());
+				}
+			}
+		}
+		if (!expired.isEmpty()) {
+			this.append(expired);
+			log.info("'{}' dropped {} expired", this.directory,
+					expired.values().stream().mapToInt(Map::size).sum());
+		}
+		return result;
+	}
+
+	/**
+	 * <p>Run on every other member and wait for all the answers. Not on the
+	 * partition thread, Hazelcast loads on its own threads.
+	 * </p>
+	 */
+	private <T> List<T> fromOtherMembers(Callable<T> callable) {
+		List<Member> members = this.hazelcastInstance.getCluster().getMembers().stream()
+				.filter(member -> !member.localMember())
+				.collect(Collectors.toList());
+		if (members.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		IExecutorService executorService = this.hazelcastInstance.getExecutorService(FileMapStore.class.getSimpleName());
+		List<T> result = new ArrayList<>();
+		try {
+			for (Future<T> future : executorService.submitToMembers(callable, members).values()) {
+				result.add(future.get());
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IllegalStateException("Map '" + this.mapName + "' loading from other members", e);
+		}
+		return result;
+	}
+
+	private void append(Map<Integer, Map<String, byte[]>> byPartition) {
+		try {
+			for (Map.Entry<Integer, Map<String, byte[]>> entry : byPartition.entrySet()) {
+				this.log(entry.getKey()).append(entry.getValue());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private int partitionId(String key) {
+		return this.partitionService.getPartition(key).getPartitionId();
+	}
+
+	private boolean exists(int partitionId) {
+		return this.logs[partitionId] != null || Files.exists(this.file(partitionId));
+	}
+
+	private Path file(int partitionId) {
+		return this.directory.resolve(partitionId + ".log");
+	}
+
+	/**
+	 * <p>Opened on first use, as a member only writes the partitions it owns.
+	 * </p>
+	 */
+	private synchronized AppendOnlyLog log(int partitionId) {
+		if (this.logs[partitionId] == null) {
+			this.logs[partitionId] = AppendOnlyLog.open(this.file(partitionId));
+		}
+		return this.logs[partitionId];
+	}
+
+	/**
+	 * @param value Stored value, time written first
+	 * @param now Current time
+	 * @return If the map would no longer have it
+	 */
+	private boolean isExpired(byte[] value, long now) {
+		return this.maxAgeMillis > 0 && now - time(value) > this.maxAgeMillis;
+	}
+
+	private static long time(byte[] value) {
+		return ByteBuffer.wrap(value).getLong();
+	}
+
+	private static boolean isDeleted(byte[] value) {
+		return value.length == Long.BYTES;
+	}
+
+	private static byte[] serialize(Object value, long time) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(ByteBuffer.allocate(Long.BYTES).putLong(time).array(), 0, Long.BYTES);
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(value);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] value) {
+		try (ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(value, Long.BYTES, value.length - Long.BYTES))) {
+			return in.readObject();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * <p>The keys in one member's files for a map.
+	 * </p>
+	 */
+	@SuppressWarnings("serial")
+	static class LocalKeys implements Callable<Set<String>>, HazelcastInstanceAware, Serializable {
+		private final String mapName;
+		private transient HazelcastInstance hazelcastInstance;
+
+		LocalKeys(String mapName) {
+			this.mapName = mapName;
+		}
+
+		@Override
+		public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+			this.hazelcastInstance = hazelcastInstance;
+		}
+
+		@Override
+		public Set<String> call() {
+			return new FileMapStore().setUp(this.hazelcastInstance, this.mapName).localKeys();
+		}
+	}
+
+	/**
+	 * <p>The values, with their times, in one member's files for some keys of a map.
+	 * </p>
+	 */
+	@SuppressWarnings("serial")
+	static class LocalValues implements Callable<Map<String, byte[]>>, HazelcastInstanceAware, Serializable {
+		private final String mapName;
+		private final List<String> keys;
+		private transient HazelcastInstance hazelcastInstance;
+
+		LocalValues(String mapName, List<String> keys) {
+			this.mapName = mapName;
+			this.keys = keys;
+		}
+
+		@Override
+		public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+			this.hazelcastInstance = hazelcastInstance;
+		}
+
+		@Override
+		public Map<String, byte[]> call() {
+			return new FileMapStore().setUp(this.hazelcastInstance, this.mapName).localValues(this.keys);
+		}
+	}
+}
@@ -21,6 +21,9 @@ import lombok.extern.slf4j.Slf4j;
  * or "{@code EntryEvictedListener}". This code example doens't use eviction or
  * expiry, so the events wouldn't be created and so not logged.
  * </p>
+ * <p>For a record of changes that can be replayed, rather than read,
+ * see {@link ChangeCaptureListener}.
+ * </p>
  */
 @SuppressWarnings("rawtypes")
 @Slf4j
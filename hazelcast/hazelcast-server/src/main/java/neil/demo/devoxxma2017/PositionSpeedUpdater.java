@@ -0,0 +1,135 @@
+package neil.demo.devoxxma2017;
+
+import java.util.Map;
+
+import com.hazelcast.core.ExecutionCallback;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+import com.hazelcast.map.EntryBackupProcessor;
+import com.hazelcast.map.EntryProcessor;
+
+import lombok.extern.slf4j.Slf4j;
+import neil.demo.devoxxma2017.Gpx.TrkPt;
+
+/**
+ * <p>Save a point to the "{@code position}" map and work out the speed
+ * from the point it replaces, in one step where the point is stored.
+ * </p>
+ * <p>This is the alternative to running {@link neil.demo.devoxxma2017.jet.Speedo Speedo},
+ * for when a speed from each pair of points is enough and windows aren't
+ * needed. The previous point is the old value of the entry, already on
+ * the partition thread, so there is no journal to read, no job and no
+ * network hop.
+ * </p>
+ * <p>The speed is saved by a {@link SpeedUpdater} sent to the "{@code speed}"
+ * map for the same key. The same key is in the same partition whichever
+ * map it is in, so this is queued for the same partition thread on the
+ * same member, and no network hop. It is sent without waiting, as
+ * waiting for a map operation would block the partition thread, and
+ * comes after this processor finishes so one person's speeds are saved
+ * in order.
+ * </p>
+ * <pre>
+ *      old point ----+
+ *                    |--- metres / seconds ---> "speed"
+ *      new point ----+
+ *          |
+ *          +--------------------------------> "position"
+ * </pre>
+ * <p>Only a newer point replaces the stored one, so a point arriving late
+ * is dropped rather than producing a negative time and moving the person
+ * backwards. A point less than {@link Constants#MIN_SPEED_STEP_MILLIS}
+ * after the one it replaces is saved but gives no speed, the time is
+ * too short to divide by.
+ * </p>
+ * <p>The speed is a single pair of points, so is noisier than the
+ * smoothed speeds the Jet jobs produce.
+ * </p>
+ * <p>The backup copy only saves the point.
+ * </p>
+ */
+@SuppressWarnings("serial")
+@Slf4j
+public class PositionSpeedUpdater implements EntryProcessor<String, TrkPt>, HazelcastInstanceAware {
+
+	private static final ExecutionCallback<Object> SPEED_CALLBACK = new ExecutionCallback<Object>() {
+		@Override
+		public void onResponse(Object response) {
+		}
+		@Override
+		public void onFailure(Throwable t) {
+			log.error("SpeedUpdater", t);
+		}
+	};
+
+	private final TrkPt trkPt;
+	private transient HazelcastInstance hazelcastInstance;
+
+	public PositionSpeedUpdater(TrkPt trkPt) {
+		this.trkPt = trkPt;
+	}
+
+	@Override
+	public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+		this.hazelcastInstance = hazelcastInstance;
+	}
+
+	/**
+	 * @return Nothing, no need to send a reply
+	 */
+	@Override
+	public Object process(Map.Entry<String, TrkPt> entry) {
+		TrkPt previous = entry.getValue();
+		if (!isNewer(previous, this.trkPt)) {
+			return null;
+		}
+		entry.setValue(this.trkPt);
+
+		if (previous == null) {
+			return null;
+		}
+		long millis = this.trkPt.getDate().getTime() - previous.getDate().getTime();
+		if (millis < Constants.MIN_SPEED_STEP_MILLIS) {
+			return null;
+		}
+		double metres = Haversine.metres(previous.getLatitude(), previous.getLongitude(),
+				this.trkPt.getLatitude(), this.trkPt.getLongitude());
+
+		Speed speed = new Speed();
+		speed.setMetresPerSecond(metres / (millis / 1000d));
+		speed.setTime(this.trkPt.getDate().getTime());
+
+		this.hazelcastInstance.<String, Speed>getMap(Constants.IMAP_NAME_SPEED)
+			.submitToKey(entry.getKey(), new SpeedUpdater(speed), SPEED_CALLBACK);
+		return null;
+	}
+
+	@Override
+	public EntryBackupProcessor<String, TrkPt> getBackupProcessor() {
+		return new Backup(this.trkPt);
+	}
+
+	private static boolean isNewer(TrkPt previous, TrkPt trkPt) {
+		return previous == null || trkPt.getDate().getTime() > previous.getDate().getTime();
+	}
+
+	/**
+	 * <p>Apply the same point to the backup, with the same test
+	 * so the two copies agree.
+	 * </p>
+	 */
+	private static class Backup implements EntryBackupProcessor<String, TrkPt> {
+		private final TrkPt trkPt;
+
+		Backup(TrkPt trkPt) {
+			this.trkPt = trkPt;
+		}
+
+		@Override
+		public void processBackup(Map.Entry<String, TrkPt> entry) {
+			if (isNewer(entry.getValue(), this.trkPt)) {
+				entry.setValue(this.trkPt);
+			}
+		}
+	}
+}
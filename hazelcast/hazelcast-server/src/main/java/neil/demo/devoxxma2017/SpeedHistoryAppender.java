@@ -0,0 +1,41 @@
+package neil.demo.devoxxma2017;
+
+import java.util.Map;
+
+import com.hazelcast.map.AbstractEntryProcessor;
+
+/**
+ * <p>Add one speed to a person's {@link SpeedHistory}, where the history
+ * is stored.
+ * </p>
+ * <p>As for {@link TrailAppender}, only the speed travels rather than the
+ * whole history twice, and updates for one person are applied one at a
+ * time. The "{@code history}" map holds values in object form, so the
+ * history is changed in place. The same processor is run on the backup copy.
+ * </p>
+ */
+@SuppressWarnings("serial")
+public class SpeedHistoryAppender extends AbstractEntryProcessor<String, SpeedHistory> {
+
+	private final Speed speed;
+
+	public SpeedHistoryAppender(Speed speed) {
+		this.speed = speed;
+	}
+
+	/**
+	 * @return Nothing, no need to send a reply
+	 */
+	@Override
+	public Object process(Map.Entry<String, SpeedHistory> entry) {
+		SpeedHistory speedHistory = entry.getValue();
+		if (speedHistory == null) {
+			speedHistory = new SpeedHistory();
+		}
+		if (speedHistory.add(this.speed)) {
+			// Needed even though changed in place, to mark the entry as updated
+			entry.setValue(speedHistory);
+		}
+		return null;
+	}
+}
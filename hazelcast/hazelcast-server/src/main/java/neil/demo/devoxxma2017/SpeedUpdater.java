@@ -0,0 +1,38 @@
+package neil.demo.devoxxma2017;
+
+import java.util.Map;
+
+import com.hazelcast.map.AbstractEntryProcessor;
+
+/**
+ * <p>Save a speed to the "{@code speed}" map, unless the speed already
+ * there is for a later time.
+ * </p>
+ * <p>Sent by {@link PositionSpeedUpdater} for the same key, so it runs
+ * on the same partition. Speeds for one person are queued there in the
+ * order their points were saved, the time check is so that holds even if
+ * a speed is sent again after a retry or migration. The same processor
+ * is run on the backup copy.
+ * </p>
+ */
+@SuppressWarnings("serial")
+public class SpeedUpdater extends AbstractEntryProcessor<String, Speed> {
+
+	private final Speed speed;
+
+	public SpeedUpdater(Speed speed) {
+		this.speed = speed;
+	}
+
+	/**
+	 * @return Nothing, no need to send a reply
+	 */
+	@Override
+	public Object process(Map.Entry<String, Speed> entry) {
+		Speed previous = entry.getValue();
+		if (previous == null || this.speed.getTime() >= previous.getTime()) {
+			entry.setValue(this.speed);
+		}
+		return null;
+	}
+}
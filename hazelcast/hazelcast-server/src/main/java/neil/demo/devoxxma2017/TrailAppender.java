@@ -0,0 +1,53 @@
+package neil.demo.devoxxma2017;
+
+import java.util.Map;
+
+import com.hazelcast.map.AbstractEntryProcessor;
+
+/**
+ * <p>Add one point to a person's {@link Trail}, where the trail is stored.
+ * </p>
+ * <p>A get then a put would send the whole trail across the network
+ * twice to add one point, and could lose a point if two updates for
+ * the same person overlapped. An entry processor is sent to the partition
+ * that owns the key and runs on the partition thread, so only the point
+ * travels and updates for one key are applied one at a time.
+ * </p>
+ * <p>The "{@code trail}" map holds values in object form, so the trail is
+ * changed in place rather than deserialized and serialized for each point.
+ * The same processor is run on the backup copy.
+ * </p>
+ */
+@SuppressWarnings("serial")
+public class TrailAppender extends AbstractEntryProcessor<String, Trail> {
+
+	private final int capacity;
+	private final long time;
+	private final double latitude;
+	private final double longitude;
+	private final double elevation;
+
+	public TrailAppender(int capacity, long time, double latitude, double longitude, double elevation) {
+		this.capacity = capacity;
+		this.time = time;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.elevation = elevation;
+	}
+
+	/**
+	 * @return Nothing, no need to send a reply
+	 */
+	@Override
+	public Object process(Map.Entry<String, Trail> entry) {
+		Trail trail = entry.getValue();
+		if (trail == null) {
+			trail = new Trail(this.capacity);
+		}
+		if (trail.add(this.time, this.latitude, this.longitude, this.elevation)) {
+			// Needed even though changed in place, to mark the entry as updated
+			entry.setValue(trail);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,77 @@
+package neil.demo.devoxxma2017.jet;
+
+import com.hazelcast.jet.core.WatermarkPolicy;
+
+/**
+ * <p>A watermark policy where the lag behind the newest point seen
+ * follows how out-of-order the points actually are.
+ * </p>
+ * <p>{@link com.hazelcast.jet.core.WatermarkPolicies#withFixedLag(long) withFixedLag(0)}
+ * drops every point that arrives after a newer one, and a fixed lag big enough
+ * for the worst mobile network delays every window for everyone by that much.
+ * </p>
+ * <p>Instead, when a point arrives older than the newest, the lag grows to
+ * cover it, so the next point that far out of order is kept. As time moves on
+ * without such points, the lag shrinks back by a small fraction of each advance.
+ * The lag stays between "{@code minLagMillis}" and "{@code maxLagMillis}".
+ * </p>
+ * <p>The point that shows the disorder may itself be too late, as the
+ * watermark has already passed it. The watermark never goes backwards,
+ * even when the lag grows.
+ * </p>
+ */
+public class AdaptiveLagPolicy implements WatermarkPolicy {
+
+	// Shrink the lag by 1% of each advance of the newest point
+	private static final double DECAY = 0.01;
+
+	private final long minLagMillis;
+	private final long maxLagMillis;
+
+	private double lagMillis;
+	private long maxDisorderMillis;
+	private long watermark = Long.MIN_VALUE;
+	private long top = Long.MIN_VALUE;
+
+	public AdaptiveLagPolicy(long minLagMillis, long maxLagMillis) {
+		if (minLagMillis < 0 || maxLagMillis < minLagMillis) {
+			throw new IllegalArgumentException("Lag bounds " + minLagMillis + " to " + maxLagMillis);
+		}
+		this.minLagMillis = minLagMillis;
+		this.maxLagMillis = maxLagMillis;
+		this.lagMillis = minLagMillis;
+	}
+
+	@Override
+	public long reportEvent(long timestamp) {
+		if (this.top == Long.MIN_VALUE) {
+			this.top = timestamp;
+		} else {
+			if (timestamp > this.top) {
+				this.lagMillis = Math.max(this.minLagMillis, this.lagMillis - DECAY * (timestamp - this.top));
+				this.top = timestamp;
+			} else {
+				long disorder = this.top - timestamp;
+				this.maxDisorderMillis = Math.max(this.maxDisorderMillis, disorder);
+				this.lagMillis = Math.min(this.maxLagMillis, Math.max(this.lagMillis, disorder));
+			}
+		}
+
+		this.watermark = Math.max(this.watermark, this.top - (long) this.lagMillis);
+		return this.watermark;
+	}
+
+	@Override
+	public long getCurrentWatermark() {
+		return this.watermark;
+	}
+
+	public long getLagMillis() {
+		return (long) this.lagMillis;
+	}
+
+	public long getMaxDisorderMillis() {
+		return this.maxDisorderMillis;
+	}
+
+}
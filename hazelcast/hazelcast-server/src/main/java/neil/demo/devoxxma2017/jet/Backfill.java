@@ -0,0 +1,148 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.util.Map;
+
+import com.hazelcast.jet.core.DAG;
+import com.hazelcast.jet.core.Edge;
+import com.hazelcast.jet.core.Vertex;
+import com.hazelcast.jet.core.processor.Processors;
+import com.hazelcast.jet.function.DistributedFunctions;
+
+import neil.demo.devoxxma2017.Constants;
+import neil.demo.devoxxma2017.Gpx.TrkPt;
+
+/**
+ * <p>Recompute speeds for a past time range from Kafka, for when the speed
+ * logic has changed and history needs redoing.
+ * </p>
+ */
+public class Backfill {
+
+	/**
+	 * <p>A batch job, it reads a fixed range and ends. The live jobs are
+	 * left alone, they keep reading and writing as before, and the results
+	 * go to a map of their own.
+	 * </p>
+	 * <p>The processing graph looks like this, from top to bottom:
+	 * </p>
+	 * <pre>
+	 *              +----------+
+	 *              |1  Kafka  |
+	 *              |  Range   |
+	 *              |  "gpx"   |
+	 *              +----------+
+	 *                    |
+	 *                    |
+	 *                    |
+	 *              +----------+
+	 *              |2  Drop   |
+	 *              | Repeated |
+	 *              |  Points  |
+	 *              +----------+
+	 *                    |
+	 *                    |
+	 *                    |
+	 *              +----------+
+	 *              |3  Time   |
+	 *              |  Stamp   |
+	 *              |          |
+	 *              +----------+
+	 *                    |
+	 *                    |
+	 *                    |
+	 *              +----------+
+	 *              |4  Track  |
+	 *              |  Speed   |
+	 *              |          |
+	 *              +----------+
+	 *                    |
+	 *                    |
+	 *                    |
+	 *              +----------+
+	 *              |5  IMap   |
+	 *              |"backfill"|
+	 *              |  Append  |
+	 *              +----------+
+	 * </pre>
+	 * <ol>
+	 * <li><b>Step 1</b>
+	 * <p>A {@link KafkaRangeSource}, reading the "{@code gpx}" topic from
+	 * the offsets for "{@code from}" to the offsets for "{@code to}" on each
+	 * partition, as fast as it can, then completing. One per JVM, as for
+	 * {@link ReadKafka}.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 2</b>
+	 * <p>The same {@link PositionFilter} as {@link ReadKafka}, so the speeds
+	 * are worked out from the same points the live jobs see in the
+	 * "{@code position}" map. Only its first output is used.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 3</b>
+	 * <p>Reduce each point to what the live jobs take from the journal, see
+	 * {@link PositionJournal#toTimestampedPoint(String, TrkPt)}.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 4</b>
+	 * <p>The same {@link SpeedoTracker} as {@link IncrementalSpeedo}, a speed
+	 * for every point. Change this, and the backfill gives the new speeds.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 5</b>
+	 * <p>A {@link SpeedHistorySink} into the "{@code backfill}" map rather
+	 * than "{@code history}", keyed "{@code version@person}". Each run is
+	 * given a version, so runs can be compared with each other and with the
+	 * live history before any is trusted. A run is there for a day after
+	 * it ends, the map's time to live, unless rerun with the same version.
+	 * </p>
+	 * </li>
+	 * </ol>
+	 * <p>The edges into steps 2 and 4 are partitioned by the key, as all
+	 * points for a person must go to the same filter and tracker. Neither is
+	 * distributed, Kafka partitions by the same key.
+	 * </p>
+	 *
+	 * @param bootstrapServers Kafka servers list
+	 * @param from Earliest Kafka timestamp, milliseconds since 1970
+	 * @param to Latest Kafka timestamp, exclusive
+	 * @param version Prefix for the keys written
+	 * @param epsilonMetres Movement below this is treated as stationary
+	 * @param heartbeatMillis Keep a stationary point if this long since the last kept
+	 * @param reorderMillis How far behind the latest point a point can be and still be used
+	 * @param smoothingPoints How many points to calculate the speed over
+	 * @param maxIdleMillis Forget someone with no points for this long
+	 * @param maxKeys Most people each filter and tracker remembers
+	 * @return A DAG to run as a job
+	 */
+	public static DAG build(String bootstrapServers, long from, long to, String version,
+			double epsilonMetres, long heartbeatMillis, long reorderMillis, int smoothingPoints,
+			long maxIdleMillis, int maxKeys) {
+		DAG dag = new DAG();
+
+		Vertex step1 = dag.newVertex("kafkaRange",
+				KafkaRangeSource.<String, TrkPt>supplier(ReadKafka.kafkaProperties(bootstrapServers),
+						Constants.TOPIC_NAME_GPX, from, to))
+				.localParallelism(1);
+
+		Vertex step2 = dag.newVertex("positionFilter",
+				() -> new PositionFilter(epsilonMetres, heartbeatMillis, maxIdleMillis, maxKeys));
+
+		Vertex step3 = dag.newVertex("timestamp",
+				Processors.mapP((Map.Entry<String, TrkPt> entry) ->
+					PositionJournal.toTimestampedPoint(entry.getKey(), entry.getValue())));
+
+		Vertex step4 = dag.newVertex("tracker",
+				() -> new SpeedoTracker(reorderMillis, smoothingPoints, maxIdleMillis, maxKeys));
+
+		Vertex step5 = dag.newVertex("backfillSink",
+				() -> new SpeedHistorySink(Constants.IMAP_NAME_BACKFILL, version + Constants.BACKFILL_VERSION_SEPARATOR));
+
+		dag.edge(Edge.between(step1, step2).partitioned(DistributedFunctions.entryKey()));
+		dag.edge(Edge.between(step2, step3));
+		dag.edge(Edge.between(step3, step4).partitioned(DistributedFunctions.entryKey()));
+		dag.edge(Edge.between(step4, step5));
+
+		return dag;
+	}
+
+}
@@ -0,0 +1,24 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.io.Serializable;
+
+import lombok.Data;
+
+/**
+ * <p>A point for one person, sent to one grid cell, for {@link Proximity}.
+ * </p>
+ * <p>The point goes to the cell it is in, its "<i>home</i>", and also to
+ * any other cells close enough that someone there might be near it.
+ * </p>
+ */
+@Data
+@SuppressWarnings("serial")
+public class CellVisit implements Serializable {
+
+	private final String rider;
+	private final double latitude;
+	private final double longitude;
+	private final long time;
+	private final boolean home;
+
+}
@@ -0,0 +1,73 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.io.Serializable;
+
+import com.hazelcast.jet.datamodel.TimestampedEntry;
+
+import lombok.Data;
+import neil.demo.devoxxma2017.HeatTile;
+
+/**
+ * <p>A <i>reduction</i> of the points in a map tile to a count and an
+ * average speed, for {@link Heatmap}.
+ * </p>
+ * <p>Everything is a sum, so as well as combining, one accumulator can be
+ * deducted from another. When a sliding window moves on, Jet adds the new
+ * frame and deducts the frame that dropped off the end, rather than adding
+ * up every frame in the window again.
+ * </p>
+ * <p>Not every point has a speed, the first for a person doesn't, so
+ * points and points with speeds are counted separately.
+ * </p>
+ */
+@Data
+@SuppressWarnings("serial")
+public class HeatTileAggregation implements Serializable {
+
+	private long points;
+	private long speedPoints;
+	private double speedSum;
+
+	/**
+	 * @param input A point's tile and its speed, or NaN if none
+	 * @return
+	 */
+	public HeatTileAggregation accumulate(TimestampedEntry<String, Double> input) {
+		this.points++;
+		if (!input.getValue().isNaN()) {
+			this.speedPoints++;
+			this.speedSum += input.getValue();
+		}
+		return this;
+	}
+
+	public HeatTileAggregation combine(HeatTileAggregation that) {
+		this.points += that.points;
+		this.speedPoints += that.speedPoints;
+		this.speedSum += that.speedSum;
+		return this;
+	}
+
+	public HeatTileAggregation deduct(HeatTileAggregation that) {
+		this.points -= that.points;
+		this.speedPoints -= that.speedPoints;
+		this.speedSum -= that.speedSum;
+		// Don't let rounding leave a remainder once all are gone
+		if (this.speedPoints == 0) {
+			this.speedSum = 0;
+		}
+		return this;
+	}
+
+	/**
+	 * @return The count and average, timed by Jet's window
+	 */
+	public HeatTile finish() {
+		HeatTile heatTile = new HeatTile();
+		heatTile.setPoints(this.points);
+		if (this.speedPoints > 0) {
+			heatTile.setMetresPerSecond(Math.max(0d, this.speedSum / this.speedPoints));
+		}
+		return heatTile;
+	}
+}
@@ -0,0 +1,240 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.hazelcast.jet.Util;
+import com.hazelcast.jet.aggregate.AggregateOperation;
+import com.hazelcast.jet.aggregate.AggregateOperation1;
+import com.hazelcast.jet.core.DAG;
+import com.hazelcast.jet.core.Edge;
+import com.hazelcast.jet.core.TimestampKind;
+import com.hazelcast.jet.core.Vertex;
+import com.hazelcast.jet.core.WatermarkEmissionPolicy;
+import com.hazelcast.jet.core.WindowDefinition;
+import com.hazelcast.jet.core.processor.Processors;
+import com.hazelcast.jet.core.processor.SinkProcessors;
+import com.hazelcast.jet.datamodel.TimestampedEntry;
+import com.hazelcast.jet.function.DistributedFunctions;
+import com.hazelcast.jet.function.DistributedToLongFunction;
+
+import neil.demo.devoxxma2017.Constants;
+import neil.demo.devoxxma2017.HeatTile;
+
+/**
+ * <p>A live heatmap, how many points there have been recently in each
+ * map tile and how fast they were going, at several zoom levels.
+ * </p>
+ */
+public class Heatmap {
+
+	private static final boolean START_FROM_LATEST = false;
+
+	/**
+	 * <p>Each point is counted into one tile at each zoom level wanted, so
+	 * the result is a "<i>pyramid</i>" of tiles, few and coarse at the top,
+	 * many and fine at the bottom. A map display fetches only the tiles
+	 * on screen at its current zoom, however many points made them.
+	 * </p>
+	 * <p>The counts are over a sliding window, so a busy tile cools down
+	 * once people leave it. Each slide, every tile with points in the window
+	 * is replaced.
+	 * </p>
+	 * <p>The processing graph looks like this, from top to bottom:
+	 * </p>
+	 * <pre>
+	 *              +----------+
+	 *              |1  IMap   |
+	 *              |"position"|
+	 *              |  Journal |
+	 *              +----------+
+	 *                    |
+	 *                    |
+	 *                    |
+	 *              +----------+
+	 *              |2         |
+	 *              | Punctuate|
+	 *              |          |
+	 *              +----------+
+	 *                    |
+	 *                    |
+	 *                    |
+	 *              +----------+
+	 *              |3  Tiles  |
+	 *              | & Speed  |
+	 *              |          |
+	 *              +----------+
+	 *                    |
+	 *                    |
+	 *                    |
+	 *              +----------+
+	 *              |4  Frame  |
+	 *              |Accumulate|
+	 *              |          |
+	 *              +----------+
+	 *                    |
+	 *                    |
+	 *                    |
+	 *              +----------+
+	 *              |5 Window  |
+	 *              | Combine  |
+	 *              |          |
+	 *              +----------+
+	 *                    |
+	 *                    |
+	 *                    |
+	 *              +----------+
+	 *              |6  Stamp  |
+	 *              |   Time   |
+	 *              |          |
+	 *              +----------+
+	 *                    |
+	 *                    |
+	 *                    |
+	 *              +----------+
+	 *              |7  IMap   |
+	 *              |"heatmap" |
+	 *              |   Sink   |
+	 *              +----------+
+	 * </pre>
+	 * <ol>
+	 * <li><b>Step 1</b>
+	 * <p>The same source as {@link Speedo}, see {@link PositionJournal}.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 2</b>
+	 * <p>Watermarks, the same as for {@link Speedo}, see {@link SpeedoPunctuator}.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 3</b>
+	 * <p>A {@link HeatmapTiler} works out the speed since the person's last
+	 * point and passes it on once for each zoom level, keyed by the tile.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 4</b>
+	 * <p>The first half of a "<i>reduction</i>" by tile, see {@link HeatTileAggregation}.
+	 * Each instance accumulates a frame's worth for the tiles its people are in.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 5</b>
+	 * <p>The second half, combining frames from every instance into windows.
+	 * As the window slides, the oldest frame is deducted and the newest added,
+	 * so the cost doesn't depend on how many frames the window has.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 6</b>
+	 * <p>A "<i>projection</i>", putting the window end into the
+	 * {@link neil.demo.devoxxma2017.HeatTile HeatTile}.
+	 * </p>
+	 * <p>Once a tile's points have all been deducted, Jet still has an
+	 * accumulator for it and produces an empty result, which is dropped here.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 7</b>
+	 * <p>A "<i>sink</i>", the "{@code heatmap}" map, keyed by tile name. A tile
+	 * with no points in the window isn't written, the map's own expiry
+	 * removes it.
+	 * </p>
+	 * </li>
+	 * </ol>
+	 * <p><b>Note:</b> The edge into step 3 is partitioned by person and the
+	 * edge into step 4 by tile, neither distributed, so each JVM does as much
+	 * as it can with the points it has. Only the edge into step 5 is distributed,
+	 * so one frame's worth per tile per JVM crosses the network, not every point.
+	 * </p>
+	 *
+	 * @param zooms Zoom levels, see {@link #zooms(String)}
+	 * @param window Window length and slide in seconds, such as "{@code 300/60}"
+	 * @param minLagMillis Least the watermark is held back
+	 * @param maxLagMillis Most the watermark is held back
+	 * @param maxIdleMillis How long before someone with no points is forgotten
+	 * @param maxKeys Most people each processor remembers
+	 * @return
+	 */
+	public static DAG build(String zooms, String window, long minLagMillis, long maxLagMillis,
+			long maxIdleMillis, int maxKeys) {
+		DAG dag = new DAG();
+
+		List<Integer> zoomLevels = zooms(zooms);
+		WindowDefinition windowDefinition = Speedo.windowDefinitions(window).get(0);
+
+		AggregateOperation1<TimestampedEntry<String,Double>, HeatTileAggregation, HeatTile> heatTileAggregation
+					= AggregateOperation
+				.withCreate(HeatTileAggregation::new)
+				.andAccumulate(HeatTileAggregation::accumulate)
+				.andCombine(HeatTileAggregation::combine)
+				.andDeduct(HeatTileAggregation::deduct)
+				.andFinish(HeatTileAggregation::finish);
+
+		Vertex step1 = dag.newVertex("eventJournal", PositionJournal.streamPositionP(Heatmap.class.getSimpleName(), START_FROM_LATEST));
+
+		WatermarkEmissionPolicy watermarkEmissionPolicy = WatermarkEmissionPolicy.emitByFrame(windowDefinition);
+		Vertex step2 = dag.newVertex("heatmapPunctuation",
+				() -> new SpeedoPunctuator(minLagMillis, maxLagMillis, watermarkEmissionPolicy));
+
+		Vertex step3 = dag.newVertex("tiles", () -> new HeatmapTiler(zoomLevels, maxIdleMillis, maxKeys));
+
+		Vertex step4 = dag.newVertex("accumulate",
+				Processors.accumulateByFrameP(
+						DistributedFunctions.entryKey(),
+						(DistributedToLongFunction<TimestampedEntry<?, ?>>) TimestampedEntry::getTimestamp,
+						TimestampKind.EVENT,
+						windowDefinition,
+						heatTileAggregation)
+				);
+
+		Vertex step5 = dag.newVertex("combine", Processors.combineToSlidingWindowP(windowDefinition, heatTileAggregation));
+
+		Vertex step6 = dag.newVertex("tileSummary", Processors.mapP(Heatmap::toHeatTile));
+
+		Vertex step7 = dag.newVertex("mapSink", SinkProcessors.writeMapP(Constants.IMAP_NAME_HEATMAP));
+
+		dag.edge(Edge.between(step1, step2));
+		dag.edge(Edge.between(step2, step3).partitioned(DistributedFunctions.entryKey()));
+		dag.edge(Edge.between(step3, step4).partitioned(DistributedFunctions.entryKey()));
+		dag.edge(Edge.between(step4, step5).partitioned(DistributedFunctions.entryKey()).distributed());
+		dag.edge(Edge.between(step5, step6).isolated());
+		dag.edge(Edge.between(step6, step7));
+
+		return dag;
+	}
+
+	/**
+	 * <p>Parse the zoom levels wanted, in the form "{@code 10,13,16}".
+	 * </p>
+	 *
+	 * @param zooms Comma separated list, each 0 to 30
+	 * @return Zoom levels in the same order
+	 */
+	public static List<Integer> zooms(String zooms) {
+		List<Integer> result = new ArrayList<>();
+
+		for (String zoom : zooms.split(",")) {
+			int level = Integer.parseInt(zoom.trim());
+			if (level < 0 || level > 30) {
+				throw new IllegalArgumentException("Zoom " + level + " in '" + zooms + "'");
+			}
+			result.add(level);
+		}
+
+		return result;
+	}
+
+	/**
+	 * <p>Put the window end into the tile.
+	 * </p>
+	 *
+	 * @param entry From step 5
+	 * @return An entry for the "{@code heatmap}" map, null if no points
+	 */
+	public static Map.Entry<String, HeatTile> toHeatTile(TimestampedEntry<String, HeatTile> entry) {
+		HeatTile heatTile = entry.getValue();
+		if (heatTile.getPoints() == 0) {
+			return null;
+		}
+		heatTile.setTime(entry.getTimestamp());
+		return Util.entry(entry.getKey(), heatTile);
+	}
+
+}
@@ -0,0 +1,90 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.util.List;
+
+import com.hazelcast.jet.Traverser;
+import com.hazelcast.jet.Traversers;
+import com.hazelcast.jet.core.AbstractProcessor;
+import com.hazelcast.jet.datamodel.TimestampedEntry;
+
+import neil.demo.devoxxma2017.Constants;
+import neil.demo.devoxxma2017.Haversine;
+import neil.demo.devoxxma2017.Tile;
+
+/**
+ * <p>An intermediate processor that turns each point into an entry for
+ * each zoom level's tile, with the speed since that person's previous
+ * point, for {@link Heatmap}.
+ * </p>
+ * <p>The speed needs the previous point, so the last point for each person
+ * is remembered, see {@link IdleKeys}. A point older than that one has no
+ * speed, as it is out of order, but still counts towards the tile. So does a
+ * point less than {@link Constants#MIN_SPEED_STEP_MILLIS} after it, as dividing
+ * by so little time gives nonsense, or infinity if the time is the same.
+ * The remembered point stays as it was, so the next step is long enough.
+ * </p>
+ * <p>Points for the same person must come to the same instance of this
+ * processor, so the inbound edge has to be partitioned by the key.
+ * </p>
+ */
+public class HeatmapTiler extends AbstractProcessor {
+
+	private final List<Integer> zooms;
+	private final IdleKeys<TimestampedEntry<String, Point>> lastPoint;
+	private final FlatMapper<Object, TimestampedEntry<String, Double>> flatMapper = flatMapper(this::traverser);
+
+	public HeatmapTiler(List<Integer> zooms, long maxIdleMillis, int maxKeys) {
+		this.zooms = zooms;
+		this.lastPoint = new IdleKeys<>(maxIdleMillis, maxKeys);
+	}
+
+	/**
+	 * @param ordinal 0, the only input edge
+	 * @param item A {@code TimestampedEntry<String, Point>} from the journal
+	 */
+	@Override
+	protected boolean tryProcess(int ordinal, Object item) {
+		return this.flatMapper.tryProcess(item);
+	}
+
+	/**
+	 * <p>Called when there is no input, forget anyone idle too long.
+	 * Also done for each point.
+	 * </p>
+	 */
+	@Override
+	public boolean tryProcess() {
+		this.lastPoint.expire(System.currentTimeMillis());
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Traverser<TimestampedEntry<String, Double>> traverser(Object item) {
+		TimestampedEntry<String, Point> entry = (TimestampedEntry<String, Point>) item;
+		Point point = entry.getValue();
+		long now = System.currentTimeMillis();
+
+		// Here too, as under load the inbox may never be empty
+		this.lastPoint.expire(now);
+
+		TimestampedEntry<String, Point> previous = this.lastPoint.get(entry.getKey());
+
+		double metresPerSecond = Double.NaN;
+		if (previous == null) {
+			this.lastPoint.put(entry.getKey(), entry, now);
+		} else {
+			long elapsed = entry.getTimestamp() - previous.getTimestamp();
+			if (elapsed >= Constants.MIN_SPEED_STEP_MILLIS) {
+				double metres = Haversine.metres(previous.getValue().getLatitude(), previous.getValue().getLongitude(),
+						point.getLatitude(), point.getLongitude());
+				metresPerSecond = metres / (elapsed / 1000d);
+				this.lastPoint.put(entry.getKey(), entry, now);
+			}
+		}
+
+		Double speed = metresPerSecond;
+		return Traversers.traverseIterable(this.zooms)
+				.map(zoom -> new TimestampedEntry<>(entry.getTimestamp(),
+						Tile.key(point.getLatitude(), point.getLongitude(), zoom), speed));
+	}
+}
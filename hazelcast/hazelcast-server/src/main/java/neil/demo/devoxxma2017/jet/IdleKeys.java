@@ -0,0 +1,135 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Per-key state for a keyed processor, that forgets keys which
+ * haven't been seen for a while.
+ * </p>
+ * <p>A processor that remembers something for every person it has
+ * ever seen grows forever, as people stop or switch off and new ones
+ * arrive. Here a key is removed once it hasn't been updated for
+ * "{@code maxIdleMillis}", and the least recently updated key is removed
+ * if there are ever more than "{@code maxKeys}", so memory has a ceiling.
+ * </p>
+ * <p>Keys are held in the order they were last updated, so the idle ones
+ * are always at the front. Finding them only looks at the keys that are
+ * removed, plus one, rather than at every key.
+ * </p>
+ * <p>Times are wall clock, as a key that has gone quiet produces no
+ * more events to move event time on.
+ * </p>
+ * <p>Keys removed for going over the limit are held until the next call
+ * to {@link #expire(long)}, so a processor must call it regularly while
+ * items are arriving too, not only when its inbox is empty. Under load,
+ * Jet may never find the inbox empty.
+ * </p>
+ *
+ * @param <V> State held for each key
+ */
+public class IdleKeys<V> {
+
+	private final long maxIdleMillis;
+	private final int maxKeys;
+	private final LinkedHashMap<String, Held<V>> held = new LinkedHashMap<>();
+	private final List<Map.Entry<String, V>> removed = new ArrayList<>();
+
+	public IdleKeys(long maxIdleMillis, int maxKeys) {
+		if (maxIdleMillis <= 0 || maxKeys <= 0) {
+			throw new IllegalArgumentException("maxIdleMillis " + maxIdleMillis + ", maxKeys " + maxKeys);
+		}
+		this.maxIdleMillis = maxIdleMillis;
+		this.maxKeys = maxKeys;
+	}
+
+	/**
+	 * @param key Person
+	 * @return State for the key, or null if not held
+	 */
+	public V get(String key) {
+		Held<V> h = this.held.get(key);
+		return (h == null ? null : h.value);
+	}
+
+	/**
+	 * <p>Store state for the key and mark it as just seen. If this
+	 * takes the count of keys over the limit, the least recently seen
+	 * is removed.
+	 * </p>
+	 *
+	 * @param key Person
+	 * @param value State to hold
+	 * @param now Wall clock
+	 */
+	public void put(String key, V value, long now) {
+		// Remove first, so the key goes to the back of the queue
+		this.held.remove(key);
+		this.held.put(key, new Held<>(value, now));
+
+		if (this.held.size() > this.maxKeys) {
+			Iterator<Map.Entry<String, Held<V>>> iterator = this.held.entrySet().iterator();
+			this.remove(iterator.next());
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * <p>Forget a key now. It is not handed back by {@link #expire(long)}.
+	 * </p>
+	 *
+	 * @param key Person
+	 */
+	public void remove(String key) {
+		this.held.remove(key);
+	}
+
+	/**
+	 * <p>Remove keys not seen for the idle time, and hand back these
+	 * and any removed for going over the limit since the last call.
+	 * </p>
+	 *
+	 * @param now Wall clock
+	 * @return Keys removed with their last state, oldest first. Empty if none.
+	 */
+	public List<Map.Entry<String, V>> expire(long now) {
+		Iterator<Map.Entry<String, Held<V>>> iterator = this.held.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Held<V>> eldest = iterator.next();
+			if (now - eldest.getValue().seen < this.maxIdleMillis) {
+				break;
+			}
+			this.remove(eldest);
+			iterator.remove();
+		}
+
+		if (this.removed.isEmpty()) {
+			return this.removed;
+		}
+		List<Map.Entry<String, V>> result = new ArrayList<>(this.removed);
+		this.removed.clear();
+		return result;
+	}
+
+	public int size() {
+		return this.held.size();
+	}
+
+	private void remove(Map.Entry<String, Held<V>> eldest) {
+		this.removed.add(new AbstractMap.SimpleImmutableEntry<>(eldest.getKey(), eldest.getValue().value));
+	}
+
+	private static class Held<V> {
+		private final V value;
+		private final long seen;
+
+		Held(V value, long seen) {
+			this.value = value;
+			this.seen = seen;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package neil.demo.devoxxma2017.jet;
+
+import com.hazelcast.jet.core.DAG;
+import com.hazelcast.jet.core.Edge;
+import com.hazelcast.jet.core.Vertex;
+import com.hazelcast.jet.core.processor.SinkProcessors;
+import com.hazelcast.jet.function.DistributedFunctions;
+
+import neil.demo.devoxxma2017.Constants;
+
+/**
+ * <p>An alternative to {@link Speedo}, producing a speed for every point
+ * rather than for every window.
+ * </p>
+ */
+public class IncrementalSpeedo {
+
+	private static final boolean START_FROM_LATEST = false;
+
+	/**
+	 * <p>{@link Speedo} only produces a speed when a window closes, which
+	 * is when the watermark passes the end of a frame. So a speed can
+	 * be up to a minute behind the points it is based on, and the speed
+	 * chart moves in steps.
+	 * </p>
+	 * <p>This job instead keeps a little state per person, the last few
+	 * points, and produces a new speed as each point arrives. There are
+	 * no windows, so there is no need for watermarks, and no waiting for
+	 * a frame to close. A point still has to be read from the journal
+	 * before its speed is worked out.
+	 * </p>
+	 * <p>The processing graph looks like this, from top to bottom:
+	 * </p>
+	 * <pre>
+	 *              +----------+
+	 *              |1  IMap   |
+	 *              |"position"|
+	 *              |  Journal |
+	 *              +----------+
+	 *                    |
+	 *                    |
+	 *                    |
+	 *              +----------+
+	 *              |2  Track  |
+	 *              |  Speed   |
+	 *              |          |-----> step 5, history
+	 *              +----------+
+	 *                    |
+	 *                    |
+	 *                    |
+	 *              +----------+
+	 *              |3  Change |
+	 *              |  Filter  |
+	 *              |          |
+	 *              +----------+
+	 *                    |
+	 *                    |
+	 *                    |
+	 *              +----------+
+	 *              |4  IMap   |
+	 *              |  "speed" |
+	 *              |   Sink   |
+	 *              +----------+
+	 * </pre>
+	 * <ol>
+	 * <li><b>Step 1</b>
+	 * <p>The same source as {@link Speedo}, see {@link PositionJournal}.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 2</b>
+	 * <p>A {@link SpeedoTracker} keeps the most recent points for each
+	 * person, and emits a speed over these each time a point is added.
+	 * Points arriving slightly out of order are slotted into place, points
+	 * arriving too late to matter are dropped.
+	 * </p>
+	 * <p>Someone with no points for a while is forgotten, and an offline
+	 * {@link neil.demo.devoxxma2017.Speed Speed} is emitted for them.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 3</b>
+	 * <p>A {@link SpeedChangeFilter}. A speed for every point is many more
+	 * than the chart can show, and most differ from the last by very
+	 * little, so only those that have changed enough are written.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 4</b>
+	 * <p>A "<i>sink</i>", the same "{@code speed}" map that {@link Speedo}
+	 * writes to, so the speed chart doesn't care which job is running.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 5</b>
+	 * <p>A second sink, the same {@link SpeedHistorySink} as {@link Speedo} uses.
+	 * With a speed for every point, this fills in the per second history that
+	 * {@link Speedo}'s windows are too coarse for.
+	 * </p>
+	 * </li>
+	 * </ol>
+	 * <p><b>Note:</b> There is no logger stage, unlike {@link Speedo}. A log
+	 * line per point would cost far more than calculating the speed.
+	 * </p>
+	 * <p>The edge into step 2 is partitioned by the key, so each person's
+	 * points go to the same tracker. The edge into step 3 is isolated, so
+	 * each person's speeds go to the same filter. As for {@link Speedo}, it is not
+	 * distributed, the journal for a key is read on the JVM that owns it.
+	 * </p>
+	 *
+	 * @param reorderMillis How far behind the latest point a point can be and still be used
+	 * @param smoothingPoints How many points to calculate the speed over
+	 * @param maxIdleMillis How long before someone with no points is offline
+	 * @param maxKeys Most people each tracker remembers
+	 * @param minChangeMetresPerSecond Least absolute change in speed worth writing, see {@link SpeedChangeFilter}
+	 * @param minChangeRatio Least relative change in speed worth writing
+	 * @param changeHeartbeatMillis Write anyway if this long since the last write
+	 * @return
+	 */
+	public static DAG build(long reorderMillis, int smoothingPoints, long maxIdleMillis, int maxKeys,
+			double minChangeMetresPerSecond, double minChangeRatio, long changeHeartbeatMillis) {
+		DAG dag = new DAG();
+
+		Vertex step1 = dag.newVertex("eventJournal", PositionJournal.streamPositionP(IncrementalSpeedo.class.getSimpleName(), START_FROM_LATEST));
+
+		Vertex step2 = dag.newVertex("tracker",
+				() -> new SpeedoTracker(reorderMillis, smoothingPoints, maxIdleMillis, maxKeys));
+
+		Vertex step3 = dag.newVertex("changeFilter",
+				() -> new SpeedChangeFilter(minChangeMetresPerSecond, minChangeRatio, changeHeartbeatMillis,
+						maxIdleMillis, maxKeys));
+
+		Vertex step4 = dag.newVertex("mapSink", SinkProcessors.writeMapP(Constants.IMAP_NAME_SPEED));
+
+		Vertex step5 = dag.newVertex("historySink", SpeedHistorySink::new);
+
+		dag.edge(Edge.between(step1, step2).partitioned(DistributedFunctions.entryKey()));
+		dag.edge(Edge.between(step2, step3).isolated());
+		dag.edge(Edge.between(step3, step4));
+		dag.edge(Edge.from(step2, 1).to(step5));
+
+		return dag;
+	}
+
+}
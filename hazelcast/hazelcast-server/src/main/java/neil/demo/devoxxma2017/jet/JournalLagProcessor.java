@@ -0,0 +1,303 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import com.hazelcast.core.ExecutionCallback;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.jet.core.Inbox;
+import com.hazelcast.jet.core.Outbox;
+import com.hazelcast.jet.core.Processor;
+import com.hazelcast.jet.core.ProcessorMetaSupplier;
+import com.hazelcast.jet.core.ProcessorSupplier;
+import com.hazelcast.journal.EventJournalInitialSubscriberState;
+import com.hazelcast.journal.EventJournalReader;
+import com.hazelcast.nio.Address;
+
+import lombok.extern.slf4j.Slf4j;
+import neil.demo.devoxxma2017.Constants;
+import neil.demo.devoxxma2017.JournalLag;
+
+/**
+ * <p>A wrapper round a map event journal source, publishing how far
+ * behind it is in each partition it reads, see {@link JournalLag}.
+ * </p>
+ * <p>Every {@link #PUBLISH_INTERVAL_MS} the journal's oldest and newest
+ * sequence are fetched for each partition, asynchronously so the source
+ * is never blocked, and the source's next sequence to read noted at the
+ * same time. These give the lag, and with the previous sample the write
+ * and read rates and from those the time until the reader is overrun.
+ * So what is published is one interval old.
+ * </p>
+ * <p>When the lag is {@link #WARN_RATIO} or more of the ring, that is
+ * flagged and logged as a warning. This is the signal to act, speed up the
+ * reader or make the journal bigger, see "{@code journal-retention-seconds}".
+ * Jet itself only says when events have already been lost.
+ * </p>
+ * <p>Jet 0.5 doesn't expose the source's read positions, so they are
+ * taken from its "{@code readOffsets}" field. The items the source emits
+ * don't say which partition or sequence they came from, so the positions
+ * can't be tracked here instead. If a later Jet changes that field, the
+ * job fails to start with a message saying so, rather than publishing
+ * something misleading. Only that field is used, the wrapping is done
+ * with Jet's public API.
+ * </p>
+ * <p>Each reader and partition is its own "{@code monitor}" map entry.
+ * The map's time-to-live, 60 seconds or twelve publish intervals, removes
+ * the entries for a job that has stopped.
+ * </p>
+ */
+@Slf4j
+public class JournalLagProcessor implements Processor {
+
+	private static final String PREFIX = JournalLagProcessor.class.getSimpleName() + " ";
+	private static final long PUBLISH_INTERVAL_MS = 5_000L;
+	private static final double WARN_RATIO = 0.8d;
+	private static final String READ_OFFSETS_FIELD = "readOffsets";
+
+	private final Processor processor;
+	private final String mapName;
+	private final String reader;
+	private final Map<Integer, EventJournalInitialSubscriberState> states = new ConcurrentHashMap<>();
+	private final Map<Integer, Long> requestedReadOffsets = new HashMap<>();
+	private final Map<Integer, JournalLag> previous = new HashMap<>();
+
+	private IMap<String, JournalLag> monitorMap;
+	private EventJournalReader<?> eventJournalReader;
+	private Map<Integer, Long> readOffsets;
+	private long capacity;
+	private long nextPublish;
+	private long requestTime;
+
+	public JournalLagProcessor(Processor processor, String mapName, String reader) {
+		this.processor = processor;
+		this.mapName = mapName;
+		this.reader = reader;
+	}
+
+	/**
+	 * <p>Wrap each processor a map journal source creates.
+	 * </p>
+	 *
+	 * @param source From {@code streamMapP}
+	 * @param mapName Map the journal is for
+	 * @param reader Name for the job reading it, so jobs reading the same journal are told apart
+	 * @return A source publishing its lag
+	 */
+	public static ProcessorMetaSupplier monitored(ProcessorMetaSupplier source, String mapName, String reader) {
+		return new MetaSupplier(source, mapName, reader);
+	}
+
+	@Override
+	public boolean isCooperative() {
+		return this.processor.isCooperative();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void init(Outbox outbox, Context context) {
+		HazelcastInstance hazelcastInstance = context.jetInstance().getHazelcastInstance();
+		this.monitorMap = hazelcastInstance.getMap(Constants.IMAP_NAME_MONITOR);
+		this.eventJournalReader = (EventJournalReader<?>) hazelcastInstance.getMap(this.mapName);
+		this.capacity = hazelcastInstance.getConfig().getMapEventJournalConfig(this.mapName).getCapacity()
+				/ hazelcastInstance.getPartitionService().getPartitions().size();
+		this.nextPublish = System.currentTimeMillis() + PUBLISH_INTERVAL_MS;
+
+		try {
+			Field field = this.processor.getClass().getDeclaredField(READ_OFFSETS_FIELD);
+			field.setAccessible(true);
+			this.readOffsets = (Map<Integer, Long>) field.get(this.processor);
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			String message = PREFIX + "no '" + READ_OFFSETS_FIELD + "' in " + this.processor.getClass().getName()
+					+ ", can't monitor '" + this.mapName + "' for " + this.reader;
+			log.error(message);
+			throw new IllegalStateException(message, e);
+		}
+
+		this.processor.init(outbox, context);
+	}
+
+	@Override
+	public void process(int ordinal, Inbox inbox) {
+		this.processor.process(ordinal, inbox);
+	}
+
+	@Override
+	public boolean tryProcess() {
+		return this.processor.tryProcess();
+	}
+
+	@Override
+	public boolean completeEdge(int ordinal) {
+		return this.processor.completeEdge(ordinal);
+	}
+
+	/**
+	 * <p>A source does its work here, called repeatedly.
+	 * </p>
+	 */
+	@Override
+	public boolean complete() {
+		this.publish();
+		return this.processor.complete();
+	}
+
+	@Override
+	public boolean saveToSnapshot() {
+		return this.processor.saveToSnapshot();
+	}
+
+	@Override
+	public void restoreFromSnapshot(Inbox inbox) {
+		this.processor.restoreFromSnapshot(inbox);
+	}
+
+	@Override
+	public boolean finishSnapshotRestore() {
+		return this.processor.finishSnapshotRestore();
+	}
+
+	/**
+	 * <p>Publish from the journal states fetched last time, with the read
+	 * positions as they were then, then fetch again for next time.
+	 * </p>
+	 */
+	private void publish() {
+		long now = System.currentTimeMillis();
+		if (now < this.nextPublish) {
+			return;
+		}
+		this.nextPublish = now + PUBLISH_INTERVAL_MS;
+
+		for (Map.Entry<Integer, Long> readOffset : this.readOffsets.entrySet()) {
+			int partition = readOffset.getKey();
+			EventJournalInitialSubscriberState state = this.states.remove(partition);
+			Long requestedReadOffset = this.requestedReadOffsets.put(partition, readOffset.getValue());
+			if (state != null && requestedReadOffset != null) {
+				this.publish(partition, state, requestedReadOffset, this.requestTime);
+			}
+
+			this.eventJournalReader.subscribeToEventJournal(partition).andThen(
+					new ExecutionCallback<EventJournalInitialSubscriberState>() {
+						@Override
+						public void onResponse(EventJournalInitialSubscriberState response) {
+							JournalLagProcessor.this.states.put(partition, response);
+						}
+						@Override
+						public void onFailure(Throwable t) {
+							log.debug("{} partition {}: {}", PREFIX, partition, t.getMessage());
+						}
+					});
+		}
+		this.requestTime = now;
+	}
+
+	private void publish(int partition, EventJournalInitialSubscriberState state, long readSequence, long time) {
+		JournalLag journalLag = new JournalLag();
+		journalLag.setReader(this.reader);
+		journalLag.setPartition(partition);
+		journalLag.setOldestSequence(state.getOldestSequence());
+		journalLag.setNewestSequence(state.getNewestSequence());
+		journalLag.setReadSequence(readSequence);
+		journalLag.setLag(Math.max(0, state.getNewestSequence() + 1 - readSequence));
+		journalLag.setCapacity(this.capacity);
+		journalLag.setTime(time);
+
+		JournalLag last = this.previous.put(partition, journalLag);
+		journalLag.setSecondsToOverrun(-1);
+		if (last != null && time > last.getTime()) {
+			long elapsed = time - last.getTime();
+			journalLag.setAppendsPerSecond((journalLag.getNewestSequence() - last.getNewestSequence()) * 1000 / elapsed);
+			journalLag.setReadsPerSecond((readSequence - last.getReadSequence()) * 1000 / elapsed);
+			long gaining = journalLag.getAppendsPerSecond() - journalLag.getReadsPerSecond();
+			if (gaining > 0) {
+				journalLag.setSecondsToOverrun(Math.max(0, this.capacity - journalLag.getLag()) / gaining);
+			}
+		}
+
+		journalLag.setOverrun(readSequence < state.getOldestSequence());
+		journalLag.setNearOverrun(journalLag.isOverrun() || journalLag.getLag() >= WARN_RATIO * this.capacity);
+		if (journalLag.isNearOverrun()) {
+			log.warn("{} {} {}", PREFIX, this.reader, journalLag);
+		}
+
+		this.monitorMap.setAsync("journal-" + this.reader + "-" + partition, journalLag);
+	}
+
+	/**
+	 * <p>Pass everything to the source's meta-supplier, wrapping the
+	 * suppliers it gives for each member.
+	 * </p>
+	 */
+	@SuppressWarnings("serial")
+	private static class MetaSupplier implements ProcessorMetaSupplier {
+		private final ProcessorMetaSupplier source;
+		private final String mapName;
+		private final String reader;
+
+		MetaSupplier(ProcessorMetaSupplier source, String mapName, String reader) {
+			this.source = source;
+			this.mapName = mapName;
+			this.reader = reader;
+		}
+
+		@Override
+		public int preferredLocalParallelism() {
+			return this.source.preferredLocalParallelism();
+		}
+
+		@Override
+		public void init(ProcessorMetaSupplier.Context context) {
+			this.source.init(context);
+		}
+
+		@Override
+		public Function<Address, ProcessorSupplier> get(List<Address> addresses) {
+			Function<Address, ProcessorSupplier> function = this.source.get(addresses);
+			return address -> new Supplier(function.apply(address), this.mapName, this.reader);
+		}
+	}
+
+	/**
+	 * <p>Wrap each processor the source's supplier creates on a member.
+	 * </p>
+	 */
+	@SuppressWarnings("serial")
+	private static class Supplier implements ProcessorSupplier {
+		private final ProcessorSupplier source;
+		private final String mapName;
+		private final String reader;
+
+		Supplier(ProcessorSupplier source, String mapName, String reader) {
+			this.source = source;
+			this.mapName = mapName;
+			this.reader = reader;
+		}
+
+		@Override
+		public void init(ProcessorSupplier.Context context) {
+			this.source.init(context);
+		}
+
+		@Override
+		public Collection<? extends Processor> get(int count) {
+			List<Processor> result = new ArrayList<>(count);
+			for (Processor processor : this.source.get(count)) {
+				result.add(new JournalLagProcessor(processor, this.mapName, this.reader));
+			}
+			return result;
+		}
+
+		@Override
+		public void complete(Throwable error) {
+			this.source.complete(error);
+		}
+	}
+}
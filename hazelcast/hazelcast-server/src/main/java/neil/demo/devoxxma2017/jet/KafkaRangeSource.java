@@ -0,0 +1,289 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Function;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+
+import com.hazelcast.jet.Traverser;
+import com.hazelcast.jet.Traversers;
+import com.hazelcast.jet.Util;
+import com.hazelcast.jet.core.AbstractProcessor;
+import com.hazelcast.jet.core.ProcessorSupplier;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * <p>A bounded Kafka source, reading the records on a topic with a
+ * timestamp in a range, then completing.
+ * </p>
+ * <p>Jet's own Kafka source is a stream, it never ends and starts where
+ * the consumer group left off. For reprocessing history, this looks up
+ * the offsets for the start and end times on every partition with
+ * "{@code offsetsForTimes}", and reads between them as fast as the
+ * consumer can poll. Partitions are assigned directly, there is no
+ * consumer group, so live readers of the topic aren't rebalanced.
+ * </p>
+ * <p>The end is fixed when the job starts. If nothing on a partition is
+ * as late as "{@code to}", reading stops at the partition's end then, so
+ * records arriving while the job runs aren't waited for.
+ * </p>
+ * <p>Timestamps are Kafka's, when each record was produced. Offsets
+ * only roughly follow these, so each record is also checked against the
+ * range.
+ * </p>
+ * <p>Run with one processor per JVM, as for the stream source in
+ * {@link ReadKafka}. The topic's partitions are dealt out between the
+ * processors by processor index. A processor's context doesn't say how
+ * many processors there are, so the supplier works it out, the members
+ * times the processors on each, and tells each processor.
+ * </p>
+ * <p>Create with {@link #supplier(Properties, String, long, long) supplier},
+ * which closes the consumers when the job ends however it ends. A
+ * processor only closes its own consumer when it has read everything.
+ * </p>
+ */
+@Slf4j
+public class KafkaRangeSource<K, V> extends AbstractProcessor {
+
+	private static final String PREFIX = KafkaRangeSource.class.getSimpleName() + " ";
+	private static final long POLL_TIMEOUT_MS = 100L;
+
+	private final Function<Properties, Consumer<K, V>> consumerFn;
+	private final Properties properties;
+	private final String topic;
+	private final long from;
+	private final long to;
+	private final int processors;
+	private final Map<TopicPartition, Long> endOffsets = new HashMap<>();
+
+	private Consumer<K, V> consumer;
+	private Traverser<Map.Entry<K, V>> traverser = Traversers.empty();
+	private long read;
+	private long emitted;
+
+	/**
+	 * @param consumerFn Creates the consumer, {@code KafkaConsumer::new} except in tests
+	 * @param properties For the consumer
+	 * @param topic Topic to read
+	 * @param from Earliest timestamp
+	 * @param to Latest timestamp, exclusive
+	 * @param processors How many processors across the cluster share the partitions
+	 */
+	KafkaRangeSource(Function<Properties, Consumer<K, V>> consumerFn, Properties properties,
+			String topic, long from, long to, int processors) {
+		this.consumerFn = consumerFn;
+		this.properties = properties;
+		this.topic = topic;
+		this.from = from;
+		this.to = to;
+		this.processors = processors;
+	}
+
+	@Override
+	public boolean isCooperative() {
+		return false;
+	}
+
+	/**
+	 * <p>A supplier for the processors on one JVM, that closes their
+	 * consumers when the job completes, fails or is cancelled.
+	 * </p>
+	 *
+	 * @param properties For the consumer
+	 * @param topic Topic to read
+	 * @param from Earliest timestamp
+	 * @param to Latest timestamp, exclusive
+	 * @return For {@link com.hazelcast.jet.core.DAG#newVertex(String, ProcessorSupplier) newVertex}
+	 */
+	public static <K, V> ProcessorSupplier supplier(Properties properties, String topic, long from, long to) {
+		return new Supplier<K, V>(properties, topic, from, to);
+	}
+
+	/**
+	 * <p>Find this processor's share of the partitions, and the offsets
+	 * to read between on each.
+	 * </p>
+	 * <p>Kafka rejects a negative time, so times before 1970 are
+	 * taken as 1970.
+	 * </p>
+	 */
+	@Override
+	protected void init(Context context) throws Exception {
+		this.consumer = this.consumerFn.apply(this.properties);
+
+		List<TopicPartition> assigned = new ArrayList<>();
+		for (PartitionInfo partitionInfo : this.consumer.partitionsFor(this.topic)) {
+			if (isAssigned(partitionInfo.partition(), context.globalProcessorIndex(), this.processors)) {
+				assigned.add(new TopicPartition(this.topic, partitionInfo.partition()));
+			}
+		}
+		this.consumer.assign(assigned);
+
+		Map<TopicPartition, Long> fromTimes = new HashMap<>();
+		Map<TopicPartition, Long> toTimes = new HashMap<>();
+		for (TopicPartition topicPartition : assigned) {
+			fromTimes.put(topicPartition, Math.max(0L, this.from));
+			toTimes.put(topicPartition, Math.max(0L, this.to));
+		}
+		Map<TopicPartition, OffsetAndTimestamp> starts = this.consumer.offsetsForTimes(fromTimes);
+		Map<TopicPartition, OffsetAndTimestamp> ends = this.consumer.offsetsForTimes(toTimes);
+		Map<TopicPartition, Long> latest = this.consumer.endOffsets(assigned);
+
+		for (TopicPartition topicPartition : assigned) {
+			long end = endOffset(ends.get(topicPartition), latest.get(topicPartition));
+			long start = startOffset(starts.get(topicPartition), end);
+			log.info("{} {} offsets {} to {}", PREFIX, topicPartition, start, end);
+			if (start < end) {
+				this.consumer.seek(topicPartition, start);
+				this.endOffsets.put(topicPartition, end);
+			}
+		}
+		this.consumer.pause(assigned);
+		this.consumer.resume(this.endOffsets.keySet());
+	}
+
+	/**
+	 * <p>Emit what the last poll returned, then poll again, until every
+	 * partition has reached its end offset.
+	 * </p>
+	 */
+	@Override
+	public boolean complete() {
+		if (!this.emitFromTraverser(this.traverser)) {
+			return false;
+		}
+		if (this.endOffsets.isEmpty()) {
+			this.close();
+			log.info("{} read {}, emitted {} in range", PREFIX, this.read, this.emitted);
+			return true;
+		}
+
+		List<Map.Entry<K, V>> batch = new ArrayList<>();
+		for (ConsumerRecord<K, V> record : this.consumer.poll(POLL_TIMEOUT_MS)) {
+			TopicPartition topicPartition = new TopicPartition(record.topic(), record.partition());
+			Long end = this.endOffsets.get(topicPartition);
+			if (end == null || record.offset() >= end) {
+				continue;
+			}
+			this.read++;
+			if (record.timestamp() >= this.from && record.timestamp() < this.to) {
+				batch.add(Util.entry(record.key(), record.value()));
+			}
+		}
+		this.emitted += batch.size();
+
+		for (TopicPartition topicPartition : new ArrayList<>(this.endOffsets.keySet())) {
+			if (this.consumer.position(topicPartition) >= this.endOffsets.get(topicPartition)) {
+				this.endOffsets.remove(topicPartition);
+				this.consumer.pause(Collections.singleton(topicPartition));
+			}
+		}
+
+		this.traverser = Traversers.traverseIterable(batch);
+		return false;
+	}
+
+	/**
+	 * <p>Close the consumer, if not already.
+	 * </p>
+	 */
+	void close() {
+		if (this.consumer != null) {
+			this.consumer.close();
+			this.consumer = null;
+		}
+	}
+
+	/**
+	 * @param partition Kafka partition
+	 * @param processorIndex This processor, across the cluster
+	 * @param processors How many processors across the cluster
+	 * @return True if this processor reads that partition
+	 */
+	static boolean isAssigned(int partition, int processorIndex, int processors) {
+		return partition % processors == processorIndex;
+	}
+
+	/**
+	 * @param end First record at or after "{@code to}", null if none
+	 * @param latest Where the partition ends now
+	 * @return Where to stop, exclusive
+	 */
+	static long endOffset(OffsetAndTimestamp end, long latest) {
+		return (end == null ? latest : end.offset());
+	}
+
+	/**
+	 * @param start First record at or after "{@code from}", null if none
+	 * @param end From {@link #endOffset(OffsetAndTimestamp, long) endOffset}
+	 * @return Where to start, the same as the end if nothing to read
+	 */
+	static long startOffset(OffsetAndTimestamp start, long end) {
+		return (start == null ? end : Math.min(start.offset(), end));
+	}
+
+	/**
+	 * <p>Keep the processors it creates, to close them at the end.
+	 * </p>
+	 */
+	@SuppressWarnings("serial")
+	static class Supplier<K, V> implements ProcessorSupplier {
+		private final Properties properties;
+		private final String topic;
+		private final long from;
+		private final long to;
+		private transient int totalParallelism;
+		private transient List<KafkaRangeSource<K, V>> processors;
+
+		Supplier(Properties properties, String topic, long from, long to) {
+			this.properties = properties;
+			this.topic = topic;
+			this.from = from;
+			this.to = to;
+		}
+
+		/**
+		 * <p>Every member runs the same local parallelism.
+		 * </p>
+		 */
+		@Override
+		public void init(ProcessorSupplier.Context context) {
+			this.totalParallelism = context.jetInstance().getCluster().getMembers().size() * context.localParallelism();
+		}
+
+		@Override
+		public Collection<KafkaRangeSource<K, V>> get(int count) {
+			this.processors = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				this.processors.add(new KafkaRangeSource<K, V>(KafkaConsumer::new, this.properties,
+						this.topic, this.from, this.to, this.totalParallelism));
+			}
+			return this.processors;
+		}
+
+		int getTotalParallelism() {
+			return this.totalParallelism;
+		}
+
+		@Override
+		public void complete(Throwable error) {
+			if (this.processors != null) {
+				for (KafkaRangeSource<K, V> processor : this.processors) {
+					processor.close();
+				}
+			}
+		}
+	}
+}
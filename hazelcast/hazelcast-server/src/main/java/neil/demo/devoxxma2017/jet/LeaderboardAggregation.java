@@ -0,0 +1,101 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.hazelcast.jet.datamodel.TimestampedEntry;
+
+import neil.demo.devoxxma2017.Leaderboard;
+import neil.demo.devoxxma2017.RideMetrics;
+
+/**
+ * <p>A <i>reduction</i> of window results to the fastest few,
+ * a "<i>top-K</i>".
+ * </p>
+ * <p>Only the best "{@code size}" are kept, in order fastest first,
+ * so each accumulator is a fixed size however many people there
+ * are. Adding a speed is a search along at most "{@code size}" entries.
+ * </p>
+ * <p>The top few of two sets of people is in the top few of each set,
+ * so accumulators from different members can be combined to
+ * give the top few overall. This lets each member find its own top few
+ * from the people it owns, and only those travel to be combined.
+ * </p>
+ */
+@SuppressWarnings("serial")
+public class LeaderboardAggregation implements Serializable {
+
+	private final String[] riders;
+	private final double[] metresPerSecond;
+	private int count;
+
+	public LeaderboardAggregation(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("size must be at least 1, not " + size);
+		}
+		this.riders = new String[size];
+		this.metresPerSecond = new double[size];
+	}
+
+	/**
+	 * <p>Consider one person's speed for the window. Not moving
+	 * doesn't qualify.
+	 * </p>
+	 *
+	 * @param input A window result from {@link Speedo}
+	 * @return
+	 */
+	public LeaderboardAggregation accumulate(TimestampedEntry<String, RideMetrics> input) {
+		if (input.getValue().getMetresPerSecond() > 0) {
+			this.offer(input.getKey(), input.getValue().getMetresPerSecond());
+		}
+		return this;
+	}
+
+	/**
+	 * <p>Merge the top few from another accumulator, for another
+	 * set of people.
+	 * </p>
+	 *
+	 * @param that Another accumulator, perhaps from another JVM
+	 * @return
+	 */
+	public LeaderboardAggregation combine(LeaderboardAggregation that) {
+		for (int i = 0; i < that.count; i++) {
+			this.offer(that.riders[i], that.metresPerSecond[i]);
+		}
+		return this;
+	}
+
+	/**
+	 * @return The fastest, fastest first, timed by Jet's window
+	 */
+	public Leaderboard finish() {
+		Leaderboard leaderboard = new Leaderboard();
+		leaderboard.setRiders(Arrays.copyOf(this.riders, this.count));
+		leaderboard.setMetresPerSecond(Arrays.copyOf(this.metresPerSecond, this.count));
+		return leaderboard;
+	}
+
+	/**
+	 * <p>Insert in order if fast enough, dropping the slowest if full.
+	 * </p>
+	 */
+	private void offer(String rider, double speed) {
+		if (this.count == this.riders.length && speed <= this.metresPerSecond[this.count - 1]) {
+			return;
+		}
+
+		int i = Math.min(this.count, this.riders.length - 1);
+		while (i > 0 && this.metresPerSecond[i - 1] < speed) {
+			this.riders[i] = this.riders[i - 1];
+			this.metresPerSecond[i] = this.metresPerSecond[i - 1];
+			i--;
+		}
+		this.riders[i] = rider;
+		this.metresPerSecond[i] = speed;
+		if (this.count < this.riders.length) {
+			this.count++;
+		}
+	}
+}
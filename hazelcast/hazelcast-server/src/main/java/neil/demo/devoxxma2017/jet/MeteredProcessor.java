@@ -0,0 +1,159 @@
+package neil.demo.devoxxma2017.jet;
+
+import com.hazelcast.core.IMap;
+import com.hazelcast.jet.core.Inbox;
+import com.hazelcast.jet.core.Outbox;
+import com.hazelcast.jet.core.Processor;
+import com.hazelcast.jet.core.Watermark;
+import com.hazelcast.jet.function.DistributedSupplier;
+
+import neil.demo.devoxxma2017.Constants;
+import neil.demo.devoxxma2017.WorkerLoad;
+
+/**
+ * <p>A wrapper round any processor, counting the items it takes
+ * from its inbox, for vertices whose processors can't be changed,
+ * such as the built-in window aggregation.
+ * </p>
+ * <p>Every {@link #PUBLISH_INTERVAL_MS} a {@link WorkerLoad} is written to
+ * the "{@code monitor}" {@link com.hazelcast.core.IMap IMap}, keyed by the
+ * vertex name and processor index. Comparing the instances of one vertex
+ * shows whether the work is spread evenly, or if some keys are hot.
+ * </p>
+ * <p>Watermarks aren't counted, only items.
+ * </p>
+ */
+public class MeteredProcessor implements Processor {
+
+	private static final long PUBLISH_INTERVAL_MS = 5_000L;
+
+	private final Processor processor;
+	private final CountingInbox countingInbox = new CountingInbox();
+
+	private IMap<String, WorkerLoad> monitorMap;
+	private String vertexName;
+	private int processorIndex;
+	private long lastPublish;
+	private long lastPublishItems;
+
+	public MeteredProcessor(Processor processor) {
+		this.processor = processor;
+	}
+
+	/**
+	 * <p>Wrap each processor a supplier creates.
+	 * </p>
+	 *
+	 * @param supplier For the vertex
+	 * @return A supplier of metered processors
+	 */
+	public static DistributedSupplier<Processor> metered(DistributedSupplier<Processor> supplier) {
+		return () -> new MeteredProcessor(supplier.get());
+	}
+
+	@Override
+	public boolean isCooperative() {
+		return this.processor.isCooperative();
+	}
+
+	@Override
+	public void init(Outbox outbox, Context context) {
+		this.monitorMap = context.jetInstance().getHazelcastInstance().getMap(Constants.IMAP_NAME_MONITOR);
+		this.vertexName = context.vertexName();
+		this.processorIndex = context.globalProcessorIndex();
+		this.lastPublish = System.currentTimeMillis();
+		this.processor.init(outbox, context);
+	}
+
+	@Override
+	public void process(int ordinal, Inbox inbox) {
+		this.countingInbox.inbox = inbox;
+		this.processor.process(ordinal, this.countingInbox);
+		this.publish();
+	}
+
+	@Override
+	public boolean tryProcess() {
+		this.publish();
+		return this.processor.tryProcess();
+	}
+
+	@Override
+	public boolean completeEdge(int ordinal) {
+		return this.processor.completeEdge(ordinal);
+	}
+
+	@Override
+	public boolean complete() {
+		return this.processor.complete();
+	}
+
+	@Override
+	public boolean saveToSnapshot() {
+		return this.processor.saveToSnapshot();
+	}
+
+	@Override
+	public void restoreFromSnapshot(Inbox inbox) {
+		this.processor.restoreFromSnapshot(inbox);
+	}
+
+	@Override
+	public boolean finishSnapshotRestore() {
+		return this.processor.finishSnapshotRestore();
+	}
+
+	private void publish() {
+		long now = System.currentTimeMillis();
+		if (now - this.lastPublish < PUBLISH_INTERVAL_MS) {
+			return;
+		}
+
+		WorkerLoad workerLoad = new WorkerLoad();
+		workerLoad.setVertex(this.vertexName);
+		workerLoad.setProcessor(this.processorIndex);
+		workerLoad.setItems(this.countingInbox.items);
+		workerLoad.setItemsPerSecond((this.countingInbox.items - this.lastPublishItems) * 1000 / (now - this.lastPublish));
+		workerLoad.setTime(now);
+
+		this.lastPublish = now;
+		this.lastPublishItems = this.countingInbox.items;
+		this.monitorMap.setAsync(this.vertexName + "-" + this.processorIndex, workerLoad);
+	}
+
+	/**
+	 * <p>Pass through to the real inbox, counting what is taken.
+	 * </p>
+	 */
+	private static class CountingInbox implements Inbox {
+		private Inbox inbox;
+		private long items;
+
+		@Override
+		public boolean isEmpty() {
+			return this.inbox.isEmpty();
+		}
+
+		@Override
+		public Object peek() {
+			return this.inbox.peek();
+		}
+
+		@Override
+		public Object poll() {
+			return this.count(this.inbox.poll());
+		}
+
+		@Override
+		public Object remove() {
+			return this.count(this.inbox.remove());
+		}
+
+		private Object count(Object item) {
+			if (item != null && !(item instanceof Watermark)) {
+				this.items++;
+			}
+			return item;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package neil.demo.devoxxma2017.jet;
+
+import com.hazelcast.jet.core.AbstractProcessor;
+import com.hazelcast.jet.datamodel.TimestampedEntry;
+
+import neil.demo.devoxxma2017.Haversine;
+
+/**
+ * <p>An intermediate processor that only passes on points where the
+ * person has moved, for ride detection in {@link Speedo}.
+ * </p>
+ * <p>This is like {@link PositionFilter} but without the heartbeat. For
+ * each person, the last point passed on is remembered, and a point less
+ * than "{@code epsilonMetres}" from it is dropped however long it has
+ * been. So someone who has stopped produces nothing, and their ride
+ * session can close.
+ * </p>
+ * <p>Points for the same person must come to the same instance of this
+ * processor, so the inbound edge has to be partitioned by the key.
+ * </p>
+ */
+public class MovementFilter extends AbstractProcessor {
+
+	private final double epsilonMetres;
+	private final IdleKeys<Point> lastMoved;
+
+	public MovementFilter(double epsilonMetres, long maxIdleMillis, int maxKeys) {
+		this.epsilonMetres = epsilonMetres;
+		this.lastMoved = new IdleKeys<>(maxIdleMillis, maxKeys);
+	}
+
+	/**
+	 * <p>Pass on the point if it is far enough from the last one passed on.
+	 * </p>
+	 *
+	 * @param ordinal 0, the only input edge
+	 * @param item A {@code TimestampedEntry<String, Point>} from the journal
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	protected boolean tryProcess(int ordinal, Object item) {
+		TimestampedEntry<String, Point> entry = (TimestampedEntry<String, Point>) item;
+		Point point = entry.getValue();
+		long now = System.currentTimeMillis();
+
+		// Here too, as under load the inbox may never be empty
+		this.lastMoved.expire(now);
+
+		Point previous = this.lastMoved.get(entry.getKey());
+
+		if (previous != null && Haversine.metres(previous.getLatitude(), previous.getLongitude(),
+				point.getLatitude(), point.getLongitude()) < this.epsilonMetres) {
+			return true;
+		}
+
+		if (!this.tryEmit(item)) {
+			return false;
+		}
+		this.lastMoved.put(entry.getKey(), point, now);
+		return true;
+	}
+
+	/**
+	 * <p>Called when there is no input, forget anyone idle too long.
+	 * Also done for each point.
+	 * </p>
+	 */
+	@Override
+	public boolean tryProcess() {
+		this.lastMoved.expire(System.currentTimeMillis());
+		return true;
+	}
+}
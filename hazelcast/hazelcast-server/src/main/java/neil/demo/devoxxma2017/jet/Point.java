@@ -0,0 +1,26 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.io.Serializable;
+
+import lombok.Data;
+
+/**
+ * <p>The parts of a {@link neil.demo.devoxxma2017.Gpx.TrkPt TrkPt} that
+ * the Jet jobs use, as primitives.
+ * </p>
+ * <p>The timestamp is not held here, it travels as the timestamp
+ * of the {@link com.hazelcast.jet.datamodel.TimestampedEntry TimestampedEntry}
+ * that carries this point, and the person is the key of that entry. So
+ * there is no {@link java.util.Date Date} object to create and serialize
+ * for every point.
+ * </p>
+ */
+@Data
+@SuppressWarnings("serial")
+public class Point implements Serializable {
+
+	private final double latitude;
+	private final double longitude;
+	private final double elevation;
+
+}
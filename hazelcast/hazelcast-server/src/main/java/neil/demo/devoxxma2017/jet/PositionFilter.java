@@ -0,0 +1,189 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.util.Map;
+
+import com.hazelcast.jet.core.AbstractProcessor;
+
+import lombok.extern.slf4j.Slf4j;
+import neil.demo.devoxxma2017.Constants;
+import neil.demo.devoxxma2017.Grid;
+import neil.demo.devoxxma2017.Haversine;
+import neil.demo.devoxxma2017.Gpx.TrkPt;
+
+/**
+ * <p>An intermediate processor that discards tracking points that add nothing,
+ * before they are saved.
+ * </p>
+ * <p>A GPS device that isn't moving still sends points, with the same or
+ * nearly the same co-ordinates. Every one of these saved to the
+ * "{@code position}" {@link com.hazelcast.core.IMap IMap} is also written
+ * to the event journal and read by {@link Speedo}, only to produce
+ * a speed of zero that is then thrown away.
+ * </p>
+ * <p>For each person, this processor remembers the last point it let through.
+ * An incoming point is dropped if:
+ * </p>
+ * <ul>
+ * <li><p>It is an exact duplicate of the last point kept, same time and
+ * same place. Kafka may redeliver.
+ * </p>
+ * </li>
+ * <li><p>It is within "{@code epsilonMetres}" of the last point kept, and
+ * less than "{@code heartbeatMillis}" since it.
+ * </p>
+ * </li>
+ * </ul>
+ * <p>A point older than the last point kept is late, and is passed on
+ * without becoming the point later ones are compared against. There is
+ * nothing to compare it with, the points either side of it are not kept
+ * here. Deciding what to do with it is left to the stages downstream,
+ * {@link SpeedoTracker} slots it into place if not too late and the
+ * windowed {@link Speedo} drops it if behind the watermark, while
+ * {@link neil.demo.devoxxma2017.Trail Trail}, {@link TrackArchiver} and
+ * {@link neil.demo.devoxxma2017.PositionSpeedUpdater PositionSpeedUpdater}
+ * ignore it. Only the plain map sink saves it over the newer point, until
+ * the next point arrives, as that write is how it reaches the event
+ * journal.
+ * </p>
+ * <p>The heartbeat means a stationary person still produces a point every
+ * so often, so time moves on for them and {@link Speedo} windows still
+ * close.
+ * </p>
+ * <p>A point that is kept has its grid cell filled in on the way past,
+ * for the index on the "{@code position}" map. See
+ * {@link neil.demo.devoxxma2017.Gpx.TrkPt TrkPt}.
+ * </p>
+ * <p>Someone with no points for "{@code maxIdleMillis}" is forgotten, see
+ * {@link IdleKeys}. Their next point is kept, as there is nothing to
+ * compare it to.
+ * </p>
+ * <p>This relies on all points for the same person coming to the same
+ * instance of this processor, so the inbound edge has to be partitioned
+ * by the key.
+ * </p>
+ */
+@Slf4j
+public class PositionFilter extends AbstractProcessor {
+
+	private static final String PREFIX = PositionFilter.class.getSimpleName() + " ";
+	private static final int LOG_INTERVAL = 10_000;
+
+	private final double epsilonMetres;
+	private final long heartbeatMillis;
+	private final IdleKeys<TrkPt> lastKept;
+	private long dropped;
+	private long kept;
+	private long late;
+
+	public PositionFilter(double epsilonMetres, long heartbeatMillis, long maxIdleMillis, int maxKeys) {
+		this.epsilonMetres = epsilonMetres;
+		this.heartbeatMillis = heartbeatMillis;
+		this.lastKept = new IdleKeys<>(maxIdleMillis, maxKeys);
+	}
+
+	/**
+	 * <p>Pass on the point if it is worth keeping, otherwise
+	 * consume it silently.
+	 * </p>
+	 *
+	 * @param ordinal 0, the only input edge
+	 * @param item A {@code Map.Entry<String, TrkPt>} from Kafka
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	protected boolean tryProcess(int ordinal, Object item) {
+		Map.Entry<String, TrkPt> entry = (Map.Entry<String, TrkPt>) item;
+		long now = System.currentTimeMillis();
+
+		// Here too, as under load the inbox may never be empty
+		this.lastKept.expire(now);
+
+		TrkPt trkPt = entry.getValue();
+		boolean late = this.isLate(entry.getKey(), trkPt);
+		if (late || this.isWanted(entry.getKey(), trkPt)) {
+			trkPt.setCell(Grid.cell(trkPt.getLatitude(), trkPt.getLongitude(), Constants.POSITION_CELL_METRES));
+			if (!this.tryEmit(item)) {
+				return false;
+			}
+			if (late) {
+				this.late++;
+			} else {
+				this.lastKept.put(entry.getKey(), trkPt, now);
+				this.kept++;
+			}
+		} else {
+			this.dropped++;
+		}
+
+		if ((this.kept + this.dropped + this.late) % LOG_INTERVAL == 0) {
+			log.info("{} kept {}, dropped {}, late {}, tracking {} keys",
+					PREFIX, this.kept, this.dropped, this.late, this.lastKept.size());
+		}
+
+		return true;
+	}
+
+	/**
+	 * <p>Called when there is no input, forget anyone idle too long.
+	 * Nothing is emitted for them. Also done for each point.
+	 * </p>
+	 */
+	@Override
+	public boolean tryProcess() {
+		this.lastKept.expire(System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * <p>Is this point older than the last point kept for the same key.
+	 * </p>
+	 *
+	 * @param key Person
+	 * @param trkPt Point, null if the deserializer couldn't read it
+	 * @return True if it should be passed on, but not remembered
+	 */
+	private boolean isLate(String key, TrkPt trkPt) {
+		if (trkPt == null || trkPt.getDate() == null) {
+			return false;
+		}
+
+		TrkPt previous = this.lastKept.get(key);
+		return previous != null && trkPt.getDate().getTime() < previous.getDate().getTime();
+	}
+
+	/**
+	 * <p>Compare against the last point kept for the same key.
+	 * </p>
+	 *
+	 * @param key Person
+	 * @param trkPt Point, null if the deserializer couldn't read it
+	 * @return True if this point should be passed on
+	 */
+	private boolean isWanted(String key, TrkPt trkPt) {
+		if (trkPt == null || trkPt.getDate() == null) {
+			return false;
+		}
+
+		TrkPt previous = this.lastKept.get(key);
+		if (previous == null) {
+			return true;
+		}
+
+		long elapsed = trkPt.getDate().getTime() - previous.getDate().getTime();
+		boolean samePlace = trkPt.getLatitude() == previous.getLatitude()
+				&& trkPt.getLongitude() == previous.getLongitude();
+
+		if (elapsed == 0 && samePlace) {
+			return false;
+		}
+		if (elapsed >= this.heartbeatMillis) {
+			return true;
+		}
+		if (samePlace) {
+			return false;
+		}
+
+		return Haversine.metres(previous.getLatitude(), previous.getLongitude(),
+				trkPt.getLatitude(), trkPt.getLongitude()) > this.epsilonMetres;
+	}
+}
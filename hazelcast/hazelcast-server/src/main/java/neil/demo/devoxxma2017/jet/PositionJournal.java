@@ -0,0 +1,99 @@
+package neil.demo.devoxxma2017.jet;
+
+import com.hazelcast.core.EntryEventType;
+import com.hazelcast.jet.core.ProcessorMetaSupplier;
+import com.hazelcast.jet.core.processor.SourceProcessors;
+import com.hazelcast.jet.datamodel.TimestampedEntry;
+import com.hazelcast.map.journal.EventJournalMapEvent;
+
+import neil.demo.devoxxma2017.Constants;
+import neil.demo.devoxxma2017.Gpx.TrkPt;
+
+/**
+ * <p>A source for Jet jobs, reading the event journal of the
+ * "{@code position}" {@link com.hazelcast.core.IMap IMap}.
+ * </p>
+ * <p>The journal holds an {@link com.hazelcast.map.journal.EventJournalMapEvent EventJournalMapEvent}
+ * for each change, with the old value and the new value. Most of this isn't
+ * wanted by the jobs, so a selection and a projection are passed to the
+ * journal reader. These run on the partition thread that reads the journal,
+ * before anything is passed into the processing graph:
+ * </p>
+ * <ul>
+ * <li><p>{@link #isPosition(EventJournalMapEvent)} keeps only
+ * events for points added or updated with a usable value. Removals, evictions
+ * and the like are dropped.
+ * </p>
+ * </li>
+ * <li><p>{@link #toTimestampedPoint(EventJournalMapEvent)} reduces what
+ * is left to the key, the timestamp and a {@link Point}. The old value is
+ * never copied.
+ * </p>
+ * </li>
+ * </ul>
+ */
+public class PositionJournal {
+
+	/**
+	 * <p>A journal source emitting {@code TimestampedEntry<String, Point>}.
+	 * </p>
+	 *
+	 * <p>Wrapped to publish how far behind the journal it is, see
+	 * {@link JournalLagProcessor}.
+	 * </p>
+	 *
+	 * @param reader Name of the job, for the lag published
+	 * @param startFromLatest True to skip history in the journal
+	 * @return For {@link com.hazelcast.jet.core.DAG#newVertex(String, ProcessorMetaSupplier) newVertex}
+	 */
+	public static ProcessorMetaSupplier streamPositionP(String reader, boolean startFromLatest) {
+		return JournalLagProcessor.monitored(
+				SourceProcessors.<String, TrkPt, TimestampedEntry<String, Point>>streamMapP(Constants.IMAP_NAME_POSITION,
+					PositionJournal::isPosition,
+					PositionJournal::toTimestampedPoint,
+					startFromLatest),
+				Constants.IMAP_NAME_POSITION, reader);
+	}
+
+	/**
+	 * <p>Selection, only a new or changed point is of interest.
+	 * </p>
+	 *
+	 * @param event From the journal
+	 * @return True if the event should be passed to the job
+	 */
+	public static boolean isPosition(EventJournalMapEvent<String, TrkPt> event) {
+		if (event.getType() != EntryEventType.ADDED && event.getType() != EntryEventType.UPDATED) {
+			return false;
+		}
+		return event.getKey() != null
+				&& event.getNewValue() != null
+				&& event.getNewValue().getDate() != null;
+	}
+
+	/**
+	 * <p>Projection, reduce the event to the parts needed.
+	 * </p>
+	 *
+	 * @param event From the journal, already selected
+	 * @return The key, timestamp and point
+	 */
+	public static TimestampedEntry<String, Point> toTimestampedPoint(EventJournalMapEvent<String, TrkPt> event) {
+		return toTimestampedPoint(event.getKey(), event.getNewValue());
+	}
+
+	/**
+	 * <p>The same reduction for a point from elsewhere, such as
+	 * {@link Backfill} reading Kafka.
+	 * </p>
+	 *
+	 * @param key Who
+	 * @param trkPt With a date
+	 * @return The key, timestamp and point
+	 */
+	public static TimestampedEntry<String, Point> toTimestampedPoint(String key, TrkPt trkPt) {
+		return new TimestampedEntry<>(trkPt.getDate().getTime(), key,
+				new Point(trkPt.getLatitude(), trkPt.getLongitude(), trkPt.getElevation()));
+	}
+
+}
@@ -0,0 +1,80 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.hazelcast.core.ExecutionCallback;
+import com.hazelcast.core.IMap;
+import com.hazelcast.jet.core.AbstractProcessor;
+
+import lombok.extern.slf4j.Slf4j;
+import neil.demo.devoxxma2017.Constants;
+import neil.demo.devoxxma2017.PositionSpeedUpdater;
+import neil.demo.devoxxma2017.Gpx.TrkPt;
+
+/**
+ * <p>A sink that saves each point to the "{@code position}"
+ * {@link com.hazelcast.core.IMap IMap} with a {@link PositionSpeedUpdater},
+ * so the speed is worked out as the point is saved.
+ * </p>
+ * <p>The updater saves the speed itself, if there is one, with a
+ * follow-up on the "{@code speed}" map where the point is stored. The
+ * reply is only to count the point as done.
+ * </p>
+ * <p>Sent asynchronously with a limit on how many are outstanding, the
+ * same as {@link TrailSink}. One person's points should all come through
+ * the same instance, so they are sent in the order they arrived.
+ * </p>
+ */
+@Slf4j
+public class PositionSpeedSink extends AbstractProcessor {
+
+	private static final int MAX_IN_FLIGHT = 1_000;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final ExecutionCallback<Object> callback = new ExecutionCallback<Object>() {
+		@Override
+		public void onResponse(Object response) {
+			inFlight.decrementAndGet();
+		}
+		@Override
+		public void onFailure(Throwable t) {
+			inFlight.decrementAndGet();
+			log.error("PositionSpeedUpdater", t);
+		}
+	};
+
+	private IMap<String, TrkPt> positionMap;
+
+	@Override
+	protected void init(Context context) throws Exception {
+		this.positionMap = context.jetInstance().getHazelcastInstance().getMap(Constants.IMAP_NAME_POSITION);
+	}
+
+	/**
+	 * @param ordinal 0, the only input edge
+	 * @param item A {@code Map.Entry<String, TrkPt>} from Kafka
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	protected boolean tryProcess(int ordinal, Object item) {
+		if (this.inFlight.get() >= MAX_IN_FLIGHT) {
+			return false;
+		}
+
+		Map.Entry<String, TrkPt> entry = (Map.Entry<String, TrkPt>) item;
+
+		this.inFlight.incrementAndGet();
+		this.positionMap.submitToKey(entry.getKey(), new PositionSpeedUpdater(entry.getValue()), this.callback);
+		return true;
+	}
+
+	/**
+	 * <p>Only finished when nothing is outstanding.
+	 * </p>
+	 */
+	@Override
+	public boolean complete() {
+		return this.inFlight.get() == 0;
+	}
+}
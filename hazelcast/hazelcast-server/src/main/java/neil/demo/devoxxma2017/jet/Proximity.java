@@ -0,0 +1,146 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.util.Map;
+
+import com.hazelcast.jet.Traverser;
+import com.hazelcast.jet.Traversers;
+import com.hazelcast.jet.Util;
+import com.hazelcast.jet.core.DAG;
+import com.hazelcast.jet.core.Edge;
+import com.hazelcast.jet.core.Vertex;
+import com.hazelcast.jet.core.processor.Processors;
+import com.hazelcast.jet.core.processor.SinkProcessors;
+import com.hazelcast.jet.datamodel.TimestampedEntry;
+import com.hazelcast.jet.function.DistributedFunction;
+import com.hazelcast.jet.function.DistributedFunctions;
+
+import neil.demo.devoxxma2017.Constants;
+import neil.demo.devoxxma2017.Grid;
+
+/**
+ * <p>Find people who are near each other, as they move.
+ * </p>
+ */
+public class Proximity {
+
+	private static final boolean START_FROM_LATEST = true;
+
+	/**
+	 * <p>Comparing every person with every other is work that grows with
+	 * the square of the number of people. Instead the world is divided
+	 * into a {@link Grid} of cells at least "{@code metres}" across, and
+	 * people are only compared with others in the same cell. Someone near
+	 * the edge of a cell may be near someone in the next cell, so each point
+	 * also visits the cells around it. The work grows with the number of
+	 * people, times how crowded they are, not with the square.
+	 * </p>
+	 * <p>The processing graph looks like this, from top to bottom:
+	 * </p>
+	 * <pre>
+	 *              +----------+
+	 *              |1  IMap   |
+	 *              |"position"|
+	 *              |  Journal |
+	 *              +----------+
+	 *                    |
+	 *                    |
+	 *                    |
+	 *              +----------+
+	 *              |2  Grid   |
+	 *              |  Cells   |
+	 *              |          |
+	 *              +----------+
+	 *                    |
+	 *                    |
+	 *                    |
+	 *              +----------+
+	 *              |3 Compare |
+	 *              |  Within  |
+	 *              |   Cell   |
+	 *              +----------+
+	 *                    |
+	 *                    |
+	 *                    |
+	 *              +----------+
+	 *              |4  IMap   |
+	 *              |"proximity|
+	 *              |   Sink   |
+	 *              +----------+
+	 * </pre>
+	 * <ol>
+	 * <li><b>Step 1</b>
+	 * <p>The same source as {@link Speedo}, see {@link PositionJournal}, but
+	 * from the latest points. Where people were an hour ago doesn't say who
+	 * is near who now.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 2</b>
+	 * <p>A "<i>flat map</i>", one point in and a {@link CellVisit} out for each
+	 * cell within "{@code metres}" of it, usually 9. The visit is keyed by the
+	 * cell rather than by the person.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 3</b>
+	 * <p>A {@link ProximityDetector} keeps the latest visits to each cell and
+	 * compares each new visit with the others there.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 4</b>
+	 * <p>A "<i>sink</i>", saving each pair found to the "{@code proximity}" map,
+	 * keyed by both names. The map's own expiry removes pairs not seen
+	 * together for a while.
+	 * </p>
+	 * </li>
+	 * </ol>
+	 * <p><b>Note:</b> Unlike {@link Speedo}, the edge into step 3 is
+	 * partitioned <u>and</u> distributed. The journal is read where each
+	 * person's points are stored, but a cell can have visits from people
+	 * stored anywhere, so visits have to cross the network to the JVM that
+	 * handles the cell.
+	 * </p>
+	 *
+	 * @param metres How close counts as near, also the grid cell size
+	 * @param maxAgeMillis Points further apart in time than this aren't compared
+	 * @param maxIdleMillis How long before a cell with no visits is forgotten
+	 * @param maxKeys Most cells each processor remembers
+	 * @return
+	 */
+	public static DAG build(double metres, long maxAgeMillis, long maxIdleMillis, int maxKeys) {
+		DAG dag = new DAG();
+
+		Vertex step1 = dag.newVertex("eventJournal", PositionJournal.streamPositionP(Proximity.class.getSimpleName(), START_FROM_LATEST));
+
+		Vertex step2 = dag.newVertex("gridCells", Processors.flatMapP(cellVisits(metres)));
+
+		Vertex step3 = dag.newVertex("proximity",
+				() -> new ProximityDetector(metres, maxAgeMillis, maxIdleMillis, maxKeys));
+
+		Vertex step4 = dag.newVertex("mapSink", SinkProcessors.writeMapP(Constants.IMAP_NAME_PROXIMITY));
+
+		dag.edge(Edge.between(step1, step2));
+		dag.edge(Edge.between(step2, step3).partitioned(DistributedFunctions.entryKey()).distributed());
+		dag.edge(Edge.between(step3, step4));
+
+		return dag;
+	}
+
+	/**
+	 * <p>A point to a visit to each cell it might have neighbours in,
+	 * marked as home for the cell it is in.
+	 * </p>
+	 *
+	 * @param metres Proximity distance and cell size
+	 * @return A function for a flat map
+	 */
+	public static DistributedFunction<TimestampedEntry<String, Point>, Traverser<Map.Entry<String, CellVisit>>>
+		cellVisits(double metres) {
+		return entry -> {
+			Point point = entry.getValue();
+			String home = Grid.cell(point.getLatitude(), point.getLongitude(), metres);
+			return Traversers.traverseIterable(Grid.cellsWithin(point.getLatitude(), point.getLongitude(), metres, metres))
+					.map(cell -> Util.entry(cell, new CellVisit(entry.getKey(), point.getLatitude(), point.getLongitude(),
+							entry.getTimestamp(), cell.equals(home))));
+		};
+	}
+
+}
@@ -0,0 +1,156 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.hazelcast.jet.Traverser;
+import com.hazelcast.jet.Traversers;
+import com.hazelcast.jet.Util;
+import com.hazelcast.jet.core.AbstractProcessor;
+
+import lombok.extern.slf4j.Slf4j;
+import neil.demo.devoxxma2017.Haversine;
+import neil.demo.devoxxma2017.Nearby;
+
+/**
+ * <p>An intermediate processor that finds people near each other, for
+ * {@link Proximity}.
+ * </p>
+ * <p>For each grid cell, the latest point of everyone in or near the cell
+ * is kept. A point arriving for a cell is compared only with the others
+ * kept for that cell, so the work per point depends on how crowded the
+ * cell is, not on how many people there are in total.
+ * </p>
+ * <p>Two people near each other may both be in several of the same cells.
+ * The pair is only reported from the home cell of whichever of the two
+ * comes first by name, so it is found once.
+ * </p>
+ * <p>Points more than "{@code maxAgeMillis}" older than the point arriving
+ * are out of date, that person has moved on, and are removed rather than
+ * compared. A cell with nothing arriving for "{@code maxIdleMillis}" is
+ * forgotten, see {@link IdleKeys}.
+ * </p>
+ * <p>All points for the same cell must come to the same instance of
+ * this processor, so the inbound edge has to be partitioned by the cell.
+ * </p>
+ */
+@Slf4j
+public class ProximityDetector extends AbstractProcessor {
+
+	private static final String PREFIX = ProximityDetector.class.getSimpleName() + " ";
+	private static final int LOG_INTERVAL = 10_000;
+
+	private final double metres;
+	private final long maxAgeMillis;
+	private final IdleKeys<Map<String, CellVisit>> cells;
+	private Traverser<Map.Entry<String, Nearby>> nearby;
+	private long compared;
+	private long visits;
+
+	public ProximityDetector(double metres, long maxAgeMillis, long maxIdleMillis, int maxKeys) {
+		this.metres = metres;
+		this.maxAgeMillis = maxAgeMillis;
+		this.cells = new IdleKeys<>(maxIdleMillis, maxKeys);
+	}
+
+	/**
+	 * <p>Compare the point with the others in the cell, then keep it
+	 * as the latest for that person in that cell.
+	 * </p>
+	 *
+	 * @param ordinal 0, the only input edge
+	 * @param item A {@code Map.Entry<String, CellVisit>} keyed by cell
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	protected boolean tryProcess(int ordinal, Object item) {
+		if (this.nearby == null) {
+			// Here too, as under load the inbox may never be empty
+			this.cells.expire(System.currentTimeMillis());
+
+			Map.Entry<String, CellVisit> entry = (Map.Entry<String, CellVisit>) item;
+			this.nearby = Traversers.traverseIterable(this.visit(entry.getKey(), entry.getValue()));
+		}
+
+		if (!this.emitFromTraverser(this.nearby)) {
+			return false;
+		}
+		this.nearby = null;
+		return true;
+	}
+
+	/**
+	 * <p>Called when there is no input, forget cells no one has been near.
+	 * Also done for each visit.
+	 * </p>
+	 */
+	@Override
+	public boolean tryProcess() {
+		this.cells.expire(System.currentTimeMillis());
+		return true;
+	}
+
+	private List<Map.Entry<String, Nearby>> visit(String cell, CellVisit visit) {
+		Map<String, CellVisit> visitors = this.cells.get(cell);
+		if (visitors == null) {
+			visitors = new HashMap<>();
+		}
+		this.cells.put(cell, visitors, System.currentTimeMillis());
+
+		CellVisit previous = visitors.get(visit.getRider());
+		if (previous != null && previous.getTime() > visit.getTime()) {
+			return new ArrayList<>();
+		}
+
+		List<Map.Entry<String, Nearby>> result = new ArrayList<>();
+		Iterator<CellVisit> iterator = visitors.values().iterator();
+		while (iterator.hasNext()) {
+			CellVisit other = iterator.next();
+			if (other.getTime() < visit.getTime() - this.maxAgeMillis) {
+				iterator.remove();
+			} else {
+				if (!other.getRider().equals(visit.getRider())) {
+					Map.Entry<String, Nearby> pair = this.compare(visit, other);
+					if (pair != null) {
+						result.add(pair);
+					}
+				}
+			}
+		}
+		visitors.put(visit.getRider(), visit);
+
+		this.visits++;
+		if (this.visits % LOG_INTERVAL == 0) {
+			log.info("{} visits {}, compared {}, tracking {} cells", PREFIX, this.visits, this.compared, this.cells.size());
+		}
+		return result;
+	}
+
+	/**
+	 * @return The pair, keyed by both names, or null if not near or not for this cell to report
+	 */
+	private Map.Entry<String, Nearby> compare(CellVisit visit, CellVisit other) {
+		CellVisit first = (visit.getRider().compareTo(other.getRider()) < 0 ? visit : other);
+		CellVisit second = (first == visit ? other : visit);
+		if (!first.isHome() || Math.abs(visit.getTime() - other.getTime()) > this.maxAgeMillis) {
+			return null;
+		}
+
+		this.compared++;
+		double distance = Haversine.metres(first.getLatitude(), first.getLongitude(),
+				second.getLatitude(), second.getLongitude());
+		if (distance > this.metres) {
+			return null;
+		}
+
+		Nearby nearby = new Nearby();
+		nearby.setRider(first.getRider());
+		nearby.setOtherRider(second.getRider());
+		nearby.setMetres(distance);
+		nearby.setTime(Math.max(first.getTime(), second.getTime()));
+		return Util.entry(first.getRider() + "|" + second.getRider(), nearby);
+	}
+}
@@ -9,6 +9,7 @@ import com.hazelcast.jet.core.Vertex;
 import com.hazelcast.jet.core.processor.DiagnosticProcessors;
 import com.hazelcast.jet.core.processor.KafkaProcessors;
 import com.hazelcast.jet.core.processor.SinkProcessors;
+import com.hazelcast.jet.function.DistributedFunctions;
 
 import neil.demo.devoxxma2017.Constants;
 import neil.demo.devoxxma2017.TrkPtDeserializer;
@@ -27,7 +28,7 @@ public class ReadKafka {
 	private static final String PREFIX = ReadKafka.class.getSimpleName() + " ";
 	
 	/**
-	 * <p>Define a three stage processing graph to upload Kafka data
+	 * <p>Define a four stage processing graph to upload Kafka data
 	 * into Hazelcast.
 	 * </p>
 	 * <p>When executed, at least one instance will run on each
@@ -49,13 +50,29 @@ public class ReadKafka {
 	 *            0              1
 	 *           /                \
 	 *     +----------+       +----------+
-	 *     |2a IMap   |       |2b  Print |
-	 *     |"position"|       |    Out   |
-	 *     |   Save   |       |          |
+	 *     |2a Drop   |       |2b  Print |
+	 *     | Repeated |       |    Out   |
+	 *     |  Points  |       |          |
 	 *     +----------+       +----------+
+	 *       |      \      \
+	 *       |       \      \
+	 *       |        \      \
+	 *     +----------+  +----------+  +----------+
+	 *     |3  IMap   |  |3b IMap   |  |3c Archive|
+	 *     |"position"|  | "trail"  |  | Segment  |
+	 *     |   Save   |  |  Append  |  | Compress |
+	 *     +----------+  +----------+  +----------+
+	 *                                       |
+	 *                                       |
+	 *                                       |
+	 *                                 +----------+
+	 *                                 |4c IMap   |
+	 *                                 |"archive" |
+	 *                                 |   Save   |
+	 *                                 +----------+
 	 * </pre>
 	 * 
-	 * <p>The three stages are:
+	 * <p>The four stages are:
 	 * </p>
 	 * <ol>
 	 * <li><b>Step 1</b>
@@ -75,16 +92,55 @@ public class ReadKafka {
 	 * one to each edge.
 	 * </li>
 	 * <li><b>Step 2a</b>
-	 * <p>Step 2a is a "<i>sink</i>", a point in the processing graph
+	 * <p>Step 2a is a {@link PositionFilter}, which remembers the last point
+	 * kept for each person and drops repeats and points that have barely
+	 * moved. See that class for the details.
+	 * </p>
+	 * <p>In the "<i>edge</i>" definition, we see that the first ("<i>0</i>")
+	 * output from step 1 is connected to the first ("<i>0</i>") input for
+	 * step 2a. This edge is partitioned by the key, so all points for one
+	 * person go to the same filter instance. It is not distributed, Kafka
+	 * partitions by the same key so these points are all read on the same
+	 * JVM anyway.
+	 * </p>
+	 * <p>Dropping points here, before they are saved, means fewer writes
+	 * to the {@link com.hazelcast.core.IMap IMap}, fewer events in its
+	 * journal, and fewer points for {@link Speedo} to aggregate.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 3</b>
+	 * <p>Step 3 is a "<i>sink</i>", a point in the processing graph
 	 * where data progresses no further. In this case it is saved
 	 * to an {@link com.hazelcast.core.IMap IMap}.
 	 * <p>
-	 * <p>In the "<i>edge</i>" definition, we see that the first ("<i>0</i>")
-	 * output from step 1 is connected to the first ("<i>0</i>") input for
-	 * step 2a.</p>
-	 * <p>Collectively step 1 and 2a do the work here, data is read from Kafka
+	 * <p>Collectively step 1 and 3 do the work here, data is read from Kafka
 	 * by the source stage and saved to Hazelcast by the sink stage.
 	 * <p>
+	 * <p>With "{@code speedInGrid}" set, step 3 is a {@link PositionSpeedSink}
+	 * instead, saving each point with a
+	 * {@link neil.demo.devoxxma2017.PositionSpeedUpdater PositionSpeedUpdater}
+	 * that also works out the speed from the point it replaces and saves it to
+	 * the "{@code speed}" map. This is for when a speed per pair of points is
+	 * enough, and there is no need to run {@link Speedo} at all. The edge into
+	 * step 3 is then isolated, so each person's points are sent in order.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 3b</b>
+	 * <p>Step 3 keeps only the latest point for each person, each point
+	 * overwrites the last. Step 3b is a {@link TrailSink}, which also adds
+	 * each point to the person's {@link neil.demo.devoxxma2017.Trail Trail}
+	 * in the "{@code trail}" {@link com.hazelcast.core.IMap IMap}, their last
+	 * "{@code trailPoints}" points.
+	 * </p>
+	 * </li>
+	 * <li><b>Steps 3c and 4c</b>
+	 * <p>For history beyond the trail, a {@link TrackArchiver} gathers each
+	 * person's points into segments of "{@code archivePoints}", compresses
+	 * each complete segment into a {@link neil.demo.devoxxma2017.TrackBlock TrackBlock}
+	 * and step 4c saves it to the "{@code archive}" {@link com.hazelcast.core.IMap IMap}.
+	 * The edge into step 3c is partitioned by the key, as for step 2a, and
+	 * so is local.
+	 * </p>
 	 * </li>
 	 * <li><b>Step 2b</b>
 	 * <p>Step 2b is also a "<i>sink</i>" stage. The data fed into that stage doesn't
@@ -99,7 +155,7 @@ public class ReadKafka {
 	 * </ol>
 	 *
 	 * <p><b>Note 1:</b> This is a graph not a sequence. Output from
-	 * the Kafka load step 1 goes both to the Map save step 2a and
+	 * the Kafka load step 1 goes both to the filter step 2a and
 	 * the logging step 2b. Kafka data does not pass through the
 	 * logging stage to the IMap. We could code it this way,
 	 * which would make it more of a data pipeline.
@@ -132,40 +188,73 @@ public class ReadKafka {
 	 * </p>
 	 *
 	 * @param bootstrapServers Kafka servers list
+	 * @param epsilonMetres Movement below this is treated as stationary
+	 * @param heartbeatMillis Keep a stationary point if this long since the last kept
+	 * @param maxIdleMillis Forget someone with no points for this long
+	 * @param maxKeys Most people each filter remembers
+	 * @param trailPoints How many points each person's trail holds
+	 * @param archivePoints How many points each archive block holds
+	 * @param speedInGrid Work out the speed as each point is saved, instead of with a separate job
 	 * @return
 	 */
-	public static DAG build(String bootstrapServers) {
+	public static DAG build(String bootstrapServers, double epsilonMetres, long heartbeatMillis,
+			long maxIdleMillis, int maxKeys, int trailPoints, int archivePoints, boolean speedInGrid) {
 
-		/* Connection properties for Kafka. There isn't a constant
-		 * for "earliest" in 1.0.0.
-		 */
-		Properties properties = new Properties();
-		properties.put(ConsumerConfig.GROUP_ID_CONFIG, UUID.randomUUID().toString());
-		properties.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
-		properties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getCanonicalName());
-		properties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, TrkPtDeserializer.class.getCanonicalName());
-		properties.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+		Properties properties = kafkaProperties(bootstrapServers);
 
 		/* Create a processing graph
 		 */
 		DAG dag = new DAG();
 
-		/* Define three steps of processing, see diagram above
+		/* Define four steps of processing, see diagram above
 		 */
 		Vertex step1 = dag.newVertex("kafkaSource",
 				KafkaProcessors.streamKafkaP(properties, Constants.TOPIC_NAME_GPX))
 				.localParallelism(1)
 				;
 		
-		Vertex step2a = dag.newVertex("mapSink", SinkProcessors.writeMapP(Constants.IMAP_NAME_POSITION));
+		Vertex step2a = dag.newVertex("positionFilter",
+				() -> new PositionFilter(epsilonMetres, heartbeatMillis, maxIdleMillis, maxKeys));
 		Vertex step2b = dag.newVertex("logSink", DiagnosticProcessors.writeLoggerP(o -> new String(PREFIX + o)));
+		Vertex step3 = (speedInGrid ?
+				dag.newVertex("mapSink", PositionSpeedSink::new)
+				: dag.newVertex("mapSink", SinkProcessors.writeMapP(Constants.IMAP_NAME_POSITION)));
+		Vertex step3b = dag.newVertex("trailSink", () -> new TrailSink(trailPoints));
+		Vertex step3c = dag.newVertex("archive", () -> new TrackArchiver(archivePoints, maxIdleMillis, maxKeys));
+		Vertex step4c = dag.newVertex("archiveSink", SinkProcessors.writeMapP(Constants.IMAP_NAME_ARCHIVE));
 		
-		/* Connect the three steps together, not linearly
+		/* Connect the four steps together, not linearly
 		 */
-		dag.edge(Edge.from(step1,0).to(step2a,0));
+		dag.edge(Edge.from(step1,0).to(step2a,0).partitioned(DistributedFunctions.entryKey()));
         dag.edge(Edge.from(step1,1).to(step2b,0));
+        if (speedInGrid) {
+        		dag.edge(Edge.between(step2a, step3).isolated());
+        } else {
+        		dag.edge(Edge.between(step2a, step3));
+        }
+        dag.edge(Edge.from(step2a, 1).to(step3b));
+        dag.edge(Edge.from(step2a, 2).to(step3c).partitioned(DistributedFunctions.entryKey()));
+        dag.edge(Edge.between(step3c, step4c));
 		
 		return dag;
 	}
 
+	/**
+	 * <p>Connection properties for Kafka, also used by {@link Backfill}.
+	 * There isn't a constant for "earliest" in 1.0.0.
+	 * </p>
+	 *
+	 * @param bootstrapServers Kafka servers list
+	 * @return For a consumer of the "{@code gpx}" topic, in a group of its own
+	 */
+	static Properties kafkaProperties(String bootstrapServers) {
+		Properties properties = new Properties();
+		properties.put(ConsumerConfig.GROUP_ID_CONFIG, UUID.randomUUID().toString());
+		properties.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+		properties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getCanonicalName());
+		properties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, TrkPtDeserializer.class.getCanonicalName());
+		properties.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+		return properties;
+	}
+
 }
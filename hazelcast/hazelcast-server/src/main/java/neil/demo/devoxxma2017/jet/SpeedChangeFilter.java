@@ -0,0 +1,126 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.util.Map;
+
+import com.hazelcast.jet.core.AbstractProcessor;
+
+import lombok.extern.slf4j.Slf4j;
+import neil.demo.devoxxma2017.Speed;
+
+/**
+ * <p>An intermediate processor in front of a "{@code speed}" map sink, that
+ * drops speeds too close to the last one written for the same person.
+ * </p>
+ * <p>Every write to the map is an event sent to every client listening,
+ * such as the speed chart. Someone riding steadily produces window after
+ * window with nearly the same speed, and each of these costs a map write
+ * and a network hop per listener to show no visible change.
+ * </p>
+ * <p>A speed is passed on if it differs from the last one passed on for the
+ * person by at least the larger of "{@code minChangeMetresPerSecond}" and
+ * "{@code minChangeRatio}" of the last speed. So a small absolute change
+ * counts when going slowly, and a small relative change counts when going
+ * fast. Either can be zero to only use the other.
+ * </p>
+ * <p>A speed is also passed on if it is "{@code heartbeatMillis}" or more,
+ * in event time, since the last one passed on. So the time on the map
+ * entry moves on, and the chart doesn't look stuck.
+ * </p>
+ * <p>Offline markers are always passed on, and the person forgotten,
+ * so their next speed is always passed on. Someone not seen for
+ * "{@code maxIdleMillis}" is forgotten too, see {@link IdleKeys}.
+ * </p>
+ * <p>This relies on all speeds for the same person coming to the same
+ * instance of this processor, so the inbound edge has to be partitioned
+ * or isolated from a stage that is.
+ * </p>
+ */
+@Slf4j
+public class SpeedChangeFilter extends AbstractProcessor {
+
+	private static final String PREFIX = SpeedChangeFilter.class.getSimpleName() + " ";
+	private static final int LOG_INTERVAL = 10_000;
+
+	private final double minChangeMetresPerSecond;
+	private final double minChangeRatio;
+	private final long heartbeatMillis;
+	private final IdleKeys<Speed> lastWritten;
+	private long dropped;
+	private long kept;
+
+	public SpeedChangeFilter(double minChangeMetresPerSecond, double minChangeRatio, long heartbeatMillis,
+			long maxIdleMillis, int maxKeys) {
+		this.minChangeMetresPerSecond = minChangeMetresPerSecond;
+		this.minChangeRatio = minChangeRatio;
+		this.heartbeatMillis = heartbeatMillis;
+		this.lastWritten = new IdleKeys<>(maxIdleMillis, maxKeys);
+	}
+
+	/**
+	 * <p>Pass on the speed if it is worth writing, otherwise
+	 * consume it silently.
+	 * </p>
+	 *
+	 * @param ordinal 0, the only input edge
+	 * @param item A {@code Map.Entry<String, Speed>}
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	protected boolean tryProcess(int ordinal, Object item) {
+		Map.Entry<String, Speed> entry = (Map.Entry<String, Speed>) item;
+		Speed speed = entry.getValue();
+		long now = System.currentTimeMillis();
+
+		// Here too, as under load the inbox may never be empty
+		this.lastWritten.expire(now);
+
+		if (speed.isOffline() || this.isChanged(this.lastWritten.get(entry.getKey()), speed)) {
+			if (!this.tryEmit(item)) {
+				return false;
+			}
+			if (speed.isOffline()) {
+				this.lastWritten.remove(entry.getKey());
+			} else {
+				this.lastWritten.put(entry.getKey(), speed, now);
+			}
+			this.kept++;
+		} else {
+			this.dropped++;
+		}
+
+		if ((this.kept + this.dropped) % LOG_INTERVAL == 0) {
+			log.info("{} kept {}, dropped {}, tracking {} keys", PREFIX, this.kept, this.dropped, this.lastWritten.size());
+		}
+
+		return true;
+	}
+
+	/**
+	 * <p>Called when there is no input, forget anyone idle too long.
+	 * Nothing is emitted for them. Also done for each speed.
+	 * </p>
+	 */
+	@Override
+	public boolean tryProcess() {
+		this.lastWritten.expire(System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * @param previous Last speed passed on, null if none
+	 * @param speed Candidate
+	 * @return True if this speed should be passed on
+	 */
+	private boolean isChanged(Speed previous, Speed speed) {
+		if (previous == null) {
+			return true;
+		}
+		if (speed.getTime() - previous.getTime() >= this.heartbeatMillis) {
+			return true;
+		}
+
+		double threshold = Math.max(this.minChangeMetresPerSecond,
+				this.minChangeRatio * Math.abs(previous.getMetresPerSecond()));
+		return Math.abs(speed.getMetresPerSecond() - previous.getMetresPerSecond()) >= threshold;
+	}
+}
@@ -0,0 +1,97 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.hazelcast.core.ExecutionCallback;
+import com.hazelcast.core.IMap;
+import com.hazelcast.jet.core.AbstractProcessor;
+
+import lombok.extern.slf4j.Slf4j;
+import neil.demo.devoxxma2017.Constants;
+import neil.demo.devoxxma2017.Speed;
+import neil.demo.devoxxma2017.SpeedHistory;
+import neil.demo.devoxxma2017.SpeedHistoryAppender;
+
+/**
+ * <p>A sink that adds each speed to the person's {@link SpeedHistory} in
+ * the "{@code history}" {@link com.hazelcast.core.IMap IMap}, using a
+ * {@link SpeedHistoryAppender}.
+ * </p>
+ * <p>Sent asynchronously with a limit on how many are outstanding, the
+ * same as {@link TrailSink}. Offline markers are skipped here rather than
+ * sent to be ignored.
+ * </p>
+ * <p>Another map and a key prefix can be given, so {@link Backfill} can
+ * keep each run's histories apart from the live ones and each other.
+ * </p>
+ */
+@Slf4j
+public class SpeedHistorySink extends AbstractProcessor {
+
+	private static final int MAX_IN_FLIGHT = 1_000;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final ExecutionCallback<Object> callback = new ExecutionCallback<Object>() {
+		@Override
+		public void onResponse(Object response) {
+			inFlight.decrementAndGet();
+		}
+		@Override
+		public void onFailure(Throwable t) {
+			inFlight.decrementAndGet();
+			log.error("SpeedHistoryAppender", t);
+		}
+	};
+
+	private final String mapName;
+	private final String keyPrefix;
+	private IMap<String, SpeedHistory> historyMap;
+
+	public SpeedHistorySink() {
+		this(Constants.IMAP_NAME_HISTORY, "");
+	}
+
+	/**
+	 * @param mapName Map to add to
+	 * @param keyPrefix Put in front of the person for the key
+	 */
+	public SpeedHistorySink(String mapName, String keyPrefix) {
+		this.mapName = mapName;
+		this.keyPrefix = keyPrefix;
+	}
+
+	@Override
+	protected void init(Context context) throws Exception {
+		this.historyMap = context.jetInstance().getHazelcastInstance().getMap(this.mapName);
+	}
+
+	/**
+	 * @param ordinal 0, the only input edge
+	 * @param item A {@code Map.Entry<String, Speed>}
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	protected boolean tryProcess(int ordinal, Object item) {
+		Map.Entry<String, Speed> entry = (Map.Entry<String, Speed>) item;
+		if (entry.getValue().isOffline()) {
+			return true;
+		}
+		if (this.inFlight.get() >= MAX_IN_FLIGHT) {
+			return false;
+		}
+
+		this.inFlight.incrementAndGet();
+		this.historyMap.submitToKey(this.keyPrefix + entry.getKey(), new SpeedHistoryAppender(entry.getValue()), this.callback);
+		return true;
+	}
+
+	/**
+	 * <p>Only finished when nothing is outstanding.
+	 * </p>
+	 */
+	@Override
+	public boolean complete() {
+		return this.inFlight.get() == 0;
+	}
+}
@@ -0,0 +1,206 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+import com.hazelcast.jet.datamodel.TimestampedEntry;
+
+import neil.demo.devoxxma2017.RideMetrics;
+import neil.demo.devoxxma2017.SpeedStats;
+
+/**
+ * <p>A <i>reduction</i> of window results to speed percentiles and a count
+ * of distinct riders, in a fixed amount of memory however many people
+ * there are.
+ * </p>
+ * <p>Exact percentiles would need every speed in one place to sort.
+ * Instead two "<i>sketches</i>" are kept, each of which can be
+ * combined with another of the same kind by simple addition or maximum,
+ * so each member can sketch the people it owns and only the sketches
+ * travel to be combined.
+ * </p>
+ * <ul>
+ * <li><p><b>Speeds</b> go in a log-linear histogram, in the style of an
+ * HDR histogram. Speeds are counted in millimetres per second, in buckets
+ * that are 1 wide below {@link #LINEAR_BUCKETS} and then double in width
+ * for each doubling of speed, {@link #SUB_BUCKETS} to each doubling. So any
+ * speed is placed to within about 3%, and the top bucket is over 1000 m/s.
+ * </p>
+ * </li>
+ * <li><p><b>Riders</b> go in a HyperLogLog. Each name is hashed, the first
+ * {@link #REGISTER_BITS} bits of the hash choose a register and the
+ * register remembers the longest run of leading zeroes seen in the
+ * rest. The more distinct names, the longer the longest run. Seeing
+ * the same name twice changes nothing. The error is about 3%.
+ * </p>
+ * </li>
+ * </ul>
+ */
+@SuppressWarnings("serial")
+public class SpeedStatsAggregation implements Serializable {
+
+	private static final int LINEAR_BUCKETS = 64;
+	private static final int SUB_BUCKETS = 32;
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int MAX_MAGNITUDE = 20;
+	private static final int BUCKETS = LINEAR_BUCKETS + (MAX_MAGNITUDE - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+	private static final int REGISTER_BITS = 10;
+	private static final int REGISTERS = 1 << REGISTER_BITS;
+
+	private final long[] counts = new long[BUCKETS];
+	private final byte[] registers = new byte[REGISTERS];
+	private long moving;
+
+	/**
+	 * <p>Add one person's window result. Everyone counts as a rider,
+	 * only those moving have a speed.
+	 * </p>
+	 *
+	 * @param input A window result from {@link Speedo}
+	 * @return
+	 */
+	public SpeedStatsAggregation accumulate(TimestampedEntry<String, RideMetrics> input) {
+		this.addRider(input.getKey());
+		double metresPerSecond = input.getValue().getMetresPerSecond();
+		if (metresPerSecond > 0) {
+			this.counts[bucket(Math.round(metresPerSecond * 1000d))]++;
+			this.moving++;
+		}
+		return this;
+	}
+
+	/**
+	 * <p>Merge the sketches from another accumulator. Histograms add,
+	 * registers take the larger.
+	 * </p>
+	 *
+	 * @param that Another accumulator, perhaps from another JVM
+	 * @return
+	 */
+	public SpeedStatsAggregation combine(SpeedStatsAggregation that) {
+		for (int i = 0; i < BUCKETS; i++) {
+			this.counts[i] += that.counts[i];
+		}
+		for (int i = 0; i < REGISTERS; i++) {
+			this.registers[i] = (byte) Math.max(this.registers[i], that.registers[i]);
+		}
+		this.moving += that.moving;
+		return this;
+	}
+
+	/**
+	 * @return The statistics, timed by Jet's window
+	 */
+	public SpeedStats finish() {
+		SpeedStats speedStats = new SpeedStats();
+		speedStats.setP50MetresPerSecond(this.percentile(0.50));
+		speedStats.setP95MetresPerSecond(this.percentile(0.95));
+		speedStats.setP99MetresPerSecond(this.percentile(0.99));
+		speedStats.setMoving(this.moving);
+		speedStats.setRiders(this.riders());
+		return speedStats;
+	}
+
+	/**
+	 * <p>Walk the histogram until the fraction is reached.
+	 * </p>
+	 *
+	 * @return The middle of the bucket, in metres per second, 0 if none moving
+	 */
+	private double percentile(double fraction) {
+		if (this.moving == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(fraction * this.moving);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += this.counts[i];
+			if (seen >= rank) {
+				return middle(i) / 1000d;
+			}
+		}
+		return middle(BUCKETS - 1) / 1000d;
+	}
+
+	/**
+	 * <p>Which bucket a speed in millimetres per second goes in.
+	 * Above the linear range, the magnitude picks the doubling and
+	 * the top bits below it pick the bucket within it.
+	 * </p>
+	 */
+	private static int bucket(long millimetresPerSecond) {
+		if (millimetresPerSecond < LINEAR_BUCKETS) {
+			return (int) millimetresPerSecond;
+		}
+		int magnitude = Math.min(63 - Long.numberOfLeadingZeros(millimetresPerSecond), MAX_MAGNITUDE - 1);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		int sub = (int) Math.min(millimetresPerSecond >> shift, 2 * SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (magnitude - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + (sub - SUB_BUCKETS);
+	}
+
+	/**
+	 * <p>The reverse of {@link #bucket(long)}, the middle of a bucket.
+	 * </p>
+	 */
+	private static double middle(int bucket) {
+		if (bucket < LINEAR_BUCKETS) {
+			return bucket;
+		}
+		int magnitude = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+		int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		int shift = magnitude - SUB_BUCKET_BITS;
+		return ((long) sub << shift) + (1L << shift) / 2d;
+	}
+
+	private void addRider(String rider) {
+		long hash = hash(rider);
+		int register = (int) (hash >>> (64 - REGISTER_BITS));
+		// Leading zeroes in the rest, plus one. A set bit at the end stops the count running off
+		int rank = Long.numberOfLeadingZeros((hash << REGISTER_BITS) | (1L << (REGISTER_BITS - 1))) + 1;
+		if (rank > this.registers[register]) {
+			this.registers[register] = (byte) rank;
+		}
+	}
+
+	/**
+	 * <p>The HyperLogLog estimate, with the usual correction when many
+	 * registers are still empty.
+	 * </p>
+	 */
+	private long riders() {
+		double sum = 0;
+		int empty = 0;
+		for (byte register : this.registers) {
+			sum += 1d / (1L << register);
+			if (register == 0) {
+				empty++;
+			}
+		}
+		double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+		double estimate = alpha * REGISTERS * REGISTERS / sum;
+		if (estimate <= 2.5 * REGISTERS && empty > 0) {
+			estimate = REGISTERS * Math.log((double) REGISTERS / empty);
+		}
+		return Math.round(estimate);
+	}
+
+	/**
+	 * <p>FNV-1a over the name, then mixed so all 64 bits depend
+	 * on every byte.
+	 * </p>
+	 */
+	private static long hash(String rider) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : rider.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= (b & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -1,7 +1,13 @@
 package neil.demo.devoxxma2017.jet;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
+import com.hazelcast.jet.Util;
 import com.hazelcast.jet.aggregate.AggregateOperation;
 import com.hazelcast.jet.aggregate.AggregateOperation1;
 import com.hazelcast.jet.core.DAG;
@@ -9,21 +15,20 @@ import com.hazelcast.jet.core.Edge;
 import com.hazelcast.jet.core.TimestampKind;
 import com.hazelcast.jet.core.Vertex;
 import com.hazelcast.jet.core.WatermarkEmissionPolicy;
-import com.hazelcast.jet.core.WatermarkPolicies;
 import com.hazelcast.jet.core.WindowDefinition;
 import com.hazelcast.jet.core.processor.Processors;
 import com.hazelcast.jet.core.processor.SinkProcessors;
-import com.hazelcast.jet.core.processor.SourceProcessors;
+import com.hazelcast.jet.datamodel.Session;
 import com.hazelcast.jet.datamodel.TimestampedEntry;
 import com.hazelcast.jet.function.DistributedFunction;
 import com.hazelcast.jet.function.DistributedFunctions;
-import com.hazelcast.jet.function.DistributedPredicate;
 import com.hazelcast.jet.function.DistributedToLongFunction;
-import com.hazelcast.map.journal.EventJournalMapEvent;
 
 import neil.demo.devoxxma2017.Constants;
-import neil.demo.devoxxma2017.Gpx.TrkPt;
-import neil.demo.devoxxma2017.Speed;
+import neil.demo.devoxxma2017.Leaderboard;
+import neil.demo.devoxxma2017.Ride;
+import neil.demo.devoxxma2017.RideMetrics;
+import neil.demo.devoxxma2017.SpeedStats;
 
 /**
  * <p>A Jet "<i>DAG</i>" is a <b>D</b>istributed <b>A</b>cyclic <b>G</b>raph,
@@ -33,11 +38,9 @@ import neil.demo.devoxxma2017.Speed;
  */
 public class Speedo {
 
-	private static final boolean START_FROM_OLDEST = false;
-	private static final DistributedPredicate<EventJournalMapEvent<String, TrkPt>> NO_SELECTION_FILTER = null;
-	private static final DistributedFunction<EventJournalMapEvent<String, TrkPt>, ?> NO_PROJECTION_FILTER = null;
-    private static final int ONE_MINUTE_IN_MS = 60 * 1000;
-    private static final int FIVE_MINUTES_IN_MS = 5 * ONE_MINUTE_IN_MS;
+	private static final boolean START_FROM_LATEST = false;
+	private static final String LEADERBOARD_KEY = "fastest";
+    private static final int ONE_SECOND_IN_MS = 1000;
 
 	/**
 	 * <p>What this job does is analyse a stream of positions to produce
@@ -64,58 +67,61 @@ public class Speedo {
 	 *                    |
 	 *                    |
 	 *              +----------+
-	 *              |2 Project |
-	 *              |  Journal |
-	 *              | to Entry |
-	 *              +----------+
-	 *                    |
-	 *                    |
-	 *                    |
-	 *              +----------+
-	 *              |3         |
+	 *              |2         |
 	 *              | Punctuate|
-	 *              |          |
+	 *              |          |-----> steps 8 to 11, rides
 	 *              +----------+
 	 *                    |
 	 *                    |
 	 *                    |
 	 *              +----------+
-	 *              |4         |
-	 *              | Calculate|
-	 *              |   Speed  |
-	 *              +----------+
-	 *                    |
-	 *                    |
-	 *                    |
-	 *              +----------+
-	 *              |5 Project |
-	 *              |  Entry   |
-	 *              | to Value |
-	 *              +----------+
-	 *                    |
-	 *                    |
-	 *                    |
-	 *              +----------+
-	 *              |6 Remove  |
-	 *              |   Not    |
-	 *              |  Moving  |
-	 *              +----------+
-	 *                    |
-	 *                    |
-	 *                    |
-	 *              +----------+
-	 *              |7  Print  |
-	 *              |   Out    |
+	 *              |3  Frame  |
+	 *              |Accumulate|
 	 *              |          |
 	 *              +----------+
-	 *                    |
-	 *                    |
-	 *                    |
-	 *              +----------+
-	 *              |8  IMap   |
-	 *              |  "speed" |
-	 *              |   Sink   |
-	 *              +----------+
+	 *                 /    \
+	 *                /      \
+	 *               /        \
+	 *     +----------+      +----------+
+	 *     |4 Window  |      |4 Window  |
+	 *     |  Speed   |      |  Speed   | ... one for each
+	 *     | 5m by 1m |-->   |10s by 10s|     extra window
+	 *     +----------+  |   +----------+
+	 *           |       |         |
+	 *           |       +-------> steps 12 to 15, leaderboard
+	 *           |       +-------> steps 16 to 19, statistics
+	 *           |                 |
+	 *           |                 |
+	 *     +----------+      +----------+
+	 *     |5 Remove  |      |5 Remove  |
+	 *     |   Not    |      |   Not    |
+	 *     |  Moving  |      |  Moving  |
+	 *     +----------+      +----------+
+	 *       |      \              |
+	 *       |       \             |
+	 *       |        \            |
+	 *       |     +----------+    |
+	 *       |     |7  IMap   |    |
+	 *       |     |"metrics" |    |
+	 *       |     |   Sink   |    |
+	 *       |     +----------+    |
+	 *       |                     |
+	 *     +----------+            |
+	 *     |6  Print  |            |
+	 *     |   Out    |            |
+	 *     |          |            |
+	 *     +----------+            |
+	 *           |                 |
+	 *           |                 |
+	 *           |                 |
+	 *           |\                |
+	 *           | +-----> step 20, history
+	 *           |                 |
+	 *     +----------+      +----------+
+	 *     |7  IMap   |      |7  IMap   |
+	 *     |  "speed" |      |"speed-10s|
+	 *     |   Sink   |      |   Sink   |
+	 *     +----------+      +----------+
 	 * </pre>
 	 * <p>The stages are:
 	 * </p>
@@ -123,64 +129,98 @@ public class Speedo {
 	 * <li><b>Step 1</b>
 	 * <p>Step 1 is a "<i>source</i>", it reads from Hazelcast's internal journal of
 	 * changes to the "{@code position}" {@link com.hazelcast.core.IMap IMap} and
-	 * injects these records into the graph. The records are of type
+	 * injects these records into the graph. The journal records are of type
 	 * {@link com.hazelcast.map.journal.EventJournalMapEvent EvenetJournalMapEvent}
 	 * as the journal records events on a map ; there is an equivalent for cache
 	 * events.
 	 * </p>
-	 * <p>A "{@code null}" selection and a "{@code null}" projection argument are shown here.
-	 * You can omit them, there is a 2 argument version of this source that defaults them
-	 * to "{@code null}").
-	 * </p>
-	 * <p>Ordinarily these would be useful to reduce the number of records passed on to
-	 * the next stage or to reduce their size. The sooner you can reduce the data volume
-	 * the faster everything runs.
-	 * </p>
-	 * </li>
-	 * <li><b>Step 2</b>
-	 * <p>Step 2 takes the output from step 1 as input, reformats each data record from a
-	 * {@link com.hazelcast.map.journal.EventJournalMapEvent EvenetJournalMapEvent} to a
+	 * <p>A selection and a projection are given to the journal reader, see
+	 * {@link PositionJournal}. Events that aren't new points are discarded, and the
+	 * rest are reformatted into a
 	 * {@link com.hazelcast.jet.datamodel.TimestampedEntry TimestampedEntry}
-	 * to pass on to step 3. As above, this would be more efficient to build this projection
-	 * into step 1 logic but less obvious.
-	 * </p>.
+	 * holding a {@link Point}, all before they leave the partition thread.
+	 * The sooner you can reduce the data volume the faster everything runs.
+	 * </p>
 	 * <p>A {@link com.hazelcast.jet.datamodel.TimestampedEntry TimestampedEntry} is just
 	 * like a {@link java.util.Map.Entry Map.Entry}, it has a key and a value, but also
 	 * an accessible timestamp which we use later for windowing.
 	 * </p>
 	 * </li>
-	 * <li><b>Step 3</b>
-	 * <p>Step 3 is a "<i>marking</i>" step. Meta-data (timestamps) is inserted periodically,
+	 * <li><b>Step 2</b>
+	 * <p>Step 2 is a "<i>marking</i>" step. Meta-data (timestamps) is inserted periodically,
 	 * into the event stream to enable the next stage to determine the next stage to
 	 * discard events that don't belong in the window and would perturb the
 	 * calculation.
 	 * </p>
+	 * <p>The watermark is held back behind the newest point by a lag that adapts
+	 * to how out-of-order the points are, see {@link AdaptiveLagPolicy}. Points
+	 * behind the watermark are dropped as too late. {@link SpeedoPunctuator}
+	 * publishes the lag and the count dropped to the "{@code monitor}" map.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 3</b>
+	 * <p>This is the first half of a "<i>reduction</i>". Points are passed into
+	 * {@link SpeedoAggregation}, one accumulator per person per "<i>frame</i>",
+	 * a short slice of time. When the watermark passes the end of a frame, the
+	 * accumulators for it are passed on.
+	 * </p>
+	 * <p>The frame is the largest slice of time that divides the slide of every
+	 * window wanted, so all the windows can be built from the same frames. Each
+	 * point is accumulated once here however many windows are wanted.
+	 * </p>
+	 * <p>Normally all points for one person go to the same instance. But if a
+	 * few people send far more points than the rest, the instances they land
+	 * on do most of the work. With "{@code saltBuckets}" above 1, each point's
+	 * key is "<i>salted</i>" with a random bucket number for routing only,
+	 * so one person's points are spread over several instances, each making
+	 * partial accumulators for the frame. Step 4 then brings these together
+	 * by person with {@link SpeedoAggregation#combine combine}, which doesn't
+	 * care what order the partial results come in.
+	 * </p>
+	 * <p>Steps 3 and 4 are wrapped by {@link MeteredProcessor}, so the items each
+	 * instance handles can be compared in the "{@code monitor}" map.
+	 * </p>
 	 * </li>
 	 * <li><b>Step 4</b>
-	 * <p>This is a "<i>reduction</i>" stage, a window's worth of data records
-	 * is passed into {@link SpeedoAggregation} which produces a single data.
-	 * Refer to this class for the details, but it's the core of the business
+	 * <p>This is the second half of the "<i>reduction</i>", there is one of these
+	 * for each window wanted. Frames are combined into windows, and the
+	 * window's worth of points produces a single speed.
+	 * Refer to {@link SpeedoAggregation} for the details, but it's the core of the business
 	 * logic, calculate one speed based on some points.
 	 * </p>
+	 * <p>The same pass over the points also gives the distance along the path,
+	 * the fastest speed between two points, the height climbed and the pace,
+	 * all in one {@link neil.demo.devoxxma2017.RideMetrics RideMetrics}. Another
+	 * metric is another field in the accumulator, not another job reading
+	 * the journal again.
+	 * </p>
 	 * <p>A window is a view onto a continuous stream, unlike a batch or micro-batch
 	 * which is a discrete block of data. Events that are visible in a window may
 	 * be visible in other windows, if the windows are overlapping.
 	 * </p>
-	 * <p>What goes into this stage is windows of map entries of a certain type
-	 * ("{code <String, TrkPt>}") and what comes out is a map entry of a different
-	 * time ("{code <String, Entry<String,Speed>>}").
+	 * <p>What goes into this stage is frames of map entries of a certain type
+	 * ("{code <String, SpeedoAggregation>}") and what comes out is a map entry of a different
+	 * time ("{code <String, RideMetrics>}"), timestamped with the end of the window.
 	 * </p>
 	 * </li>
 	 * <li><b>Step 5</b>
-	 * <p>This is another "<i>projection</i>" taking "{code <String, Entry<String,Speed>>}"
-	 * from step 4 and putting out "{code Entry<String,Speed>}"
-	 * </p>
-	 * </li>
-	 * <li><b>Step 6</b>
 	 * <p>This is a "<i>filter</i>" stage operating on the value part of
-	 * the map entry produced by step 5 (a {@link neil.demo.devoxxma2017.Speed Speed}
-	 * record). Speed records which aren't based on sufficient tracking points
-	 * are discarded.
+	 * the map entry produced by step 4 (a {@link neil.demo.devoxxma2017.RideMetrics RideMetrics}
+	 * record). Records which aren't based on sufficient tracking points
+	 * are discarded, the rest are turned into {@link neil.demo.devoxxma2017.Speed Speed}
+	 * records.
+	 * </p>
+	 * <p>For the first window only, every record is also passed whole on a second
+	 * output to the "{@code metrics}" map.
+	 * </p>
+	 * <p>There is no "<i>projection</i>" vertex in front of this. The window
+	 * result is already a map entry keyed by person, so there is nothing for
+	 * one to do, and each vertex has its own queues and tasklets.
+	 * </p>
+	 * <p>The filter is a {@link SpeedoExpiry}, which also notes who is active.
+	 * Someone who hasn't had a window result for a while is forgotten and an
+	 * offline {@link neil.demo.devoxxma2017.Speed Speed} is emitted for them,
+	 * so the map doesn't show the last speed as current.
 	 * </p>
 	 * </li>
 	 * <li><b>Step 6</b>
@@ -198,90 +238,491 @@ public class Speedo {
 	 * terminal processor. Conversely, this gives sequentiality, we can see the data before
 	 * it goes to the {@link com.hazelcast.core.IMap IMap}.
 	 * </p>
+	 * <p>Only the first window, the 5 minute window that the speed chart shows,
+	 * is logged.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 7</b>
+	 * <p>Step 7 is a "<i>sink</i>", the entries produced by step 4 that
+	 * haven't been discarded are saved to a {@link com.hazelcast.core.IMap IMap}.
+	 * Just in front of it a {@link SpeedChangeFilter} drops speeds that have
+	 * hardly changed since the last one written for the person, as every
+	 * write is an event to every listening client.
+	 * The first window goes to the map named "{@code speed}", the others to
+	 * maps named for the window length and slide, such as "{@code speed-10s}"
+	 * for a tumbling window or "{@code speed-60s-10s}" for a sliding one.
+	 * </p>
+	 * <p>The first window's {@link neil.demo.devoxxma2017.RideMetrics RideMetrics}
+	 * go to the map named "{@code metrics}", one record per person, replaced each window.
+	 * </p>
 	 * </li>
+	 * </ol>
+	 * <p>The sliding windows carry on through a long stop, and never say where one
+	 * ride ends and the next begins. So a second branch from step 2 finds rides:
+	 * </p>
+	 * <pre>
+	 *   +----------+     +----------+     +----------+     +----------+
+	 *   |8 Remove  |     |9 Session |     |10 Ride   |     |11 IMap   |
+	 *   |Stationary|---->|  Window  |---->| Summary  |---->|  "ride"  |
+	 *   |          |     |          |     |          |     |   Sink   |
+	 *   +----------+     +----------+     +----------+     +----------+
+	 * </pre>
+	 * <ol start="8">
 	 * <li><b>Step 8</b>
-	 * <p>Step 8 is a "<i>sink</i>", the entries produced by step 5 that
-	 * haven't been discarded by step 6 are saved to a {@link com.hazelcast.core.IMap IMap}
-	 * named "{@code speed}".
+	 * <p>A {@link MovementFilter}. The Kafka reader still passes on a point every
+	 * so often for someone who has stopped, so that time moves on. Here those
+	 * would keep a ride going, so points that haven't moved are dropped.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 9</b>
+	 * <p>A "<i>session window</i>" for each person, which stays open while points
+	 * keep coming and closes once there have been none for "{@code rideGapMillis}".
+	 * The same {@link SpeedoAggregation} accumulates the ride. When the session
+	 * closes all its state is released, so memory is only needed for rides in
+	 * progress.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 10</b>
+	 * <p>A "<i>projection</i>", turning the session result into a
+	 * {@link neil.demo.devoxxma2017.Ride Ride} keyed by person and start time.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 11</b>
+	 * <p>A "<i>sink</i>", saving each ride to the "{@code ride}" map.
+	 * </p>
+	 * </li>
+	 * </ol>
+	 * <p>A third branch, from the first window's step 4, keeps a leaderboard of
+	 * the fastest "{@code leaderboardSize}" people for each window:
+	 * </p>
+	 * <pre>
+	 *   +----------+     +----------+     +----------+     +----------+
+	 *   |12 Local  |     |13 Global |     |14 Stamp  |     |15 IMap   |
+	 *   |  Top-K   |====>|  Top-K   |---->|   Time   |---->|"leader-  |
+	 *   |          |     |          |     |          |     |  board"  |
+	 *   +----------+     +----------+     +----------+     +----------+
+	 * </pre>
+	 * <ol start="12">
+	 * <li><b>Step 12</b>
+	 * <p>The first half of another "<i>reduction</i>", this time not grouped by
+	 * person. Each instance keeps the fastest few of the window results it
+	 * sees in a {@link LeaderboardAggregation}, which is a fixed size however
+	 * many people there are. The window results are already timestamped with
+	 * the window end, so these are tumbling windows with the window's slide.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 13</b>
+	 * <p>The second half. The fastest few overall must be among the fastest
+	 * few of each instance, so only these small partial results cross the
+	 * network to be combined, not a speed for every person.
+	 * There is only one instance of this step in the cluster.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 14</b>
+	 * <p>A "<i>projection</i>", putting the window end into the
+	 * {@link neil.demo.devoxxma2017.Leaderboard Leaderboard}.
+	 * </p>
+	 * </li>
+	 * <li><b>Step 15</b>
+	 * <p>A "<i>sink</i>", replacing the one entry in the "{@code leaderboard}" map.
+	 * So reading the leaderboard is one small get, rather than scanning the
+	 * "{@code speed}" map and sorting it.
 	 * </p>
 	 * </li>
 	 * </ol>
+	 * <p>A fourth branch, the same shape as the third, gives statistics across
+	 * everyone for each window:
+	 * </p>
+	 * <pre>
+	 *   +----------+     +----------+     +----------+     +----------+
+	 *   |16 Local  |     |17 Global |     |18 Stamp  |     |19 IMap   |
+	 *   | Sketches |====>| Sketches |---->|   Time   |---->| "stats"  |
+	 *   |          |     |          |     |          |     |   Sink   |
+	 *   +----------+     +----------+     +----------+     +----------+
+	 * </pre>
+	 * <p>The 50th, 95th and 99th percentile speeds and the number of distinct
+	 * riders, from the sketches in {@link SpeedStatsAggregation}. As for the
+	 * leaderboard, each instance sketches what it sees and only the sketches,
+	 * a few kilobytes each, are combined. Each window adds an entry to the
+	 * "{@code stats}" map keyed by the window end, the map's own expiry
+	 * removes old ones.
+	 * </p>
+	 * <p>A fifth branch, step 20, is a second sink for the first window's speeds,
+	 * a {@link SpeedHistorySink}. It adds each speed to the person's
+	 * {@link neil.demo.devoxxma2017.SpeedHistory SpeedHistory} in the
+	 * "{@code history}" map, so a chart started late can fetch what it missed
+	 * in one get rather than only seeing speeds from then on.
+	 * </p>
+	 * <p><b>Note:</b> Only the edge into step 3 is partitioned, by the key, as the
+	 * aggregation needs all points for one person. It is not distributed. The
+	 * "{@code position}" map is partitioned by the same key, so the journal events
+	 * for one person are all read on the JVM that owns that key. The edges out of
+	 * steps 3 and 4 are "{@code isolated}", each instance feeds its own instance of
+	 * the next step with no routing decision at all, and all the frames for one
+	 * person stay together. The edge into each change filter in front of step 7
+	 * is partitioned by the key for the first window, as the logger before it is
+	 * round-robin, and isolated for the others. The other edges are local round-robin.
+	 * When salted, the edge into step 3 is partitioned by the salted key instead,
+	 * and the edges out of step 3 are partitioned by the key.
+	 * For rides, the edge into step 8 is partitioned by the key and the edge on to
+	 * step 9 is isolated, again so all of a person's points stay together.
+	 * For the leaderboard and statistics, the edges into steps 13 and 17 are distributed and all to one,
+	 * marked "{@code ====>}", as the combining has to happen in one place.
+	 * The edge into step 2 has to be round-robin, as some journal readers may
+	 * have no partitions and every punctuation instance needs items to move its
+	 * watermark on.
+	 * </p>
 	 * 
+	 * @param windows Window lengths and slides in seconds, see {@link #windowDefinitions(String)}
+	 * @param minLagMillis Least the watermark is held back
+	 * @param maxLagMillis Most the watermark is held back
+	 * @param maxIdleMillis How long before someone with no points is offline
+	 * @param maxKeys Most people each processor remembers
+	 * @param saltBuckets How many step 3 instances to spread one person over, 1 for no salting
+	 * @param rideGapMillis How long without moving ends a ride
+	 * @param epsilonMetres Less than this from the last point isn't moving
+	 * @param leaderboardSize How many of the fastest to keep for each window
+	 * @param minChangeMetresPerSecond Least absolute change in speed worth writing, see {@link SpeedChangeFilter}
+	 * @param minChangeRatio Least relative change in speed worth writing
+	 * @param changeHeartbeatMillis Write anyway if this long since the last write
 	 * @return
 	 */
-	public static DAG build() {
+	public static DAG build(String windows, long minLagMillis, long maxLagMillis, long maxIdleMillis, int maxKeys,
+			int saltBuckets, long rideGapMillis, double epsilonMetres, int leaderboardSize,
+			double minChangeMetresPerSecond, double minChangeRatio, long changeHeartbeatMillis) {
+		if (leaderboardSize < 1) {
+			throw new IllegalArgumentException("leaderboardSize must be at least 1, not " + leaderboardSize);
+		}
 
 		/* Create a processing graph
 		 */
 		DAG dag = new DAG();
 
-		/* Define a time based data window - 5 minutes long and advancing to a new window every
-		 * minute. Therefore overlapping, some data in consecutive windows.
+		/* Define the time based data windows. The first is usually 5 minutes long and advancing
+		 * to a new window every minute. Therefore overlapping, some data in consecutive windows.
+		 * All are built from frames of a common length.
 		 */
-        WindowDefinition windowDefinition = WindowDefinition.slidingWindowDef(FIVE_MINUTES_IN_MS, ONE_MINUTE_IN_MS);
+		List<WindowDefinition> windowDefinitions = windowDefinitions(windows);
+		long frameLength = windowDefinitions.stream().mapToLong(WindowDefinition::frameLength).reduce(0, Speedo::gcd);
+		WindowDefinition frameDefinition = WindowDefinition.tumblingWindowDef(frameLength);
 
         /* Define an aggregator on a single stream, type <Input, Aggregator, Output>, that takes a series of
-         * positions and "aggregates" these together reducing them to a speed.
+         * positions and "aggregates" these together reducing them to a speed and other metrics.
          */
-        AggregateOperation1<TimestampedEntry<String,TrkPt>, SpeedoAggregation, Map.Entry<String, Speed>> speedoAggregation 
+        AggregateOperation1<TimestampedEntry<String,Point>, SpeedoAggregation, RideMetrics> speedoAggregation 
         			= AggregateOperation
                 .withCreate(SpeedoAggregation::new)
                 .andAccumulate(SpeedoAggregation::accumulate)
                 .andCombine(SpeedoAggregation::combine)
                 .andFinish(SpeedoAggregation::finish);
+
+        /* The same, but for combining frames from step 3 rather than accumulating points.
+         */
+        AggregateOperation1<TimestampedEntry<String,SpeedoAggregation>, SpeedoAggregation, RideMetrics> frameAggregation
+        			= speedoAggregation.withCombiningAccumulateFn(TimestampedEntry::getValue);
         
 		/* Define the steps of processing, see diagram above
 		 */
-		Vertex step1 = dag.newVertex("eventJournal", 
-				SourceProcessors.streamMapP(Constants.IMAP_NAME_POSITION, NO_SELECTION_FILTER, NO_PROJECTION_FILTER, START_FROM_OLDEST))
-				;
-
-        Vertex step2 = dag.newVertex("projection",
-                Processors.mapP((EventJournalMapEvent<String,TrkPt> event) 
-                		-> new TimestampedEntry<>(event.getNewValue().getDate().getTime(), event.getKey(), event.getNewValue()
-                )));
-
-		Vertex step3 = dag.newVertex("punctuation",
-                Processors.insertWatermarksP(
-                        		(DistributedToLongFunction<TimestampedEntry<String,TrkPt>>) TimestampedEntry::getTimestamp,
-                				WatermarkPolicies.withFixedLag(0), 
-                             WatermarkEmissionPolicy.emitByFrame(windowDefinition)));
+		Vertex step1 = dag.newVertex("eventJournal", PositionJournal.streamPositionP(Speedo.class.getSimpleName(), START_FROM_LATEST));
+
+		WatermarkEmissionPolicy watermarkEmissionPolicy = WatermarkEmissionPolicy.emitByFrame(frameDefinition);
+		Vertex step2 = dag.newVertex("punctuation",
+				() -> new SpeedoPunctuator(minLagMillis, maxLagMillis, watermarkEmissionPolicy));
 		
-        Vertex step4 = dag.newVertex("aggregate",
-        		Processors.aggregateToSlidingWindowP(
+        Vertex step3 = dag.newVertex("accumulate",
+        		MeteredProcessor.metered(
+        		Processors.accumulateByFrameP(
         				DistributedFunctions.entryKey(),
                 		(DistributedToLongFunction<TimestampedEntry<?, ?>>) TimestampedEntry::getTimestamp,
         				TimestampKind.EVENT, 
-        				windowDefinition,
+        				frameDefinition,
         				speedoAggregation)
-        		);
+        		));
 
-        Vertex step5 = dag.newVertex("projection2",
-                Processors.mapP((TimestampedEntry<String,Map.Entry<String,Speed>> entry) 
-                		-> entry.getValue()
-                ));
+        Vertex step6 = dag.newVertex("logger", SpeedoLogger::new);
 
-        Vertex step6 = dag.newVertex("removeStationary",
-        			Processors.filterP((Map.Entry<String,Speed> entry) -> entry.getValue().getMetresPerSecond() > 0))
-				;
+        /* Connect the steps together, the output of one becomes the input to the next.
+         * Step 3 output goes to every window.
+		 */
+        dag.edge(Edge.between(step1, step2));
+		if (saltBuckets > 1) {
+			dag.edge(Edge.between(step2, step3).partitioned(salted(saltBuckets)));
+		} else {
+			dag.edge(Edge.between(step2, step3).partitioned(DistributedFunctions.entryKey()));
+		}
+		dag.edge(Edge.from(step2,1).to(step6,1));
 
-        Vertex step7 = dag.newVertex("logger", SpeedoLogger::new);
+		/* Ride detection, the second branch from step 2.
+		 */
+		Vertex step8 = dag.newVertex("removeStationaryRide", () -> new MovementFilter(epsilonMetres, maxIdleMillis, maxKeys));
+		Vertex step9 = dag.newVertex("session",
+				Processors.aggregateToSessionWindowP(
+						rideGapMillis,
+						(DistributedToLongFunction<TimestampedEntry<String,Point>>) TimestampedEntry::getTimestamp,
+						DistributedFunctions.entryKey(),
+						speedoAggregation)
+				);
+		Vertex step10 = dag.newVertex("rideSummary", Processors.mapP(Speedo::toRide));
+		Vertex step11 = dag.newVertex("rideSink", SinkProcessors.writeMapP(Constants.IMAP_NAME_RIDE));
 
-        Vertex step8 = dag.newVertex("mapSink", SinkProcessors.writeMapP(Constants.IMAP_NAME_SPEED));
+		dag.edge(Edge.from(step2, 2).to(step8).partitioned(DistributedFunctions.entryKey()));
+		dag.edge(Edge.between(step8, step9).isolated());
+		dag.edge(Edge.between(step9, step10).isolated());
+		dag.edge(Edge.between(step10, step11));
 
-        /* Connect the steps together, in a simple chain, the output of one becomes
-		 * the input to the next.
+		/* Leaderboard, the third branch, from the first window. One leaderboard per slide
+		 * of that window, so tumbling windows of that length.
 		 */
-        dag.edge(Edge.between(step1, step2));
-        dag.edge(Edge.between(step2, step3));
-		dag.edge(Edge.between(step3, step4));
-		dag.edge(Edge.from(step3,1).to(step7));
-		dag.edge(Edge.between(step4, step5));
-		dag.edge(Edge.between(step5, step6));
-		dag.edge(Edge.between(step6, step7));
-		dag.edge(Edge.between(step7, step8));
+		WindowDefinition leaderboardDefinition = WindowDefinition.tumblingWindowDef(windowDefinitions.get(0).frameLength());
+
+		AggregateOperation1<TimestampedEntry<String,RideMetrics>, LeaderboardAggregation, Leaderboard> leaderboardAggregation
+					= AggregateOperation
+				.withCreate(() -> new LeaderboardAggregation(leaderboardSize))
+				.andAccumulate(LeaderboardAggregation::accumulate)
+				.andCombine(LeaderboardAggregation::combine)
+				.andFinish(LeaderboardAggregation::finish);
+
+		Vertex step12 = dag.newVertex("leaderboardAccumulate",
+				Processors.accumulateByFrameP(
+						DistributedFunctions.constantKey(),
+						(DistributedToLongFunction<TimestampedEntry<?, ?>>) TimestampedEntry::getTimestamp,
+						TimestampKind.FRAME,
+						leaderboardDefinition,
+						leaderboardAggregation)
+				);
+		Vertex step13 = dag.newVertex("leaderboardCombine",
+				Processors.combineToSlidingWindowP(leaderboardDefinition, leaderboardAggregation))
+				.localParallelism(1);
+		Vertex step14 = dag.newVertex("leaderboardSummary", Processors.mapP(Speedo::toLeaderboard));
+		Vertex step15 = dag.newVertex("leaderboardSink", SinkProcessors.writeMapP(Constants.IMAP_NAME_LEADERBOARD));
+
+		dag.edge(Edge.between(step12, step13).distributed().allToOne());
+		dag.edge(Edge.between(step13, step14));
+		dag.edge(Edge.between(step14, step15));
+
+		/* Statistics, the fourth branch, with the same windows as the leaderboard.
+		 */
+		AggregateOperation1<TimestampedEntry<String,RideMetrics>, SpeedStatsAggregation, SpeedStats> speedStatsAggregation
+					= AggregateOperation
+				.withCreate(SpeedStatsAggregation::new)
+				.andAccumulate(SpeedStatsAggregation::accumulate)
+				.andCombine(SpeedStatsAggregation::combine)
+				.andFinish(SpeedStatsAggregation::finish);
+
+		Vertex step16 = dag.newVertex("statsAccumulate",
+				Processors.accumulateByFrameP(
+						DistributedFunctions.constantKey(),
+						(DistributedToLongFunction<TimestampedEntry<?, ?>>) TimestampedEntry::getTimestamp,
+						TimestampKind.FRAME,
+						leaderboardDefinition,
+						speedStatsAggregation)
+				);
+		Vertex step17 = dag.newVertex("statsCombine",
+				Processors.combineToSlidingWindowP(leaderboardDefinition, speedStatsAggregation))
+				.localParallelism(1);
+		Vertex step18 = dag.newVertex("statsSummary", Processors.mapP(Speedo::toSpeedStats));
+		Vertex step19 = dag.newVertex("statsSink", SinkProcessors.writeMapP(Constants.IMAP_NAME_STATS));
+
+		dag.edge(Edge.between(step16, step17).distributed().allToOne());
+		dag.edge(Edge.between(step17, step18));
+		dag.edge(Edge.between(step18, step19));
+
+		/* History, the fifth branch, connected to step 6 below.
+		 */
+		Vertex step20 = dag.newVertex("historySink", SpeedHistorySink::new);
+
+		for (int i = 0 ; i < windowDefinitions.size() ; i++) {
+			WindowDefinition windowDefinition = windowDefinitions.get(i);
+			String suffix = (i == 0 ? "" : "-" + windowName(windowDefinition));
+			String mapName = (i == 0 ? Constants.IMAP_NAME_SPEED : Constants.IMAP_NAME_SPEED + suffix);
+
+			/* A frame from step 3 is timestamped with its end, move it back a millisecond
+			 * so it lands in the right one of this window's longer frames.
+			 */
+	        Vertex step4 = dag.newVertex("aggregate" + suffix,
+	        		MeteredProcessor.metered(
+	        		Processors.aggregateToSlidingWindowP(
+	        				DistributedFunctions.entryKey(),
+	                		(DistributedToLongFunction<TimestampedEntry<?, ?>>) entry -> entry.getTimestamp() - 1,
+	        				TimestampKind.EVENT, 
+	        				windowDefinition,
+	        				frameAggregation)
+	        		));
+
+	        boolean metrics = (i == 0);
+	        Vertex step5 = dag.newVertex("removeStationary" + suffix,
+	        		() -> new SpeedoExpiry(maxIdleMillis, maxKeys, metrics));
+
+	        Vertex changeFilter = dag.newVertex("changeFilter" + suffix,
+	        		() -> new SpeedChangeFilter(minChangeMetresPerSecond, minChangeRatio, changeHeartbeatMillis,
+	        				maxIdleMillis, maxKeys));
+
+	        Vertex step7 = dag.newVertex("mapSink" + suffix, SinkProcessors.writeMapP(mapName));
+
+	        if (saltBuckets > 1) {
+	        		dag.edge(Edge.from(step3, i).to(step4).partitioned(DistributedFunctions.entryKey()));
+	        } else {
+	        		dag.edge(Edge.from(step3, i).to(step4).isolated());
+	        }
+	        dag.edge(Edge.between(step4, step5).isolated());
+	        if (i == 0) {
+	        		Vertex metricsSink = dag.newVertex("metricsSink", SinkProcessors.writeMapP(Constants.IMAP_NAME_METRICS));
+
+	        		dag.edge(Edge.between(step5, step6));
+	        		dag.edge(Edge.from(step5, 1).to(metricsSink));
+	        		dag.edge(Edge.from(step4, 1).to(step12));
+	        		dag.edge(Edge.from(step4, 2).to(step16));
+	        		dag.edge(Edge.between(step6, changeFilter).partitioned(DistributedFunctions.entryKey()));
+	        		dag.edge(Edge.from(step6, 1).to(step20));
+	        } else {
+	        		dag.edge(Edge.between(step5, changeFilter).isolated());
+	        }
+	        dag.edge(Edge.between(changeFilter, step7));
+		}
 		
 		return dag;
 	}
 
+	/**
+	 * <p>Parse the windows wanted, in the form "{@code 300/60,10/10}" for a 5 minute
+	 * window sliding by 1 minute and a 10 second window sliding by 10 seconds.
+	 * </p>
+	 * <p>Each window length must be a multiple of its slide, and both must be
+	 * positive. A window with no slide given is tumbling, it slides by its own
+	 * length. The same window can't be given twice, see {@link #windowName(WindowDefinition)}.
+	 * </p>
+	 *
+	 * @param windows Comma separated list, the first is the main window
+	 * @return Window definitions in milliseconds, in the same order
+	 * @throws IllegalArgumentException If a window is malformed or repeated
+	 */
+	public static List<WindowDefinition> windowDefinitions(String windows) {
+		List<WindowDefinition> result = new ArrayList<>();
+
+		Set<String> names = new HashSet<>();
+
+		for (String window : windows.split(",")) {
+			String[] lengthAndSlide = window.trim().split("/");
+			long length;
+			long slide;
+			try {
+				length = Long.parseLong(lengthAndSlide[0].trim()) * ONE_SECOND_IN_MS;
+				slide = (lengthAndSlide.length == 1 ? length : Long.parseLong(lengthAndSlide[1].trim()) * ONE_SECOND_IN_MS);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Window '" + window + "' in '" + windows + "'", e);
+			}
+			if (lengthAndSlide.length > 2 || length <= 0 || slide <= 0 || length % slide != 0) {
+				throw new IllegalArgumentException("Window '" + window + "' in '" + windows
+						+ "', need positive length that is a multiple of a positive slide");
+			}
+
+			WindowDefinition windowDefinition = WindowDefinition.slidingWindowDef(length, slide);
+			if (!names.add(windowName(windowDefinition))) {
+				throw new IllegalArgumentException("Window '" + window + "' repeated in '" + windows + "'");
+			}
+			result.add(windowDefinition);
+		}
+
+		return result;
+	}
+
+	/**
+	 * <p>A short name for a window, its length in seconds, such as "{@code 10s}",
+	 * followed by its slide if it isn't tumbling, such as "{@code 300s-60s}".
+	 * Two windows of the same length but different slides need different names,
+	 * or their vertices and maps would clash.
+	 * </p>
+	 *
+	 * @param windowDefinition A window
+	 * @return For vertex and map names
+	 */
+	public static String windowName(WindowDefinition windowDefinition) {
+		String name = (windowDefinition.windowLength() / ONE_SECOND_IN_MS) + "s";
+		if (windowDefinition.frameLength() != windowDefinition.windowLength()) {
+			name += "-" + (windowDefinition.frameLength() / ONE_SECOND_IN_MS) + "s";
+		}
+		return name;
+	}
+
+	/**
+	 * <p>Route by the key with a random bucket number on the end, so one
+	 * key goes to several places. The aggregation itself still uses the
+	 * key as it is.
+	 * </p>
+	 *
+	 * @param saltBuckets How many buckets to spread each key over
+	 * @return A routing function for a partitioned edge
+	 */
+	public static DistributedFunction<TimestampedEntry<String, Point>, String> salted(int saltBuckets) {
+		return entry -> entry.getKey() + "#" + ThreadLocalRandom.current().nextInt(saltBuckets);
+	}
+
+	private static long gcd(long a, long b) {
+		return (b == 0 ? a : gcd(b, a % b));
+	}
+
+	/**
+	 * <p>Turn a closed session into a ride summary, keyed by person
+	 * and when the ride started as a person has many rides.
+	 * </p>
+	 *
+	 * @param session From step 9
+	 * @return An entry for the "{@code ride}" map
+	 */
+	public static Map.Entry<String, Ride> toRide(Session<String, RideMetrics> session) {
+		RideMetrics rideMetrics = session.getResult();
+
+		Ride ride = new Ride();
+		ride.setRider(session.getKey());
+		ride.setStart(rideMetrics.getStart());
+		ride.setEnd(rideMetrics.getTime());
+		ride.setDistanceMetres(rideMetrics.getDistanceMetres());
+		ride.setMaxMetresPerSecond(rideMetrics.getMaxMetresPerSecond());
+		ride.setPoints(rideMetrics.getPoints());
+		if (ride.getEnd() > ride.getStart()) {
+			ride.setAverageMetresPerSecond(ride.getDistanceMetres() / ((ride.getEnd() - ride.getStart()) / 1000d));
+		}
+
+		return Util.entry(session.getKey() + "@" + ride.getStart(), ride);
+	}
+
+	/**
+	 * <p>Put the window end into the leaderboard, and key it
+	 * so each window replaces the last.
+	 * </p>
+	 *
+	 * @param entry From step 13
+	 * @return An entry for the "{@code leaderboard}" map
+	 */
+	public static Map.Entry<String, Leaderboard> toLeaderboard(TimestampedEntry<String, Leaderboard> entry) {
+		Leaderboard leaderboard = entry.getValue();
+		leaderboard.setTime(entry.getTimestamp());
+		return Util.entry(LEADERBOARD_KEY, leaderboard);
+	}
+
+	/**
+	 * <p>Put the window end into the statistics, and key by it
+	 * so each window is kept.
+	 * </p>
+	 *
+	 * @param entry From step 17
+	 * @return An entry for the "{@code stats}" map
+	 */
+	public static Map.Entry<Long, SpeedStats> toSpeedStats(TimestampedEntry<String, SpeedStats> entry) {
+		SpeedStats speedStats = entry.getValue();
+		speedStats.setTime(entry.getTimestamp());
+		return Util.entry(entry.getTimestamp(), speedStats);
+	}
+
+	/**
+	 * <p>Is the window result a movement.
+	 * </p>
+	 *
+	 * @param entry The window result, keyed by person
+	 * @return True if the speed is above zero
+	 */
+	public static boolean isMoving(TimestampedEntry<String, RideMetrics> entry) {
+		return entry.getValue().getMetresPerSecond() > 0;
+	}
+
 }
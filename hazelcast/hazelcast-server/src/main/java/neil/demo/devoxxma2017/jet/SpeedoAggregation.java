@@ -1,15 +1,14 @@
 package neil.demo.devoxxma2017.jet;
 
 import java.io.Serializable;
-import java.util.AbstractMap.SimpleImmutableEntry;
-import java.util.Map;
 
 import com.hazelcast.jet.datamodel.TimestampedEntry;
 
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
-import neil.demo.devoxxma2017.Speed;
-import neil.demo.devoxxma2017.Gpx.TrkPt;
+import neil.demo.devoxxma2017.Constants;
+import neil.demo.devoxxma2017.Haversine;
+import neil.demo.devoxxma2017.RideMetrics;
 
 /**
  * <p>This class implements a <i>reduction</i>,
@@ -22,15 +21,39 @@ import neil.demo.devoxxma2017.Gpx.TrkPt;
  * when signalled produces the output value.
  * </p>
  * <p>What we are capturing as input are GPS points.
- * What we output is a speed.
+ * What we output is a speed, and some other metrics
+ * as a {@link RideMetrics}.
  * </p>
  * <p>The speed is calculated from the distance from
- * the first point to the last point. We msotly
- * ignore the intermediate points, but we count how
- * many there are as this gives a vague indication
+ * the first point to the last point. We count how
+ * many points there are as this gives a vague indication
  * as to accuracy, the more points in the window the
  * better.
  * </p>
+ * <p>The other metrics need the intermediate points,
+ * but are kept as running totals so no points are held:
+ * </p>
+ * <ul>
+ * <li><p>Distance, the sum of each step from one point to the next.
+ * </p>
+ * </li>
+ * <li><p>Maximum speed, the fastest of those steps. Steps less than
+ * {@link Constants#MIN_SPEED_STEP_MILLIS} apart are left out, dividing
+ * by a few milliseconds or none gives a speed no bicycle can do.
+ * </p>
+ * </li>
+ * <li><p>Elevation gain, the sum of each step upwards.
+ * </p>
+ * </li>
+ * </ul>
+ * <p>A step is only known if points arrive in time order, a point
+ * arriving before the last or after the first is a step on the end.
+ * A point arriving between the first and last so far, out of order,
+ * is counted but adds no step. The distance is a little short rather
+ * than wrong. Similarly if two partial results cover the same time,
+ * such as when the keys are salted, the longer is taken rather
+ * than the sum.
+ * </p>
  * <p>There are three methods:
  * </p>
  * <ul>
@@ -42,7 +65,7 @@ import neil.demo.devoxxma2017.Gpx.TrkPt;
  * be parallel across the grid.
  * </p>
  * </li>
- * <li><p>{@link #finish()} Calculates the resulting speed.
+ * <li><p>{@link #finish()} Calculates the resulting speed and metrics.
  * </p>
  * </li>
  * </ul>
@@ -50,16 +73,39 @@ import neil.demo.devoxxma2017.Gpx.TrkPt;
  * is very poor, taking no account of rounding error, curvature
  * of the Earth or crossing east/west.
  * </p>
+ * <p><b>Memory:</b> Jet holds one of these for every person for every
+ * frame in the window, so a 5 minute window sliding by 1 minute holds
+ * 5 per person. Only primitives are kept, no references to the points
+ * or the key, so each is a fixed 104 bytes (12 header, 11 x 8 for the
+ * co-ordinates, times and running totals, 4 for the count). Previously
+ * each held the key and references to first and last point objects,
+ * keeping those alive too, 231 bytes, and only gave the speed. For
+ * 100,000 people that is 52MB rather than 116MB, measured by
+ * {@code SpeedoAggregationBenchmark}.
+ * </p>
+ * <p>There is no "<i>deduct</i>" operation. Jet could use one to slide a
+ * window by removing the oldest frame rather than re-combining all frames,
+ * but earliest and latest point are like minimum and maximum, once a frame
+ * is removed there is no way to know the earliest of what remains without
+ * going back to the frames. Maximum speed is the same. So the frames are re-combined, five per window
+ * here, which is cheap as each combine is a few comparisons.
+ * </p>
  */
 @Data
 @Slf4j
 @SuppressWarnings("serial")
 public class SpeedoAggregation implements Serializable {
-	private static final int RADIUS_OF_THE_EARTH_M = 6_371_000;
-
-	private String key = null;
-	private TrkPt first = null;
-	private TrkPt last = null;
+	private double firstLatitude;
+	private double firstLongitude;
+	private double firstElevation;
+	private long firstTime;
+	private double lastLatitude;
+	private double lastLongitude;
+	private double lastElevation;
+	private long lastTime;
+	private double distanceMetres;
+	private double maxMetresPerSecond;
+	private double elevationGainMetres;
 	private int points = 0;
 
 	/**
@@ -70,24 +116,27 @@ public class SpeedoAggregation implements Serializable {
 	 * @param input A point in the current window
 	 * @return
 	 */
-	public SpeedoAggregation accumulate(TimestampedEntry<String, TrkPt> input) {
+	public SpeedoAggregation accumulate(TimestampedEntry<String, Point> input) {
+		Point point = input.getValue();
+		long time = input.getTimestamp();
 
-		if (this.key==null) {
-			// Initial point
-			this.key = input.getKey();
-			this.points = 1;
-			this.first = this.last = input.getValue();
+		if (this.points == 0) {
+			this.setFirst(point.getLatitude(), point.getLongitude(), point.getElevation(), time);
+			this.setLast(point.getLatitude(), point.getLongitude(), point.getElevation(), time);
 		} else {
-			// Augmenting point, possibly change earliest or latest stashed
-			this.points+=1;
-			if (this.first.getDate().getTime() > input.getValue().getDate().getTime()) {
-				this.first = input.getValue();
+			if (time > this.lastTime) {
+				this.step(this.lastLatitude, this.lastLongitude, this.lastElevation, this.lastTime,
+						point.getLatitude(), point.getLongitude(), point.getElevation(), time);
+				this.setLast(point.getLatitude(), point.getLongitude(), point.getElevation(), time);
 			}
-			if (this.last.getDate().getTime() < input.getValue().getDate().getTime()) {
-				this.last = input.getValue();
+			if (time < this.firstTime) {
+				this.step(point.getLatitude(), point.getLongitude(), point.getElevation(), time,
+						this.firstLatitude, this.firstLongitude, this.firstElevation, this.firstTime);
+				this.setFirst(point.getLatitude(), point.getLongitude(), point.getElevation(), time);
 			}
 		}
-		
+		this.points += 1;
+
 		return this;
 	}
 
@@ -100,34 +149,57 @@ public class SpeedoAggregation implements Serializable {
 	 * @return
 	 */
 	public SpeedoAggregation combine(SpeedoAggregation that) {
-		this.points += that.getPoints();
-		
-		if (this.key==null) {
-			// Merge destination empty
-			this.key = that.getKey();
-			this.first = that.getFirst();
-			this.last = that.getLast();
+		if (that.getPoints() == 0) {
+			return this;
+		}
+		if (this.points == 0) {
+			this.setFirst(that.getFirstLatitude(), that.getFirstLongitude(), that.getFirstElevation(), that.getFirstTime());
+			this.setLast(that.getLastLatitude(), that.getLastLongitude(), that.getLastElevation(), that.getLastTime());
+			this.distanceMetres = that.getDistanceMetres();
+			this.maxMetresPerSecond = that.getMaxMetresPerSecond();
+			this.elevationGainMetres = that.getElevationGainMetres();
+			this.points = that.getPoints();
+			return this;
+		}
+
+		this.maxMetresPerSecond = Math.max(this.maxMetresPerSecond, that.getMaxMetresPerSecond());
+
+		if (this.lastTime <= that.getFirstTime()) {
+			// That follows this, join this's last point to that's first
+			this.step(this.lastLatitude, this.lastLongitude, this.lastElevation, this.lastTime,
+					that.getFirstLatitude(), that.getFirstLongitude(), that.getFirstElevation(), that.getFirstTime());
+			this.distanceMetres += that.getDistanceMetres();
+			this.elevationGainMetres += that.getElevationGainMetres();
+		} else if (that.getLastTime() <= this.firstTime) {
+			// That precedes this, join that's last point to this's first
+			this.step(that.getLastLatitude(), that.getLastLongitude(), that.getLastElevation(), that.getLastTime(),
+					this.firstLatitude, this.firstLongitude, this.firstElevation, this.firstTime);
+			this.distanceMetres += that.getDistanceMetres();
+			this.elevationGainMetres += that.getElevationGainMetres();
 		} else {
-			if (that.key!=null) {
-				if (this.first.getDate().getTime() > that.getFirst().getDate().getTime()) {
-					this.first = that.getFirst();
-				}
-				if (this.last.getDate().getTime() > that.getLast().getDate().getTime()) {
-					this.last = that.getLast();
-				}
-			}
+			// Overlap, each is a sample of the same route
+			this.distanceMetres = Math.max(this.distanceMetres, that.getDistanceMetres());
+			this.elevationGainMetres = Math.max(this.elevationGainMetres, that.getElevationGainMetres());
+		}
+
+		if (that.getFirstTime() < this.firstTime) {
+			this.setFirst(that.getFirstLatitude(), that.getFirstLongitude(), that.getFirstElevation(), that.getFirstTime());
 		}
+		if (that.getLastTime() > this.lastTime) {
+			this.setLast(that.getLastLatitude(), that.getLastLongitude(), that.getLastElevation(), that.getLastTime());
+		}
+		this.points += that.getPoints();
 		
 		return this;
 	}
 
 	/**
-	 * <p>Create a map entry holding the speed for the
-	 * person involved, calculated from the first and
-	 * last locations captured.
+	 * <p>Create the speed for the person involved, calculated
+	 * from the first and last locations captured. Jet pairs this
+	 * with the key in the window result.
 	 * </p>
 	 * <p>If there is no first and last location, or these
-	 * are the same, then the speed is zero. This could happen
+	 * are the same place or the same time, then the speed is zero. This could happen
 	 * if there is insufficient data in the window because the
 	 * window size is too small (a configuration error) or
 	 * some GPS points didn't arrive (something to expect).
@@ -144,7 +216,7 @@ public class SpeedoAggregation implements Serializable {
 	 * </li>
 	 * <li><b>Elevation</b>
 	 * <p>Changes in height are ignored, the distance is calculated as if on
-	 * a flat surface.
+	 * a flat surface. Height is only used for the elevation gain.
 	 * </p>
 	 * </li>
 	 * <li><b>Haversine</b>
@@ -155,43 +227,72 @@ public class SpeedoAggregation implements Serializable {
 	 * </li>
 	 * </ul>
 	 *
-	 * @return An entry for the "{@code speed}" map, speed in metres per second
+	 * @return The speed in metres per second, and the other metrics
 	 */
-	public Map.Entry<String, Speed> finish() {
-		Speed value = new Speed();
+	public RideMetrics finish() {
+		RideMetrics value = new RideMetrics();
+		value.setPoints(this.points);
 		
 		if (this.points > 1) {
-			value.setTime(this.last.getDate().getTime());
+			value.setStart(this.firstTime);
+			value.setTime(this.lastTime);
+			value.setDistanceMetres(this.distanceMetres);
+			value.setMaxMetresPerSecond(this.maxMetresPerSecond);
+			value.setElevationGainMetres(this.elevationGainMetres);
 			
 			try {
-				// Speed needs movement
-				if ((this.last.getLatitude() != this.first.getLatitude())
-					|| (this.last.getLongitude() != this.first.getLongitude())) {
-					
-			        double lat1 = Math.toRadians(this.last.getLatitude());
-			        double lat2 = Math.toRadians(this.first.getLatitude());
-			        double long1 = Math.toRadians(this.last.getLongitude());
-			        double long2 = Math.toRadians(this.first.getLongitude());
+		        double seconds = (this.lastTime - this.firstTime) / 1000d;
 
-			        double latDiff = lat1 - lat2;
-			        double longDiff = long1 - long2;
-
-			        double distance = Math.pow(Math.sin(latDiff / 2), 2)
-			                + Math.pow(Math.sin(longDiff / 2), 2)
-			                * Math.cos(lat1)
-			                * Math.cos(lat2);
-
-			        double metres = 2 * RADIUS_OF_THE_EARTH_M * Math.asin(Math.sqrt(distance));			        
-			        
-			        double seconds = (this.last.getDate().getTime() - this.first.getDate().getTime()) / 1000;
+				// Speed needs movement, over some time
+				if (seconds > 0
+					&& ((this.lastLatitude != this.firstLatitude)
+					|| (this.lastLongitude != this.firstLongitude))) {
+					
+			        double metres = Haversine.metres(this.firstLatitude, this.firstLongitude,
+			        		this.lastLatitude, this.lastLongitude);
 
 					value.setMetresPerSecond(metres / seconds);
 				}
+				if (seconds > 0 && this.distanceMetres > 0) {
+					value.setSecondsPerKilometre(seconds / (this.distanceMetres / 1000));
+				}
 			} catch (Exception e) {
 				log.error("finish()", e);
 			}
 		}
 
-		return new SimpleImmutableEntry<>(this.key, value);
+		return value;
+	}
+
+	/**
+	 * <p>Add a step from one point to the next, in time order,
+	 * to the running totals.
+	 * </p>
+	 */
+	private void step(double latitude1, double longitude1, double elevation1, long time1,
+			double latitude2, double longitude2, double elevation2, long time2) {
+		double metres = Haversine.metres(latitude1, longitude1, latitude2, longitude2);
+
+		this.distanceMetres += metres;
+		if (time2 - time1 >= Constants.MIN_SPEED_STEP_MILLIS) {
+			this.maxMetresPerSecond = Math.max(this.maxMetresPerSecond, metres / ((time2 - time1) / 1000d));
+		}
+		if (elevation2 > elevation1) {
+			this.elevationGainMetres += elevation2 - elevation1;
+		}
+	}
+
+	private void setFirst(double latitude, double longitude, double elevation, long time) {
+		this.firstLatitude = latitude;
+		this.firstLongitude = longitude;
+		this.firstElevation = elevation;
+		this.firstTime = time;
+	}
+
+	private void setLast(double latitude, double longitude, double elevation, long time) {
+		this.lastLatitude = latitude;
+		this.lastLongitude = longitude;
+		this.lastElevation = elevation;
+		this.lastTime = time;
 	}
-}
\ No newline at end of file
+}
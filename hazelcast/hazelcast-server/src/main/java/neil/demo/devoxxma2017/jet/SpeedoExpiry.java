@@ -0,0 +1,134 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.util.List;
+import java.util.Map;
+
+import com.hazelcast.jet.Traverser;
+import com.hazelcast.jet.Traversers;
+import com.hazelcast.jet.Util;
+import com.hazelcast.jet.core.AbstractProcessor;
+import com.hazelcast.jet.datamodel.TimestampedEntry;
+
+import lombok.extern.slf4j.Slf4j;
+import neil.demo.devoxxma2017.RideMetrics;
+import neil.demo.devoxxma2017.Speed;
+
+/**
+ * <p>An intermediate processor for the window results of {@link Speedo}
+ * that passes on speeds for people who are moving, and notices
+ * people who have gone quiet.
+ * </p>
+ * <p>The window result is a {@link RideMetrics}, the speed is taken from
+ * this for output 0. If "{@code metrics}" is set, every window result is
+ * also passed on whole to output 1.
+ * </p>
+ * <p>When a person stops sending points, the windows for them just stop.
+ * The window state goes, but the last speed stays in the map looking
+ * current. So this remembers when each person last had a window result,
+ * and once that is "{@code maxIdleMillis}" ago emits an offline
+ * {@link Speed} for them and forgets them. See {@link IdleKeys} for
+ * the memory ceiling.
+ * </p>
+ * <p>This relies on all results for the same person coming to the same
+ * instance of this processor. The edge in is isolated from the window
+ * aggregation, which is partitioned by the key.
+ * </p>
+ */
+@Slf4j
+public class SpeedoExpiry extends AbstractProcessor {
+
+	private static final String PREFIX = SpeedoExpiry.class.getSimpleName() + " ";
+
+	private final IdleKeys<Long> lastSeen;
+	private final boolean metrics;
+	private Traverser<Object> offline;
+	private boolean metricsEmitted;
+	private long offlineCount;
+
+	public SpeedoExpiry(long maxIdleMillis, int maxKeys, boolean metrics) {
+		this.lastSeen = new IdleKeys<>(maxIdleMillis, maxKeys);
+		this.metrics = metrics;
+	}
+
+	/**
+	 * <p>Note the person is active, and pass on the result if a movement.
+	 * </p>
+	 *
+	 * @param ordinal 0, the only input edge
+	 * @param item A {@code TimestampedEntry<String, RideMetrics>} from the window
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	protected boolean tryProcess(int ordinal, Object item) {
+		if (!this.emitOffline()) {
+			return false;
+		}
+
+		TimestampedEntry<String, RideMetrics> entry = (TimestampedEntry<String, RideMetrics>) item;
+		this.lastSeen.put(entry.getKey(), entry.getValue().getTime(), System.currentTimeMillis());
+
+		// Output 1 first, remembering if done in case output 0 is full and this is called again
+		if (this.metrics && !this.metricsEmitted) {
+			if (!this.tryEmit(1, item)) {
+				return false;
+			}
+			this.metricsEmitted = true;
+		}
+
+		if (Speedo.isMoving(entry)) {
+			Speed speed = new Speed();
+			speed.setMetresPerSecond(entry.getValue().getMetresPerSecond());
+			speed.setTime(entry.getValue().getTime());
+			if (!this.tryEmit(0, Util.entry(entry.getKey(), speed))) {
+				return false;
+			}
+		}
+		this.metricsEmitted = false;
+		return true;
+	}
+
+	/**
+	 * <p>Called when there is no input, people may go offline
+	 * even if nothing is arriving.
+	 * </p>
+	 */
+	@Override
+	public boolean tryProcess() {
+		return this.emitOffline();
+	}
+
+	/**
+	 * <p>Emit an offline marker for everyone idle too long, carrying
+	 * on from where the last call got to if the outbox filled.
+	 * These are speeds, so only go to output 0.
+	 * </p>
+	 */
+	private boolean emitOffline() {
+		if (this.offline == null) {
+			List<Map.Entry<String, Long>> expired = this.lastSeen.expire(System.currentTimeMillis());
+			if (expired.isEmpty()) {
+				return true;
+			}
+			this.offlineCount += expired.size();
+			log.info("{} {} offline, {} total, tracking {} keys", PREFIX, expired.size(), this.offlineCount, this.lastSeen.size());
+			this.offline = Traversers.traverseIterable(expired).map(SpeedoExpiry::offlineMarker);
+		}
+
+		if (!this.emitFromTraverser(0, this.offline)) {
+			return false;
+		}
+		this.offline = null;
+		return true;
+	}
+
+	/**
+	 * <p>A zero speed flagged offline, at the time of the last speed.
+	 * </p>
+	 */
+	static Object offlineMarker(Map.Entry<String, Long> expired) {
+		Speed speed = new Speed();
+		speed.setTime(expired.getValue());
+		speed.setOffline(true);
+		return Util.entry(expired.getKey(), speed);
+	}
+}
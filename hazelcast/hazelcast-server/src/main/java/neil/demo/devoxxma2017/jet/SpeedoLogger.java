@@ -1,6 +1,7 @@
 package neil.demo.devoxxma2017.jet;
 
 import com.hazelcast.jet.core.AbstractProcessor;
+import com.hazelcast.jet.core.Watermark;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -17,6 +18,10 @@ public class SpeedoLogger extends AbstractProcessor {
 	/**
 	 * <p>Receive an object, log it, and try to pass it on.
 	 * </p>
+	 * <p>Only objects from the default edge are passed on. Anything
+	 * on another edge is a diagnostic tap on an earlier stage, so is
+	 * of a different type and not for the next stage.
+	 * </p>
 	 * 
 	 * @param ordinal 0 if the default edge from the previous stage
 	 * @param item the output object from the previous stage
@@ -29,8 +34,26 @@ public class SpeedoLogger extends AbstractProcessor {
 			log.info("{}::tryProcess({})", PREFIX, item);
 		} else {
 			log.info("{}::tryProcess(ordinal=={}, {})", PREFIX, ordinal, item);
+			return true;
 		}
 		
 		return this.tryEmit(item);
 	}
+
+	/**
+	 * <p>Watermarks arrive on every inbound edge. Pass on only
+	 * those from the default edge, as forwarding the same watermark
+	 * from the diagnostic edge too would be a duplicate.
+	 * </p>
+	 *
+	 * @param ordinal 0 if the default edge from the previous stage
+	 * @param wm A watermark from the previous stage
+	 */
+	@Override
+	protected boolean tryProcessWm(int ordinal, Watermark wm) {
+		if (ordinal == 0) {
+			return this.tryEmit(wm);
+		}
+		return true;
+	}
 }
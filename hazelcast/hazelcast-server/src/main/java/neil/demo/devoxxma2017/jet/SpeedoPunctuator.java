@@ -0,0 +1,126 @@
+package neil.demo.devoxxma2017.jet;
+
+import com.hazelcast.core.IMap;
+import com.hazelcast.jet.Traverser;
+import com.hazelcast.jet.core.AbstractProcessor;
+import com.hazelcast.jet.core.ResettableSingletonTraverser;
+import com.hazelcast.jet.core.Watermark;
+import com.hazelcast.jet.core.WatermarkEmissionPolicy;
+import com.hazelcast.jet.datamodel.TimestampedEntry;
+
+import lombok.extern.slf4j.Slf4j;
+import neil.demo.devoxxma2017.Constants;
+import neil.demo.devoxxma2017.WatermarkLag;
+
+/**
+ * <p>The punctuation step for {@link Speedo}, inserting watermarks into
+ * the stream of points and dropping points that are too late.
+ * </p>
+ * <p>This does the same as
+ * {@link com.hazelcast.jet.core.processor.Processors#insertWatermarksP insertWatermarksP},
+ * but with an {@link AdaptiveLagPolicy} and counting as it goes. Points dropped
+ * as late are counted rather than each logged.
+ * </p>
+ * <p>Every {@link #PUBLISH_INTERVAL_MS} a {@link WatermarkLag} is written to the
+ * "{@code monitor}" {@link com.hazelcast.core.IMap IMap}, keyed by the vertex
+ * name and processor index. The write is asynchronous so as not to hold up
+ * the stream. The map's time-to-live removes the entry once the job has
+ * stopped and it is no longer rewritten.
+ * </p>
+ */
+@Slf4j
+public class SpeedoPunctuator extends AbstractProcessor {
+
+	private static final String PREFIX = SpeedoPunctuator.class.getSimpleName() + " ";
+	private static final long PUBLISH_INTERVAL_MS = 5_000L;
+
+	private final AdaptiveLagPolicy adaptiveLagPolicy;
+	private final WatermarkEmissionPolicy watermarkEmissionPolicy;
+	private final ResettableSingletonTraverser<Object> singletonTraverser = new ResettableSingletonTraverser<>();
+	private final FlatMapper<Object, Object> flatMapper = flatMapper(this::traverser);
+
+	private IMap<String, WatermarkLag> monitorMap;
+	private String monitorKey;
+	private long lastEmittedWatermark = Long.MIN_VALUE;
+	private long nextPublish;
+	private long accepted;
+	private long dropped;
+	private double totalLagMillis;
+
+	public SpeedoPunctuator(long minLagMillis, long maxLagMillis, WatermarkEmissionPolicy watermarkEmissionPolicy) {
+		this.adaptiveLagPolicy = new AdaptiveLagPolicy(minLagMillis, maxLagMillis);
+		this.watermarkEmissionPolicy = watermarkEmissionPolicy;
+	}
+
+	@Override
+	protected void init(Context context) throws Exception {
+		this.monitorMap = context.jetInstance().getHazelcastInstance().getMap(Constants.IMAP_NAME_MONITOR);
+		this.monitorKey = context.vertexName() + "-" + context.globalProcessorIndex();
+	}
+
+	/**
+	 * <p>Add a watermark if needed, then the point if it isn't late.
+	 * </p>
+	 *
+	 * @param ordinal 0, the only input edge
+	 * @param item A {@code TimestampedEntry<String, Point>} from the journal
+	 */
+	@Override
+	protected boolean tryProcess(int ordinal, Object item) {
+		return this.flatMapper.tryProcess(item);
+	}
+
+	/**
+	 * <p>Called when there is no input, publish metrics even if
+	 * nothing is arriving.
+	 * </p>
+	 */
+	@Override
+	public boolean tryProcess() {
+		this.publish();
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Traverser<Object> traverser(Object item) {
+		long timestamp = ((TimestampedEntry<String, Point>) item).getTimestamp();
+		long watermark = this.adaptiveLagPolicy.reportEvent(timestamp);
+
+		if (timestamp >= watermark) {
+			this.accepted++;
+			this.totalLagMillis += this.adaptiveLagPolicy.getLagMillis();
+			this.singletonTraverser.accept(item);
+		} else {
+			this.dropped++;
+		}
+		this.publish();
+
+		if (this.watermarkEmissionPolicy.shouldEmit(watermark, this.lastEmittedWatermark)) {
+			this.lastEmittedWatermark = watermark;
+			return this.singletonTraverser.prepend(new Watermark(watermark));
+		}
+		return this.singletonTraverser;
+	}
+
+	private void publish() {
+		long now = System.currentTimeMillis();
+		if (now < this.nextPublish) {
+			return;
+		}
+		this.nextPublish = now + PUBLISH_INTERVAL_MS;
+
+		WatermarkLag watermarkLag = new WatermarkLag();
+		watermarkLag.setLagMillis(this.adaptiveLagPolicy.getLagMillis());
+		watermarkLag.setAverageLagMillis(this.accepted == 0 ? 0 : (long) (this.totalLagMillis / this.accepted));
+		watermarkLag.setMaxDisorderMillis(this.adaptiveLagPolicy.getMaxDisorderMillis());
+		watermarkLag.setWatermark(this.adaptiveLagPolicy.getCurrentWatermark());
+		watermarkLag.setAccepted(this.accepted);
+		watermarkLag.setDropped(this.dropped);
+		watermarkLag.setTime(now);
+
+		if (this.dropped > 0) {
+			log.info("{} {} {}", PREFIX, this.monitorKey, watermarkLag);
+		}
+		this.monitorMap.setAsync(this.monitorKey, watermarkLag);
+	}
+}
@@ -0,0 +1,308 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.util.List;
+import java.util.Map;
+
+import com.hazelcast.jet.Traverser;
+import com.hazelcast.jet.Traversers;
+import com.hazelcast.jet.Util;
+import com.hazelcast.jet.core.AbstractProcessor;
+import com.hazelcast.jet.datamodel.TimestampedEntry;
+
+import lombok.extern.slf4j.Slf4j;
+import neil.demo.devoxxma2017.Haversine;
+import neil.demo.devoxxma2017.Speed;
+
+/**
+ * <p>An intermediate processor that produces a speed for every point,
+ * for {@link IncrementalSpeedo}.
+ * </p>
+ * <p>For each person, the last "{@code smoothingPoints}" points are kept
+ * in time order, along with the length of the path through them. Each
+ * point added produces a speed, that path length divided by the time from
+ * the first to the last. More points give a smoother speed, fewer points
+ * give a speed that reacts quicker.
+ * </p>
+ * <p>A point may arrive out of order. If it is no more than
+ * "{@code reorderMillis}" older than the newest point, it is slotted into
+ * place among the points kept. If it is older than that, or older than
+ * all the points kept, it is dropped.
+ * </p>
+ * <p>Adding a point only needs the distances to its neighbours, not a
+ * walk along the whole path, so the work per point doesn't depend on
+ * how many points are kept.
+ * </p>
+ * <p>Someone with no points for "{@code maxIdleMillis}" is forgotten, and
+ * an offline {@link Speed} is emitted for them. See {@link IdleKeys}.
+ * </p>
+ * <p>This relies on all points for the same person coming to the same
+ * instance of this processor, so the inbound edge has to be partitioned
+ * by the key.
+ * </p>
+ */
+@Slf4j
+public class SpeedoTracker extends AbstractProcessor {
+
+	private static final String PREFIX = SpeedoTracker.class.getSimpleName() + " ";
+	private static final int LOG_INTERVAL = 10_000;
+
+	private final long reorderMillis;
+	private final int smoothingPoints;
+	private final IdleKeys<Track> tracks;
+	private Traverser<Object> offline;
+	private long emitted;
+	private long late;
+
+	public SpeedoTracker(long reorderMillis, int smoothingPoints, long maxIdleMillis, int maxKeys) {
+		if (smoothingPoints < 2) {
+			throw new IllegalArgumentException("smoothingPoints must be at least 2, not " + smoothingPoints);
+		}
+		this.reorderMillis = reorderMillis;
+		this.smoothingPoints = smoothingPoints;
+		this.tracks = new IdleKeys<>(maxIdleMillis, maxKeys);
+	}
+
+	/**
+	 * <p>Add the point to the track for the person, and pass on the
+	 * new speed if there is one.
+	 * </p>
+	 *
+	 * @param ordinal 0, the only input edge
+	 * @param item A {@code TimestampedEntry<String, Point>} from the journal
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	protected boolean tryProcess(int ordinal, Object item) {
+		if (!this.emitOffline()) {
+			return false;
+		}
+
+		TimestampedEntry<String, Point> entry = (TimestampedEntry<String, Point>) item;
+
+		Track track = this.tracks.get(entry.getKey());
+		if (track == null) {
+			track = new Track(this.smoothingPoints);
+		}
+		this.tracks.put(entry.getKey(), track, System.currentTimeMillis());
+
+		// Try to emit before changing the track, as this may be called again with the same item
+		if (!track.accepts(entry.getTimestamp(), this.reorderMillis)) {
+			this.late++;
+			this.logCounts();
+			return true;
+		}
+		Speed speed = track.speedWith(entry.getTimestamp(), entry.getValue());
+		if (speed != null && !this.tryEmit(Util.entry(entry.getKey(), speed))) {
+			return false;
+		}
+		track.add(entry.getTimestamp(), entry.getValue());
+		if (speed != null) {
+			this.emitted++;
+			this.logCounts();
+		}
+
+		return true;
+	}
+
+	/**
+	 * <p>Called when there is no input, people may go offline
+	 * even if nothing is arriving.
+	 * </p>
+	 */
+	@Override
+	public boolean tryProcess() {
+		return this.emitOffline();
+	}
+
+	/**
+	 * <p>Emit an offline marker for everyone idle too long, carrying
+	 * on from where the last call got to if the outbox filled.
+	 * </p>
+	 */
+	private boolean emitOffline() {
+		if (this.offline == null) {
+			List<Map.Entry<String, Track>> expired = this.tracks.expire(System.currentTimeMillis());
+			if (expired.isEmpty()) {
+				return true;
+			}
+			log.info("{} {} offline, tracking {} keys", PREFIX, expired.size(), this.tracks.size());
+			this.offline = Traversers.traverseIterable(expired)
+					.map(entry -> SpeedoExpiry.offlineMarker(Util.entry(entry.getKey(), entry.getValue().lastTime())));
+		}
+
+		if (!this.emitFromTraverser(this.offline)) {
+			return false;
+		}
+		this.offline = null;
+		return true;
+	}
+
+	private void logCounts() {
+		if ((this.emitted + this.late) % LOG_INTERVAL == 0) {
+			log.info("{} emitted {}, late {}, tracking {} keys", PREFIX, this.emitted, this.late, this.tracks.size());
+		}
+	}
+
+	/**
+	 * <p>The last few points for one person, oldest first, held as
+	 * primitives in parallel arrays rather than as objects.
+	 * </p>
+	 */
+	static class Track {
+		private final long[] times;
+		private final double[] latitudes;
+		private final double[] longitudes;
+		private int count;
+		private double pathMetres;
+
+		Track(int capacity) {
+			this.times = new long[capacity];
+			this.latitudes = new double[capacity];
+			this.longitudes = new double[capacity];
+		}
+
+		/**
+		 * @return Time of the newest point, or 0 if none
+		 */
+		long lastTime() {
+			return (this.count == 0 ? 0 : this.times[this.count - 1]);
+		}
+
+		/**
+		 * <p>Is a point at this time worth adding. A point at the same time
+		 * as one already held is a duplicate.
+		 * </p>
+		 */
+		boolean accepts(long time, long reorderMillis) {
+			if (this.count == 0) {
+				return true;
+			}
+			if (time <= this.times[this.count - 1] - reorderMillis) {
+				return false;
+			}
+			if (time <= this.times[0] && this.count == this.times.length) {
+				return false;
+			}
+			return this.indexOf(time) < 0;
+		}
+
+		/**
+		 * <p>The speed there would be with this point added,
+		 * without adding it.
+		 * </p>
+		 *
+		 * @return Null if there isn't yet a time span to divide by
+		 */
+		Speed speedWith(long time, Point point) {
+			int insert = this.insertionPoint(time);
+			int first = (this.count == this.times.length && insert > 0 ? 1 : 0);
+
+			long firstTime = (insert == first ? time : this.times[first]);
+			long lastTime = (insert == this.count ? time : this.times[this.count - 1]);
+			if (lastTime <= firstTime) {
+				return null;
+			}
+
+			double metres = this.pathMetres + this.joinMetres(insert, point.getLatitude(), point.getLongitude());
+			if (first == 1) {
+				metres -= this.dropMetres(insert, point.getLatitude(), point.getLongitude());
+			}
+
+			// Floor at zero, as rounding in the running total can leave a stationary path a hair negative
+			Speed speed = new Speed();
+			speed.setMetresPerSecond(Math.max(0d, metres) / ((lastTime - firstTime) / 1000d));
+			speed.setTime(lastTime);
+			return speed;
+		}
+
+		/**
+		 * <p>Add the point in time order, dropping the oldest if full.
+		 * </p>
+		 */
+		void add(long time, Point point) {
+			int insert = this.insertionPoint(time);
+			this.pathMetres += this.joinMetres(insert, point.getLatitude(), point.getLongitude());
+
+			if (this.count == this.times.length) {
+				// Oldest out, the points before the new one move down to make the gap
+				this.pathMetres -= this.dropMetres(insert, point.getLatitude(), point.getLongitude());
+				this.shift(1, 0, insert - 1);
+				insert--;
+			} else {
+				// The points after the new one move up to make the gap
+				this.shift(insert, insert + 1, this.count - insert);
+				this.count++;
+			}
+
+			this.times[insert] = time;
+			this.latitudes[insert] = point.getLatitude();
+			this.longitudes[insert] = point.getLongitude();
+		}
+
+		/**
+		 * <p>The change to the path length from putting a point at this
+		 * position, joining it to its neighbours and unjoining them.
+		 * </p>
+		 */
+		private double joinMetres(int insert, double latitude, double longitude) {
+			double metres = 0;
+			if (insert > 0) {
+				metres += Haversine.metres(this.latitudes[insert - 1], this.longitudes[insert - 1], latitude, longitude);
+			}
+			if (insert < this.count) {
+				metres += Haversine.metres(latitude, longitude, this.latitudes[insert], this.longitudes[insert]);
+			}
+			if (insert > 0 && insert < this.count) {
+				metres -= this.segmentMetres(insert - 1, insert);
+			}
+			return metres;
+		}
+
+		/**
+		 * <p>The change to the path length from dropping the oldest point,
+		 * once a point has been put at this position. The oldest point's
+		 * neighbour may be the new point.
+		 * </p>
+		 */
+		private double dropMetres(int insert, double latitude, double longitude) {
+			if (insert == 1) {
+				return Haversine.metres(this.latitudes[0], this.longitudes[0], latitude, longitude);
+			}
+			return this.segmentMetres(0, 1);
+		}
+
+		private double segmentMetres(int from, int to) {
+			return Haversine.metres(this.latitudes[from], this.longitudes[from], this.latitudes[to], this.longitudes[to]);
+		}
+
+		/**
+		 * <p>Where a point at this time would go. Usually at the end, so
+		 * search backwards.
+		 * </p>
+		 */
+		private int insertionPoint(long time) {
+			int i = this.count;
+			while (i > 0 && this.times[i - 1] > time) {
+				i--;
+			}
+			return i;
+		}
+
+		private int indexOf(long time) {
+			for (int i = this.count - 1; i >= 0; i--) {
+				if (this.times[i] == time) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private void shift(int from, int to, int length) {
+			if (length > 0) {
+				System.arraycopy(this.times, from, this.times, to, length);
+				System.arraycopy(this.latitudes, from, this.latitudes, to, length);
+				System.arraycopy(this.longitudes, from, this.longitudes, to, length);
+			}
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.hazelcast.jet.Traverser;
+import com.hazelcast.jet.Traversers;
+import com.hazelcast.jet.Util;
+import com.hazelcast.jet.core.AbstractProcessor;
+
+import lombok.extern.slf4j.Slf4j;
+import neil.demo.devoxxma2017.TrackBlock;
+import neil.demo.devoxxma2017.Gpx.TrkPt;
+
+/**
+ * <p>An intermediate processor that collects each person's points into
+ * segments, and passes on each segment compressed as a {@link TrackBlock}
+ * once complete.
+ * </p>
+ * <p>A segment is complete when it has "{@code blockPoints}" points, or
+ * when the person has sent nothing for "{@code maxIdleMillis}", see
+ * {@link IdleKeys}. Until then the points are held as primitives,
+ * 32 bytes each. The arrays for them start small and double as needed up
+ * to "{@code blockPoints}", so someone who has sent few points costs little.
+ * </p>
+ * <p>The block is keyed by person and the time of its first point, so
+ * a person's blocks sort into time order.
+ * </p>
+ * <p>Points must be in time order for the compression, a point no newer
+ * than the last for the person is dropped.
+ * </p>
+ * <p>All points for the same person must come to the same instance of
+ * this processor, so the inbound edge has to be partitioned by the key.
+ * </p>
+ */
+@Slf4j
+public class TrackArchiver extends AbstractProcessor {
+
+	private static final String PREFIX = TrackArchiver.class.getSimpleName() + " ";
+
+	private final int blockPoints;
+	private final IdleKeys<Segment> segments;
+	private Traverser<Map.Entry<String, TrackBlock>> idle;
+	private Map.Entry<String, TrackBlock> full;
+	private long blocks;
+	private long late;
+
+	public TrackArchiver(int blockPoints, long maxIdleMillis, int maxKeys) {
+		this.blockPoints = blockPoints;
+		this.segments = new IdleKeys<>(maxIdleMillis, maxKeys);
+	}
+
+	/**
+	 * <p>Add the point to the person's segment, and pass on the
+	 * segment if that fills it.
+	 * </p>
+	 *
+	 * @param ordinal 0, the only input edge
+	 * @param item A {@code Map.Entry<String, TrkPt>} from Kafka
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	protected boolean tryProcess(int ordinal, Object item) {
+		if (!this.emitIdle()) {
+			return false;
+		}
+
+		Map.Entry<String, TrkPt> entry = (Map.Entry<String, TrkPt>) item;
+		Segment segment = this.segments.get(entry.getKey());
+		if (segment == null) {
+			segment = new Segment(this.blockPoints);
+		}
+
+		/* Try to emit before changing the segment, as this may be called again with the same item.
+		 * Keep the block in case, so it isn't encoded again.
+		 */
+		if (segment.isFull()) {
+			if (this.full == null) {
+				this.full = toBlock(entry.getKey(), segment);
+			}
+			if (!this.tryEmit(this.full)) {
+				return false;
+			}
+			this.full = null;
+			this.blocks++;
+			segment.clear();
+		}
+
+		if (!segment.add(entry.getValue())) {
+			this.late++;
+		}
+		this.segments.put(entry.getKey(), segment, System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * <p>Called when there is no input, pass on the segments of
+	 * anyone who has gone quiet.
+	 * </p>
+	 */
+	@Override
+	public boolean tryProcess() {
+		return this.emitIdle();
+	}
+
+	/**
+	 * <p>Pass on the segment for everyone idle too long, carrying on
+	 * from where the last call got to if the outbox filled.
+	 * </p>
+	 */
+	private boolean emitIdle() {
+		if (this.idle == null) {
+			List<Map.Entry<String, Segment>> expired = this.segments.expire(System.currentTimeMillis());
+			if (expired.isEmpty()) {
+				return true;
+			}
+			this.blocks += expired.size();
+			log.info("{} {} idle, {} blocks, {} late, tracking {} keys",
+					PREFIX, expired.size(), this.blocks, this.late, this.segments.size());
+			// A segment can be empty if its only point since the last block was late
+			this.idle = Traversers.traverseIterable(expired)
+					.filter(entry -> entry.getValue().count > 0)
+					.map(entry -> toBlock(entry.getKey(), entry.getValue()));
+		}
+
+		if (!this.emitFromTraverser(this.idle)) {
+			return false;
+		}
+		this.idle = null;
+		return true;
+	}
+
+	private static Map.Entry<String, TrackBlock> toBlock(String key, Segment segment) {
+		TrackBlock trackBlock = TrackBlock.encode(key, segment.times, segment.latitudes, segment.longitudes,
+				segment.elevations, segment.count);
+		return Util.entry(key + "@" + trackBlock.getFirstTime(), trackBlock);
+	}
+
+	/**
+	 * <p>The points so far for one person, oldest first, held as
+	 * primitives in parallel arrays rather than as objects.
+	 * </p>
+	 */
+	static class Segment {
+		private static final int INITIAL_CAPACITY = 16;
+
+		private final int maxCapacity;
+		private long[] times;
+		private double[] latitudes;
+		private double[] longitudes;
+		private double[] elevations;
+		private int count;
+
+		Segment(int maxCapacity) {
+			int capacity = Math.min(INITIAL_CAPACITY, maxCapacity);
+			this.maxCapacity = maxCapacity;
+			this.times = new long[capacity];
+			this.latitudes = new double[capacity];
+			this.longitudes = new double[capacity];
+			this.elevations = new double[capacity];
+		}
+
+		/**
+		 * @return False if dropped as not newer than the last point
+		 */
+		boolean add(TrkPt trkPt) {
+			long time = trkPt.getDate().getTime();
+			if (this.count > 0 && time <= this.times[this.count - 1]) {
+				return false;
+			}
+			if (this.count == this.times.length) {
+				int capacity = Math.min(this.times.length * 2, this.maxCapacity);
+				this.times = Arrays.copyOf(this.times, capacity);
+				this.latitudes = Arrays.copyOf(this.latitudes, capacity);
+				this.longitudes = Arrays.copyOf(this.longitudes, capacity);
+				this.elevations = Arrays.copyOf(this.elevations, capacity);
+			}
+			this.times[this.count] = time;
+			this.latitudes[this.count] = trkPt.getLatitude();
+			this.longitudes[this.count] = trkPt.getLongitude();
+			this.elevations[this.count] = trkPt.getElevation();
+			this.count++;
+			return true;
+		}
+
+		boolean isFull() {
+			return this.count == this.maxCapacity;
+		}
+
+		void clear() {
+			this.count = 0;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.hazelcast.core.ExecutionCallback;
+import com.hazelcast.core.IMap;
+import com.hazelcast.jet.core.AbstractProcessor;
+
+import lombok.extern.slf4j.Slf4j;
+import neil.demo.devoxxma2017.Constants;
+import neil.demo.devoxxma2017.Trail;
+import neil.demo.devoxxma2017.TrailAppender;
+import neil.demo.devoxxma2017.Gpx.TrkPt;
+
+/**
+ * <p>A sink that adds each point to the person's {@link Trail} in the
+ * "{@code trail}" {@link com.hazelcast.core.IMap IMap}, using a
+ * {@link TrailAppender}.
+ * </p>
+ * <p>Each point is sent asynchronously, so the processor doesn't wait for
+ * the round trip. At most {@link #MAX_IN_FLIGHT} can be outstanding, beyond
+ * that the processor stops taking input until some complete, so a slow
+ * map holds back the stream rather than queueing without limit.
+ * </p>
+ */
+@Slf4j
+public class TrailSink extends AbstractProcessor {
+
+	private static final int MAX_IN_FLIGHT = 1_000;
+
+	private final int capacity;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final ExecutionCallback<Object> callback = new ExecutionCallback<Object>() {
+		@Override
+		public void onResponse(Object response) {
+			inFlight.decrementAndGet();
+		}
+		@Override
+		public void onFailure(Throwable t) {
+			inFlight.decrementAndGet();
+			log.error("TrailAppender", t);
+		}
+	};
+
+	private IMap<String, Trail> trailMap;
+
+	public TrailSink(int capacity) {
+		this.capacity = capacity;
+	}
+
+	@Override
+	protected void init(Context context) throws Exception {
+		this.trailMap = context.jetInstance().getHazelcastInstance().getMap(Constants.IMAP_NAME_TRAIL);
+	}
+
+	/**
+	 * @param ordinal 0, the only input edge
+	 * @param item A {@code Map.Entry<String, TrkPt>} from Kafka
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	protected boolean tryProcess(int ordinal, Object item) {
+		if (this.inFlight.get() >= MAX_IN_FLIGHT) {
+			return false;
+		}
+
+		Map.Entry<String, TrkPt> entry = (Map.Entry<String, TrkPt>) item;
+		TrkPt trkPt = entry.getValue();
+		TrailAppender trailAppender = new TrailAppender(this.capacity, trkPt.getDate().getTime(),
+				trkPt.getLatitude(), trkPt.getLongitude(), trkPt.getElevation());
+
+		this.inFlight.incrementAndGet();
+		this.trailMap.submitToKey(entry.getKey(), trailAppender, this.callback);
+		return true;
+	}
+
+	/**
+	 * <p>Only finished when nothing is outstanding.
+	 * </p>
+	 */
+	@Override
+	public boolean complete() {
+		return this.inFlight.get() == 0;
+	}
+}
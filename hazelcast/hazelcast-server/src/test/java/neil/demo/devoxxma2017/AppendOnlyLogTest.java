@@ -0,0 +1,201 @@
+package neil.demo.devoxxma2017;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>Check {@link AppendOnlyLog} reads back what was appended, keeps only
+ * the latest when compacted, and after a crash keeps everything before
+ * the batch being written.
+ * </p>
+ * <p>There is one instance per file in a JVM, so a restart is a copy of
+ * the file under another name, opened afresh.
+ * </p>
+ */
+public class AppendOnlyLogTest {
+
+	private Path directory;
+
+	@Before
+	public void before() throws IOException {
+		this.directory = Files.createTempDirectory(AppendOnlyLogTest.class.getSimpleName());
+	}
+
+	@After
+	public void after() throws IOException {
+		try (Stream<Path> paths = Files.walk(this.directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	public void appendGetDelete() throws IOException {
+		AppendOnlyLog appendOnlyLog = AppendOnlyLog.open(this.directory.resolve("0.log"));
+		appendOnlyLog.append(records("a", "1", "b", "2", "c", "3"));
+		appendOnlyLog.append(records("b", "22", "c", null));
+
+		assertEquals("1", string(appendOnlyLog.get("a")));
+		assertEquals("22", string(appendOnlyLog.get("b")));
+		assertNull(appendOnlyLog.get("c"));
+		assertNull(appendOnlyLog.get("d"));
+		assertEquals(new HashSet<>(Arrays.asList("a", "b")), appendOnlyLog.keys());
+
+		Map<String, byte[]> all = appendOnlyLog.getAll(Arrays.asList("a", "c", "d"));
+		assertEquals(1, all.size());
+		assertEquals("1", string(all.get("a")));
+	}
+
+	@Test
+	public void sameInstancePerFile() {
+		Path path = this.directory.resolve("0.log");
+
+		assertTrue(AppendOnlyLog.open(path) == AppendOnlyLog.open(path.getParent().resolve(".").resolve("0.log")));
+	}
+
+	@Test
+	public void grows() throws IOException {
+		AppendOnlyLog appendOnlyLog = AppendOnlyLog.open(this.directory.resolve("0.log"));
+		// Well past the initial 64KB, different keys so nothing to compact
+		byte[] value = new byte[1_000];
+		for (int i = 0; i < 500; i++) {
+			Arrays.fill(value, (byte) i);
+			appendOnlyLog.append(records("key" + i, value));
+		}
+
+		assertEquals(500, appendOnlyLog.keys().size());
+		for (int i = 0; i < 500; i++) {
+			Arrays.fill(value, (byte) i);
+			assertArrayEquals(value, appendOnlyLog.get("key" + i));
+		}
+	}
+
+	@Test
+	public void compact() throws IOException {
+		Path path = this.directory.resolve("0.log");
+		AppendOnlyLog appendOnlyLog = AppendOnlyLog.open(path);
+		// A few keys rewritten many times, 4MB written for 10KB live
+		byte[] value = new byte[1_000];
+		for (int i = 0; i < 4_000; i++) {
+			Arrays.fill(value, (byte) i);
+			appendOnlyLog.append(records("key" + (i % 10), value));
+		}
+
+		assertTrue(Files.size(path) + " bytes", Files.size(path) < 2 * 1024 * 1024);
+		assertEquals(10, appendOnlyLog.keys().size());
+		for (int i = 0; i < 10; i++) {
+			Arrays.fill(value, (byte) (3_990 + i));
+			assertArrayEquals(value, appendOnlyLog.get("key" + i));
+		}
+
+		Path restarted = this.copy(path, "1.log");
+		assertArrayEquals(value, AppendOnlyLog.open(restarted).get("key9"));
+	}
+
+	@Test
+	public void crashBeforeHeader() throws IOException {
+		Path path = this.directory.resolve("0.log");
+		AppendOnlyLog appendOnlyLog = AppendOnlyLog.open(path);
+		appendOnlyLog.append(records("a", "1", "b", "2"));
+		long end = this.header(path);
+		appendOnlyLog.append(records("a", "11", "c", "3"));
+
+		// The second batch's records are written, but not the header after them
+		Path crashed = this.copy(path, "1.log");
+		this.header(crashed, end);
+
+		AppendOnlyLog restarted = AppendOnlyLog.open(crashed);
+		assertEquals("1", string(restarted.get("a")));
+		assertEquals("2", string(restarted.get("b")));
+		assertNull(restarted.get("c"));
+
+		// The lost batch is written over
+		restarted.append(records("d", "4"));
+		AppendOnlyLog again = AppendOnlyLog.open(this.copy(crashed, "2.log"));
+		assertEquals(new HashSet<>(Arrays.asList("a", "b", "d")), again.keys());
+		assertEquals("4", string(again.get("d")));
+	}
+
+	@Test
+	public void tornRecord() throws IOException {
+		Path path = this.directory.resolve("0.log");
+		AppendOnlyLog appendOnlyLog = AppendOnlyLog.open(path);
+		appendOnlyLog.append(records("a", "1", "b", "2"));
+		appendOnlyLog.append(records("a", "11", "c", "3"));
+
+		// The header was written, but the last record only partly, its last byte wrong
+		Path crashed = this.copy(path, "1.log");
+		long end = this.header(crashed);
+		try (FileChannel channel = FileChannel.open(crashed, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 'x' }), end - 1);
+		}
+
+		AppendOnlyLog restarted = AppendOnlyLog.open(crashed);
+		assertEquals("11", string(restarted.get("a")));
+		assertEquals("2", string(restarted.get("b")));
+		assertNull(restarted.get("c"));
+	}
+
+	private Path copy(Path path, String name) throws IOException {
+		Path copy = this.directory.resolve(name);
+		Files.copy(path, copy);
+		return copy;
+	}
+
+	private long header(Path path) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			channel.read(header, 0);
+		}
+		return header.getLong(0);
+	}
+
+	private void header(Path path, long end) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+		header.putLong(0, end);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			channel.write(header, 0);
+		}
+	}
+
+	/**
+	 * @param keysAndValues Key, value, key, value... a null value is a delete
+	 */
+	private static Map<String, byte[]> records(String... keysAndValues) {
+		Map<String, byte[]> records = new LinkedHashMap<>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			records.put(keysAndValues[i],
+					(keysAndValues[i + 1] == null ? null : keysAndValues[i + 1].getBytes(StandardCharsets.UTF_8)));
+		}
+		return records;
+	}
+
+	private static Map<String, byte[]> records(String key, byte[] value) {
+		Map<String, byte[]> records = new LinkedHashMap<>();
+		records.put(key, value.clone());
+		return records;
+	}
+
+	private static String string(byte[] value) {
+		return (value == null ? null : new String(value, StandardCharsets.UTF_8));
+	}
+}
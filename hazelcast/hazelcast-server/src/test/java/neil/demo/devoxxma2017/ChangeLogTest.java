@@ -0,0 +1,84 @@
+package neil.demo.devoxxma2017;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hazelcast.core.EntryEventType;
+
+/**
+ * <p>Check {@link ChangeLog} reads back each event as written, whatever
+ * its type, and across segments.
+ * </p>
+ */
+public class ChangeLogTest {
+
+	private Path directory;
+
+	@Before
+	public void before() throws IOException {
+		this.directory = Files.createTempDirectory(ChangeLogTest.class.getSimpleName());
+	}
+
+	@After
+	public void after() throws IOException {
+		try (Stream<Path> paths = Files.walk(this.directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	public void everyType() throws IOException {
+		List<byte[]> records = new ArrayList<>();
+		for (EntryEventType type : EntryEventType.values()) {
+			records.add(ChangeLog.encode(type.ordinal(), type, "map", type.name(), type.getType()));
+		}
+		try (ChangeLog changeLog = new ChangeLog(this.directory, 64 * 1024)) {
+			changeLog.append(records);
+		}
+
+		List<ChangeLog.Record> read = new ArrayList<>();
+		assertEquals(records.size(), ChangeLog.read(this.directory, read::add));
+		for (EntryEventType type : EntryEventType.values()) {
+			ChangeLog.Record record = read.get(type.ordinal());
+			assertEquals(type, record.getType());
+			assertEquals(type.ordinal(), record.getTime());
+			assertEquals("map", record.getMapName());
+			assertEquals(type.name(), record.getKey());
+			assertEquals(type.getType(), record.getValue());
+		}
+	}
+
+	@Test
+	public void acrossSegments() throws IOException {
+		List<byte[]> records = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			records.add(ChangeLog.encode(i, EntryEventType.UPDATED, "map", "key" + i, i));
+		}
+		records.add(ChangeLog.encode(100, EntryEventType.REMOVED, "map", "key0", null));
+		// Room for a few records a segment
+		try (ChangeLog changeLog = new ChangeLog(this.directory, 1_024)) {
+			changeLog.append(records);
+		}
+
+		List<ChangeLog.Record> read = new ArrayList<>();
+		assertEquals(records.size(), ChangeLog.read(this.directory, read::add));
+		for (int i = 0; i < 100; i++) {
+			assertEquals(i, read.get(i).getTime());
+			assertEquals(i, read.get(i).getValue());
+		}
+		assertEquals(EntryEventType.REMOVED, read.get(100).getType());
+		assertNull(read.get(100).getValue());
+	}
+}
@@ -0,0 +1,132 @@
+package neil.demo.devoxxma2017;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.nio.Address;
+
+/**
+ * <p>Check {@link FileMapStore} brings a map back after the cluster
+ * restarts, when each member only has its own files and the partitions
+ * are owned by different members from before.
+ * </p>
+ */
+public class FileMapStoreTest {
+
+	private static final String MAP_NAME = "test";
+	private static final int COUNT = 1_000;
+
+	private Path directory;
+	private final List<HazelcastInstance> members = new ArrayList<>();
+
+	@Before
+	public void before() throws IOException {
+		this.directory = Files.createTempDirectory(FileMapStoreTest.class.getSimpleName());
+	}
+
+	@After
+	public void after() throws IOException {
+		this.shutdown();
+		try (Stream<Path> paths = Files.walk(this.directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	public void restartOnMoreMembers() throws IOException {
+		IMap<String, Integer> map = this.start(1).get(0).getMap(MAP_NAME);
+		for (int i = 0; i < COUNT; i++) {
+			map.set("key" + i, i);
+		}
+		map.set("key0", -1);
+		map.delete("key1");
+		this.shutdown();
+
+		// All written by one member, now half the partitions are owned by the other
+		HazelcastInstance second = this.start(2).get(1);
+		map = this.members.get(0).getMap(MAP_NAME);
+		assertEquals(COUNT - 1, map.size());
+		assertEquals(Integer.valueOf(-1), map.get("key0"));
+		assertNull(map.get("key1"));
+		assertEquals(Integer.valueOf(COUNT - 1), map.get("key" + (COUNT - 1)));
+
+		// The second member kept a copy of what it loaded
+		assertTrue(Files.isDirectory(this.directory.resolve(name(second)).resolve(MAP_NAME)));
+
+		// Newer writes on either member win
+		for (int i = 0; i < COUNT; i += 2) {
+			map.set("key" + i, i * 10);
+		}
+		map.delete("key3");
+		this.shutdown();
+
+		map = this.start(2).get(0).getMap(MAP_NAME);
+		assertEquals(COUNT - 2, map.size());
+		for (int i = 2; i < COUNT; i++) {
+			Integer expected = (i == 3 ? null : (i % 2 == 0 ? i * 10 : i));
+			assertEquals("key" + i, expected, map.get("key" + i));
+		}
+	}
+
+	/**
+	 * <p>Members join in turn, so get the same ports, and the same
+	 * directories, each time.
+	 * </p>
+	 */
+	private List<HazelcastInstance> start(int count) {
+		for (int i = 0; i < count; i++) {
+			this.members.add(Hazelcast.newHazelcastInstance(this.config()));
+		}
+		return this.members;
+	}
+
+	private void shutdown() {
+		for (HazelcastInstance member : this.members) {
+			member.shutdown();
+		}
+		this.members.clear();
+	}
+
+	private Config config() {
+		Config config = new Config();
+		config.getGroupConfig().setName(FileMapStoreTest.class.getSimpleName());
+		config.setProperty("hazelcast.wait.seconds.before.join", "0");
+		config.setProperty("hazelcast.logging.type", "slf4j");
+		JoinConfig joinConfig = config.getNetworkConfig().getJoin();
+		joinConfig.getMulticastConfig().setEnabled(false);
+		joinConfig.getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+		config.getNetworkConfig().getInterfaces().setEnabled(true).addInterface("127.0.0.1");
+
+		// Write through, so nothing is waiting to be written at shutdown
+		MapStoreConfig mapStoreConfig = new MapStoreConfig().setEnabled(true)
+				.setClassName(FileMapStore.class.getName())
+				.setInitialLoadMode(MapStoreConfig.InitialLoadMode.EAGER)
+				.setProperty(FileMapStore.DIRECTORY_PROPERTY, this.directory.toString());
+		config.getMapConfig(MAP_NAME).setMapStoreConfig(mapStoreConfig);
+		return config;
+	}
+
+	private static String name(HazelcastInstance member) {
+		Address address = member.getCluster().getLocalMember().getAddress();
+		return address.getHost() + "-" + address.getPort();
+	}
+}
@@ -0,0 +1,114 @@
+package neil.demo.devoxxma2017.jet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * <p>Check {@link IdleKeys} forgets keys once idle, and the least recently
+ * updated once over the limit, and hands back each forgotten key once.
+ * </p>
+ */
+public class IdleKeysTest {
+
+	private static final long MAX_IDLE_MILLIS = 1_000L;
+
+	@Test
+	public void expireIdle() {
+		IdleKeys<Integer> idleKeys = new IdleKeys<>(MAX_IDLE_MILLIS, 10);
+		idleKeys.put("a", 1, 0L);
+		idleKeys.put("b", 2, 500L);
+
+		assertTrue(idleKeys.expire(999L).isEmpty());
+		assertEquals(2, idleKeys.size());
+
+		// Idle for exactly the idle time is gone
+		List<Map.Entry<String, Integer>> expired = idleKeys.expire(1_000L);
+		assertEquals(1, expired.size());
+		assertEquals("a", expired.get(0).getKey());
+		assertEquals(Integer.valueOf(1), expired.get(0).getValue());
+		assertNull(idleKeys.get("a"));
+		assertEquals(Integer.valueOf(2), idleKeys.get("b"));
+
+		// Only handed back once
+		assertTrue(idleKeys.expire(1_000L).isEmpty());
+	}
+
+	@Test
+	public void putRefreshes() {
+		IdleKeys<Integer> idleKeys = new IdleKeys<>(MAX_IDLE_MILLIS, 10);
+		idleKeys.put("a", 1, 0L);
+		idleKeys.put("b", 2, 100L);
+		idleKeys.put("a", 3, 900L);
+
+		List<Map.Entry<String, Integer>> expired = idleKeys.expire(1_500L);
+		assertEquals(1, expired.size());
+		assertEquals("b", expired.get(0).getKey());
+		assertEquals(Integer.valueOf(3), idleKeys.get("a"));
+
+		expired = idleKeys.expire(1_900L);
+		assertEquals(1, expired.size());
+		assertEquals("a", expired.get(0).getKey());
+		assertEquals(Integer.valueOf(3), expired.get(0).getValue());
+		assertEquals(0, idleKeys.size());
+	}
+
+	@Test
+	public void evictOverLimit() {
+		IdleKeys<Integer> idleKeys = new IdleKeys<>(MAX_IDLE_MILLIS, 3);
+		for (int i = 0; i < 5; i++) {
+			idleKeys.put("k" + i, i, i);
+		}
+		assertEquals(3, idleKeys.size());
+		assertNull(idleKeys.get("k0"));
+		assertNull(idleKeys.get("k1"));
+		assertEquals(Integer.valueOf(4), idleKeys.get("k4"));
+
+		// Evicted keys come back on the next expire, though not idle, oldest first
+		List<Map.Entry<String, Integer>> expired = idleKeys.expire(5L);
+		assertEquals(2, expired.size());
+		assertEquals("k0", expired.get(0).getKey());
+		assertEquals("k1", expired.get(1).getKey());
+		assertTrue(idleKeys.expire(5L).isEmpty());
+	}
+
+	@Test
+	public void evictedThenIdle() {
+		IdleKeys<Integer> idleKeys = new IdleKeys<>(MAX_IDLE_MILLIS, 2);
+		idleKeys.put("a", 1, 0L);
+		idleKeys.put("b", 2, 0L);
+		idleKeys.put("c", 3, 0L);
+
+		List<Map.Entry<String, Integer>> expired = idleKeys.expire(MAX_IDLE_MILLIS);
+		assertEquals(3, expired.size());
+		assertEquals("a", expired.get(0).getKey());
+		assertEquals("b", expired.get(1).getKey());
+		assertEquals("c", expired.get(2).getKey());
+		assertEquals(0, idleKeys.size());
+	}
+
+	@Test
+	public void removeNotHandedBack() {
+		IdleKeys<Integer> idleKeys = new IdleKeys<>(MAX_IDLE_MILLIS, 10);
+		idleKeys.put("a", 1, 0L);
+		idleKeys.remove("a");
+
+		assertNull(idleKeys.get("a"));
+		assertTrue(idleKeys.expire(MAX_IDLE_MILLIS).isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void noIdleTime() {
+		new IdleKeys<>(0L, 10);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void noKeys() {
+		new IdleKeys<>(MAX_IDLE_MILLIS, 0);
+	}
+}
@@ -0,0 +1,208 @@
+package neil.demo.devoxxma2017.jet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.Test;
+
+import com.hazelcast.jet.Jet;
+import com.hazelcast.jet.JetInstance;
+import com.hazelcast.jet.Util;
+import com.hazelcast.jet.config.JetConfig;
+import com.hazelcast.jet.core.test.TestOutbox;
+import com.hazelcast.jet.core.test.TestProcessorContext;
+import com.hazelcast.jet.core.test.TestProcessorSupplierContext;
+
+/**
+ * <p>Check how {@link KafkaRangeSource} picks partitions and offsets,
+ * without a Kafka to read from. The whole processor is run against
+ * Kafka's mock consumer, through Jet's test contexts.
+ * </p>
+ */
+public class KafkaRangeSourceTest {
+
+	private static final String TOPIC = "topic";
+	private static final int PARTITIONS = 4;
+	// A record a second on each partition, from this time
+	private static final long START = 1_509_000_000_000L;
+	private static final int RECORDS = 100;
+
+	@Test
+	public void eachPartitionReadOnce() {
+		for (int processors = 1; processors <= 7; processors++) {
+			for (int partition = 0; partition < 50; partition++) {
+				int readers = 0;
+				for (int processorIndex = 0; processorIndex < processors; processorIndex++) {
+					if (KafkaRangeSource.isAssigned(partition, processorIndex, processors)) {
+						readers++;
+					}
+				}
+				assertEquals("Partition " + partition + " of " + processors, 1, readers);
+			}
+		}
+	}
+
+	@Test
+	public void endAtToIfFound() {
+		assertEquals(40L, KafkaRangeSource.endOffset(new OffsetAndTimestamp(40L, 1_000L), 100L));
+	}
+
+	@Test
+	public void endAtLatestIfNothingThatLate() {
+		assertEquals(100L, KafkaRangeSource.endOffset(null, 100L));
+	}
+
+	@Test
+	public void startAtFromIfFound() {
+		assertEquals(10L, KafkaRangeSource.startOffset(new OffsetAndTimestamp(10L, 500L), 40L));
+	}
+
+	@Test
+	public void nothingIfNothingThatLate() {
+		assertEquals(40L, KafkaRangeSource.startOffset(null, 40L));
+	}
+
+	@Test
+	public void nothingIfStartPastEnd() {
+		// A record at "from" after the end, from after to
+		assertEquals(40L, KafkaRangeSource.startOffset(new OffsetAndTimestamp(60L, 500L), 40L));
+	}
+
+	/**
+	 * <p>Two processors, each reads its two partitions between the offsets
+	 * for the times, and together they emit each record in range once.
+	 * </p>
+	 */
+	@Test
+	public void readsRangeOnce() throws Exception {
+		long from = START + 10_000L;
+		long to = START + 20_000L;
+		List<Object> emitted = new ArrayList<>();
+
+		for (int processorIndex = 0; processorIndex < 2; processorIndex++) {
+			emitted.addAll(this.run(processorIndex, 2, from, to));
+		}
+
+		// 10 seconds on each of 4 partitions
+		assertEquals(10 * PARTITIONS, emitted.size());
+		for (int partition = 0; partition < PARTITIONS; partition++) {
+			for (int i = 10; i < 20; i++) {
+				assertTrue(partition + "-" + i, emitted.contains(Util.entry(partition + "-" + i, i)));
+			}
+		}
+	}
+
+	@Test
+	public void negativeFromReadsFromStart() throws Exception {
+		assertEquals(RECORDS, this.run(0, PARTITIONS, -1L, Long.MAX_VALUE).size());
+	}
+
+	@Test
+	public void nothingIfFromAfterTo() throws Exception {
+		assertEquals(0, this.run(0, 1, START + 20_000L, START + 10_000L).size());
+	}
+
+	/**
+	 * <p>The supplier counts every processor on every member, one member here.
+	 * </p>
+	 */
+	@Test
+	public void supplierCountsProcessors() {
+		JetInstance jetInstance = Jet.newJetInstance(new JetConfig());
+		try {
+			KafkaRangeSource.Supplier<String, Integer> supplier =
+					new KafkaRangeSource.Supplier<>(new Properties(), TOPIC, START, START + 1L);
+			supplier.init(new TestProcessorSupplierContext().setJetInstance(jetInstance).setLocalParallelism(3));
+
+			assertEquals(3, supplier.get(3).size());
+			assertEquals(3, supplier.getTotalParallelism());
+			supplier.complete(null);
+		} finally {
+			jetInstance.shutdown();
+		}
+	}
+
+	/**
+	 * @return What one processor emits until complete
+	 */
+	private List<Object> run(int processorIndex, int processors, long from, long to) throws Exception {
+		MockConsumer<String, Integer> consumer = consumer();
+		KafkaRangeSource<String, Integer> source = new KafkaRangeSource<>(properties -> consumer,
+				new Properties(), TOPIC, from, to, processors);
+		TestOutbox outbox = new TestOutbox(1_000);
+		source.init(outbox, new TestProcessorContext().setGlobalProcessorIndex(processorIndex));
+		addRecords(consumer);
+
+		List<Object> emitted = new ArrayList<>();
+		boolean done = false;
+		for (int i = 0; i < 1_000 && !done; i++) {
+			done = source.complete();
+			emitted.addAll(outbox.queueWithOrdinal(0));
+			outbox.queueWithOrdinal(0).clear();
+		}
+		assertTrue(done);
+		return emitted;
+	}
+
+	/**
+	 * <p>A record a second on each partition, keyed by partition and second,
+	 * with the second as the value. The mock can't look up offsets by time,
+	 * so that is done here from the same layout.
+	 * </p>
+	 */
+	private static MockConsumer<String, Integer> consumer() {
+		MockConsumer<String, Integer> consumer = new MockConsumer<String, Integer>(OffsetResetStrategy.EARLIEST) {
+			@Override
+			public synchronized Map<TopicPartition, OffsetAndTimestamp> offsetsForTimes(
+					Map<TopicPartition, Long> timestampsToSearch) {
+				Map<TopicPartition, OffsetAndTimestamp> result = new HashMap<>();
+				for (Map.Entry<TopicPartition, Long> entry : timestampsToSearch.entrySet()) {
+					assertTrue("Negative time", entry.getValue() >= 0);
+					long offset = Math.max(0L, (entry.getValue() - START + 999L) / 1_000L);
+					result.put(entry.getKey(), (offset < RECORDS ? new OffsetAndTimestamp(offset, START + offset * 1_000L) : null));
+				}
+				return result;
+			}
+		};
+
+		List<PartitionInfo> partitionInfos = new ArrayList<>();
+		Map<TopicPartition, Long> beginnings = new HashMap<>();
+		Map<TopicPartition, Long> ends = new HashMap<>();
+		for (int partition = 0; partition < PARTITIONS; partition++) {
+			partitionInfos.add(new PartitionInfo(TOPIC, partition, null, null, null));
+			beginnings.put(new TopicPartition(TOPIC, partition), 0L);
+			ends.put(new TopicPartition(TOPIC, partition), (long) RECORDS);
+		}
+		consumer.updatePartitions(TOPIC, partitionInfos);
+		consumer.updateBeginningOffsets(beginnings);
+		consumer.updateEndOffsets(ends);
+		return consumer;
+	}
+
+	/**
+	 * <p>Records are added once the source has assigned and seeked, as the
+	 * mock only accepts records for assigned partitions.
+	 * </p>
+	 */
+	private static void addRecords(MockConsumer<String, Integer> consumer) {
+		for (TopicPartition topicPartition : consumer.assignment()) {
+			for (int i = 0; i < RECORDS; i++) {
+				consumer.addRecord(new ConsumerRecord<>(TOPIC, topicPartition.partition(), i, START + i * 1_000L,
+						TimestampType.CREATE_TIME, 0L, 0, 0, topicPartition.partition() + "-" + i, i));
+			}
+		}
+	}
+}
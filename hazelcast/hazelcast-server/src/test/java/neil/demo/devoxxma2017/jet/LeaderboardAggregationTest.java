@@ -0,0 +1,71 @@
+package neil.demo.devoxxma2017.jet;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+import com.hazelcast.jet.datamodel.TimestampedEntry;
+
+import neil.demo.devoxxma2017.Leaderboard;
+import neil.demo.devoxxma2017.RideMetrics;
+
+/**
+ * <p>Check {@link LeaderboardAggregation} keeps the fastest, fastest first,
+ * down to a leaderboard of one, and refuses an empty one.
+ * </p>
+ */
+public class LeaderboardAggregationTest {
+
+	@Test
+	public void fastestFirst() {
+		LeaderboardAggregation leaderboardAggregation = new LeaderboardAggregation(3);
+		double[] speeds = { 4d, 9d, 0d, 1d, 7d, 8d, 2d };
+		for (int i = 0; i < speeds.length; i++) {
+			leaderboardAggregation.accumulate(entry("rider" + i, speeds[i]));
+		}
+
+		Leaderboard leaderboard = leaderboardAggregation.finish();
+		assertArrayEquals(new String[] { "rider1", "rider5", "rider4" }, leaderboard.getRiders());
+		assertArrayEquals(new double[] { 9d, 8d, 7d }, leaderboard.getMetresPerSecond(), 0d);
+	}
+
+	@Test
+	public void fewerThanSize() {
+		LeaderboardAggregation leaderboardAggregation = new LeaderboardAggregation(3);
+		leaderboardAggregation.accumulate(entry("a", 1d));
+		leaderboardAggregation.accumulate(entry("b", 2d));
+		// Not moving doesn't qualify
+		leaderboardAggregation.accumulate(entry("c", 0d));
+
+		assertArrayEquals(new String[] { "b", "a" }, leaderboardAggregation.finish().getRiders());
+	}
+
+	@Test
+	public void sizeOne() {
+		LeaderboardAggregation left = new LeaderboardAggregation(1);
+		left.accumulate(entry("a", 3d));
+		left.accumulate(entry("b", 5d));
+		left.accumulate(entry("c", 4d));
+		LeaderboardAggregation right = new LeaderboardAggregation(1);
+		right.accumulate(entry("d", 6d));
+
+		assertArrayEquals(new String[] { "b" }, new LeaderboardAggregation(1).combine(left).finish().getRiders());
+		assertArrayEquals(new String[] { "d" }, left.combine(right).finish().getRiders());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void sizeZero() {
+		new LeaderboardAggregation(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void speedoSizeZero() {
+		Speedo.build("300/60", 1_000L, 10_000L, 60_000L, 100, 1, 300_000L, 1d, 0, 0d, 0d, 60_000L);
+	}
+
+	private static TimestampedEntry<String, RideMetrics> entry(String rider, double metresPerSecond) {
+		RideMetrics rideMetrics = new RideMetrics();
+		rideMetrics.setMetresPerSecond(metresPerSecond);
+		return new TimestampedEntry<>(0L, rider, rideMetrics);
+	}
+}
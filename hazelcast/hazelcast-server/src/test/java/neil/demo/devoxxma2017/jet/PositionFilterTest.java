@@ -0,0 +1,124 @@
+package neil.demo.devoxxma2017.jet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hazelcast.jet.Util;
+import com.hazelcast.jet.core.test.TestOutbox;
+import com.hazelcast.jet.core.test.TestProcessorContext;
+
+import neil.demo.devoxxma2017.Gpx.TrkPt;
+
+/**
+ * <p>Check {@link PositionFilter} drops repeats and points that have
+ * barely moved, keeps a stationary person alive with the heartbeat, and
+ * passes late points on without comparing later points against them.
+ * </p>
+ */
+public class PositionFilterTest {
+
+	private static final String RIDER = "rider";
+	private static final double EPSILON_METRES = 10d;
+	private static final long HEARTBEAT_MILLIS = 30_000L;
+	private static final long START = 1_509_000_000_000L;
+	// About 1.1 metres of latitude
+	private static final double STEP = 0.00001d;
+
+	private PositionFilter positionFilter;
+	private TestOutbox outbox;
+
+	@Before
+	public void before() {
+		this.positionFilter = new PositionFilter(EPSILON_METRES, HEARTBEAT_MILLIS, Long.MAX_VALUE / 2, 100);
+		// Same three output edges as in ReadKafka
+		this.outbox = new TestOutbox(100, 100, 100);
+		this.positionFilter.init(this.outbox, new TestProcessorContext());
+	}
+
+	@Test
+	public void firstKept() {
+		assertTrue(this.process(START, 33.57d));
+	}
+
+	@Test
+	public void duplicateDropped() {
+		assertTrue(this.process(START, 33.57d));
+		assertFalse(this.process(START, 33.57d));
+	}
+
+	@Test
+	public void sameTimeMovedKept() {
+		assertTrue(this.process(START, 33.57d));
+		assertTrue(this.process(START, 33.57d + 100 * STEP));
+	}
+
+	@Test
+	public void stationaryDroppedUntilHeartbeat() {
+		assertTrue(this.process(START, 33.57d));
+		// Same place, and GPS jitter of a few metres, before the heartbeat
+		assertFalse(this.process(START + 1_000L, 33.57d));
+		assertFalse(this.process(START + 2_000L, 33.57d + 3 * STEP));
+		assertFalse(this.process(START + HEARTBEAT_MILLIS - 1, 33.57d));
+
+		// A heartbeat since the last kept, not since the last seen
+		assertTrue(this.process(START + HEARTBEAT_MILLIS, 33.57d));
+		assertFalse(this.process(START + HEARTBEAT_MILLIS + 1_000L, 33.57d));
+	}
+
+	@Test
+	public void movingKept() {
+		assertTrue(this.process(START, 33.57d));
+		assertTrue(this.process(START + 1_000L, 33.57d + 20 * STEP));
+		// Measured from the last kept, so small moves add up
+		assertFalse(this.process(START + 2_000L, 33.57d + 25 * STEP));
+		assertTrue(this.process(START + 3_000L, 33.57d + 30 * STEP));
+	}
+
+	@Test
+	public void latePassedOn() {
+		assertTrue(this.process(START + 10_000L, 33.57d));
+		// Older, even in the same place, is passed on for downstream to decide
+		assertTrue(this.process(START + 5_000L, 33.57d));
+		assertTrue(this.process(START, 33.57d + 100 * STEP));
+
+		// And not remembered, later points compare against the newest kept
+		assertFalse(this.process(START + 11_000L, 33.57d));
+		assertTrue(this.process(START + 12_000L, 33.57d + 20 * STEP));
+	}
+
+	@Test
+	public void unreadableDropped() {
+		assertFalse(this.process(Util.entry(RIDER, null)));
+		assertFalse(this.process(Util.entry(RIDER, new TrkPt())));
+	}
+
+	/**
+	 * @return True if passed on, to every output edge
+	 */
+	private boolean process(long time, double latitude) {
+		TrkPt trkPt = new TrkPt();
+		trkPt.setDate(new Date(time));
+		trkPt.setLatitude(latitude);
+		trkPt.setLongitude(-7.59d);
+		return this.process(Util.entry(RIDER, trkPt));
+	}
+
+	private boolean process(Map.Entry<String, TrkPt> entry) {
+		int before = this.outbox.queueWithOrdinal(0).size();
+
+		assertTrue(this.positionFilter.tryProcess(0, entry));
+
+		int after = this.outbox.queueWithOrdinal(0).size();
+		for (int ordinal = 1; ordinal < 3; ordinal++) {
+			assertEquals(after, this.outbox.queueWithOrdinal(ordinal).size());
+		}
+		return after > before;
+	}
+}
@@ -0,0 +1,250 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.EventJournalConfig;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.ExecutionCallback;
+import com.hazelcast.core.IMap;
+import com.hazelcast.jet.Jet;
+import com.hazelcast.jet.JetInstance;
+import com.hazelcast.jet.Job;
+import com.hazelcast.jet.config.JetConfig;
+import com.hazelcast.map.listener.EntryAddedListener;
+import com.hazelcast.map.listener.EntryUpdatedListener;
+
+import lombok.extern.slf4j.Slf4j;
+import neil.demo.devoxxma2017.Constants;
+import neil.demo.devoxxma2017.PositionSpeedUpdater;
+import neil.demo.devoxxma2017.Speed;
+import neil.demo.devoxxma2017.Gpx.TrkPt;
+
+/**
+ * <p>Compare the two ways to get a speed for each point, in the grid
+ * with {@link PositionSpeedUpdater} as the point is saved, or with the
+ * {@link IncrementalSpeedo} job reading the "{@code position}" journal.
+ * </p>
+ * <p>Not run by the build, as the name doesn't end "{@code Test}". Run
+ * it with:
+ * </p>
+ * <pre>
+ * mvn test -Dtest=PositionSpeedBenchmark -Dbenchmark.riders=1000 -Dbenchmark.points=100
+ * </pre>
+ * <p>Each way runs on a fresh single member, once to warm up and once
+ * measured. Points are sent a round at a time, one for each rider a
+ * second after their last and about 5 metres on, with at most 1,000 in
+ * flight. A point's latency is from sending it until its speed arrives
+ * at a listener on the "{@code speed}" map. The job is given two points
+ * to smooth over and a change filter that passes everything, so both
+ * ways produce the same speeds. It also writes the "{@code history}"
+ * map, as it does when deployed.
+ * </p>
+ * <p>CPU is for the whole JVM, sender and listener included, so is only
+ * good for comparing the two.
+ * </p>
+ * <p>Two runs in a container with one CPU, JDK 8u392, 1,000 riders and
+ * 100 points each. The job's latency is mostly the wait for the journal
+ * to be read, on one CPU it competes with the sender:
+ * </p>
+ * <pre>
+ *              points/s   CPU ms   p50 ms   p99 ms   max ms
+ *   in-grid      13,979    7,040     72.0    154.9    212.9
+ *   job           8,443   11,680  1,426.9  2,049.7  2,219.2
+ *
+ *   in-grid      17,775    5,560     57.1    138.0    186.8
+ *   job          10,557    9,330    797.2  2,709.1  2,931.7
+ * </pre>
+ */
+@Slf4j
+public class PositionSpeedBenchmark {
+
+	private static final int RIDERS = Integer.getInteger("benchmark.riders", 1_000);
+	private static final int POINTS = Integer.getInteger("benchmark.points", 100);
+	private static final int MAX_IN_FLIGHT = 1_000;
+	private static final long TIMEOUT_MILLIS = 300_000L;
+	private static final long START = 1_509_000_000_000L;
+	// About 5 metres of latitude
+	private static final double STEP = 0.000045d;
+
+	@Test
+	public void compare() throws Exception {
+		this.run(true);
+		Result inGrid = this.run(true);
+		this.run(false);
+		Result job = this.run(false);
+
+		log.info("{} riders, {} points each", RIDERS, POINTS);
+		log.info("             points/s   CPU ms   p50 ms   p99 ms   max ms");
+		log.info("  in-grid    {}", inGrid);
+		log.info("  job        {}", job);
+	}
+
+	/**
+	 * @param speedInGrid True for the updater, false for the job
+	 */
+	private Result run(boolean speedInGrid) throws Exception {
+		Config config = new Config();
+		config.getGroupConfig().setName(PositionSpeedBenchmark.class.getSimpleName());
+		config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+		config.addEventJournalConfig(new EventJournalConfig().setMapName(Constants.IMAP_NAME_POSITION)
+				.setEnabled(true).setCapacity(Math.max(10_000, 2 * RIDERS * POINTS)));
+		JetInstance jetInstance = Jet.newJetInstance(new JetConfig().setHazelcastConfig(config));
+
+		try {
+			IMap<String, TrkPt> positionMap = jetInstance.getHazelcastInstance().getMap(Constants.IMAP_NAME_POSITION);
+			IMap<String, Speed> speedMap = jetInstance.getHazelcastInstance().getMap(Constants.IMAP_NAME_SPEED);
+
+			// Send time of each point, by rider and point time, until its speed arrives
+			Map<String, Long> sent = new ConcurrentHashMap<>();
+			long[] latencies = new long[RIDERS * (POINTS - 1)];
+			AtomicInteger received = new AtomicInteger();
+			speedMap.addEntryListener(new SpeedListener(sent, latencies, received), true);
+
+			Job job = null;
+			if (!speedInGrid) {
+				job = jetInstance.newJob(IncrementalSpeedo.build(0L, 2, TIMEOUT_MILLIS, RIDERS, 0d, 0d, Long.MAX_VALUE));
+			}
+
+			Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+
+			long cpuBefore = processCpuNanos();
+			long before = System.nanoTime();
+			for (int point = 0; point < POINTS; point++) {
+				for (int rider = 0; rider < RIDERS; rider++) {
+					String key = "rider" + rider;
+					TrkPt trkPt = trkPt(point);
+					inFlight.acquire();
+					if (point > 0) {
+						sent.put(key + "@" + trkPt.getDate().getTime(), System.nanoTime());
+					}
+					if (speedInGrid) {
+						positionMap.submitToKey(key, new PositionSpeedUpdater(trkPt), release(inFlight));
+					} else {
+						positionMap.setAsync(key, trkPt).andThen(release(inFlight));
+					}
+				}
+			}
+
+			long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+			while (received.get() < latencies.length && System.currentTimeMillis() < deadline) {
+				Thread.sleep(1L);
+			}
+			long elapsed = System.nanoTime() - before;
+			long cpu = processCpuNanos() - cpuBefore;
+
+			if (job != null) {
+				job.cancel();
+			}
+			if (received.get() < latencies.length) {
+				throw new IllegalStateException("Only " + received.get() + " of " + latencies.length + " speeds");
+			}
+			return new Result(RIDERS * POINTS, elapsed, cpu, latencies);
+		} finally {
+			jetInstance.shutdown();
+		}
+	}
+
+	private static <T> ExecutionCallback<T> release(Semaphore inFlight) {
+		return new ExecutionCallback<T>() {
+			@Override
+			public void onResponse(T response) {
+				inFlight.release();
+			}
+			@Override
+			public void onFailure(Throwable t) {
+				inFlight.release();
+				log.error("Send", t);
+			}
+		};
+	}
+
+	private static TrkPt trkPt(int point) {
+		TrkPt trkPt = new TrkPt();
+		trkPt.setDate(new Date(START + point * 1_000L));
+		trkPt.setLatitude(33.57d + point * STEP);
+		trkPt.setLongitude(-7.59d);
+		return trkPt;
+	}
+
+	private static long processCpuNanos() {
+		return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+				.getProcessCpuTime();
+	}
+
+	/**
+	 * <p>Match each speed to the point it is for, by the point's time.
+	 * </p>
+	 */
+	@SuppressWarnings("serial")
+	private static class SpeedListener implements EntryAddedListener<String, Speed>, EntryUpdatedListener<String, Speed> {
+		private final Map<String, Long> sent;
+		private final long[] latencies;
+		private final AtomicInteger received;
+
+		SpeedListener(Map<String, Long> sent, long[] latencies, AtomicInteger received) {
+			this.sent = sent;
+			this.latencies = latencies;
+			this.received = received;
+		}
+
+		@Override
+		public void entryAdded(EntryEvent<String, Speed> event) {
+			this.received(event);
+		}
+
+		@Override
+		public void entryUpdated(EntryEvent<String, Speed> event) {
+			this.received(event);
+		}
+
+		private void received(EntryEvent<String, Speed> event) {
+			long now = System.nanoTime();
+			Long then = this.sent.remove(event.getKey() + "@" + event.getValue().getTime());
+			if (then != null) {
+				int index = this.received.getAndIncrement();
+				if (index < this.latencies.length) {
+					this.latencies[index] = now - then;
+				}
+			}
+		}
+	}
+
+	private static class Result {
+		private final int points;
+		private final long elapsedNanos;
+		private final long cpuNanos;
+		private final long[] latencies;
+
+		Result(int points, long elapsedNanos, long cpuNanos, long[] latencies) {
+			this.points = points;
+			this.elapsedNanos = elapsedNanos;
+			this.cpuNanos = cpuNanos;
+			this.latencies = latencies.clone();
+			Arrays.sort(this.latencies);
+		}
+
+		private double percentileMillis(double percentile) {
+			int index = (int) Math.min(this.latencies.length - 1, Math.round(percentile * this.latencies.length));
+			return this.latencies[index] / 1_000_000d;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%8.0f %8d %8.1f %8.1f %8.1f",
+					this.points / (this.elapsedNanos / 1_000_000_000d),
+					this.cpuNanos / 1_000_000,
+					this.percentileMillis(0.5d),
+					this.percentileMillis(0.99d),
+					this.latencies[this.latencies.length - 1] / 1_000_000d);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package neil.demo.devoxxma2017.jet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.hazelcast.jet.datamodel.TimestampedEntry;
+
+import neil.demo.devoxxma2017.RideMetrics;
+import neil.demo.devoxxma2017.SpeedStats;
+
+/**
+ * <p>Check the sketches in {@link SpeedStatsAggregation} against exact
+ * answers. Speeds should be within 3%, the rider count within 3% give
+ * or take the HyperLogLog's standard error.
+ * </p>
+ */
+public class SpeedStatsAggregationTest {
+
+	private static final double SPEED_ERROR = 0.03;
+	private static final double RIDER_ERROR = 0.05;
+
+	@Test
+	public void percentilesCloseToExact() {
+		Random random = new Random(42L);
+		double[] speeds = new double[100_000];
+		SpeedStatsAggregation speedStatsAggregation = new SpeedStatsAggregation();
+
+		// Around 6 m/s, a long tail of faster riders
+		for (int i = 0; i < speeds.length; i++) {
+			speeds[i] = Math.exp(Math.log(6d) + random.nextGaussian() * 0.5);
+			speedStatsAggregation.accumulate(entry("rider" + i, speeds[i]));
+		}
+		SpeedStats speedStats = speedStatsAggregation.finish();
+
+		Arrays.sort(speeds);
+		assertClose(exact(speeds, 0.50), speedStats.getP50MetresPerSecond(), SPEED_ERROR);
+		assertClose(exact(speeds, 0.95), speedStats.getP95MetresPerSecond(), SPEED_ERROR);
+		assertClose(exact(speeds, 0.99), speedStats.getP99MetresPerSecond(), SPEED_ERROR);
+		assertEquals(speeds.length, speedStats.getMoving());
+	}
+
+	@Test
+	public void everySpeedPlacedWithinBucketError() {
+		// Linear range, first doublings and near the top
+		for (double metresPerSecond = 0.01; metresPerSecond < 1000d; metresPerSecond *= 1.07) {
+			SpeedStatsAggregation speedStatsAggregation = new SpeedStatsAggregation();
+			speedStatsAggregation.accumulate(entry("rider", metresPerSecond));
+
+			double p50 = speedStatsAggregation.finish().getP50MetresPerSecond();
+			double allowed = Math.max(SPEED_ERROR * metresPerSecond, 0.001);
+			assertTrue(metresPerSecond + " gave " + p50, Math.abs(p50 - metresPerSecond) <= allowed);
+		}
+	}
+
+	@Test
+	public void ridersCloseToExact() {
+		for (int riders : new int[] { 100, 1_000, 10_000, 100_000 }) {
+			SpeedStatsAggregation speedStatsAggregation = new SpeedStatsAggregation();
+			// Each twice, a repeat isn't another rider
+			for (int repeat = 0; repeat < 2; repeat++) {
+				for (int i = 0; i < riders; i++) {
+					speedStatsAggregation.accumulate(entry("rider" + i, 0));
+				}
+			}
+			SpeedStats speedStats = speedStatsAggregation.finish();
+
+			assertClose(riders, speedStats.getRiders(), RIDER_ERROR);
+			assertEquals(0, speedStats.getMoving());
+			assertEquals(0d, speedStats.getP50MetresPerSecond(), 0d);
+		}
+	}
+
+	@Test
+	public void combineSameAsOne() {
+		SpeedStatsAggregation whole = new SpeedStatsAggregation();
+		SpeedStatsAggregation left = new SpeedStatsAggregation();
+		SpeedStatsAggregation right = new SpeedStatsAggregation();
+
+		for (int i = 0; i < 10_000; i++) {
+			TimestampedEntry<String, RideMetrics> entry = entry("rider" + i, 1d + (i % 200) / 10d);
+			whole.accumulate(entry);
+			(i % 3 == 0 ? left : right).accumulate(entry);
+		}
+		SpeedStats expected = whole.finish();
+		SpeedStats actual = left.combine(right).finish();
+
+		assertEquals(expected.getP50MetresPerSecond(), actual.getP50MetresPerSecond(), 0d);
+		assertEquals(expected.getP95MetresPerSecond(), actual.getP95MetresPerSecond(), 0d);
+		assertEquals(expected.getP99MetresPerSecond(), actual.getP99MetresPerSecond(), 0d);
+		assertEquals(expected.getMoving(), actual.getMoving());
+		assertEquals(expected.getRiders(), actual.getRiders());
+	}
+
+	private static TimestampedEntry<String, RideMetrics> entry(String rider, double metresPerSecond) {
+		RideMetrics rideMetrics = new RideMetrics();
+		rideMetrics.setMetresPerSecond(metresPerSecond);
+		return new TimestampedEntry<>(0L, rider, rideMetrics);
+	}
+
+	private static double exact(double[] sorted, double fraction) {
+		return sorted[(int) Math.ceil(fraction * sorted.length) - 1];
+	}
+
+	private static void assertClose(double expected, double actual, double error) {
+		assertTrue("Expected " + expected + " got " + actual,
+				Math.abs(actual - expected) <= error * expected);
+	}
+}
@@ -0,0 +1,137 @@
+package neil.demo.devoxxma2017.jet;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+import org.junit.Test;
+
+import com.hazelcast.jet.datamodel.TimestampedEntry;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * <p>Measure the heap Jet's window state takes for {@link SpeedoAggregation},
+ * one accumulator for every person for every frame, against the accumulator
+ * as it was before it held only primitives.
+ * </p>
+ * <p>Not run by the build, as the name doesn't end "{@code Test}". Run
+ * it with:
+ * </p>
+ * <pre>
+ * mvn test -Dtest=SpeedoAggregationBenchmark -Dbenchmark.riders=100000
+ * </pre>
+ * <p>Each person has 5 frames, a 5 minute window sliding by 1 minute,
+ * and each frame is given a point a second. Each point has its own key
+ * string, as it would deserialized from the journal. The heap used is
+ * read after garbage collection, with and without the accumulators
+ * held, so it includes everything they keep alive.
+ * </p>
+ * <p>JDK 8u392, 64 bit with compressed references, 100,000 people,
+ * the same on two runs:
+ * </p>
+ * <pre>
+ *               MB/100k   bytes each
+ *   by reference  115.9      231
+ *   primitives     52.0      104
+ * </pre>
+ */
+@Slf4j
+public class SpeedoAggregationBenchmark {
+
+	private static final int RIDERS = Integer.getInteger("benchmark.riders", 100_000);
+	private static final int FRAMES = 5;
+	private static final int POINTS_PER_FRAME = 60;
+	private static final long START = 1_509_000_000_000L;
+	// About 5 metres of latitude
+	private static final double STEP = 0.000045d;
+
+	@Test
+	public void compare() {
+		// Once each to warm up, so classes loaded aren't counted
+		this.measure(ByReference::new, ByReference::accumulate, ByReference::getPoints, 1_000);
+		this.measure(SpeedoAggregation::new, SpeedoAggregation::accumulate, SpeedoAggregation::getPoints, 1_000);
+
+		long byReference = this.measure(ByReference::new, ByReference::accumulate, ByReference::getPoints, RIDERS);
+		long primitives = this.measure(SpeedoAggregation::new, SpeedoAggregation::accumulate, SpeedoAggregation::getPoints, RIDERS);
+
+		log.info("{} riders, {} frames each", RIDERS, FRAMES);
+		log.info("              MB/100k   bytes each");
+		log.info("  by reference   {}", format(byReference));
+		log.info("  primitives     {}", format(primitives));
+	}
+
+	/**
+	 * @return Bytes of heap held by the accumulators
+	 */
+	private <T> long measure(Supplier<T> supplier, BiConsumer<T, TimestampedEntry<String, Point>> accumulate,
+			ToIntFunction<T> points, int riders) {
+		Object[] accumulators = new Object[riders * FRAMES];
+		long before = usedAfterGc();
+
+		for (int rider = 0; rider < riders; rider++) {
+			String key = "rider" + rider;
+			for (int frame = 0; frame < FRAMES; frame++) {
+				T accumulator = supplier.get();
+				for (int i = 0; i < POINTS_PER_FRAME; i++) {
+					int second = frame * POINTS_PER_FRAME + i;
+					Point point = new Point(33.57d + second * STEP, -7.59d, 50d);
+					accumulate.accept(accumulator, new TimestampedEntry<>(START + second * 1_000L, new String(key), point));
+				}
+				accumulators[rider * FRAMES + frame] = accumulator;
+			}
+		}
+
+		long after = usedAfterGc();
+		@SuppressWarnings("unchecked")
+		T last = (T) accumulators[accumulators.length - 1];
+		if (points.applyAsInt(last) != POINTS_PER_FRAME) {
+			throw new IllegalStateException("Points lost");
+		}
+		return (after - before) / riders;
+	}
+
+	private static String format(long bytesPerRider) {
+		return String.format("%6.1f %8d", bytesPerRider * 100_000 / 1_000_000d, bytesPerRider / FRAMES);
+	}
+
+	private static long usedAfterGc() {
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * <p>The accumulator's fields and {@code accumulate()} before it held
+	 * only primitives, the key and the earliest and latest point.
+	 * </p>
+	 */
+	private static class ByReference {
+		private String key = null;
+		private TimestampedEntry<String, Point> first = null;
+		private TimestampedEntry<String, Point> last = null;
+		private int points = 0;
+
+		public void accumulate(TimestampedEntry<String, Point> input) {
+			if (this.key == null) {
+				this.key = input.getKey();
+				this.points = 1;
+				this.first = this.last = input;
+			} else {
+				this.points += 1;
+				if (this.first.getTimestamp() > input.getTimestamp()) {
+					this.first = input;
+				}
+				if (this.last.getTimestamp() < input.getTimestamp()) {
+					this.last = input;
+				}
+			}
+		}
+
+		public int getPoints() {
+			return this.points;
+		}
+	}
+}